@@ -1,9 +1,21 @@
 package com.elmocity.elib.chart;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.SWTException;
 import org.eclipse.swt.events.PaintEvent;
 import org.eclipse.swt.events.PaintListener;
 import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Image;
+import org.eclipse.swt.graphics.RGB;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Display;
@@ -22,6 +34,8 @@ public class ChartX extends InteractiveChart
 		// So we are just using an internal class to house the listener and everything seems to be working.
 		Composite plotArea = this.getPlotArea();
 		plotArea.addPaintListener(new ExtendedPaintListener());
+
+		addDisposeListener(e -> disposeRaster());
 	}
 
 	class ExtendedPaintListener implements PaintListener
@@ -32,6 +46,14 @@ public class ChartX extends InteractiveChart
 			GC gc = e.gc;
 			Rectangle rBounds = gc.getClipping();
 
+			if (offscreen) {
+				// SWTChart has drawn the grid and axes by now, the lines go on top
+				requestRaster();
+				if (raster != null) {
+					gc.drawImage(raster, 0, 0);
+				}
+			}
+
 			{
 				// Get the Y pixel value for the zero line (of the first Y axis)
 				IAxisSet axisSet = getAxisSet();
@@ -58,6 +80,398 @@ public class ChartX extends InteractiveChart
 		}
 	}
 
+	// ---------------------------------------------------------------------------------------
+	// Series transforms
+
+	// Above this many points on the chart, transforms are worked out on the common fork-join pool
+	private static final int PARALLEL_POINTS = 50_000;
+
+	// The data a series really holds, so any transform is worked out from (and can go back to) the original values
+	private static class SeriesData
+	{
+		final ISeries series;
+		final double[] original;
+		final double[] shown;
+		SeriesTransform applied = null;		// what the chart is showing now, null for the original
+
+		SeriesData(ISeries series, double[] original)
+		{
+			this.series = series;
+			this.original = original;
+			this.shown = new double[original.length];
+		}
+	}
+
+	// UI thread only, like the rest of the chart
+	private final HashMap<String, SeriesData> seriesData = new HashMap<String, SeriesData>();
+	private SeriesTransform transform = null;
+
+	/**
+	 * Show every series through the transform (null for the data as it was given), worked out from each series' original Y values.  Unlike
+	 * Normalize used to, nothing is lost, so switching back and forth is cheap: the original and transformed values are kept per series
+	 * and reused, only SWTChart's own copy on setYSeries() is made each time.
+	 * <p>
+	 * With many series, wrap this in suspendUpdate() so the chart isn't laid out once per series, and adjustRange() afterwards.
+	 * <p>
+	 * WARNING a series' data is remembered the first time a transform touches it.  To give a series new data after that, use
+	 * setOriginalYSeries() rather than setYSeries() on the series, or the next transform works from the old values.
+	 */
+	public void setSeriesTransform(SeriesTransform transform)
+	{
+		this.transform = transform;
+		applySeriesTransform();
+	}
+
+	public SeriesTransform getSeriesTransform()
+	{
+		return transform;
+	}
+
+	/**
+	 * Replace the original data of a series and show it through the current transform.
+	 */
+	public void setOriginalYSeries(String seriesID, double[] ySeries)
+	{
+		ISeries series = getSeriesSet().getSeries(seriesID);
+		if (series == null) {
+			return;
+		}
+		SeriesData data = new SeriesData(series, ySeries.clone());
+		seriesData.put(seriesID, data);
+		if (transform == null) {
+			series.setYSeries(data.original);
+			return;
+		}
+		transform.apply(data.original, data.shown, data.original.length);
+		series.setYSeries(data.shown);
+		data.applied = transform;
+	}
+
+	/**
+	 * Show the current transform on series added since it was set.  Series already showing it are left alone.
+	 */
+	public void applySeriesTransform()
+	{
+		ISeries[] all = getSeriesSet().getSeries();
+
+		// Forget series that were deleted (or replaced by a new one with the same ID)
+		for (Iterator<Map.Entry<String, SeriesData>> it = seriesData.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, SeriesData> entry = it.next();
+			if (getSeriesSet().getSeries(entry.getKey()) != entry.getValue().series) {
+				it.remove();
+			}
+		}
+
+		ArrayList<SeriesData> work = new ArrayList<SeriesData>(all.length);
+		long points = 0;
+		for (ISeries series : all) {
+			SeriesData data = seriesData.get(series.getId());
+			if (data == null) {
+				if (transform == null) {
+					// Never transformed, it is showing its original data already
+					continue;
+				}
+				data = new SeriesData(series, series.getYSeries());
+				seriesData.put(series.getId(), data);
+			}
+			if (data.applied != transform) {
+				work.add(data);
+				points += data.original.length;
+			}
+		}
+
+		final SeriesTransform t = transform;
+		if (t != null) {
+			// The series don't depend on each other, and nothing here touches SWT, so the work can be spread out
+			if (points > PARALLEL_POINTS) {
+				work.parallelStream().forEach(data -> t.apply(data.original, data.shown, data.original.length));
+			}
+			else {
+				for (SeriesData data : work) {
+					t.apply(data.original, data.shown, data.original.length);
+				}
+			}
+		}
+
+		for (SeriesData data : work) {
+			data.series.setYSeries((t == null) ? data.original : data.shown);
+			data.applied = t;
+		}
+		if (!work.isEmpty()) {
+			markSeriesDirty();
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Offscreen rendering
+
+	// UI thread only
+	private boolean offscreen = false;
+	private final Set<ISeries> hiddenSeries = Collections.newSetFromMap(new IdentityHashMap<ISeries, Boolean>());
+	private ISeries[] knownSeries = new ISeries[0];
+	private boolean dataDirty = true;
+	private SeriesRasterizer.Job lastJob = null;
+	private SeriesRasterizer rasterizer = null;
+	private boolean rasterBusy = false;
+	private boolean rasterAgain = false;
+	private Image raster = null;
+	private int[] rasterBounds = { 0, 0, 0, 0 };
+	private boolean redrawAll = false;		// SWTChart drew some lines itself before we hid them, they could be anywhere
+
+	/**
+	 * Draw the line series on a worker thread instead of the UI thread.  With hundreds of series (or several busy charts) SWTChart's own
+	 * drawing can hold the UI thread long enough to make every control lag.  In this mode the lines are rasterized into an image on a
+	 * small shared pool (see SeriesRasterizer) and the paint just draws that image over the grid, so a paint costs the same however much
+	 * data is on the chart.  A new image is made only when the data, the axis ranges or the size changed, and only the part of the plot
+	 * where the old or new lines are gets redrawn.
+	 * <p>
+	 * SWTChart is told the line series are hidden, so it doesn't draw them.  They stay in the legend, but getAxisSet().adjustRange()
+	 * would ignore them, so use adjustRange() here (the chart's own "Adjust Axis Range" menu is taken care of).  The image shows the newest data a frame or so after it was set, and leaves out plot
+	 * symbols.
+	 * <p>
+	 * WARNING a change of data (setXSeries/setYSeries on an existing series) can't be seen from here, call markSeriesDirty() after.
+	 * Adding or deleting series is noticed on its own.
+	 */
+	public void setOffscreenRendering(boolean on)
+	{
+		if (on == offscreen) {
+			return;
+		}
+		offscreen = on;
+		if (!on) {
+			for (ISeries series : hiddenSeries) {
+				series.setVisible(true);
+			}
+			hiddenSeries.clear();
+			knownSeries = new ISeries[0];
+			lastJob = null;
+			disposeRaster();
+		}
+		dataDirty = true;
+		getPlotArea().redraw();
+	}
+
+	public boolean isOffscreenRendering()
+	{
+		return offscreen;
+	}
+
+	/**
+	 * Series data changed, draw it again.  Cheap, does nothing unless offscreen rendering is on.
+	 */
+	public void markSeriesDirty()
+	{
+		if (offscreen) {
+			dataDirty = true;
+			getPlotArea().redraw();
+		}
+	}
+
+	/**
+	 * Same as getAxisSet().adjustRange(), but counting the series offscreen rendering hid from SWTChart.
+	 */
+	public void adjustRange()
+	{
+		// Nothing paints in between, so SWTChart never draws them
+		showHiddenSeries(true);
+		getAxisSet().adjustRange();
+		showHiddenSeries(false);
+	}
+
+	@Override
+	public void handleEvent(Event event)
+	{
+		// The context menu's "Adjust Axis Range" items call SWTChart's adjustRange(), which would skip the series hidden from it
+		if (event.type == SWT.Selection && !hiddenSeries.isEmpty()) {
+			showHiddenSeries(true);
+			try {
+				super.handleEvent(event);
+			}
+			finally {
+				showHiddenSeries(false);
+			}
+			return;
+		}
+		super.handleEvent(event);
+	}
+
+	private void showHiddenSeries(boolean visible)
+	{
+		for (ISeries series : hiddenSeries) {
+			series.setVisible(visible);
+		}
+	}
+
+	// Called from paint.  Starts a new image if anything it shows changed and no other one is being drawn.
+	private void requestRaster()
+	{
+		Rectangle area = getPlotArea().getClientArea();
+		if (area.width <= 0 || area.height <= 0) {
+			return;
+		}
+		ISeries[] all = getSeriesSet().getSeries();
+		if (!Arrays.equals(all, knownSeries)) {
+			knownSeries = all;
+			dataDirty = true;
+		}
+		Range xRange = getAxisSet().getXAxis(0).getRange();
+		Range yRange = getAxisSet().getYAxis(0).getRange();
+		boolean viewChanged = lastJob == null || area.width != lastJob.width || area.height != lastJob.height
+				|| xRange.lower != lastJob.xLower || xRange.upper != lastJob.xUpper
+				|| yRange.lower != lastJob.yLower || yRange.upper != lastJob.yUpper;
+		if (!dataDirty && !viewChanged) {
+			return;
+		}
+		if (rasterBusy) {
+			rasterAgain = true;
+			return;
+		}
+
+		SeriesRasterizer.Job job = dataDirty ? snapshotSeries(all) : copyData(lastJob);
+		dataDirty = false;
+		job.width = area.width;
+		job.height = area.height;
+		job.xLower = xRange.lower;
+		job.xUpper = xRange.upper;
+		job.yLower = yRange.lower;
+		job.yUpper = yRange.upper;
+		lastJob = job;
+
+		if (rasterizer == null || !rasterizer.fits(area.width, area.height)) {
+			rasterizer = new SeriesRasterizer(area.width, area.height);
+		}
+		final SeriesRasterizer r = rasterizer;
+		final Display display = getDisplay();
+		rasterBusy = true;
+		SeriesRasterizer.getPool().execute(() -> {
+			r.rasterize(job);
+			try {
+				display.asyncExec(() -> rasterDone(r));
+			}
+			catch (SWTException e) {
+				// Display is gone, so is the chart
+			}
+		});
+	}
+
+	// Copy out what the worker needs, hiding any line series SWTChart would otherwise draw itself
+	private SeriesRasterizer.Job snapshotSeries(ISeries[] all)
+	{
+		// Forget series that were deleted
+		hiddenSeries.retainAll(Arrays.asList(all));
+
+		ArrayList<ILineSeries> lines = new ArrayList<ILineSeries>(all.length);
+		for (ISeries series : all) {
+			if (!(series instanceof ILineSeries)) {
+				continue;
+			}
+			if (!hiddenSeries.contains(series)) {
+				if (!series.isVisible()) {
+					// Hidden by its owner, not by us
+					continue;
+				}
+				series.setVisible(false);
+				hiddenSeries.add(series);
+				redrawAll = true;
+			}
+			lines.add((ILineSeries) series);
+		}
+
+		SeriesRasterizer.Job job = new SeriesRasterizer.Job();
+		int n = lines.size();
+		job.seriesCount = n;
+		job.xs = new double[n][];
+		job.ys = new double[n][];
+		job.rgb = new int[n];
+		job.lineWidth = new int[n];
+		job.lineStyle = new LineStyle[n];
+		job.step = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			ILineSeries series = lines.get(i);
+			// SWTChart hands out copies, so the worker can have them as they are
+			double[] x = series.getXSeries();
+			double[] y = series.getYSeries();
+			job.xs[i] = (x == null) ? new double[0] : x;
+			job.ys[i] = (y == null) ? new double[0] : y;
+			RGB rgb = series.getLineColor().getRGB();
+			job.rgb[i] = (rgb.red << 16) | (rgb.green << 8) | rgb.blue;
+			job.lineWidth[i] = series.getLineWidth();
+			job.lineStyle[i] = series.getLineStyle();
+			job.step[i] = series.isStepEnabled();
+		}
+		return job;
+	}
+
+	// Same data, new view
+	private static SeriesRasterizer.Job copyData(SeriesRasterizer.Job from)
+	{
+		SeriesRasterizer.Job job = new SeriesRasterizer.Job();
+		job.seriesCount = from.seriesCount;
+		job.xs = from.xs;
+		job.ys = from.ys;
+		job.rgb = from.rgb;
+		job.lineWidth = from.lineWidth;
+		job.lineStyle = from.lineStyle;
+		job.step = from.step;
+		return job;
+	}
+
+	// UI thread, a worker finished an image
+	private void rasterDone(SeriesRasterizer r)
+	{
+		rasterBusy = false;
+		if (isDisposed() || !offscreen || r != rasterizer) {
+			return;
+		}
+		Image old = raster;
+		raster = new Image(getDisplay(), r.getImageData());
+		if (old != null) {
+			old.dispose();
+		}
+
+		// Only where the old lines were or the new ones are can have changed
+		int[] drawn = r.getDrawnBounds();
+		int[] dirty = union(rasterBounds, drawn);
+		rasterBounds = drawn;
+		if (redrawAll) {
+			redrawAll = false;
+			getPlotArea().redraw();
+		}
+		else if (dirty[2] > 0 && dirty[3] > 0) {
+			getPlotArea().redraw(dirty[0], dirty[1], dirty[2], dirty[3], false);
+		}
+
+		if (rasterAgain) {
+			rasterAgain = false;
+			requestRaster();
+		}
+	}
+
+	private static int[] union(int[] a, int[] b)
+	{
+		if (a[2] <= 0 || a[3] <= 0) {
+			return b;
+		}
+		if (b[2] <= 0 || b[3] <= 0) {
+			return a;
+		}
+		int x = Math.min(a[0], b[0]);
+		int y = Math.min(a[1], b[1]);
+		int right = Math.max(a[0] + a[2], b[0] + b[2]);
+		int bottom = Math.max(a[1] + a[3], b[1] + b[3]);
+		return new int[] { x, y, right - x, bottom - y };
+	}
+
+	private void disposeRaster()
+	{
+		if (raster != null) {
+			raster.dispose();
+			raster = null;
+		}
+		rasterizer = null;
+		rasterBounds = new int[] { 0, 0, 0, 0 };
+	}
+
 	private boolean isYPixelInClipping(GC gc, int yPixel)
 	{
 		// Make sure this is even in the clipping range - often only displayed on Normalized data
@@ -0,0 +1,361 @@
+package com.elmocity.elib.chart;
+
+import java.util.concurrent.locks.StampedLock;
+
+import org.swtchart.ISeries;
+
+import com.elmocity.elib.util.Calc;
+
+/**
+ * Data behind a live chart line: a fixed size ring of (x, y) points in primitive arrays, plus a view that copies the visible part into an
+ * SWTChart series on the UI thread.
+ * <p>
+ * Any thread (a watcher on the timer wheel, a UI timer, a button) can add points.  An add is a couple of array stores under a StampedLock
+ * write, O(1) and allocation free, and once full the oldest point is overwritten.  The UI thread reads under an optimistic read and
+ * just retries if a writer got in meanwhile, so the writer never waits on a paint.  The chart itself is only touched from the UI thread,
+ * in showIn().
+ * <p>
+ * X values must be non-decreasing (seconds since the chart started, usually).  An out of order x is clamped to the last one so the
+ * window lookups (binary search) stay valid.
+ * <p>
+ * A long run (hours of points) is never handed to the chart whole.  showIn() gets the width of the plot in pixels and gives the chart
+ * at most a couple of points per pixel of whatever window is asked for: if the window holds a few times that many it picks them with LTTB
+ * (see Lttb), if it holds more it starts from the MinMaxPyramid, which add() keeps up to date, so even a 12 hour window only looks at a
+ * few thousand bucket extremes.  The cost of a refresh depends on the width of the plot, not the length of the run, and zooming in just
+ * means asking for a narrower window.
+ */
+public class LiveSeries
+{
+	private final double[] xs;
+	private final double[] ys;
+	private final int mask;
+	private final MinMaxPyramid pyramid;
+
+	// Total points ever added, only the low bits (mask) index the arrays.  Written inside the write stamp.
+	private long count = 0;
+
+	// Bumped by every change (add, extend, clear), so the view can skip a copy when nothing happened
+	private long version = 0;
+
+	private final StampedLock stamp = new StampedLock();
+
+	// Give up optimism after this many tries and briefly take the read lock, so the UI can't starve under a writer flood
+	private static final int OPTIMISTIC_TRIES = 8;
+
+	// Points handed to the chart per pixel of plot width, two so a min and a max can share a column
+	private static final int POINTS_PER_PIXEL = 2;
+	private static final int MIN_POINTS = 64;
+
+	// A window with up to this many times the chart's budget is thinned by LTTB straight from the points, beyond that from the pyramid
+	private static final int RAW_FACTOR = 4;
+
+	// UI thread only.  SWTChart copies whatever it is given, so the view arrays only get remade when the number of points shown changes,
+	// and the rest only when the plot gets wider.
+	private double[] candidateX = new double[0];
+	private double[] candidateY = new double[0];
+	private long[] candidateIndex = new long[0];
+	private double[] reducedX = new double[0];
+	private double[] reducedY = new double[0];
+	private double[] viewX = new double[0];
+	private double[] viewY = new double[0];
+	private long viewVersion = -1;
+	private double viewFrom = Double.NaN;
+	private double viewTo = Double.NaN;
+	private int viewBudget = 0;
+
+
+	/**
+	 * @param capacity points kept, rounded up to a power of 2
+	 */
+	public LiveSeries(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		xs = new double[size];
+		ys = new double[size];
+		mask = size - 1;
+		pyramid = new MinMaxPyramid(size);
+	}
+
+	public int capacity()
+	{
+		return xs.length;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Writer side
+
+	public void add(double x, double y)
+	{
+		long s = stamp.writeLock();
+		try {
+			if (count > 0) {
+				x = Math.max(x, xs[(int) ((count - 1) & mask)]);
+			}
+			int i = (int) (count & mask);
+			xs[i] = x;
+			ys[i] = y;
+			pyramid.add(count, y);
+			count++;
+			version++;
+		}
+		finally {
+			stamp.unlockWrite(s);
+		}
+	}
+
+	/**
+	 * If the last two points both have this y, just move the last point out to x instead of adding another.  This keeps a flat line going
+	 * without piling up points that say nothing new.
+	 *
+	 * @return false if the y differs (or there aren't two points yet), the caller most likely wants add()
+	 */
+	public boolean extend(double x, double y)
+	{
+		long s = stamp.writeLock();
+		try {
+			if (count < 2) {
+				return false;
+			}
+			int last = (int) ((count - 1) & mask);
+			int secondLast = (int) ((count - 2) & mask);
+			if (!Calc.double_equals(ys[last], y) || !Calc.double_equals(ys[secondLast], y)) {
+				return false;
+			}
+			xs[last] = Math.max(x, xs[last]);
+			version++;
+			return true;
+		}
+		finally {
+			stamp.unlockWrite(s);
+		}
+	}
+
+	/**
+	 * add() unless extend() could do it.
+	 */
+	public void addOrExtend(double x, double y)
+	{
+		if (!extend(x, y)) {
+			add(x, y);
+		}
+	}
+
+	public void clear()
+	{
+		long s = stamp.writeLock();
+		try {
+			count = 0;
+			version++;
+		}
+		finally {
+			stamp.unlockWrite(s);
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Reader side
+
+	/**
+	 * Changes so far, for "anything new since I last looked" checks.
+	 */
+	public long getVersion()
+	{
+		long s = stamp.tryOptimisticRead();
+		long v = version;
+		if (!stamp.validate(s)) {
+			s = stamp.readLock();
+			try {
+				v = version;
+			}
+			finally {
+				stamp.unlockRead(s);
+			}
+		}
+		return v;
+	}
+
+	/**
+	 * Points currently held, at most capacity().
+	 */
+	public int size()
+	{
+		long s = stamp.tryOptimisticRead();
+		long c = count;
+		if (!stamp.validate(s)) {
+			s = stamp.readLock();
+			try {
+				c = count;
+			}
+			finally {
+				stamp.unlockRead(s);
+			}
+		}
+		return (int) Math.min(c, xs.length);
+	}
+
+	/**
+	 * @return x of the newest point, NaN if there are none
+	 */
+	public double getLastX()
+	{
+		for (int tries = 0; ; tries++) {
+			long s = (tries < OPTIMISTIC_TRIES) ? stamp.tryOptimisticRead() : stamp.readLock();
+			try {
+				double x = (count == 0) ? Double.NaN : xs[(int) ((count - 1) & mask)];
+				if (tries >= OPTIMISTIC_TRIES || stamp.validate(s)) {
+					return x;
+				}
+			}
+			finally {
+				if (tries >= OPTIMISTIC_TRIES) {
+					stamp.unlockRead(s);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the points with fromX <= x <= toX, oldest first, into the caller's arrays starting at offset.  If there are more than fit, the
+	 * oldest ones are copied and the rest dropped.
+	 *
+	 * @return number of points copied
+	 */
+	public int read(double fromX, double toX, double[] outX, double[] outY, int offset)
+	{
+		int room = Math.min(outX.length, outY.length) - offset;
+		for (int tries = 0; ; tries++) {
+			long s = (tries < OPTIMISTIC_TRIES) ? stamp.tryOptimisticRead() : stamp.readLock();
+			try {
+				long end = count;
+				long first = lowerBound(Math.max(0, end - xs.length), end, fromX, false);
+				long last = lowerBound(first, end, toX, true);
+				int copied = copy(first, Math.min(last, first + Math.max(0, room)), outX, outY, offset);
+				if (tries >= OPTIMISTIC_TRIES || stamp.validate(s)) {
+					return copied;
+				}
+			}
+			finally {
+				if (tries >= OPTIMISTIC_TRIES) {
+					stamp.unlockRead(s);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Put the points between fromX and toX into the chart series, plus the point just before fromX (if any) so the line runs in from the
+	 * left edge instead of starting partway across.  At most a couple of points per pixel of plotWidth are handed over, thinned as
+	 * described above.  UI thread only.  Does nothing if neither the data nor the window changed since the last call.
+	 *
+	 * @return true if the series was updated, the caller should redraw
+	 */
+	public boolean showIn(ISeries series, double fromX, double toX, int plotWidth)
+	{
+		int budget = Math.max(MIN_POINTS, plotWidth * POINTS_PER_PIXEL);
+		long v = getVersion();
+		if (v == viewVersion && fromX == viewFrom && toX == viewTo && budget == viewBudget) {
+			return false;
+		}
+
+		int room = budget * RAW_FACTOR;
+		if (candidateX.length != room + 1) {
+			candidateX = new double[room + 1];
+			candidateY = new double[room + 1];
+			candidateIndex = new long[room + 1];
+			reducedX = new double[budget];
+			reducedY = new double[budget];
+		}
+
+		int n;
+		for (int tries = 0; ; tries++) {
+			long s = (tries < OPTIMISTIC_TRIES) ? stamp.tryOptimisticRead() : stamp.readLock();
+			try {
+				long end = count;
+				long oldest = Math.max(0, end - xs.length);
+				long first = lowerBound(oldest, end, fromX, false);
+				if (first > oldest) {
+					first--;
+				}
+				long last = lowerBound(first, end, toX, true);
+				if (last - first <= room) {
+					n = copy(first, last, candidateX, candidateY, 0);
+				}
+				else {
+					// Min and max of each bucket, on the finest level that fits, plus the newest point so the line reaches the right end
+					int level = pyramid.levelFor(first, last, room / 2);
+					n = pyramid.collect(level, first, last, oldest, candidateIndex, 0);
+					if (n == 0 || candidateIndex[n - 1] != last - 1) {
+						candidateIndex[n++] = last - 1;
+					}
+					for (int k = 0; k < n; k++) {
+						int i = (int) (candidateIndex[k] & mask);
+						candidateX[k] = xs[i];
+						candidateY[k] = ys[i];
+					}
+				}
+				v = version;
+				if (tries >= OPTIMISTIC_TRIES || stamp.validate(s)) {
+					break;
+				}
+			}
+			finally {
+				if (tries >= OPTIMISTIC_TRIES) {
+					stamp.unlockRead(s);
+				}
+			}
+		}
+
+		double[] outX = candidateX;
+		double[] outY = candidateY;
+		if (n > budget) {
+			n = Lttb.downsample(candidateX, candidateY, n, budget, reducedX, reducedY);
+			outX = reducedX;
+			outY = reducedY;
+		}
+		if (n != viewX.length) {
+			viewX = new double[n];
+			viewY = new double[n];
+		}
+		System.arraycopy(outX, 0, viewX, 0, n);
+		System.arraycopy(outY, 0, viewY, 0, n);
+
+		series.setXSeries(viewX);
+		series.setYSeries(viewY);
+		viewVersion = v;
+		viewFrom = fromX;
+		viewTo = toX;
+		viewBudget = budget;
+		return true;
+	}
+
+	// First logical index in [from, to) whose x is >= x (> x if after), or to if none.  Values may be torn during an optimistic read, the
+	// caller validates before trusting the answer.
+	private long lowerBound(long from, long to, double x, boolean after)
+	{
+		long lo = from;
+		long hi = to;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			double v = xs[(int) (mid & mask)];
+			if (v < x || (after && v == x)) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int copy(long first, long end, double[] outX, double[] outY, int offset)
+	{
+		int n = (int) Math.max(0, end - first);
+		n = Math.min(n, Math.min(outX.length, outY.length) - offset);
+		for (int k = 0; k < n; k++) {
+			int i = (int) ((first + k) & mask);
+			outX[offset + k] = xs[i];
+			outY[offset + k] = ys[i];
+		}
+		return Math.max(0, n);
+	}
+}
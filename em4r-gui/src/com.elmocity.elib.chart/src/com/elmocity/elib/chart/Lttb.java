@@ -0,0 +1,88 @@
+package com.elmocity.elib.chart;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling: picks the points of a line that keep its visual shape, for drawing far more points than
+ * there are pixels.
+ * <p>
+ * The first and last points are always kept.  The rest are split into (threshold - 2) buckets, and from each bucket the point that makes
+ * the biggest triangle with the point kept from the previous bucket and the average of the next bucket is kept.  Peaks and dips survive,
+ * runs of nearly flat points collapse.  One pass, nothing allocated.
+ */
+public class Lttb
+{
+	private Lttb()
+	{
+	}
+
+	/**
+	 * Downsample the first n points of (x, y) to at most threshold (3 or more) points, into outX/outY (which must hold that many, and may
+	 * not be the input arrays).  If n is already small enough the points are just copied.
+	 *
+	 * @return number of points written
+	 */
+	public static int downsample(double[] x, double[] y, int n, int threshold, double[] outX, double[] outY)
+	{
+		// Both ends plus at least one point between
+		threshold = Math.max(threshold, 3);
+		if (threshold >= n) {
+			System.arraycopy(x, 0, outX, 0, n);
+			System.arraycopy(y, 0, outY, 0, n);
+			return n;
+		}
+
+		// Every bucket except the first and last (which are just the end points)
+		double every = (double) (n - 2) / (threshold - 2);
+
+		int kept = 0;
+		int a = 0;
+		outX[kept] = x[a];
+		outY[kept] = y[a];
+		kept++;
+
+		for (int i = 0; i < threshold - 2; i++) {
+			// Average of the next bucket, the third corner of the triangle
+			int nextStart = (int) ((i + 1) * every) + 1;
+			int nextEnd = Math.min((int) ((i + 2) * every) + 1, n);
+			double avgX = 0;
+			double avgY = 0;
+			for (int j = nextStart; j < nextEnd; j++) {
+				avgX += x[j];
+				avgY += y[j];
+			}
+			int nextCount = nextEnd - nextStart;
+			if (nextCount > 0) {
+				avgX /= nextCount;
+				avgY /= nextCount;
+			}
+			else {
+				avgX = x[n - 1];
+				avgY = y[n - 1];
+			}
+
+			// Point in this bucket with the largest triangle
+			int start = (int) (i * every) + 1;
+			int end = (int) ((i + 1) * every) + 1;
+			double ax = x[a];
+			double ay = y[a];
+			double maxArea = -1;
+			int best = start;
+			for (int j = start; j < end; j++) {
+				double area = Math.abs((ax - avgX) * (y[j] - ay) - (ax - x[j]) * (avgY - ay));
+				if (area > maxArea) {
+					maxArea = area;
+					best = j;
+				}
+			}
+
+			outX[kept] = x[best];
+			outY[kept] = y[best];
+			kept++;
+			a = best;
+		}
+
+		outX[kept] = x[n - 1];
+		outY[kept] = y[n - 1];
+		kept++;
+		return kept;
+	}
+}
@@ -0,0 +1,129 @@
+package com.elmocity.elib.chart;
+
+/**
+ * Min and max of a LiveSeries at several resolutions, kept up to date as points are added, so a chart of a 12 hour run can be drawn from
+ * a few thousand bucket extremes instead of every point.
+ * <p>
+ * Level k buckets 8 << k consecutive points (8, 16, 32... up to half the ring) and remembers which point in each bucket had the lowest and
+ * the highest y.  Each level is a ring covering the same span as the LiveSeries ring.  It stores point indexes rather than values, so the
+ * x values come from the LiveSeries itself (and extend() moving the last x needs nothing here).
+ * <p>
+ * Not thread safe, LiveSeries calls it inside its own lock.
+ */
+class MinMaxPyramid
+{
+	static final int FIRST_SHIFT = 3;			// 8 points per bucket on the finest level
+
+	private final int levels;
+	private final long[][] minIndex;
+	private final long[][] maxIndex;
+	private final double[][] minY;
+	private final double[][] maxY;
+
+
+	/**
+	 * @param capacity the LiveSeries capacity, a power of 2
+	 */
+	MinMaxPyramid(int capacity)
+	{
+		int n = 0;
+		while ((2 << (FIRST_SHIFT + n)) <= capacity) {
+			n++;
+		}
+		levels = n;
+		minIndex = new long[n][];
+		maxIndex = new long[n][];
+		minY = new double[n][];
+		maxY = new double[n][];
+		for (int k = 0; k < n; k++) {
+			int buckets = capacity >>> (FIRST_SHIFT + k);
+			minIndex[k] = new long[buckets];
+			maxIndex[k] = new long[buckets];
+			minY[k] = new double[buckets];
+			maxY[k] = new double[buckets];
+		}
+	}
+
+	int getLevelCount()
+	{
+		return levels;
+	}
+
+	static int bucketShift(int level)
+	{
+		return FIRST_SHIFT + level;
+	}
+
+	/**
+	 * Point number index (counting every point ever added) now has this y.
+	 */
+	void add(long index, double y)
+	{
+		for (int k = 0; k < levels; k++) {
+			int shift = FIRST_SHIFT + k;
+			int b = (int) ((index >>> shift) & (minIndex[k].length - 1));
+			if ((index & ((1L << shift) - 1)) == 0) {
+				// First point of a new bucket, which takes over the slot of the oldest one
+				minIndex[k][b] = index;
+				maxIndex[k][b] = index;
+				minY[k][b] = y;
+				maxY[k][b] = y;
+				continue;
+			}
+			if (y < minY[k][b]) {
+				minY[k][b] = y;
+				minIndex[k][b] = index;
+			}
+			if (y > maxY[k][b]) {
+				maxY[k][b] = y;
+				maxIndex[k][b] = index;
+			}
+		}
+	}
+
+	/**
+	 * Finest level that covers points [first, end) in at most maxBuckets buckets, or the coarsest level if none does.
+	 */
+	int levelFor(long first, long end, int maxBuckets)
+	{
+		for (int k = 0; k < levels; k++) {
+			int shift = FIRST_SHIFT + k;
+			if (((end - 1) >>> shift) - (first >>> shift) + 1 <= maxBuckets) {
+				return k;
+			}
+		}
+		return levels - 1;
+	}
+
+	/**
+	 * Write the indexes of the min and max points of every bucket touching points [first, end), in index order, into out.  Buckets whose
+	 * first point has already been overwritten in the LiveSeries (oldest is the oldest point still held) are skipped.
+	 *
+	 * @return number of indexes written, stops early if out is full
+	 */
+	int collect(int level, long first, long end, long oldest, long[] out, int offset)
+	{
+		int shift = FIRST_SHIFT + level;
+		int mask = minIndex[level].length - 1;
+		long firstBucket = Math.max(first >>> shift, (oldest + (1L << shift) - 1) >>> shift);
+		long lastBucket = (end - 1) >>> shift;
+		int n = offset;
+		for (long bucket = firstBucket; bucket <= lastBucket && n + 2 <= out.length; bucket++) {
+			int b = (int) (bucket & mask);
+			long lo = minIndex[level][b];
+			long hi = maxIndex[level][b];
+			if (lo == hi) {
+				out[n++] = lo;
+			}
+			else if (lo < hi) {
+				out[n++] = lo;
+				out[n++] = hi;
+			}
+			else {
+				out[n++] = hi;
+				out[n++] = lo;
+			}
+		}
+		return n - offset;
+	}
+}
@@ -12,9 +12,16 @@ public class Normalize
 	 *  Change the actual data in every series so that they all start at Y coord zero.  The X data is unaffected.
 	 *  <p>
 	 *  This is useful to show many series at once that are all relative (like $ profit)
+	 *  <p>
+	 *  On a ChartX this just shows the series through SeriesTransform.normalize(), the data itself is left alone.
 	 */
 	public static void normalizeAllSeries(Chart chart)
 	{
+		if (chart instanceof ChartX) {
+			((ChartX) chart).setSeriesTransform(SeriesTransform.normalize());
+			return;
+		}
+
 		// Walk each series individually, they do not interact with each other.
 		ISeriesSet seriesSet = chart.getSeriesSet();
 		for (ISeries series : seriesSet.getSeries()) {
@@ -0,0 +1,298 @@
+package com.elmocity.elib.chart;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.eclipse.swt.graphics.ImageData;
+import org.eclipse.swt.graphics.PaletteData;
+import org.swtchart.LineStyle;
+
+/**
+ * Draws chart lines into an ImageData on a worker thread, for ChartX's offscreen mode.
+ * <p>
+ * ImageData is just a byte array, no native resources, so it can be filled on any thread.  Only turning it into an Image and drawing
+ * that has to happen on the UI thread, and those are cheap no matter how many points went into it.  Lines are 1 pixel Bresenham lines
+ * (stamped for thicker widths, no antialiasing), clipped to the plot, with the dash patterns and step mode of SWTChart line series.
+ * Symbols and non linear axes are not drawn.
+ */
+class SeriesRasterizer
+{
+	/**
+	 * Everything the worker needs, copied out of the chart on the UI thread.  The worker only reads it.
+	 */
+	static class Job
+	{
+		int width;
+		int height;
+		double xLower;
+		double xUpper;
+		double yLower;
+		double yUpper;
+
+		int seriesCount;
+		double[][] xs;
+		double[][] ys;
+		int[] rgb;
+		int[] lineWidth;
+		LineStyle[] lineStyle;
+		boolean[] step;
+	}
+
+	// Pixels on / off for each dash style, in the spirit of what SWT draws
+	private static final int[] DASH = { 9, 3 };
+	private static final int[] DOT = { 2, 2 };
+	private static final int[] DASHDOT = { 9, 3, 2, 3 };
+	private static final int[] DASHDOTDOT = { 9, 3, 2, 3, 2, 3 };
+
+	private static ExecutorService pool = null;
+
+	private final ImageData image;
+
+	// Bounding box of what the last rasterize() drew, so the next one only has to clear that and the chart only redraws what changed
+	private int minX;
+	private int minY;
+	private int maxX = -1;
+	private int maxY = -1;
+
+	// Where we are in the dash pattern, carried across segments so a dashed polyline looks continuous
+	private int[] pattern;
+	private int patternIndex;
+	private int patternLeft;
+
+	// Working values of the current clip
+	private double clipT0;
+	private double clipT1;
+
+
+	SeriesRasterizer(int width, int height)
+	{
+		image = new ImageData(width, height, 24, new PaletteData(0xFF0000, 0x00FF00, 0x0000FF));
+		image.alphaData = new byte[width * height];
+	}
+
+	/**
+	 * A few daemon threads shared by every chart.  Leaves a core for the UI thread.
+	 */
+	static synchronized ExecutorService getPool()
+	{
+		if (pool == null) {
+			int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+			pool = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r);
+				t.setName("ChartRaster");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return pool;
+	}
+
+	boolean fits(int width, int height)
+	{
+		return image.width == width && image.height == height;
+	}
+
+	ImageData getImageData()
+	{
+		return image;
+	}
+
+	/**
+	 * @return {x, y, width, height} of what was drawn last, empty if nothing
+	 */
+	int[] getDrawnBounds()
+	{
+		return (maxX < minX) ? new int[] { 0, 0, 0, 0 } : new int[] { minX, minY, maxX - minX + 1, maxY - minY + 1 };
+	}
+
+	/**
+	 * Redraw the image from the job.  Any thread, but only one at a time per rasterizer.
+	 */
+	void rasterize(Job job)
+	{
+		// Only what the last one drew needs clearing, the rest is still transparent
+		for (int y = Math.max(0, minY); y <= Math.min(image.height - 1, maxY); y++) {
+			Arrays.fill(image.alphaData, y * image.width + minX, y * image.width + maxX + 1, (byte) 0);
+		}
+		minX = Integer.MAX_VALUE;
+		minY = Integer.MAX_VALUE;
+		maxX = -1;
+		maxY = -1;
+
+		double xSpan = job.xUpper - job.xLower;
+		double ySpan = job.yUpper - job.yLower;
+		if (xSpan <= 0 || ySpan <= 0) {
+			return;
+		}
+		double xScale = (job.width - 1) / xSpan;
+		double yScale = (job.height - 1) / ySpan;
+
+		for (int s = 0; s < job.seriesCount; s++) {
+			double[] xs = job.xs[s];
+			double[] ys = job.ys[s];
+			int n = Math.min(xs.length, ys.length);
+			if (n == 0) {
+				continue;
+			}
+			int rgb = job.rgb[s];
+			int width = Math.max(1, job.lineWidth[s]);
+			startPattern(job.lineStyle[s]);
+
+			double px = (xs[0] - job.xLower) * xScale;
+			double py = (job.height - 1) - (ys[0] - job.yLower) * yScale;
+			if (n == 1) {
+				line(px, py, px, py, rgb, width);
+			}
+			for (int i = 1; i < n; i++) {
+				double cx = (xs[i] - job.xLower) * xScale;
+				double cy = (job.height - 1) - (ys[i] - job.yLower) * yScale;
+				if (job.step[s]) {
+					line(px, py, cx, py, rgb, width);
+					line(cx, py, cx, cy, rgb, width);
+				}
+				else {
+					line(px, py, cx, cy, rgb, width);
+				}
+				px = cx;
+				py = cy;
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	private void startPattern(LineStyle style)
+	{
+		switch (style) {
+		case DASH:
+			pattern = DASH;
+			break;
+		case DOT:
+			pattern = DOT;
+			break;
+		case DASHDOT:
+			pattern = DASHDOT;
+			break;
+		case DASHDOTDOT:
+			pattern = DASHDOTDOT;
+			break;
+		default:
+			pattern = null;
+			break;
+		}
+		patternIndex = 0;
+		patternLeft = (pattern == null) ? 0 : pattern[0];
+	}
+
+	// Clip to the image (plus the pen width) then Bresenham
+	private void line(double x0, double y0, double x1, double y1, int rgb, int width)
+	{
+		double lo = -width;
+		double hiX = image.width + width;
+		double hiY = image.height + width;
+
+		// Liang-Barsky, so a segment from far off screen costs no more than its visible part
+		double dx = x1 - x0;
+		double dy = y1 - y0;
+		clipT0 = 0;
+		clipT1 = 1;
+		if (!clip(-dx, x0 - lo) || !clip(dx, hiX - x0) || !clip(-dy, y0 - lo) || !clip(dy, hiY - y0)) {
+			return;
+		}
+		double t0 = clipT0;
+		double t1 = clipT1;
+
+		int ax = (int) Math.round(x0 + t0 * dx);
+		int ay = (int) Math.round(y0 + t0 * dy);
+		int bx = (int) Math.round(x0 + t1 * dx);
+		int by = (int) Math.round(y0 + t1 * dy);
+
+		int sx = (ax < bx) ? 1 : -1;
+		int sy = (ay < by) ? 1 : -1;
+		int ex = Math.abs(bx - ax);
+		int ey = -Math.abs(by - ay);
+		int err = ex + ey;
+		while (true) {
+			if (penDown()) {
+				stamp(ax, ay, rgb, width);
+			}
+			if (ax == bx && ay == by) {
+				break;
+			}
+			int e2 = 2 * err;
+			if (e2 >= ey) {
+				err += ey;
+				ax += sx;
+			}
+			if (e2 <= ex) {
+				err += ex;
+				ay += sy;
+			}
+		}
+	}
+
+	// One edge of the Liang-Barsky clip, narrowing clipT0..clipT1.  False if the segment is entirely outside.
+	private boolean clip(double p, double q)
+	{
+		if (p == 0) {
+			return q >= 0;
+		}
+		double r = q / p;
+		if (p < 0) {
+			if (r > clipT1) {
+				return false;
+			}
+			clipT0 = Math.max(clipT0, r);
+		}
+		else {
+			if (r < clipT0) {
+				return false;
+			}
+			clipT1 = Math.min(clipT1, r);
+		}
+		return true;
+	}
+
+	private boolean penDown()
+	{
+		if (pattern == null) {
+			return true;
+		}
+		boolean down = (patternIndex & 1) == 0;
+		if (--patternLeft <= 0) {
+			patternIndex = (patternIndex + 1) % pattern.length;
+			patternLeft = pattern[patternIndex];
+		}
+		return down;
+	}
+
+	private void stamp(int cx, int cy, int rgb, int width)
+	{
+		int half = (width - 1) / 2;
+		int x0 = Math.max(0, cx - half);
+		int y0 = Math.max(0, cy - half);
+		int x1 = Math.min(image.width - 1, cx - half + width - 1);
+		int y1 = Math.min(image.height - 1, cy - half + width - 1);
+		if (x0 > x1 || y0 > y1) {
+			return;
+		}
+		byte r = (byte) (rgb >>> 16);
+		byte g = (byte) (rgb >>> 8);
+		byte b = (byte) rgb;
+		for (int y = y0; y <= y1; y++) {
+			int row = y * image.bytesPerLine;
+			for (int x = x0; x <= x1; x++) {
+				int i = row + x * 3;
+				image.data[i] = r;
+				image.data[i + 1] = g;
+				image.data[i + 2] = b;
+				image.alphaData[y * image.width + x] = (byte) 0xFF;
+			}
+		}
+		minX = Math.min(minX, x0);
+		minY = Math.min(minY, y0);
+		maxX = Math.max(maxX, x1);
+		maxY = Math.max(maxY, y1);
+	}
+}
@@ -0,0 +1,136 @@
+package com.elmocity.elib.chart;
+
+/**
+ * A view of a series' Y values (offset, scaled, normalized...) worked out from the original values whenever it is shown, instead of
+ * rewriting the data.  Transforms chain with then(), left to right, and are immutable so one chain can be shared by any number of charts.
+ * <p>
+ * See ChartX.setSeriesTransform().
+ */
+public abstract class SeriesTransform
+{
+	/**
+	 * Write the transformed first n values of src into dst.  dst may be src.
+	 */
+	public abstract void apply(double[] src, double[] dst, int n);
+
+	/**
+	 * This transform, then the next one on its result.
+	 */
+	public SeriesTransform then(SeriesTransform next)
+	{
+		final SeriesTransform first = this;
+		return new SeriesTransform()
+		{
+			@Override
+			public void apply(double[] src, double[] dst, int n)
+			{
+				first.apply(src, dst, n);
+				next.apply(dst, dst, n);
+			}
+		};
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	/**
+	 * y + offset
+	 */
+	public static SeriesTransform offset(final double offset)
+	{
+		return new SeriesTransform()
+		{
+			@Override
+			public void apply(double[] src, double[] dst, int n)
+			{
+				for (int i = 0; i < n; i++) {
+					dst[i] = src[i] + offset;
+				}
+			}
+		};
+	}
+
+	/**
+	 * y * factor
+	 */
+	public static SeriesTransform scale(final double factor)
+	{
+		return new SeriesTransform()
+		{
+			@Override
+			public void apply(double[] src, double[] dst, int n)
+			{
+				for (int i = 0; i < n; i++) {
+					dst[i] = src[i] * factor;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Every series starts at zero, y - y[0].  Useful to show many series at once that are all relative (like $ profit).
+	 */
+	public static SeriesTransform normalize()
+	{
+		return NORMALIZE;
+	}
+
+	/**
+	 * Running total, y[0] + ... + y[i].
+	 */
+	public static SeriesTransform cumulative()
+	{
+		return CUMULATIVE;
+	}
+
+	/**
+	 * Percent change from the first value, 100 * (y - y[0]) / y[0].  A series starting at zero stays all zero.
+	 */
+	public static SeriesTransform percentChange()
+	{
+		return PERCENT_CHANGE;
+	}
+
+	private static final SeriesTransform NORMALIZE = new SeriesTransform()
+	{
+		@Override
+		public void apply(double[] src, double[] dst, int n)
+		{
+			if (n == 0) {
+				return;
+			}
+			double first = src[0];
+			for (int i = 0; i < n; i++) {
+				dst[i] = src[i] - first;
+			}
+		}
+	};
+
+	private static final SeriesTransform CUMULATIVE = new SeriesTransform()
+	{
+		@Override
+		public void apply(double[] src, double[] dst, int n)
+		{
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += src[i];
+				dst[i] = sum;
+			}
+		}
+	};
+
+	private static final SeriesTransform PERCENT_CHANGE = new SeriesTransform()
+	{
+		@Override
+		public void apply(double[] src, double[] dst, int n)
+		{
+			if (n == 0) {
+				return;
+			}
+			double first = src[0];
+			double factor = (first == 0) ? 0 : 100.0 / first;
+			for (int i = 0; i < n; i++) {
+				dst[i] = (src[i] - first) * factor;
+			}
+		}
+	};
+}
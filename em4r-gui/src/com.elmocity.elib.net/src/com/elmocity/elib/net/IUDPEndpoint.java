@@ -0,0 +1,13 @@
+package com.elmocity.elib.net;
+
+import com.elmocity.elib.util.WireMessage;
+
+public interface IUDPEndpoint
+{
+	// One remote peer that we send datagrams to and hear back from through an IUDPListener.
+	// Implemented by the thread-per-socket UDPClient and by the endpoints of the shared UDPMultiplexer.
+
+	void sendRequest(WireMessage message);
+
+	void shutdown();
+}
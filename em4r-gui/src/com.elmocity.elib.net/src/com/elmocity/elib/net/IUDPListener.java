@@ -5,5 +5,6 @@ import com.elmocity.elib.util.WireMessage;
 public interface IUDPListener
 {
 	// Callback interface used by any object that creates a UDP connection.
+	// The message is a view over a recycled receive buffer, so it is only valid until this returns.  Use message.copy() to keep it.
 	void receiveMessage(WireMessage message);
 }
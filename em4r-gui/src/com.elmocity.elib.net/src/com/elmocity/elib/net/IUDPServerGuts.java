@@ -1,5 +1,7 @@
 package com.elmocity.elib.net;
 
+import java.net.InetAddress;
+
 import com.elmocity.elib.util.WireMessage;
 
 public interface IUDPServerGuts
@@ -9,9 +11,21 @@ public interface IUDPServerGuts
 	 * <p>
 	 * The server assumes a 1-to-1 mapping of requests and replies, and that no packets get fragmented.
 	 * <p>
+	 * The request is a view over a recycled receive buffer, so it is only valid until this returns.  Use request.copy() to keep it.
+	 * The response is released (back to its pool, if any) once it has been sent.
+	 * <p>
 	 * @param request The WireMessage from the client.
 	 * 
-	 * @return The response (as another WireMessage) to send back to the client.
+	 * @return The response (as another WireMessage) to send back to the client, or null to send nothing.
 	 */
 	WireMessage responseToPacket(WireMessage request);
+
+	/**
+	 * Same as responseToPacket(request), for guts that need to know who sent it (to answer several clients with UDPServer.sendTo).
+	 * This is the one the server calls.
+	 */
+	default WireMessage responseToPacket(WireMessage request, InetAddress clientAddress, int clientPort)
+	{
+		return responseToPacket(request);
+	}
 }
@@ -7,13 +7,15 @@ import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.elmocity.elib.util.BufferPool;
 import com.elmocity.elib.util.WireMessage;
 
-public class UDPClient
+public class UDPClient implements IUDPEndpoint
 {
 	InetAddress serverAddress;
 	int serverPort; 
@@ -22,6 +24,16 @@ public class UDPClient
 	private DatagramSocket socket;
 	private Thread incomingThread;
 	
+	// Largest datagram we expect from a server, every receive buffer is this size.
+	private static final int MAX_PACKET_SIZE = 1024;
+	
+	// Heap buffers (not direct) since DatagramSocket only speaks byte[].
+	private final BufferPool receivePool = new BufferPool(MAX_PACKET_SIZE, 4, false);
+	
+	// Reused for every send, guarded by itself.
+	private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+	private byte[] sendScratch = new byte[0];
+	
 	
 	private static final Logger logger = LoggerFactory.getLogger(UDPClient.class);
 
@@ -68,6 +80,7 @@ public class UDPClient
 		return true;
 	}
 
+	@Override
 	public void shutdown()
 	{
 		if (incomingThread != null) {
@@ -83,13 +96,26 @@ public class UDPClient
 	
 	// ---------------------------------------------------------------------------
 	
+	@Override
 	public void sendRequest(WireMessage message)
 	{
-		DatagramPacket packet;
-
 		try {
-			packet = new DatagramPacket(message.getData(), message.getLength(), serverAddress, serverPort);
-			socket.send(packet);
+			synchronized (sendPacket) {
+				// Hand the message backing array straight to the socket.  Only direct buffers (no array) need a copy.
+				if (message.hasArray()) {
+					sendPacket.setData(message.array(), message.arrayOffset(), message.getLength());
+				}
+				else {
+					if (sendScratch.length < message.getLength()) {
+						sendScratch = new byte[message.getLength()];
+					}
+					message.getBuffer().get(sendScratch, 0, message.getLength());
+					sendPacket.setData(sendScratch, 0, message.getLength());
+				}
+				sendPacket.setAddress(serverAddress);
+				sendPacket.setPort(serverPort);
+				socket.send(sendPacket);
+			}
 		}
 		catch (SocketException e) {
 			logger.warn("UDP client send failed {}", e);	
@@ -104,8 +130,9 @@ public class UDPClient
 	
 	private void listenerLoop()
 	{
-		DatagramPacket packet;
-		String response;
+		// One packet and one message object for the life of the thread, pointed at a new pooled buffer for each receive.
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		WireMessage message = new WireMessage();
 		
 		while (true) {
 			try {
@@ -115,26 +142,42 @@ public class UDPClient
 				}
 				socket.setSoTimeout(10000);
 				
-				byte[] buf = new byte[256];
-				packet = new DatagramPacket(buf, buf.length);
-				socket.receive(packet);		// BLOCKING
+				ByteBuffer buf = receivePool.acquire();
+				packet.setData(buf.array(), buf.arrayOffset(), buf.capacity());
+				try {
+					socket.receive(packet);		// BLOCKING
+				}
+				catch (IOException e) {
+					receivePool.release(buf);
+					throw e;
+				}
 				
 				// NOTE: a worker thread sitting at a sleep() would throw a InterruptedException when told interrupt() was called from the master.
 				// But since this worker is blocking at a socket call, it appears that the socket.receive just breaks and returns -1, leaving the
 				// thread interrupted() flag set... so we have to check that here, instead of catching the exception like a normal thread exit.
 				if (Thread.interrupted()) {
+					receivePool.release(buf);
 					break;
 				}
 				int receivedLength = packet.getLength();
 				if (receivedLength < 0) {
+					receivePool.release(buf);
 					break;
 				}
-				WireMessage message = new WireMessage(packet.getData(), receivedLength);
+				// The message is a view over the pooled buffer, no copy.
+				buf.limit(receivedLength);
+				message.setView(buf);
 //				logger.trace("UDP client rcvd response {} bytes", message.getLength());	
 				
-				// Tell the caller we got a message for them
-				if (responseListener != null) {
-					responseListener.receiveMessage(message);
+				// Tell the caller we got a message for them.  They only get to look at it during the callback.
+				try {
+					if (responseListener != null) {
+						responseListener.receiveMessage(message);
+					}
+				}
+				finally {
+					message.setView(null);
+					receivePool.release(buf);
 				}
 			}
 			catch (SocketTimeoutException e) {
@@ -0,0 +1,136 @@
+package com.elmocity.elib.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.util.BufferPool;
+import com.elmocity.elib.util.WireMessage;
+
+/**
+ * Receive only endpoint that joins a multicast group, for watching a stream somebody publishes to the whole LAN (like a table hub).
+ * <p>
+ * There is nobody to send to, so sendRequest() just drops the message.  One receive thread, like UDPClient.
+ */
+public class UDPMulticastClient implements IUDPEndpoint
+{
+	private InetAddress group;
+	private volatile MulticastSocket socket;
+	private volatile IUDPListener listener;
+	private Thread incomingThread;
+	private volatile boolean warnedSend = false;
+
+	// Largest datagram we expect, every receive buffer is this size.
+	private static final int MAX_PACKET_SIZE = 1024;
+
+	// Heap buffers (not direct) since DatagramSocket only speaks byte[].
+	private final BufferPool receivePool = new BufferPool(MAX_PACKET_SIZE, 4, false);
+
+	private static final Logger logger = LoggerFactory.getLogger(UDPMulticastClient.class);
+
+
+	public boolean startup(String groupAddress, int port, IUDPListener listener)
+	{
+		try {
+			group = InetAddress.getByName(groupAddress);
+		}
+		catch (UnknownHostException e) {
+			return false;
+		}
+		if (!group.isMulticastAddress()) {
+			logger.warn("{} is not a multicast address", groupAddress);
+			return false;
+		}
+
+		try {
+			MulticastSocket s = new MulticastSocket(port);
+			s.joinGroup(group);
+			s.setSoTimeout(10000);
+			socket = s;
+		}
+		catch (IOException e) {
+			logger.warn("UDP multicast join failed for {} {}: {}", groupAddress, port, e.getMessage());
+			return false;
+		}
+		this.listener = listener;
+		logger.debug("UDP multicast joined {} {}", groupAddress, port);
+
+		incomingThread = new Thread(() -> listenerLoop());
+		incomingThread.setName("UDPMulticast");
+		incomingThread.setDaemon(true);
+		incomingThread.start();
+		return true;
+	}
+
+	@Override
+	public void shutdown()
+	{
+		listener = null;
+		MulticastSocket s = socket;
+		socket = null;
+		if (s != null) {
+			try {
+				s.leaveGroup(group);
+			}
+			catch (IOException e) {
+				// Closing anyway
+			}
+			// Unblocks the receive()
+			s.close();
+		}
+		incomingThread = null;
+	}
+
+	@Override
+	public void sendRequest(WireMessage message)
+	{
+		if (!warnedSend) {
+			warnedSend = true;
+			logger.info("multicast endpoint {} is receive only, dropping sends", group);
+		}
+	}
+
+	private void listenerLoop()
+	{
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		WireMessage message = new WireMessage();
+
+		while (true) {
+			MulticastSocket s = socket;
+			if (s == null) {
+				break;
+			}
+			ByteBuffer buf = receivePool.acquire();
+			try {
+				packet.setData(buf.array(), buf.arrayOffset(), buf.capacity());
+				s.receive(packet);		// BLOCKING
+
+				buf.limit(packet.getLength());
+				message.setView(buf);
+				IUDPListener l = listener;
+				if (l != null) {
+					l.receiveMessage(message);
+				}
+			}
+			catch (SocketTimeoutException e) {
+				logger.trace("UDP multicast periodic sanity check");
+			}
+			catch (IOException e) {
+				// Expected when shutdown() closes the socket under us
+				break;
+			}
+			finally {
+				message.setView(null);
+				receivePool.release(buf);
+			}
+		}
+		logger.debug("UDP multicast receive thread exiting");
+	}
+}
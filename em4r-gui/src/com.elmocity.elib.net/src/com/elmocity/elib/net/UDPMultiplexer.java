@@ -0,0 +1,302 @@
+package com.elmocity.elib.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.util.BufferPool;
+import com.elmocity.elib.util.WireMessage;
+
+/**
+ * Shared UDP transport for talking to many peers (tables) from one I/O thread.
+ * <p>
+ * UDPClient costs a blocking receive thread per peer.  Here each peer gets a connected DatagramChannel, all registered with one Selector,
+ * and a single "UDPSelector" thread reads whatever is ready and calls the right listener.  Connected channels only accept datagrams from
+ * their own peer, and read() (unlike receive()) doesn't allocate a source address per packet.
+ * <p>
+ * Sends go straight out on the caller's thread, the selector thread only ever reads.
+ * <p>
+ * WARNING listeners are called on the shared selector thread, so a slow listener holds up every other peer.
+ */
+public class UDPMultiplexer
+{
+	// Largest datagram we expect from a peer, every receive buffer is this size.
+	private static final int MAX_PACKET_SIZE = 1024;
+
+	// Direct buffers are the cheapest for channel reads.  Only the selector thread receives, so a couple is plenty.
+	private final BufferPool receivePool = new BufferPool(MAX_PACKET_SIZE, 2, true);
+
+	private Selector selector;
+	private Thread selectorThread;
+	private volatile boolean keepRunning = false;
+
+	// Channels opened by other threads, registered by the selector thread (registering while select() blocks would deadlock).
+	private final ConcurrentLinkedQueue<Endpoint> pendingRegistrations = new ConcurrentLinkedQueue<Endpoint>();
+
+	// Lazily started instance, for applications that just want every table on one thread.
+	private static UDPMultiplexer shared = null;
+
+	private static final Logger logger = LoggerFactory.getLogger(UDPMultiplexer.class);
+
+
+	public static synchronized UDPMultiplexer getShared()
+	{
+		if (shared == null) {
+			UDPMultiplexer mux = new UDPMultiplexer();
+			if (!mux.startup()) {
+				return null;
+			}
+			shared = mux;
+		}
+		return shared;
+	}
+
+	public synchronized boolean startup()
+	{
+		if (selectorThread != null) {
+			logger.debug("rejecting attempt to start multiplexer that is already running.");
+			return true;
+		}
+
+		try {
+			selector = Selector.open();
+		}
+		catch (IOException e) {
+			logger.warn("UDP multiplexer selector open failed {}", e);
+			return false;
+		}
+
+		keepRunning = true;
+		selectorThread = new Thread(() -> selectLoop());
+		selectorThread.setName("UDPSelector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+		return true;
+	}
+
+	public synchronized void shutdown()
+	{
+		if (selectorThread == null) {
+			return;
+		}
+
+		keepRunning = false;
+		selector.wakeup();
+		selectorThread = null;
+
+		synchronized (UDPMultiplexer.class) {
+			if (shared == this) {
+				shared = null;
+			}
+		}
+	}
+
+	/**
+	 * Open an endpoint to a peer.  Incoming datagrams from that peer go to the listener, on the selector thread.
+	 *
+	 * @return the endpoint, or null if the address is bad or the channel could not be opened
+	 */
+	public IUDPEndpoint open(String address, int port, IUDPListener listener)
+	{
+		InetAddress peerAddress;
+		try {
+			peerAddress = InetAddress.getByName(address);
+		}
+		catch (UnknownHostException e) {
+			return null;
+		}
+
+		return open(peerAddress, port, listener);
+	}
+
+	public IUDPEndpoint open(InetAddress address, int port, IUDPListener listener)
+	{
+		if (!keepRunning) {
+			logger.warn("UDP multiplexer not running, can't open {} {}", address, port);
+			return null;
+		}
+
+		DatagramChannel channel;
+		try {
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.connect(new InetSocketAddress(address, port));
+		}
+		catch (IOException e) {
+			logger.warn("UDP multiplexer channel create failed for {} {}", address, port);
+			return null;
+		}
+		logger.debug("UDP multiplexer opened channel for {} {}", address, port);
+
+		Endpoint endpoint = new Endpoint(channel, listener);
+		pendingRegistrations.add(endpoint);
+		selector.wakeup();
+		return endpoint;
+	}
+
+	// ---------------------------------------------------------------------------
+
+	private void selectLoop()
+	{
+		// One message object for the life of the thread, pointed at a new pooled buffer for each receive.
+		WireMessage message = new WireMessage();
+
+		while (keepRunning) {
+			try {
+				selector.select();		// BLOCKING, until something is readable or wakeup()
+			}
+			catch (IOException | ClosedSelectorException e) {
+				logger.warn("UDP multiplexer select failed {}", e);
+				break;
+			}
+
+			registerPending();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (!key.isValid() || !key.isReadable()) {
+					continue;
+				}
+				drain((Endpoint) key.attachment(), message);
+			}
+		}
+
+		// Close everything still registered on the way out
+		for (SelectionKey key : selector.keys()) {
+			((Endpoint) key.attachment()).close();
+		}
+		try {
+			selector.close();
+		}
+		catch (IOException e) {
+		}
+		logger.debug("UDP multiplexer thread exiting");
+	}
+
+	private void registerPending()
+	{
+		Endpoint endpoint;
+		while ((endpoint = pendingRegistrations.poll()) != null) {
+			if (endpoint.closed) {
+				continue;
+			}
+			try {
+				endpoint.key = endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+			}
+			catch (IOException e) {
+				logger.warn("UDP multiplexer register failed {}", e);
+				endpoint.close();
+			}
+		}
+	}
+
+	// Read every datagram waiting on this channel, one pooled buffer each.
+	private void drain(Endpoint endpoint, WireMessage message)
+	{
+		while (!endpoint.closed) {
+			ByteBuffer buf = receivePool.acquire();
+			try {
+				int receivedLength;
+				try {
+					receivedLength = endpoint.channel.read(buf);
+				}
+				catch (IOException e) {
+					// Typically ICMP port unreachable on a connected channel while the table is down.  Keep the channel, just stop for now.
+					logger.trace("UDP multiplexer read failed {}", e.getMessage());
+					return;
+				}
+				if (receivedLength <= 0) {
+					// Nothing more waiting
+					return;
+				}
+
+				// The message is a view over the pooled buffer, no copy.
+				buf.flip();
+				message.setView(buf);
+
+				// Tell the listener we got a message for them.  They only get to look at it during the callback.
+				IUDPListener listener = endpoint.listener;
+				if (listener != null) {
+					try {
+						listener.receiveMessage(message);
+					}
+					catch (RuntimeException e) {
+						// Don't let one bad listener kill the thread that every other peer depends on
+						logger.warn("UDP multiplexer listener threw {}", e);
+					}
+				}
+			}
+			finally {
+				message.setView(null);
+				receivePool.release(buf);
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------------
+
+	private class Endpoint implements IUDPEndpoint
+	{
+		final DatagramChannel channel;
+		volatile IUDPListener listener;
+		volatile boolean closed = false;
+		SelectionKey key;				// only touched by the selector thread
+
+		Endpoint(DatagramChannel channel, IUDPListener listener)
+		{
+			this.channel = channel;
+			this.listener = listener;
+		}
+
+		@Override
+		public void sendRequest(WireMessage message)
+		{
+			if (closed) {
+				return;
+			}
+
+			// Write from a duplicate so the message view is never moved, the same message may be sent again (retransmits) or read elsewhere.
+			try {
+				channel.write(message.getBuffer());
+			}
+			catch (IOException e) {
+				logger.warn("UDP multiplexer send failed {}", e);
+				return;
+			}
+			logger.trace("UDP multiplexer sent {} bytes", message.getLength());
+		}
+
+		@Override
+		public void shutdown()
+		{
+			listener = null;
+			close();
+			// Let the selector notice the cancelled key
+			selector.wakeup();
+		}
+
+		void close()
+		{
+			closed = true;
+			try {
+				// Closing the channel also cancels its key
+				channel.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+}
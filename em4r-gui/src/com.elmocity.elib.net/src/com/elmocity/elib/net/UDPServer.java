@@ -6,10 +6,12 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.elmocity.elib.util.BufferPool;
 import com.elmocity.elib.util.WireMessage;
 
 public class UDPServer
@@ -19,6 +21,21 @@ public class UDPServer
 	private volatile boolean keepRunning = true;
 	private Thread worker = null;
 
+	// Largest datagram we accept from a client, every receive buffer is this size.
+	private static final int MAX_PACKET_SIZE = 1024;
+
+	// Heap buffers (not direct) since DatagramSocket only speaks byte[].
+	private final BufferPool receivePool = new BufferPool(MAX_PACKET_SIZE, 4, false);
+
+	// Socket of the running server thread, and the last client that sent us something, so the guts can push unsolicited packets.
+	private volatile DatagramSocket activeSocket = null;
+	private volatile InetAddress lastClientAddress = null;
+	private volatile int lastClientPort = 0;
+
+	// Reused for every push, guarded by itself.
+	private final DatagramPacket pushPacket = new DatagramPacket(new byte[0], 0);
+	private byte[] pushScratch = new byte[0];
+
 	private final static Logger logger = LoggerFactory.getLogger(UDPServer.class);
 
 	public UDPServer()
@@ -50,6 +67,67 @@ public class UDPServer
 
 		keepRunning = false;
 		worker = null;
+
+		// Unblock the receive() now, instead of waiting out the socket timeout
+		DatagramSocket socket = activeSocket;
+		if (socket != null) {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Send a packet to the last client we heard from, outside of the request/reply flow (periodic status etc).  Any thread.
+	 *
+	 * @return false if no client has contacted us yet, or the server is not running
+	 */
+	public boolean sendToClient(WireMessage message)
+	{
+		InetAddress clientAddress = lastClientAddress;
+		if (clientAddress == null) {
+			return false;
+		}
+		return sendTo(message, clientAddress, lastClientPort);
+	}
+
+	/**
+	 * Send a packet from the server port to any address (a client, or a multicast group).  Any thread.
+	 *
+	 * @return false if the server is not running or the send failed
+	 */
+	public boolean sendTo(WireMessage message, InetAddress clientAddress, int clientPort)
+	{
+		DatagramSocket socket = activeSocket;
+		if (socket == null) {
+			return false;
+		}
+
+		try {
+			synchronized (pushPacket) {
+				if (message.hasArray()) {
+					pushPacket.setData(message.array(), message.arrayOffset(), message.getLength());
+				}
+				else {
+					if (pushScratch.length < message.getLength()) {
+						pushScratch = new byte[message.getLength()];
+					}
+					message.getBuffer().get(pushScratch, 0, message.getLength());
+					pushPacket.setData(pushScratch, 0, message.getLength());
+				}
+				pushPacket.setAddress(clientAddress);
+				pushPacket.setPort(clientPort);
+				socket.send(pushPacket);
+			}
+		}
+		catch (IOException e) {
+			logger.debug("UDP server push failed {}", e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	public boolean hasClient()
+	{
+		return lastClientAddress != null;
 	}
 	
 	private class ServerThread extends Thread
@@ -65,44 +143,80 @@ public class UDPServer
 			try {
 				socket = new DatagramSocket(serverPort);
 				socket.setSoTimeout(10000);				// Can be zero to mean infinite block on receive()
+				activeSocket = socket;
 			}
 			catch (SocketException e1) {
 				keepRunning = false;
 			}
 	
+			// Packet objects live for the whole thread, and just get pointed at different buffers.
+			DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+			DatagramPacket reply = new DatagramPacket(new byte[0], 0);
+			byte[] replyScratch = new byte[0];
+			WireMessage request = new WireMessage();
+
 			while (keepRunning) {
+				ByteBuffer buf = receivePool.acquire();
 				try {
-					byte[] buf = new byte[1024];
-	
 					// receive request (blocking)
-					DatagramPacket packet = new DatagramPacket(buf, buf.length);
+					packet.setData(buf.array(), buf.arrayOffset(), buf.capacity());
 					socket.receive(packet);
 	
 					// determine some information about the sender
 					InetAddress clientAddress = packet.getAddress();
 					int clientPort = packet.getPort();
 	
-					WireMessage request = new WireMessage(buf, packet.getLength());
-					logger.debug("UDP server rcvd request {} bytes", packet.getLength());
+					// Remember who is talking to us, for sendToClient()
+					lastClientAddress = clientAddress;
+					lastClientPort = clientPort;
+
+					// The request is a view over the pooled buffer, no copy.
+					buf.limit(packet.getLength());
+					request.setView(buf);
+					logger.trace("UDP server rcvd request {} bytes", packet.getLength());
 					
 					// have the application inspect packet payload to compute action required
-					WireMessage response = guts.responseToPacket(request);
+					WireMessage response = guts.responseToPacket(request, clientAddress, clientPort);
+					if (response == null) {
+						continue;
+					}
 	
-					// send the response to the client at the original address/port
-					packet = new DatagramPacket(response.getData(), response.getLength(), clientAddress, clientPort);
-					socket.send(packet);
+					// send the response to the client at the original address/port, straight from the response backing array if it has one.
+					if (response.hasArray()) {
+						reply.setData(response.array(), response.arrayOffset(), response.getLength());
+					}
+					else {
+						if (replyScratch.length < response.getLength()) {
+							replyScratch = new byte[response.getLength()];
+						}
+						response.getBuffer().get(replyScratch, 0, response.getLength());
+						reply.setData(replyScratch, 0, response.getLength());
+					}
+					reply.setAddress(clientAddress);
+					reply.setPort(clientPort);
+					socket.send(reply);
 
-					logger.debug("UDP server sent reply {} bytes", response.getLength());
+					logger.trace("UDP server sent reply {} bytes", response.getLength());
+					response.release();
 				}
 				catch (SocketTimeoutException e) {
 					logger.info("UDP server periodic sanity check");
 				}
 				catch (IOException e) {
-					e.printStackTrace();
+					// Expected when stop() closes the socket under us
+					if (keepRunning) {
+						e.printStackTrace();
+					}
 					keepRunning = false;
 				}
+				finally {
+					request.setView(null);
+					receivePool.release(buf);
+				}
 			}
 			
+			activeSocket = null;
+			lastClientAddress = null;
 			if (socket != null) {
 				socket.close();
 				socket = null;
@@ -1,6 +1,8 @@
 
 package com.elmocity.elib.net.parts;
 
+import java.nio.charset.Charset;
+
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
@@ -177,11 +179,12 @@ public class UDPClientPart implements IUDPListener
 	@Override
 	public void receiveMessage(WireMessage message)
 	{
+		// Decode now, the message buffer gets recycled as soon as we return.
+		final String reply = message.toString(Charset.defaultCharset());
 		sync.asyncExec( () -> {
-			String reply = new String(message.getData());
 			console.append("Recvd UDP reply...");
 			console.append("Response = " + reply);
 		});
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
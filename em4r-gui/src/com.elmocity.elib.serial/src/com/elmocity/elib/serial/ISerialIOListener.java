@@ -5,5 +5,6 @@ import com.elmocity.elib.util.WireMessage;
 public interface ISerialIOListener
 {
 	// Callback interface used by any object that creates a serial connection.
+	// The message wraps the port read buffer, so it is only valid until this returns.  Use message.copy() to keep it.
 	void receiveMessage(WireMessage message);
 }
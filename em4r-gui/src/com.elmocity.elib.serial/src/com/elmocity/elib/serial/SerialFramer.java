@@ -0,0 +1,245 @@
+package com.elmocity.elib.serial;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.util.ByteRing;
+import com.elmocity.elib.util.WireMessage;
+
+/**
+ * Turns the serial byte stream back into messages, however the bytes happened to be split across reads.
+ * <p>
+ * Two framings:
+ * <ul>
+ * <li>EOM - the original text framing, each message is followed by a 0xFF byte.  There is no escaping, so only for payloads that can't
+ * contain 0xFF (ASCII).</li>
+ * <li>SLIP - byte stuffing per RFC 1055, safe for any binary payload.  Each frame is END payload END, with END and ESC bytes inside the payload
+ * sent as two byte escape sequences.  A line glitch only costs the frame it hits, the decoder resyncs on the next END.</li>
+ * </ul>
+ * The decoder is a small state machine that keeps its partial frame between calls, so a message split across several serial events is
+ * put back together.  Decoded frames are handed to the listener as a view over the framer's own buffer (valid during the callback only).
+ */
+public class SerialFramer
+{
+	public enum Framing
+	{
+		EOM,
+		SLIP
+	}
+
+	// EOM framing
+	public static final byte EOM = (byte) 0xFF;
+
+	// SLIP framing
+	public static final byte SLIP_END = (byte) 0xC0;
+	public static final byte SLIP_ESC = (byte) 0xDB;
+	public static final byte SLIP_ESC_END = (byte) 0xDC;
+	public static final byte SLIP_ESC_ESC = (byte) 0xDD;
+
+	private final Framing framing;
+
+	// Partial frame being reassembled
+	private final byte[] frame;
+	private final ByteBuffer frameView;
+	private int frameLength = 0;
+	private boolean escaped = false;
+	private boolean discarding = false;		// frame too long or badly escaped, drop everything up to the next delimiter
+
+	private final WireMessage message = new WireMessage();
+
+	// Stats
+	private long frameCount = 0;
+	private long errorCount = 0;
+
+	private static final Logger logger = LoggerFactory.getLogger(SerialFramer.class);
+
+
+	/**
+	 * @param maxFrameLength largest decoded payload we accept, longer frames are dropped
+	 */
+	public SerialFramer(Framing framing, int maxFrameLength)
+	{
+		this.framing = framing;
+		this.frame = new byte[maxFrameLength];
+		this.frameView = ByteBuffer.wrap(frame);
+	}
+
+	public Framing getFraming()
+	{
+		return framing;
+	}
+
+	/**
+	 * Worst case encoded size of a payload, for sizing transmit buffers.
+	 */
+	public static int maxEncodedLength(Framing framing, int payloadLength)
+	{
+		if (framing == Framing.SLIP) {
+			return 2 * payloadLength + 2;
+		}
+		return payloadLength + 1;
+	}
+
+	/**
+	 * Frame one payload into the buffer at its current position.
+	 */
+	public static void encode(Framing framing, WireMessage payload, ByteBuffer out)
+	{
+		ByteBuffer in = payload.getView();
+		int length = payload.getLength();
+
+		if (framing == Framing.EOM) {
+			for (int i = 0; i < length; i++) {
+				out.put(in.get(i));
+			}
+			out.put(EOM);
+			return;
+		}
+
+		// Leading END flushes any line noise on the receiver before our frame starts
+		out.put(SLIP_END);
+		for (int i = 0; i < length; i++) {
+			byte b = in.get(i);
+			if (b == SLIP_END) {
+				out.put(SLIP_ESC);
+				out.put(SLIP_ESC_END);
+			}
+			else if (b == SLIP_ESC) {
+				out.put(SLIP_ESC);
+				out.put(SLIP_ESC_ESC);
+			}
+			else {
+				out.put(b);
+			}
+		}
+		out.put(SLIP_END);
+	}
+
+	/**
+	 * Consume everything in the ring, calling the listener once per complete frame.  Leftover partial frame bytes are kept in here,
+	 * so the ring is always fully drained.
+	 */
+	public void decode(ByteRing ring, ISerialIOListener listener)
+	{
+		byte[] data = ring.array();
+		while (!ring.isEmpty()) {
+			int offset = ring.readOffset();
+			int len = ring.contiguousReadable();
+			for (int i = offset; i < offset + len; i++) {
+				decodeByte(data[i], listener);
+			}
+			ring.skip(len);
+		}
+	}
+
+	/**
+	 * Same as above for a plain array.
+	 */
+	public void decode(byte[] data, int offset, int len, ISerialIOListener listener)
+	{
+		for (int i = offset; i < offset + len; i++) {
+			decodeByte(data[i], listener);
+		}
+	}
+
+	private void decodeByte(byte b, ISerialIOListener listener)
+	{
+		if (framing == Framing.EOM) {
+			if (b == EOM) {
+				endOfFrame(listener);
+			}
+			else {
+				append(b);
+			}
+			return;
+		}
+
+		// SLIP
+		if (b == SLIP_END) {
+			endOfFrame(listener);
+			return;
+		}
+		if (escaped) {
+			escaped = false;
+			if (b == SLIP_ESC_END) {
+				append(SLIP_END);
+			}
+			else if (b == SLIP_ESC_ESC) {
+				append(SLIP_ESC);
+			}
+			else {
+				// Protocol violation, the frame is garbage
+				markBad();
+			}
+			return;
+		}
+		if (b == SLIP_ESC) {
+			escaped = true;
+			return;
+		}
+		append(b);
+	}
+
+	private void append(byte b)
+	{
+		if (discarding) {
+			return;
+		}
+		if (frameLength == frame.length) {
+			markBad();
+			return;
+		}
+		frame[frameLength++] = b;
+	}
+
+	private void markBad()
+	{
+		if (!discarding) {
+			errorCount++;
+			logger.debug("serial frame dropped, {} errors so far", errorCount);
+		}
+		discarding = true;
+	}
+
+	private void endOfFrame(ISerialIOListener listener)
+	{
+		boolean good = !discarding && frameLength > 0;
+		int length = frameLength;
+
+		// Reset first, so a listener that throws doesn't leave us mid frame
+		frameLength = 0;
+		escaped = false;
+		discarding = false;
+
+		// Empty frames are normal in SLIP (back to back END bytes), not errors
+		if (!good) {
+			return;
+		}
+		frameCount++;
+		if (listener == null) {
+			return;
+		}
+
+		frameView.clear();
+		frameView.limit(length);
+		message.setView(frameView);
+		try {
+			listener.receiveMessage(message);
+		}
+		finally {
+			message.setView(null);
+		}
+	}
+
+	public long getFrameCount()
+	{
+		return frameCount;
+	}
+
+	public long getErrorCount()
+	{
+		return errorCount;
+	}
+}
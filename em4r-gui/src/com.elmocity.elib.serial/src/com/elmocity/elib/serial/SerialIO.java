@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 
 import com.elmocity.elib.serial.ISerialIOListener;
 import com.elmocity.elib.serial.SerialIO;
+import com.elmocity.elib.util.ByteRing;
 import com.elmocity.elib.util.WireMessage;
 
 import purejavacomm.*;
@@ -15,6 +16,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
@@ -23,17 +25,22 @@ import java.util.TooManyListenersException;
 /**
  * Wrapper object for a single COM port.
  * <br>
- * Assumes that data passed back and forth is String data and uses an End Of Message character.
+ * Each message written gets framed (see SerialFramer), and incoming bytes are bulk read into a ring buffer and put back together into
+ * messages, even when they arrive split across several serial events.
  * <br>
- * TODO needs to handle escape sequence in case the data contains the EOM char.
- * TODO partial "packets" fail. 
+ * The default framing is the original End Of Message character for String data, SLIP byte stuffing can carry binary payloads.
  */
 public class SerialIO implements SerialPortEventListener
 {
 	private static final Logger logger = LoggerFactory.getLogger(SerialIO.class);
 
 	// End of Message marker BYTE (not a CHAR, because BYTE is signed and CHAR is 16-bit?)
-	public final static byte EOM = (byte) 0xFF;
+	public final static byte EOM = SerialFramer.EOM;
+
+	// Largest payload (before framing) in either direction
+	public final static int MAX_MESSAGE_SIZE = 1024;
+
+	public final static int DEFAULT_BAUD_RATE = 9600;
 
 	
 	// Provided by caller
@@ -47,6 +54,13 @@ public class SerialIO implements SerialPortEventListener
 	private SerialPort serialPort;
 	private ISerialIOListener responseListener = null;		// TODO could allow multiple listeners, like a network tap
 
+	// Receive side, only touched from the serial event thread
+	private final ByteRing rxRing = new ByteRing(4 * MAX_MESSAGE_SIZE);
+	private volatile SerialFramer framer = new SerialFramer(SerialFramer.Framing.EOM, MAX_MESSAGE_SIZE);
+
+	// Transmit side, reused for every write, guarded by itself
+	private volatile ByteBuffer txBuffer = ByteBuffer.allocate(SerialFramer.maxEncodedLength(SerialFramer.Framing.EOM, MAX_MESSAGE_SIZE));
+
 	/**
 	 * Connect to a given comm port and start a worker thread to process read/writes.
 	 * <br>
@@ -57,10 +71,25 @@ public class SerialIO implements SerialPortEventListener
 	 */
 	public boolean startup(String portName, ISerialIOListener responseListener)
 	{
-		logger.debug("{} startup", portName);
+		return startup(portName, DEFAULT_BAUD_RATE, SerialFramer.Framing.EOM, responseListener);
+	}
+
+	/**
+	 * Same as above, with a choice of line speed and message framing.
+	 * <br>
+	 * @param baudRate needs to match the other end, there is no autodetect
+	 * @param framing EOM for text protocols, SLIP for binary ones
+	 */
+	public boolean startup(String portName, int baudRate, SerialFramer.Framing framing, ISerialIOListener responseListener)
+	{
+		logger.debug("{} startup {} baud {} framing", portName, baudRate, framing);
 
 		this.portName = portName;
 		this.responseListener = responseListener;
+
+		framer = new SerialFramer(framing, MAX_MESSAGE_SIZE);
+		rxRing.clear();
+		txBuffer = ByteBuffer.allocate(SerialFramer.maxEncodedLength(framing, MAX_MESSAGE_SIZE));
 		
 		// Find this comm port by name
 		try {
@@ -108,7 +137,7 @@ public class SerialIO implements SerialPortEventListener
 			// Needs to match the settings in the windows control panel PORTS settings.
 			// TODO these might already be initialized for us by the Host OS/Java VM to default settings?
 			serialPort.setSerialPortParams(
-					9600,
+					baudRate,
 					SerialPort.DATABITS_8,
 					SerialPort.STOPBITS_1,
 					SerialPort.PARITY_NONE);
@@ -174,13 +203,21 @@ public class SerialIO implements SerialPortEventListener
 			logger.warn("{} write - outputStream not initialized", portName);
 			return;
 		}
+		if (message.getLength() > MAX_MESSAGE_SIZE) {
+			logger.warn("{} write - payload of {} bytes is too big", portName, message.getLength());
+			return;
+		}
 		
-		logger.debug("{} write - payload of {} bytes", portName, message.getLength());
+		logger.trace("{} write - payload of {} bytes", portName, message.getLength());
 		
 		try {
-			byte[] buf = message.getData();
-			outputStream.write(buf, 0, message.getLength());
-			outputStream.write(EOM);
+			// Frame into the reused buffer and hand the port one write, instead of payload and EOM separately.
+			ByteBuffer tx = txBuffer;
+			synchronized (tx) {
+				tx.clear();
+				SerialFramer.encode(framer.getFraming(), message, tx);
+				outputStream.write(tx.array(), tx.arrayOffset(), tx.position());
+			}
 		}
 		catch (IOException e)
 		{
@@ -238,9 +275,8 @@ public class SerialIO implements SerialPortEventListener
 //		}
 //	}
 
-	// TODO I assume this needs to have a character buffer to hold partial messages (partial string data that does not yet give us an EOM/EOL char).
-	// We should not send partial messages up to the callers listener... we should just hold the partial string until we get another serialEvent with the
-	// rest of the message.  This probably can't happen on a non-flow-controlled 10 ft cable from a laptop to a EM table, but would on a LA to NYC modem.
+	// Bulk read whatever the port has into the ring, and let the framer pull complete messages out of it.
+	// Partial messages stay inside the framer until a later serialEvent delivers the rest.
 	public void serialEvent(SerialPortEvent event)
 	{
 		switch (event.getEventType()) {
@@ -256,56 +292,23 @@ public class SerialIO implements SerialPortEventListener
 			break;
 			
 		case SerialPortEvent.DATA_AVAILABLE:
-			
-			byte[] buf = new byte[1024];		// TODO this needs to be at least max message size
-			
-//			// DEBUG VOMIT HACK
-//			// We are way too fast, and end up just reading a couple bytes of any response...
-//			// So without a fixed sized expected response, or some form of End-of-Message marker, we are screwed.
-//			try {
-//				Thread.sleep(10);
-//			}
-//			catch (InterruptedException e1)
-//			{
-//				e1.printStackTrace();
-//				return;
-//			}
-			
+			InputStream in = inputStream;
+			if (in == null) {
+				return;
+			}
 			try
 			{
-				int offset = 0;
-
-				// Read one byte at a time
-				while (true) {
-					int receivedLength = inputStream.read(buf, offset, 1);
-					if (receivedLength <= 0) {
+				do {
+					int receivedLength = rxRing.readFrom(in);
+					if (receivedLength < 0) {
 						// EOF - serial port closed??
 						return;
 					}
-//					logger.debug("{} READ {} bytes {}", portName, receivedLength, (char)(buf[offset]));
-
-					// Check if the last character read was 
-					if (buf[offset] != EOM) {
-						// Update the pointer to where the next byte should be read
-						offset = offset + receivedLength;
-						// Go back to reading bytes
-						continue;
-					}
+					logger.trace("{} read {} bytes", portName, receivedLength);
 
-					// NOTE: discard the EOM character, since that was injected by this class on the send too.. the caller doesn't know.
-					int payloadLength = offset;
-					logger.debug("{} read  - payload of {} bytes", portName, payloadLength);
-					
-					// Feed the data string to the listener
-					if (responseListener == null) {
-						// NOTE: could log a warning to show that we received real data when the app had no listener to accept it.
-					}
-					else {
-						WireMessage message = new WireMessage(buf, payloadLength);
-						responseListener.receiveMessage(message);
-					}
-					break;
-				}
+					// The framer always drains the ring, so there is room for the next read
+					framer.decode(rxRing, responseListener);
+				} while (in.available() > 0);
 			}
 			catch (IOException e)
 			{
@@ -315,6 +318,14 @@ public class SerialIO implements SerialPortEventListener
 			break;
 		}
 	}
+
+	/**
+	 * Framing errors (dropped frames) seen on this port, to spot line noise or a baud rate mismatch.
+	 */
+	public long getFramingErrorCount()
+	{
+		return framer.getErrorCount();
+	}
 	
 	// --------------------
 
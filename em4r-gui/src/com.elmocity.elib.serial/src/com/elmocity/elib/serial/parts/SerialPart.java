@@ -1,6 +1,7 @@
 
 package com.elmocity.elib.serial.parts;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -233,11 +234,11 @@ public class SerialPart
 //			byte[] buffer = new byte[len];
 //			System.arraycopy(buf, 0, buffer, 0, len);
 			
-			responseMessage = new String(message.getData());
+			responseMessage = message.toString(Charset.defaultCharset());
 			if (responseMessage != null) {
 				logger.debug("rcvd length {} = {}", responseMessage.length(), responseMessage);
 			}
 			gotResponse = true;
 		}
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
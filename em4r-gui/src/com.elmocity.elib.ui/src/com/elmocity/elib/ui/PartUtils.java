@@ -23,6 +23,7 @@ import org.swtchart.ext.InteractiveChart;
 
 import com.elmocity.elib.chart.ChartX;
 import com.elmocity.elib.chart.Normalize;
+import com.elmocity.elib.chart.SeriesTransform;
 import com.elmocity.elib.swt.ColorCache;
 import com.elmocity.elib.swt.GridHelpers;
 import com.elmocity.elib.swt.table.GenericRowList;
@@ -56,6 +57,15 @@ public class PartUtils
 	}
 
 	public static Chart makeChartComposite(Composite parent)
+	{
+		return makeChartComposite(parent, false);
+	}
+
+	/**
+	 * @param offscreenRendering draw the lines on a worker thread (see ChartX.setOffscreenRendering), only for parts that call
+	 * ChartX.markSeriesDirty() after changing series data and adjust ranges through PartUtils.adjustRange()/ChartX.adjustRange()
+	 */
+	public static Chart makeChartComposite(Composite parent, boolean offscreenRendering)
 	{
 		Chart chart;
 		
@@ -66,7 +76,11 @@ public class PartUtils
 			GridData gridData = new GridData(SWT.FILL, SWT.FILL, true, true);
 			chartComposite.setLayoutData(gridData);
 	
-			chart = new ChartX(chartComposite, SWT.BORDER);	// | SWT.H_SCROLL | SWT.V_SCROLL);
+			ChartX chartX = new ChartX(chartComposite, SWT.BORDER);	// | SWT.H_SCROLL | SWT.V_SCROLL);
+
+			// Lines drawn on a worker thread, so several busy charts (or one with hundreds of series) don't hold up the UI
+			chartX.setOffscreenRendering(offscreenRendering);
+			chart = chartX;
 			GridData gridData2 = new GridData(SWT.FILL, SWT.FILL, true, true);
 			chart.setLayoutData(gridData2);
 			chart.setBackground(ColorCache.getColor(ColorCache.WHITE));
@@ -104,7 +118,7 @@ public class PartUtils
 		}
 	}
 
-	// Normalize all the data series on the chart
+	// Normalize all the data series on the chart, on a ChartX a second press goes back to the real values
 	public static class NormalizeListener extends SelectionAdapter
 	{
 		public NormalizeListener(Chart chart)
@@ -121,10 +135,16 @@ public class PartUtils
 			// If we have 100 series, this can flicker while adjusting each series... so suspend the updates 
 			chart.suspendUpdate(true);
 			
-			Normalize.normalizeAllSeries(chart);
+			if (chart instanceof ChartX) {
+				ChartX chartX = (ChartX) chart;
+				chartX.setSeriesTransform((chartX.getSeriesTransform() == null) ? SeriesTransform.normalize() : null);
+			}
+			else {
+				Normalize.normalizeAllSeries(chart);
+			}
 			
 			// Update the axis min and max, based on the actual data in all the series set right now
-			chart.getAxisSet().adjustRange();
+			adjustRange(chart);
 
 			// Turn updating back on, which will cause a redraw() event
 			chart.suspendUpdate(false);
@@ -187,12 +207,28 @@ public class PartUtils
 		// Add the data (the chart/series makes a copy when we set these, so we can disposed/reuse as needed afterwards without changing the chart display
 		comboSeries.setXSeries(xData);
 		comboSeries.setYSeries(yData);
+
+		// A chart showing its series normalized (or whatever) shows the new one the same way
+		if (chart instanceof ChartX && ((ChartX) chart).getSeriesTransform() != null) {
+			((ChartX) chart).applySeriesTransform();
+		}
 	
 		// Update the axis min and max, based on the actual data in all the series set right now
-		chart.getAxisSet().adjustRange();
+		adjustRange(chart);
 		
 		PartUtils.skinSeries(comboSeries, seriesLegendName, dotw);
 		
 		chart.redraw();
 	}
+
+	// Fit the axes to the data, counting series a ChartX draws offscreen
+	public static void adjustRange(Chart chart)
+	{
+		if (chart instanceof ChartX) {
+			((ChartX) chart).adjustRange();
+		}
+		else {
+			chart.getAxisSet().adjustRange();
+		}
+	}
 }
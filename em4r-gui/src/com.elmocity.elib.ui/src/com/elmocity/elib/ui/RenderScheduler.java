@@ -0,0 +1,149 @@
+package com.elmocity.elib.ui;
+
+import java.util.LinkedHashSet;
+
+import org.eclipse.swt.SWTException;
+import org.eclipse.swt.widgets.Display;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.util.TimerWheel;
+
+/**
+ * Collects UI updates (refresh this chart, show that value) from any thread and runs them in frames, at most a fixed number of frames a
+ * second, one asyncExec per frame no matter how many parts have something to show.
+ * <p>
+ * An update is a Runnable the part keeps in a field (like chartRefresh) and marks dirty whenever its data changed.  Marking the same
+ * Runnable again before the frame runs does nothing, so five device charts getting points at 4 Hz, plus their value texts, plus a feed,
+ * cost one event on the SWT queue per frame, and each chart is refreshed once in it with whatever is newest.  So an update must read the
+ * latest data when it runs (a volatile field, a LiveSeries), not carry it.
+ * <p>
+ * When things are quiet the first mark gets a frame right away.  After that the next frame waits until a frame interval has passed since
+ * the last one started (the wait is on the shared TimerWheel, the UI thread never sleeps).
+ */
+public class RenderScheduler
+{
+	public static final int DEFAULT_FPS = 30;
+
+	private static RenderScheduler shared = null;
+
+	private final Display display;
+	private volatile long frameNanos;
+
+	// Guarded by this.  Two sets swapped each frame, so marking stays cheap while a frame runs.
+	private LinkedHashSet<Runnable> dirty = new LinkedHashSet<Runnable>();
+	private LinkedHashSet<Runnable> running = new LinkedHashSet<Runnable>();
+	private boolean frameBooked = false;
+	private long lastFrameNanos;
+
+	private volatile long frameCount = 0;
+	private volatile long updateCount = 0;
+
+	private final Runnable frame = () -> runFrame();
+	private final Runnable postFrame = () -> postFrame();
+
+	private static final Logger logger = LoggerFactory.getLogger(RenderScheduler.class);
+
+
+	public RenderScheduler(Display display, int framesPerSecond)
+	{
+		this.display = display;
+		setFramesPerSecond(framesPerSecond);
+		this.lastFrameNanos = System.nanoTime() - frameNanos;
+	}
+
+	/**
+	 * The scheduler every part uses, on the default display.
+	 */
+	public static synchronized RenderScheduler getShared()
+	{
+		if (shared == null) {
+			shared = new RenderScheduler(Display.getDefault(), DEFAULT_FPS);
+		}
+		return shared;
+	}
+
+	public void setFramesPerSecond(int framesPerSecond)
+	{
+		frameNanos = 1_000_000_000L / Math.max(1, framesPerSecond);
+	}
+
+	public int getFramesPerSecond()
+	{
+		return (int) (1_000_000_000L / frameNanos);
+	}
+
+	/**
+	 * Run the update on the UI thread in the next frame.  Safe from any thread, and cheap enough to call for every data point.
+	 */
+	public void markDirty(Runnable update)
+	{
+		long delayNanos;
+		synchronized (this) {
+			if (!dirty.add(update) || frameBooked) {
+				return;
+			}
+			frameBooked = true;
+			delayNanos = lastFrameNanos + frameNanos - System.nanoTime();
+		}
+		if (delayNanos <= 0) {
+			postFrame();
+		}
+		else {
+			TimerWheel.getShared().schedule(postFrame, (delayNanos + 999_999) / 1_000_000);
+		}
+	}
+
+	public long getFrameCount()
+	{
+		return frameCount;
+	}
+
+	/**
+	 * Updates run so far, compare with the marks made to see how much was coalesced.
+	 */
+	public long getUpdateCount()
+	{
+		return updateCount;
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	private void postFrame()
+	{
+		try {
+			if (!display.isDisposed()) {
+				display.asyncExec(frame);
+			}
+		}
+		catch (SWTException e) {
+			// Display went away between the check and the post, shutting down anyway
+		}
+	}
+
+	// UI thread
+	private void runFrame()
+	{
+		LinkedHashSet<Runnable> work;
+		synchronized (this) {
+			work = dirty;
+			dirty = running;
+			running = work;
+			frameBooked = false;
+			lastFrameNanos = System.nanoTime();
+		}
+
+		for (Runnable update : work) {
+			try {
+				update.run();
+			}
+			catch (Exception e) {
+				// One broken part must not stop the others from drawing
+				logger.warn("UI update threw", e);
+			}
+		}
+		updateCount += work.size();
+		frameCount++;
+		work.clear();
+	}
+}
@@ -0,0 +1,82 @@
+package com.elmocity.elib.util;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simple pool of fixed size ByteBuffers, so the wire paths (UDP, serial) can receive every packet into recycled storage instead of
+ * allocating a new array per packet.
+ * <p>
+ * Direct buffers are good for NIO channels, but have no backing array, so byte[] based APIs (DatagramSocket, InputStream) need heap buffers.
+ * <p>
+ * If the pool runs dry it just allocates another buffer, and if it is full on release the buffer is dropped for the GC.  So a leak (missing
+ * release) only costs garbage, never a deadlock.
+ */
+public class BufferPool
+{
+	private final int bufferSize;
+	private final boolean direct;
+
+	// Simple stack of free buffers, guarded by this.
+	private final ByteBuffer[] free;
+	private int freeCount = 0;
+
+	private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+
+
+	/**
+	 * @param bufferSize size in bytes of every buffer handed out
+	 * @param maxPooled most free buffers to hold on to
+	 * @param direct true for direct (off heap) buffers
+	 */
+	public BufferPool(int bufferSize, int maxPooled, boolean direct)
+	{
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+		this.free = new ByteBuffer[maxPooled];
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	public boolean isDirect()
+	{
+		return direct;
+	}
+
+	/**
+	 * Borrow a cleared buffer (position 0, limit = capacity).
+	 */
+	public ByteBuffer acquire()
+	{
+		synchronized (this) {
+			if (freeCount > 0) {
+				ByteBuffer buffer = free[--freeCount];
+				free[freeCount] = null;
+				buffer.clear();
+				return buffer;
+			}
+		}
+
+		logger.trace("buffer pool empty, allocating {} bytes", bufferSize);
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	public void release(ByteBuffer buffer)
+	{
+		if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+			// Not one of ours
+			return;
+		}
+
+		synchronized (this) {
+			if (freeCount < free.length) {
+				free[freeCount++] = buffer;
+			}
+		}
+	}
+}
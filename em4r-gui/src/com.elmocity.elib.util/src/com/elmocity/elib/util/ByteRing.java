@@ -0,0 +1,156 @@
+package com.elmocity.elib.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fixed size circular byte buffer, for stream style links (serial ports) where data arrives in arbitrary chunks that don't line up with
+ * message boundaries.
+ * <p>
+ * The producer does bulk reads straight from an InputStream into the free space, and the consumer walks the readable bytes in place
+ * (one or two contiguous segments of the backing array), so nothing is copied or allocated per read.
+ * <p>
+ * Not thread safe.  One producer and one consumer on the same thread (like a serial event callback) is the intended use.
+ */
+public class ByteRing
+{
+	private final byte[] data;
+	private final int mask;
+
+	// Free running counters, only the low bits (mask) index the array.  Their difference is the fill level.
+	private long readCount = 0;
+	private long writeCount = 0;
+
+
+	/**
+	 * @param capacity rounded up to a power of 2
+	 */
+	public ByteRing(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		data = new byte[size];
+		mask = size - 1;
+	}
+
+	public int capacity()
+	{
+		return data.length;
+	}
+
+	public int size()
+	{
+		return (int) (writeCount - readCount);
+	}
+
+	public int free()
+	{
+		return data.length - size();
+	}
+
+	public boolean isEmpty()
+	{
+		return readCount == writeCount;
+	}
+
+	public void clear()
+	{
+		readCount = 0;
+		writeCount = 0;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Producer side
+
+	/**
+	 * One bulk read from the stream into the free space (only up to the wrap point, call again for the rest).
+	 *
+	 * @return bytes read, 0 if the ring is full, or -1 at end of stream
+	 */
+	public int readFrom(InputStream in) throws IOException
+	{
+		int free = free();
+		if (free == 0) {
+			return 0;
+		}
+		int offset = (int) (writeCount & mask);
+		int len = Math.min(free, data.length - offset);
+		int n = in.read(data, offset, len);
+		if (n > 0) {
+			writeCount += n;
+		}
+		return n;
+	}
+
+	/**
+	 * Copy bytes in, for producers that already have them in an array.
+	 *
+	 * @return bytes actually stored, less than len if the ring filled up
+	 */
+	public int write(byte[] src, int off, int len)
+	{
+		int n = Math.min(len, free());
+		for (int i = 0; i < n; i++) {
+			data[(int) ((writeCount + i) & mask)] = src[off + i];
+		}
+		writeCount += n;
+		return n;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Consumer side
+
+	/**
+	 * Backing array, for consumers that walk readOffset() .. readOffset() + contiguousReadable() in place.
+	 */
+	public byte[] array()
+	{
+		return data;
+	}
+
+	public int readOffset()
+	{
+		return (int) (readCount & mask);
+	}
+
+	/**
+	 * Readable bytes starting at readOffset() before the array wraps.  When it is less than size() there is a second segment at 0.
+	 */
+	public int contiguousReadable()
+	{
+		return Math.min(size(), data.length - readOffset());
+	}
+
+	/**
+	 * Peek at the byte i positions past the read point, without consuming it.
+	 */
+	public byte get(int i)
+	{
+		return data[(int) ((readCount + i) & mask)];
+	}
+
+	/**
+	 * Consume n bytes.
+	 */
+	public void skip(int n)
+	{
+		if (n > size()) {
+			throw new IllegalArgumentException("skip past end of ring");
+		}
+		readCount += n;
+	}
+
+	/**
+	 * Copy bytes out and consume them.
+	 *
+	 * @return bytes copied
+	 */
+	public int read(byte[] dst, int off, int len)
+	{
+		int n = Math.min(len, size());
+		for (int i = 0; i < n; i++) {
+			dst[off + i] = data[(int) ((readCount + i) & mask)];
+		}
+		readCount += n;
+		return n;
+	}
+}
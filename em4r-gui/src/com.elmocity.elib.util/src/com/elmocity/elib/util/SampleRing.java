@@ -0,0 +1,232 @@
+package com.elmocity.elib.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size history of (time, value, flags) samples in primitive arrays, written by one thread and read by any number of others.
+ * <p>
+ * The writer appends in time order and overwrites the oldest sample once full.  It is a seqlock: the writer bumps a volatile sequence
+ * to odd before touching the ring and back to even after, and readers copy what they want between two reads of the sequence and retry
+ * if it was odd or moved.  Nobody takes a lock, so the writer (usually a receive thread) never waits on a reader, and at telemetry rates
+ * (a sample every few ms) a retry is rare.  Nothing is allocated on either side.
+ * <p>
+ * The slots are atomic arrays rather than plain ones only for the memory ordering: their volatile reads can't drift past the reader's
+ * second look at the sequence, which plain reads could (Java 8 has no public load fence).  On x86 they cost the same as plain reads.
+ * <p>
+ * Times are whatever the caller uses (ms usually), they just have to be non-decreasing.  An out of order time is clamped to the last one
+ * so the range queries (binary search) stay valid.
+ * <p>
+ * WARNING only ONE thread may call add() and clear().
+ */
+public class SampleRing
+{
+	private final AtomicLongArray times;
+	private final AtomicLongArray values;		// Double.doubleToRawLongBits
+	private final AtomicIntegerArray flags;
+	private final int capacity;
+	private final int mask;
+
+	// Odd while the writer is changing the ring, bumped twice per change
+	private volatile long sequence = 0;
+
+	// Total samples ever written, only the low bits (mask) index the arrays.  Only changed between the two sequence bumps.
+	private volatile long count = 0;
+
+	// Writer only
+	private long lastTime = Long.MIN_VALUE;
+
+	// A reader that keeps finding the writer mid change yields after this many tries, in case the writer thread got descheduled
+	private static final int SPIN_TRIES = 64;
+
+
+	/**
+	 * @param capacity rounded up to a power of 2
+	 */
+	public SampleRing(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		times = new AtomicLongArray(size);
+		values = new AtomicLongArray(size);
+		flags = new AtomicIntegerArray(size);
+		this.capacity = size;
+		mask = size - 1;
+	}
+
+	public int capacity()
+	{
+		return capacity;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Writer side
+
+	public void add(long time, double value, int sampleFlags)
+	{
+		if (time < lastTime) {
+			time = lastTime;
+		}
+		long seq = sequence;
+		sequence = seq + 1;
+		long c = count;
+		int i = (int) (c & mask);
+		times.lazySet(i, time);
+		values.lazySet(i, Double.doubleToRawLongBits(value));
+		flags.lazySet(i, sampleFlags);
+		count = c + 1;
+		sequence = seq + 2;
+		lastTime = time;
+	}
+
+	public void clear()
+	{
+		long seq = sequence;
+		sequence = seq + 1;
+		count = 0;
+		sequence = seq + 2;
+		lastTime = Long.MIN_VALUE;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Reader side
+
+	/**
+	 * Total samples ever added, including the ones that have been overwritten.  Handy for "has anything new arrived" checks.
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Samples currently held, at most capacity().
+	 */
+	public int size()
+	{
+		return (int) Math.min(getCount(), capacity);
+	}
+
+	/**
+	 * Copy the newest sample out into element 0 of the arrays (any of them may be null if not wanted).
+	 *
+	 * @return false if the ring is empty
+	 */
+	public boolean latest(long[] outTimes, double[] outValues, int[] outFlags)
+	{
+		return readLast(1, outTimes, outValues, outFlags, 0) == 1;
+	}
+
+	/**
+	 * Copy the newest n samples (fewer if the ring doesn't hold that many), oldest first, into the caller's arrays starting at offset.
+	 * Any of the arrays may be null if the caller doesn't want that column.
+	 *
+	 * @return number of samples copied
+	 */
+	public int readLast(int n, long[] outTimes, double[] outValues, int[] outFlags, int offset)
+	{
+		n = Math.min(n, roomIn(outTimes, outValues, outFlags) - offset);
+		for (int tries = 0; ; tries++) {
+			long seq = beginRead(tries);
+			if (seq < 0) {
+				continue;
+			}
+			long end = count;
+			long first = Math.max(Math.max(0, end - capacity), end - n);
+			int copied = copy(first, end, outTimes, outValues, outFlags, offset);
+			if (sequence == seq) {
+				return copied;
+			}
+		}
+	}
+
+	/**
+	 * Copy the samples with fromTime <= time <= toTime, oldest first, into the caller's arrays starting at offset.  If there are more
+	 * than fit, the oldest ones are copied and the rest dropped, so callers paging through history just continue from the last time.
+	 * Any of the arrays may be null if the caller doesn't want that column, but at least one must be given to size the copy.
+	 *
+	 * @return number of samples copied
+	 */
+	public int read(long fromTime, long toTime, long[] outTimes, double[] outValues, int[] outFlags, int offset)
+	{
+		int room = roomIn(outTimes, outValues, outFlags) - offset;
+		for (int tries = 0; ; tries++) {
+			long seq = beginRead(tries);
+			if (seq < 0) {
+				continue;
+			}
+			long end = count;
+			long oldest = Math.max(0, end - capacity);
+			long first = lowerBound(oldest, end, fromTime);
+			long last = lowerBound(first, end, (toTime == Long.MAX_VALUE) ? toTime : toTime + 1);
+			int copied = copy(first, Math.min(last, first + Math.max(0, room)), outTimes, outValues, outFlags, offset);
+			if (sequence == seq) {
+				return copied;
+			}
+		}
+	}
+
+	// The sequence to validate against, or -1 if the writer is in the middle of a change (try again).
+	private long beginRead(int tries)
+	{
+		long seq = sequence;
+		if ((seq & 1) == 0) {
+			return seq;
+		}
+		if (tries >= SPIN_TRIES) {
+			Thread.yield();
+		}
+		return -1;
+	}
+
+	// First logical index in [from, to) whose time is >= time, or to if none.  Values may be torn if the writer got in meanwhile, the
+	// caller checks the sequence before trusting the answer.
+	private long lowerBound(long from, long to, long time)
+	{
+		long lo = from;
+		long hi = to;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if (times.get((int) (mid & mask)) < time) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private int copy(long first, long end, long[] outTimes, double[] outValues, int[] outFlags, int offset)
+	{
+		int n = (int) Math.max(0, end - first);
+		n = Math.min(n, roomIn(outTimes, outValues, outFlags) - offset);
+		for (int k = 0; k < n; k++) {
+			int i = (int) ((first + k) & mask);
+			if (outTimes != null) {
+				outTimes[offset + k] = times.get(i);
+			}
+			if (outValues != null) {
+				outValues[offset + k] = Double.longBitsToDouble(values.get(i));
+			}
+			if (outFlags != null) {
+				outFlags[offset + k] = flags.get(i);
+			}
+		}
+		return Math.max(0, n);
+	}
+
+	private static int roomIn(long[] outTimes, double[] outValues, int[] outFlags)
+	{
+		int room = Integer.MAX_VALUE;
+		if (outTimes != null) {
+			room = Math.min(room, outTimes.length);
+		}
+		if (outValues != null) {
+			room = Math.min(room, outValues.length);
+		}
+		if (outFlags != null) {
+			room = Math.min(room, outFlags.length);
+		}
+		return (room == Integer.MAX_VALUE) ? 0 : room;
+	}
+}
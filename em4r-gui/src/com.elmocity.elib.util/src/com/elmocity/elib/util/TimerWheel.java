@@ -0,0 +1,337 @@
+package com.elmocity.elib.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel: one thread runs every timed task (keep alives, watchers, watchdogs, script steps), instead of a thread each
+ * sitting in its own Thread.sleep() loop.
+ * <p>
+ * Time is cut into ticks (1 ms on the shared wheel).  A task due at tick T hangs in bucket T % wheelSize, in a doubly linked list, so
+ * schedule and cancel are O(1) no matter how many tasks are waiting.  Tasks further out than one turn just stay in their bucket until
+ * their turn comes round.  The thread doesn't wake every tick, it parks until the next bucket that has something due (or until a new
+ * task lands earlier than that).
+ * <p>
+ * Deadlines are on a fixed tick grid from when the wheel was made, and a periodic task's next run is its last deadline + period, so a
+ * late run doesn't push the later ones back.  A task never runs early, and normally runs within a tick of its deadline.
+ * <p>
+ * WARNING every task runs on the wheel thread, so it must be short.  Anything that can block for a while (disk, waiting on a reply) should
+ * hand off to its own thread.  A task that throws is logged, a periodic one keeps running.
+ */
+public class TimerWheel
+{
+	/**
+	 * Handle to a scheduled task.
+	 */
+	public static final class Timeout
+	{
+		private final TimerWheel wheel;
+		private final Runnable task;
+		private final long periodTicks;			// 0 for a one shot
+
+		// Guarded by the wheel
+		private long deadlineTick;
+		private Timeout prev = null;
+		private Timeout next = null;
+		private boolean linked = false;
+
+		private volatile boolean cancelled = false;
+
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadlineTick, long periodTicks)
+		{
+			this.wheel = wheel;
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+			this.periodTicks = periodTicks;
+		}
+
+		/**
+		 * Stop the task from running (again).  Safe from any thread, including from inside the task itself.  If the task is running right
+		 * now it finishes, but a periodic task isn't put back on the wheel.
+		 */
+		public void cancel()
+		{
+			cancelled = true;
+			wheel.unlink(this);
+		}
+
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		public boolean isPeriodic()
+		{
+			return periodTicks > 0;
+		}
+	}
+
+	public static final long DEFAULT_TICK_MILLIS = 1;
+	public static final int DEFAULT_WHEEL_SIZE = 1024;		// about a second per turn at 1 ms ticks
+
+	private static TimerWheel shared = null;
+
+	private final String name;
+	private final long tickNanos;
+	private final long startNanos;
+	private final Timeout[] buckets;
+	private final int mask;
+
+	// Guarded by this
+	private int pending = 0;
+	private long lastTick;					// every bucket up to here has been run
+	private long plannedTick = Long.MAX_VALUE;		// when the thread is going to wake on its own
+
+	private volatile Thread thread = null;
+	private volatile boolean keepRunning = true;
+
+	private static final Logger logger = LoggerFactory.getLogger(TimerWheel.class);
+
+
+	/**
+	 * @param wheelSize number of buckets, rounded up to a power of 2
+	 */
+	public TimerWheel(String name, long tickMillis, int wheelSize)
+	{
+		this.name = name;
+		this.tickNanos = Math.max(1, tickMillis) * 1_000_000L;
+		int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+		this.buckets = new Timeout[size];
+		this.mask = size - 1;
+		this.startNanos = System.nanoTime();
+		this.lastTick = 0;
+	}
+
+	/**
+	 * The wheel everything uses unless it has a good reason to own one.
+	 */
+	public static synchronized TimerWheel getShared()
+	{
+		if (shared == null) {
+			shared = new TimerWheel("TimerWheel", DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+		}
+		return shared;
+	}
+
+	/**
+	 * Run the task once, delayMillis from now.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis)
+	{
+		return add(task, delayMillis, 0);
+	}
+
+	/**
+	 * Run the task every periodMillis, starting initialDelayMillis from now.  If the wheel falls behind by whole periods, the missed runs
+	 * are skipped rather than run back to back.
+	 */
+	public Timeout scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis)
+	{
+		if (periodMillis <= 0) {
+			throw new IllegalArgumentException("period must be positive: " + periodMillis);
+		}
+		long periodTicks = Math.max(1, (periodMillis * 1_000_000L + tickNanos - 1) / tickNanos);
+		return add(task, initialDelayMillis, periodTicks);
+	}
+
+	/**
+	 * Number of tasks waiting on the wheel (not counting one that is running right now).
+	 */
+	public synchronized int getPendingCount()
+	{
+		return pending;
+	}
+
+	/**
+	 * Stop the thread.  Tasks still on the wheel never run.
+	 */
+	public synchronized void shutdown()
+	{
+		keepRunning = false;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			thread = null;
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	private Timeout add(Runnable task, long delayMillis, long periodTicks)
+	{
+		Thread wake = null;
+		Timeout timeout;
+		synchronized (this) {
+			if (!keepRunning) {
+				throw new IllegalStateException(name + " is shut down");
+			}
+			long delayNanos = Math.max(0, delayMillis) * 1_000_000L;
+			// Round up, a task never runs early
+			long tick = (System.nanoTime() - startNanos + delayNanos + tickNanos - 1) / tickNanos;
+			timeout = new Timeout(this, task, Math.max(tick, lastTick + 1), periodTicks);
+			link(timeout);
+
+			if (thread == null) {
+				startThread();
+			}
+			else if (timeout.deadlineTick < plannedTick) {
+				plannedTick = timeout.deadlineTick;
+				wake = thread;
+			}
+		}
+		if (wake != null) {
+			LockSupport.unpark(wake);
+		}
+		return timeout;
+	}
+
+	// Caller holds this
+	private void link(Timeout timeout)
+	{
+		int b = (int) (timeout.deadlineTick & mask);
+		timeout.prev = null;
+		timeout.next = buckets[b];
+		if (buckets[b] != null) {
+			buckets[b].prev = timeout;
+		}
+		buckets[b] = timeout;
+		timeout.linked = true;
+		pending++;
+	}
+
+	private synchronized void unlink(Timeout timeout)
+	{
+		if (!timeout.linked) {
+			return;
+		}
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		}
+		else {
+			buckets[(int) (timeout.deadlineTick & mask)] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.linked = false;
+		pending--;
+	}
+
+	// Caller holds this
+	private void startThread()
+	{
+		Thread t = new Thread(() -> tickLoop());
+		t.setName(name);
+		t.setDaemon(true);
+		// Sleeps nearly all the time, but when something is due it should get the CPU ahead of the chart redraws
+		t.setPriority(Thread.MAX_PRIORITY);
+		thread = t;
+		t.start();
+	}
+
+	private long currentTick()
+	{
+		return (System.nanoTime() - startNanos) / tickNanos;
+	}
+
+	private void tickLoop()
+	{
+		ArrayList<Timeout> due = new ArrayList<Timeout>();
+		while (keepRunning) {
+			long nowTick = currentTick();
+			synchronized (this) {
+				// If we fell more than a whole turn behind, one pass over every bucket still catches everything
+				long from = Math.max(lastTick + 1, nowTick - mask);
+				for (long t = from; t <= nowTick; t++) {
+					collect((int) (t & mask), nowTick, due);
+				}
+				lastTick = Math.max(lastTick, nowTick);
+			}
+
+			for (int i = 0; i < due.size(); i++) {
+				Timeout timeout = due.get(i);
+				if (timeout.cancelled) {
+					continue;
+				}
+				try {
+					timeout.task.run();
+				}
+				catch (Exception e) {
+					logger.warn("{} task threw", name, e);
+				}
+				if (timeout.periodTicks > 0) {
+					reschedule(timeout);
+				}
+			}
+			due.clear();
+
+			long wakeTick;
+			synchronized (this) {
+				wakeTick = nextDueTick();
+				plannedTick = wakeTick;
+			}
+			if (wakeTick == Long.MAX_VALUE) {
+				LockSupport.park(this);
+			}
+			else {
+				long wait = startNanos + wakeTick * tickNanos - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(this, wait);
+				}
+			}
+		}
+		logger.debug("{} exiting", name);
+	}
+
+	// Caller holds this.  Pulls everything in the bucket that is due, leaves the ones waiting for a later turn.
+	private void collect(int b, long nowTick, ArrayList<Timeout> due)
+	{
+		Timeout timeout = buckets[b];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.deadlineTick <= nowTick) {
+				unlink(timeout);
+				due.add(timeout);
+			}
+			timeout = next;
+		}
+	}
+
+	private synchronized void reschedule(Timeout timeout)
+	{
+		if (timeout.cancelled || !keepRunning) {
+			return;
+		}
+		long tick = timeout.deadlineTick + timeout.periodTicks;
+		if (tick <= lastTick) {
+			// Skip the runs we missed, staying on the original grid
+			tick += ((lastTick - tick) / timeout.periodTicks + 1) * timeout.periodTicks;
+		}
+		timeout.deadlineTick = tick;
+		link(timeout);
+	}
+
+	// Caller holds this.  Walks at most one turn of buckets, never the whole wheel more than once.
+	private long nextDueTick()
+	{
+		if (pending == 0) {
+			return Long.MAX_VALUE;
+		}
+		long earliest = Long.MAX_VALUE;
+		for (long t = lastTick + 1; t <= lastTick + buckets.length; t++) {
+			for (Timeout timeout = buckets[(int) (t & mask)]; timeout != null; timeout = timeout.next) {
+				if (timeout.deadlineTick <= t) {
+					return t;
+				}
+				earliest = Math.min(earliest, timeout.deadlineTick);
+			}
+		}
+		// Everything is at least a turn away
+		return earliest;
+	}
+}
@@ -1,6 +1,7 @@
 package com.elmocity.elib.util;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,52 +9,197 @@ import org.slf4j.LoggerFactory;
 /**
  * Using a binary format for data over a communications link (serial or UDP etc) is pretty ugly.  This class acts as a simple container
  * to get up through listerers and callbacks until some level can un-marshal the data and get it into an actual Java class.
+ * <p>
+ * The payload is held as a ByteBuffer view (position 0 to limit) over whatever storage the producer handed us.  Nothing is copied on the way
+ * in, and consumers should read through {@link #getBuffer()} instead of {@link #getData()} so nothing is copied on the way out either.
+ * <p>
+ * WARNING a message built over a pooled buffer (see {@link BufferPool}) is only valid until it is released, which for listener callbacks
+ * means until the callback returns.  Call {@link #copy()} to keep the payload any longer than that.
  */
 public class WireMessage
 {
-	ArrayList<Byte> data;
-	
+	// View of the payload, always zero-based so position 0 is the first payload byte and limit is the payload length.
+	private ByteBuffer data;
+
+	// Non-null when the backing buffer was borrowed from a pool and has to go back there on release().
+	private BufferPool pool;
+	private ByteBuffer pooledBuffer;
+
 	private final static Logger logger = LoggerFactory.getLogger(WireMessage.class);
 
-	
+
+	/**
+	 * Empty message, for producers that recycle one message object and point it at each new buffer with {@link #setView(ByteBuffer)}.
+	 */
+	public WireMessage()
+	{
+	}
+
+	/**
+	 * Wrap the first len bytes of the array.  The array is NOT copied, so the caller must not reuse it while the message is alive.
+	 */
 	public WireMessage(byte[] buf, int len)
 	{
 		setData(buf, len);
 	}
-	
+
+	/**
+	 * Wrap the remaining bytes (position to limit) of the buffer.  The content is shared, but the position/limit of the caller's buffer
+	 * are not touched afterwards.
+	 */
+	public WireMessage(ByteBuffer buffer)
+	{
+		setData(buffer);
+	}
+
+	/**
+	 * Wrap a buffer that was acquired from a pool.  The remaining bytes are the payload, and the whole buffer goes back to the pool on release().
+	 */
+	public WireMessage(ByteBuffer buffer, BufferPool pool)
+	{
+		setData(buffer);
+		this.pool = pool;
+		this.pooledBuffer = buffer;
+	}
+
 	public void setData(byte[] buf, int len)
 	{
-		data = new ArrayList<Byte>(len);
-		for (int i = 0; i < len; i++) {
-			data.add(buf[i]);
-		}
+		setData(ByteBuffer.wrap(buf, 0, len));
 	}
-	
+
+	public void setData(ByteBuffer buffer)
+	{
+		// slice() gives us a zero-based view with its own position/limit, without copying the content.
+		data = buffer.slice();
+	}
+
+	/**
+	 * Point this message at a zero-based buffer (position 0, limit = payload length) without slicing, so recycled messages cost nothing.
+	 * <p>
+	 * The message shares position/limit with the buffer, so the producer must leave the buffer alone until the message is done with.
+	 */
+	public void setView(ByteBuffer buffer)
+	{
+		data = buffer;
+	}
+
 	public int getLength()
 	{
 		if (data == null) {
 			return 0;
 		}
-		return data.size();
+		return data.limit();
 	}
-	
-	public byte[] getData()
+
+	/**
+	 * Fetch a read view of the payload, position 0 to limit.  The view shares content with this message but has its own position/limit,
+	 * so several consumers can each read the same message.
+	 */
+	public ByteBuffer getBuffer()
+	{
+		return data.duplicate();
+	}
+
+	/**
+	 * Fetch the internal payload view itself, without the duplicate() that getBuffer() makes.
+	 * <p>
+	 * WARNING for hot path decoders only.  Use absolute get(index) reads and never change the position/limit.
+	 */
+	public ByteBuffer getView()
+	{
+		return data;
+	}
+
+	/**
+	 * Make a smaller message over a range of this one, sharing the content.
+	 */
+	public WireMessage slice(int offset, int length)
 	{
-		byte[] buf = new byte[data.size()];
-		for(int i = 0; i < data.size(); i++) {
-			buf[i] = data.get(i);
+		ByteBuffer view = data.duplicate();
+		view.position(offset);
+		view.limit(offset + length);
+		return new WireMessage(view);
+	}
+
+	/**
+	 * Make an unpooled heap copy, for callers that need to keep the payload after a callback returns.
+	 */
+	public WireMessage copy()
+	{
+		ByteBuffer dup = data.duplicate();
+		ByteBuffer store = ByteBuffer.allocate(dup.remaining());
+		store.put(dup);
+		store.flip();
+		return new WireMessage(store);
+	}
+
+	/**
+	 * Give the backing buffer back to its pool (if any).  The message must not be used afterwards.
+	 */
+	public void release()
+	{
+		if (pool != null) {
+			pool.release(pooledBuffer);
+			pool = null;
+			pooledBuffer = null;
 		}
+	}
+
+	// Direct access to the backing array, so byte[] based APIs (like DatagramPacket) can send without a copy.
+	// Direct buffers have no array, callers have to check hasArray() first.
+
+	public boolean hasArray()
+	{
+		return data.hasArray();
+	}
+
+	public byte[] array()
+	{
+		return data.array();
+	}
+
+	public int arrayOffset()
+	{
+		return data.arrayOffset();
+	}
+
+	/**
+	 * Copy the payload out into a new, perfectly sized array.
+	 * <p>
+	 * This allocates every call, so only use it on cold paths (GUI debug parts etc).
+	 */
+	public byte[] getData()
+	{
+		byte[] buf = new byte[getLength()];
+		data.duplicate().get(buf);
 		return buf;
 	}
-	
+
+	/**
+	 * Decode the payload as text, for the protocols that are actually strings.
+	 */
+	public String toString(Charset charset)
+	{
+		if (data.hasArray()) {
+			return new String(data.array(), data.arrayOffset(), data.limit(), charset);
+		}
+		return charset.decode(data.duplicate()).toString();
+	}
+
 	public void debugHexDump()
 	{
+		// Called on the send path, so skip all the string building unless someone is actually watching.
+		if (!logger.isTraceEnabled()) {
+			return;
+		}
+
 		final int bytesPerDisplayRow = 4;
-		
-		for (int i = 0; i < data.size(); i += bytesPerDisplayRow) {
+		final int length = getLength();
+
+		for (int i = 0; i < length; i += bytesPerDisplayRow) {
 			String hex = "0x";
 			for (int j = 0; j < bytesPerDisplayRow; j++) {
-				if (i + j < data.size()) {
+				if (i + j < length) {
 					hex += String.format(" %02X", data.get(i + j));
 				}
 			}
@@ -9,6 +9,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.elmocity.elib.util.Format;
+import com.elmocity.elib.util.TimerWheel;
 import com.elmocity.ss.database.HistQuote;
 import com.elmocity.ss.fin.ExchangeDate;
 import com.elmocity.ss.fin.OptionSpacing;
@@ -47,8 +48,8 @@ public class DataBroker		// IB IMPLEMENTATION
 	static ArrayList<SSFeed> feedList = new ArrayList<SSFeed>(50);
 	static ArrayList<SSOrder> orderList = new ArrayList<SSOrder>(50);
 	
-	// DEBUG thread to keep periodically post the contents of the feed and order list to the log.
-	static Thread watchdog = null;
+	// DEBUG timer to periodically post the contents of the feed and order list to the log.  Guarded by DataBroker.class.
+	static TimerWheel.Timeout watchdog = null;
 	// DEBUG should we also watch IB openOrders() to compare the scale trader or manual moves to our expected SELL limit price?
 	static boolean watchIBOpenOrders = false;
 
@@ -66,8 +67,10 @@ public class DataBroker		// IB IMPLEMENTATION
 	private DataBroker()
 	{
 		// First robot that creates us
-		if (watchdog == null) {
-			watchdog = createWatchdog();
+		synchronized (DataBroker.class) {
+			if (watchdog == null) {
+				scheduleWatchdog();
+			}
 		}
 	}
 
@@ -131,9 +134,16 @@ public class DataBroker		// IB IMPLEMENTATION
 	// TODO. this is bad, since multiple robots use the same watchdog.  it needs a reference counter to stay running until the last robot quits.
 	public void stopWatchdog()
 	{
-		if (watchdog != null) {
-			watchdog.interrupt();
-			watchdog = null;
+		synchronized (DataBroker.class) {
+			if (watchdog != null) {
+				logger.info("databroker watchdog asked to terminate");
+				watchdog.cancel();
+				watchdog = null;
+
+				// All the orders have been cancelled, but we want to hold up a couple seconds to see the ACKs if possible.
+				// Then do one last spew of the broker's data.
+				TimerWheel.getShared().schedule(() -> logFeedsAndOrders(), 2000);
+			}
 		}
 	}
 	
@@ -385,78 +395,63 @@ public class DataBroker		// IB IMPLEMENTATION
 	}
 	
 	
-	private Thread createWatchdog()
+	// The watchdog is a one shot on the shared TimerWheel that books its own next run, since its period depends on the time of day.
+	// Caller holds DataBroker.class
+	private void scheduleWatchdog()
 	{
-		Thread watchdog = new Thread(new Runnable() {
-		    public void run()
-		    {
-		    	Thread.currentThread().setName("DataBrokerWD");
-
-		    	final LocalTime openingBellTime = LocalTime.of(9, 30, 00);
-		    	
-		    	boolean okToRun = true;
-				while (okToRun) {
-					LocalTime now = LocalTime.now();
-				
-					long msDelay;
-					long secondsAfterOpeningBell = ChronoUnit.SECONDS.between(openingBellTime, now);
-					// If we are "near" opening bell by a few seconds, we should run the watchdog alot faster to catch bugged feeds or IB issues.
-					if ((secondsAfterOpeningBell > -15) && (secondsAfterOpeningBell < 15)) {	// Plus or minus 15 seconds from opening bell
-						msDelay = 3 * 1000;
-					}
-					// If it is after 3 mintues, drop way way down... probably could turn it off
-					else if (secondsAfterOpeningBell > 185) {
-						msDelay = 90 * 1000;
-					}
-					else {
-						msDelay = 10 * 1000;
-					}
-
-					try {
-						Thread.sleep(msDelay);
-					}
-					catch (InterruptedException e)
-					{
-						logger.info("databroker watchdog thread asked to terminate");
-						// Fall through and do one last spew of the broker's data.
-						okToRun= false;
-						// All the orders have been cancelled, but we want to hold up a couple seconds to see the ACKs if possible.
-						try {
-							Thread.sleep(2000);
-						}
-						catch (InterruptedException e2)
-						{
-						}
-//						break;
-					}
-					
-					// Check on the list of feeds and see what the values are:
-					// This relies on the fact that feeds are never removed... they are only added to the broker.
-					// So we don't really need synchronization... the feedList/orderList might get longer as we loop through them, but should be safe as is.
-					synchronized (DataBroker.this)
-					{
-						// Show the running feeds
-						for (int i = 0; i < feedList.size(); i++) {
-							String securityString = feedList.get(i).security.debugString();
-							String quoteString = feedList.get(i).quote.debugString();
-							logger.trace("   FEED  {} {} {}",
-									String.format("%03d", i), securityString, quoteString);
-						}
-						// Show the running orders
-						for (int i = 0; i < orderList.size(); i++) {
-							String orderInString = orderList.get(i).orderIn.debugString();
-							String orderOutString = orderList.get(i).orderOut.debugString();
-							logger.trace("   ORDER {} {} {} IBOID = {}",
-									String.format("%03d", i), orderInString, orderOutString, orderList.get(i).ibOrderID);
-						}
-					}
-				}
-				// thread exit.
-		    }
-		});
-		
-		watchdog.start();
-		return watchdog;
+		watchdog = TimerWheel.getShared().schedule(() -> runWatchdog(), watchdogDelay());
+	}
+
+	private void runWatchdog()
+	{
+		logFeedsAndOrders();
+		synchronized (DataBroker.class) {
+			// Null means stopWatchdog() got in while we were logging
+			if (watchdog != null) {
+				scheduleWatchdog();
+			}
+		}
+	}
+
+	private static long watchdogDelay()
+	{
+		final LocalTime openingBellTime = LocalTime.of(9, 30, 00);
+		LocalTime now = LocalTime.now();
+
+		long secondsAfterOpeningBell = ChronoUnit.SECONDS.between(openingBellTime, now);
+		// If we are "near" opening bell by a few seconds, we should run the watchdog alot faster to catch bugged feeds or IB issues.
+		if ((secondsAfterOpeningBell > -15) && (secondsAfterOpeningBell < 15)) {	// Plus or minus 15 seconds from opening bell
+			return 3 * 1000;
+		}
+		// If it is after 3 mintues, drop way way down... probably could turn it off
+		else if (secondsAfterOpeningBell > 185) {
+			return 90 * 1000;
+		}
+		return 10 * 1000;
+	}
+
+	private void logFeedsAndOrders()
+	{
+		// Check on the list of feeds and see what the values are:
+		// This relies on the fact that feeds are never removed... they are only added to the broker.
+		// So we don't really need synchronization... the feedList/orderList might get longer as we loop through them, but should be safe as is.
+		synchronized (DataBroker.this)
+		{
+			// Show the running feeds
+			for (int i = 0; i < feedList.size(); i++) {
+				String securityString = feedList.get(i).security.debugString();
+				String quoteString = feedList.get(i).quote.debugString();
+				logger.trace("   FEED  {} {} {}",
+						String.format("%03d", i), securityString, quoteString);
+			}
+			// Show the running orders
+			for (int i = 0; i < orderList.size(); i++) {
+				String orderInString = orderList.get(i).orderIn.debugString();
+				String orderOutString = orderList.get(i).orderOut.debugString();
+				logger.trace("   ORDER {} {} {} IBOID = {}",
+						String.format("%03d", i), orderInString, orderOutString, orderList.get(i).ibOrderID);
+			}
+		}
 	}
 
 	public void preloadConIDCache(String underlyingSymbol, double underlyingPrice, int chainWidth)
@@ -3,6 +3,7 @@ package com.elmocity.ss.histfin.parts;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -34,6 +35,7 @@ import com.elmocity.elib.swt.table.GenericTableInfo;
 import com.elmocity.elib.swt.table.GenericTableInfoList;
 import com.elmocity.elib.swt.table.GenericTableViewer;
 import com.elmocity.elib.ui.PartUtils;
+import com.elmocity.elib.ui.RenderScheduler;
 import com.elmocity.elib.util.DateAndTime;
 import com.elmocity.elib.util.Format;
 import com.elmocity.ss.broker.DataBroker;
@@ -62,6 +64,10 @@ public class DownloadIBDataPart
 	// get UISynchronize injected as field
 	@Inject UISynchronize sync;
 
+	// Finished downloads waiting for the chart.  Jobs often finish in bursts, so they are all added in one frame (see RenderScheduler).
+	private final ConcurrentLinkedQueue<Runnable> pendingSeries = new ConcurrentLinkedQueue<Runnable>();
+	private final Runnable showPending = () -> showPendingSeries();
+
 	@PostConstruct
 	public void postConstruct(Composite parent)
 	{
@@ -302,7 +308,7 @@ public class DownloadIBDataPart
 		// We also need a string to show in the legend on the chart to the user.
 		final String seriesLegendName = seriesID;
 		
-		sync.asyncExec(() -> {
+		pendingSeries.add(() -> {
 
 			// Create the series on the chart
 			PartUtils.createSeries(chart, seriesID, seriesLegendName, xData, yData, date.getDayOfWeek());
@@ -316,7 +322,19 @@ public class DownloadIBDataPart
 			
 			logger.debug("hist - created series and table row ok");
 		});
+		RenderScheduler.getShared().markDirty(showPending);
 		
 		return true;
 	}
+
+	// UI thread only
+	private void showPendingSeries()
+	{
+		Runnable show;
+		while ((show = pendingSeries.poll()) != null) {
+			if (chart != null && !chart.isDisposed()) {
+				show.run();
+			}
+		}
+	}
 }
\ No newline at end of file
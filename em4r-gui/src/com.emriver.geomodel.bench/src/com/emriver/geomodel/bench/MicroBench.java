@@ -0,0 +1,163 @@
+package com.emriver.geomodel.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tiny micro-benchmark harness, just enough to put numbers (ns/op and bytes/op) on the hot paths without pulling a benchmark framework
+ * into the target platform.
+ * <p>
+ * Each benchmark is an Op that runs its body N times and returns something derived from the results, which goes into a volatile sink so
+ * the JIT can't throw the work away.  The harness picks N so one batch takes about BATCH_MS, runs warmup batches for the JIT to settle,
+ * then times the measured batches.  Allocation is read from the per-thread allocation counter that HotSpot keeps, so it only counts the
+ * thread running the Op.
+ * <p>
+ * WARNING numbers from a single JVM in a loop are only good for comparing runs of the same code on the same box (before/after a change).
+ * Run with -server and nothing else busy on the machine.
+ */
+public class MicroBench
+{
+	/**
+	 * A benchmark body.
+	 */
+	public interface Op
+	{
+		/**
+		 * Do the operation iterations times.
+		 *
+		 * @return anything computed from the results, it gets consumed so the work can't be optimized away
+		 */
+		long run(int iterations);
+	}
+
+	public static class Result
+	{
+		public final String name;
+		public final double nsPerOp;
+		public final double minNsPerOp;
+		public final double bytesPerOp;		// NaN if the JVM can't tell us
+		public final long ops;
+
+		Result(String name, double nsPerOp, double minNsPerOp, double bytesPerOp, long ops)
+		{
+			this.name = name;
+			this.nsPerOp = nsPerOp;
+			this.minNsPerOp = minNsPerOp;
+			this.bytesPerOp = bytesPerOp;
+			this.ops = ops;
+		}
+
+		@Override
+		public String toString()
+		{
+			String bytes = Double.isNaN(bytesPerOp) ? "n/a" : String.format("%.1f", bytesPerOp);
+			return String.format("%-56s %10.1f ns/op  (min %8.1f)  %8s B/op  %12d ops", name, nsPerOp, minNsPerOp, bytes, ops);
+		}
+	}
+
+	private static final long BATCH_MS = 100;
+
+	private final int warmupBatches;
+	private final int measuredBatches;
+	private final ArrayList<Result> results = new ArrayList<Result>();
+
+	// Results end up here so nothing is dead code
+	private volatile long sink = 0;
+
+	// com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long), looked up by reflection so the bundle doesn't need access to com.sun.*
+	private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+	private final Method allocatedBytes;
+
+	private static final Logger logger = LoggerFactory.getLogger(MicroBench.class);
+
+
+	public MicroBench(int warmupBatches, int measuredBatches)
+	{
+		this.warmupBatches = warmupBatches;
+		this.measuredBatches = measuredBatches;
+
+		Method method = null;
+		try {
+			// Through the public interface, the implementation class itself is not accessible
+			method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+			method.invoke(threadBean, Thread.currentThread().getId());
+		}
+		catch (Exception e) {
+			logger.warn("per thread allocation counter not available, bytes/op will not be reported");
+			method = null;
+		}
+		allocatedBytes = method;
+	}
+
+	public Result run(String name, Op op)
+	{
+		// Find a batch size that takes about BATCH_MS, which also does some early warmup
+		int iterations = 1;
+		while (true) {
+			long start = System.nanoTime();
+			sink += op.run(iterations);
+			long elapsed = System.nanoTime() - start;
+			if (elapsed >= BATCH_MS * 1_000_000L || iterations >= (1 << 29)) {
+				break;
+			}
+			iterations <<= 1;
+		}
+
+		for (int i = 0; i < warmupBatches; i++) {
+			sink += op.run(iterations);
+		}
+
+		long totalNanos = 0;
+		double minNsPerOp = Double.MAX_VALUE;
+		long allocStart = threadAllocatedBytes();
+		for (int i = 0; i < measuredBatches; i++) {
+			long start = System.nanoTime();
+			sink += op.run(iterations);
+			long elapsed = System.nanoTime() - start;
+			totalNanos += elapsed;
+			minNsPerOp = Math.min(minNsPerOp, (double) elapsed / iterations);
+		}
+		long allocEnd = threadAllocatedBytes();
+
+		long ops = (long) iterations * measuredBatches;
+		double bytesPerOp = (allocStart < 0 || allocEnd < 0) ? Double.NaN : (double) (allocEnd - allocStart) / ops;
+		Result result = new Result(name, (double) totalNanos / ops, minNsPerOp, bytesPerOp, ops);
+		results.add(result);
+		System.out.println(result);
+		return result;
+	}
+
+	public ArrayList<Result> getResults()
+	{
+		return results;
+	}
+
+	/**
+	 * Fold a value into the sink, for benchmarks that run extra threads whose work also has to be kept alive.
+	 */
+	public void consume(long value)
+	{
+		sink += value;
+	}
+
+	/**
+	 * @return bytes allocated so far by the calling thread, or -1 if not supported
+	 */
+	public long threadAllocatedBytes()
+	{
+		if (allocatedBytes == null) {
+			return -1;
+		}
+		try {
+			return (Long) allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+		}
+		catch (Exception e) {
+			return -1;
+		}
+	}
+}
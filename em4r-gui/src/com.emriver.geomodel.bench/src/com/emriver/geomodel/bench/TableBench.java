@@ -0,0 +1,287 @@
+package com.emriver.geomodel.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.elmocity.elib.util.WireMessage;
+import com.emriver.geomodel.table.CapsuleCodec;
+import com.emriver.geomodel.table.Device;
+import com.emriver.geomodel.table.EthernetTableConnection;
+import com.emriver.geomodel.table.ITableConnection;
+import com.emriver.geomodel.table.ITableConnectionListener;
+import com.emriver.geomodel.table.Request;
+import com.emriver.geomodel.table.Response;
+import com.emriver.geomodel.table.TableController;
+
+/**
+ * Micro-benchmarks for the table protocol hot paths: building and parsing wire messages, device lookup, and the controller value cache
+ * under concurrent pollers.
+ * <p>
+ * Usage: TableBench [warmupBatches] [measuredBatches] [readerThreads]
+ * <p>
+ * Nothing here touches the network.  The Ethernet connection is never connected, it's only used for its encode/parse methods.
+ */
+public class TableBench
+{
+	private static final int MAX_CAPSULES = 8;
+
+	private static final int[] DEVICE_IDS = {
+			Device.DEV_PITCH.getNumValue(), Device.DEV_ROLL.getNumValue(), Device.DEV_UPPIPE.getNumValue(),
+			Device.DEV_DOWNPIPE.getNumValue(), Device.DEV_PUMP.getNumValue() };
+
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		int warmup = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int measured = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int readers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		MicroBench bench = new MicroBench(warmup, measured);
+
+		wireMessage(bench);
+		makeBin(bench);
+		parseBin(bench);
+		deviceLookup(bench);
+		receiveResponses(bench, 0);
+		receiveResponses(bench, readers);
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	private static void wireMessage(MicroBench bench)
+	{
+		final ByteBuffer status = statusPacket(5);
+		final byte[] packet = status.array();
+		final int length = status.limit();
+		final WireMessage reused = new WireMessage();
+		final ByteBuffer view = ByteBuffer.wrap(packet, 0, length);
+
+		bench.run("WireMessage new(byte[], len)", iterations -> {
+			long sum = 0;
+			for (int i = 0; i < iterations; i++) {
+				WireMessage m = new WireMessage(packet, length);
+				sum += m.getLength();
+			}
+			return sum;
+		});
+
+		bench.run("WireMessage setView (reused)", iterations -> {
+			long sum = 0;
+			for (int i = 0; i < iterations; i++) {
+				reused.setView(view);
+				sum += reused.getLength();
+			}
+			return sum;
+		});
+
+		bench.run("WireMessage getData (copy)", iterations -> {
+			reused.setView(view);
+			long sum = 0;
+			for (int i = 0; i < iterations; i++) {
+				sum += reused.getData()[i & 7];
+			}
+			return sum;
+		});
+	}
+
+	private static void makeBin(MicroBench bench)
+	{
+		final EthernetTableConnection connection = new EthernetTableConnection("localhost", 0);
+		final ByteBuffer out = ByteBuffer.allocate(1024);
+
+		for (int n = 1; n <= MAX_CAPSULES; n++) {
+			final Request[] requests = requests(n);
+
+			bench.run("makeBinRequestMessage " + n + " capsule(s)", iterations -> {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					sum += connection.makeBinRequestMessage(i, requests).getLength();
+				}
+				return sum;
+			});
+
+			bench.run("encodeBinRequests " + n + " capsule(s) (reused)", iterations -> {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					out.clear();
+					connection.encodeBinRequests(i, requests, 0, requests.length, out);
+					sum += out.position();
+				}
+				return sum;
+			});
+		}
+	}
+
+	private static void parseBin(MicroBench bench)
+	{
+		final EthernetTableConnection connection = new EthernetTableConnection("localhost", 0);
+		final CapsuleCodec.SystemStatus system = new CapsuleCodec.SystemStatus();
+		final Response[] slots = new Response[MAX_CAPSULES];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = new Response();
+		}
+
+		for (int n = 1; n <= MAX_CAPSULES; n++) {
+			final WireMessage message = new WireMessage(statusPacket(n));
+
+			bench.run("parseBinResponseMessage " + n + " capsule(s)", iterations -> {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					sum += connection.parseBinResponseMessage(message).length;
+				}
+				return sum;
+			});
+
+			bench.run("parseBinResponseMessage " + n + " capsule(s) (slots)", iterations -> {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) {
+					sum += connection.parseBinResponseMessage(message, system, slots);
+				}
+				return sum;
+			});
+		}
+	}
+
+	private static void deviceLookup(MicroBench bench)
+	{
+		bench.run("Device.getByValue", iterations -> {
+			long sum = 0;
+			for (int i = 0; i < iterations; i++) {
+				sum += Device.getByValue(DEVICE_IDS[i % DEVICE_IDS.length]).ordinal();
+			}
+			return sum;
+		});
+	}
+
+	/**
+	 * The receive thread pushing a full status packet into the controller cache, while pollers (the UI watchers) hammer getCurrentValue().
+	 * Once with the values steady (the usual case) and once with every value changing each packet.
+	 */
+	private static void receiveResponses(MicroBench bench, int readers) throws InterruptedException
+	{
+		final TableController controller = new TableController(new NullTableConnection());
+		final Response[] steady = responses(0);
+		final Response[] changing = responses(0);
+
+		final AtomicLong readCount = new AtomicLong(0);
+		final Thread[] threads = new Thread[readers];
+		for (int r = 0; r < readers; r++) {
+			threads[r] = new Thread(() -> {
+				long reads = 0;
+				long sum = 0;
+				while (!Thread.currentThread().isInterrupted()) {
+					Response response = controller.getCurrentValue(Device.getByValue(DEVICE_IDS[(int) (reads % DEVICE_IDS.length)]));
+					sum += (long) response.value;
+					reads++;
+				}
+				readCount.addAndGet(reads);
+				bench.consume(sum);
+			});
+			threads[r].setName("BenchReader" + r);
+			threads[r].setDaemon(true);
+			threads[r].start();
+		}
+
+		String suffix = " (" + readers + " readers)";
+		long start = System.nanoTime();
+
+		bench.run("TableController.receiveResponses steady" + suffix, iterations -> {
+			for (int i = 0; i < iterations; i++) {
+				controller.receiveResponses(steady);
+			}
+			return iterations;
+		});
+
+		bench.run("TableController.receiveResponses changing" + suffix, iterations -> {
+			for (int i = 0; i < iterations; i++) {
+				for (Response response : changing) {
+					response.value = i & 0xFF;
+				}
+				controller.receiveResponses(changing);
+			}
+			return iterations;
+		});
+
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (readers > 0) {
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("    readers did %.1f M getCurrentValue/s total", readCount.get() / seconds / 1e6));
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	// n requests, cycling through the devices when there are more than 5
+	private static Request[] requests(int n)
+	{
+		Request[] requests = new Request[n];
+		for (int i = 0; i < n; i++) {
+			Device device = Device.getByValue(DEVICE_IDS[i % DEVICE_IDS.length]);
+			requests[i] = new Request(device, TableController.CMD_SET, device.getMin() + device.getStep() * i, i);
+		}
+		return requests;
+	}
+
+	private static Response[] responses(int value)
+	{
+		Response[] responses = new Response[DEVICE_IDS.length];
+		for (int i = 0; i < responses.length; i++) {
+			responses[i] = new Response(Device.getByValue(DEVICE_IDS[i]), TableController.RSP_OK, value, 0);
+		}
+		return responses;
+	}
+
+	// A status packet like the table sends, with n Operator Status capsules
+	private static ByteBuffer statusPacket(int n)
+	{
+		ByteBuffer out = ByteBuffer.allocate(CapsuleCodec.SYSTEM_CAPSULE_BYTES + n * CapsuleCodec.OPERATOR_STATUS_CAPSULE_BYTES);
+		CapsuleCodec.putSystemStatus(out, 1, 1, 123456);
+		for (int i = 0; i < n; i++) {
+			CapsuleCodec.putOperatorStatus(out, DEVICE_IDS[i % DEVICE_IDS.length], 100 + i, 0, 100 + i, 123456);
+		}
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Connection that goes nowhere, so a TableController can be built without a table.
+	 */
+	private static class NullTableConnection implements ITableConnection
+	{
+		@Override
+		public void connect()
+		{
+		}
+
+		@Override
+		public void disconnect()
+		{
+		}
+
+		@Override
+		public boolean isConnected()
+		{
+			return false;
+		}
+
+		@Override
+		public void sendRequest(Request request)
+		{
+		}
+
+		@Override
+		public void sendRequests(Request... requests)
+		{
+		}
+
+		@Override
+		public void addTableListener(ITableConnectionListener listener)
+		{
+		}
+	}
+}
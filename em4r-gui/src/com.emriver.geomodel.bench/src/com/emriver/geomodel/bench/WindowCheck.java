@@ -0,0 +1,183 @@
+package com.emriver.geomodel.bench;
+
+import java.util.ArrayList;
+
+import com.emriver.geomodel.table.Device;
+import com.emriver.geomodel.table.InFlightWindow;
+import com.emriver.geomodel.table.Request;
+import com.emriver.geomodel.table.TableController;
+
+/**
+ * Walks InFlightWindow through the loss patterns a UDP link actually produces, and checks each lost command is sent again (or given up
+ * on) instead of being taken as delivered because some later message got echoed.
+ * <p>
+ * Usage: WindowCheck
+ * <p>
+ * Nothing here touches the network or the clock, the window is driven with made up sequences and times.  Exits 1 if any check fails.
+ */
+public class WindowCheck
+{
+	private static final int MAX_ATTEMPTS = 4;
+	private static final long MS = 1_000_000L;
+
+	private static int failed = 0;
+
+
+	public static void main(String[] args)
+	{
+		lostStopThenKeepAlive();
+		lostMoveThenOtherDevice();
+		lostMoveThenSameDevice();
+		echoedDirectly();
+		lostStopNoTraffic();
+
+		System.out.println(failed == 0 ? "all checks passed" : failed + " check(s) FAILED");
+		if (failed != 0) {
+			System.exit(1);
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	/**
+	 * The STOP is lost, the keep alive after it gets through and is echoed.  The STOP must go out again right away.
+	 */
+	private static void lostStopThenKeepAlive()
+	{
+		System.out.println("lost STOP, then a keep alive is echoed");
+		InFlightWindow window = new InFlightWindow(MAX_ATTEMPTS);
+		Request[] stop = { stop(Device.DEV_PITCH) };
+
+		window.sent(10, stop, 0, 1, 0);
+		window.sent(11, null, 0, 1, 1 * MS);
+		window.acked(11, 5 * MS);
+
+		Sweep sweep = sweep(window, 6 * MS);
+		check("STOP retransmitted on the next sweep", sweep.retries.size() == 1 && sweep.retries.get(0).requests[0] == stop[0]);
+		check("nothing reported failed", sweep.failures.isEmpty());
+		check("only the keep alive counted as acked", window.getAckCount() == 1);
+		if (sweep.retries.isEmpty()) {
+			return;
+		}
+
+		// The retransmit is echoed, now it is really delivered
+		window.sent(12, sweep.retries.get(0).requests, 0, sweep.retries.get(0).attempts + 1, 7 * MS);
+		window.acked(12, 10 * MS);
+		check("window empty once the retransmit is echoed", window.getInFlightCount() == 0);
+	}
+
+	/**
+	 * A move to one device is lost, a move to another device after it is echoed.  The first move still has to get there.
+	 */
+	private static void lostMoveThenOtherDevice()
+	{
+		System.out.println("lost move, then a move to another device is echoed");
+		InFlightWindow window = new InFlightWindow(MAX_ATTEMPTS);
+		Request[] pitch = { move(Device.DEV_PITCH, 1.5) };
+		Request[] pump = { move(Device.DEV_PUMP, 300) };
+
+		window.sent(20, pitch, 0, 1, 0);
+		window.sent(21, pump, 0, 1, 1 * MS);
+		window.acked(21, 5 * MS);
+
+		Sweep sweep = sweep(window, 6 * MS);
+		check("pitch move retransmitted", sweep.retries.size() == 1 && sweep.retries.get(0).requests[0] == pitch[0]);
+	}
+
+	/**
+	 * A move is lost, a newer move to the same device is echoed.  The old one is moot, resending it would undo the new one.
+	 */
+	private static void lostMoveThenSameDevice()
+	{
+		System.out.println("lost move, then a newer move to the same device is echoed");
+		InFlightWindow window = new InFlightWindow(MAX_ATTEMPTS);
+
+		window.sent(30, new Request[] { move(Device.DEV_PITCH, 1.5) }, 0, 1, 0);
+		window.sent(31, new Request[] { move(Device.DEV_PITCH, 2.0) }, 0, 1, 1 * MS);
+		window.acked(31, 5 * MS);
+
+		Sweep sweep = sweep(window, 10_000 * MS);
+		check("superseded move not retransmitted", sweep.retries.isEmpty() && sweep.failures.isEmpty());
+		check("window empty", window.getInFlightCount() == 0);
+	}
+
+	/**
+	 * The usual case, every message echoed as it arrives.
+	 */
+	private static void echoedDirectly()
+	{
+		System.out.println("every message echoed");
+		InFlightWindow window = new InFlightWindow(MAX_ATTEMPTS);
+
+		window.sent(40, new Request[] { stop(Device.DEV_ROLL) }, 0, 1, 0);
+		window.acked(40, 3 * MS);
+		window.sent(41, new Request[] { move(Device.DEV_ROLL, 1.0) }, 0, 1, 4 * MS);
+		window.acked(41, 7 * MS);
+
+		Sweep sweep = sweep(window, 10_000 * MS);
+		check("nothing retransmitted", sweep.retries.isEmpty() && sweep.failures.isEmpty());
+		check("RTT measured", window.getLastRttNanos() == 3 * MS);
+	}
+
+	/**
+	 * The STOP is lost and nothing else is sent.  It goes out again after the timeout, and is reported failed once out of attempts.
+	 */
+	private static void lostStopNoTraffic()
+	{
+		System.out.println("lost STOP, link otherwise quiet");
+		InFlightWindow window = new InFlightWindow(MAX_ATTEMPTS);
+		Request[] stop = { stop(Device.DEV_PITCH) };
+
+		window.sent(50, stop, 0, 1, 0);
+		check("not retransmitted before the timeout", sweep(window, 10 * MS).retries.isEmpty());
+
+		long now = 0;
+		int sequence = 50;
+		int attempts = 1;
+		Sweep sweep;
+		while (true) {
+			now += window.getRetransmitTimeoutNanos();
+			sweep = sweep(window, now);
+			if (sweep.retries.isEmpty()) {
+				break;
+			}
+			attempts = sweep.retries.get(0).attempts + 1;
+			window.sent(++sequence, sweep.retries.get(0).requests, 0, attempts, now);
+		}
+		check("sent " + MAX_ATTEMPTS + " times in all", attempts == MAX_ATTEMPTS);
+		check("then reported failed", sweep.failures.size() == 1 && sweep.failures.get(0).requests[0] == stop[0]);
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	private static class Sweep
+	{
+		final ArrayList<InFlightWindow.Retry> retries = new ArrayList<InFlightWindow.Retry>();
+		final ArrayList<InFlightWindow.Retry> failures = new ArrayList<InFlightWindow.Retry>();
+	}
+
+	private static Sweep sweep(InFlightWindow window, long nowNanos)
+	{
+		Sweep sweep = new Sweep();
+		window.expire(nowNanos, sweep.retries, sweep.failures);
+		return sweep;
+	}
+
+	private static Request stop(Device device)
+	{
+		return new Request(device, TableController.CMD_STOP, 0, 0);
+	}
+
+	private static Request move(Device device, double value)
+	{
+		return new Request(device, TableController.CMD_SET, value, 0);
+	}
+
+	private static void check(String what, boolean ok)
+	{
+		System.out.println((ok ? "    ok    " : "    FAIL  ") + what);
+		if (!ok) {
+			failed++;
+		}
+	}
+}
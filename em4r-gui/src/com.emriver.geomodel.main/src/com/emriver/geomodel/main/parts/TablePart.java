@@ -4,14 +4,11 @@ import java.awt.Font;
 import java.awt.Toolkit;
 import java.time.LocalTime;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
 import java.util.List;
 
 import javax.annotation.PostConstruct;
-import javax.inject.Inject;
 
 import org.eclipse.e4.ui.di.Focus;
-import org.eclipse.e4.ui.di.UISynchronize;
 import org.eclipse.e4.ui.model.application.ui.basic.MPart;
 import org.eclipse.jface.resource.FontRegistry;
 import org.eclipse.swt.SWT;
@@ -41,6 +38,8 @@ import org.swtchart.Range;
 import org.swtchart.ILineSeries.PlotSymbolType;
 import org.swtchart.ISeries.SeriesType;
 
+import com.elmocity.elib.chart.ChartX;
+import com.elmocity.elib.chart.LiveSeries;
 import com.elmocity.elib.swt.ColorCache;
 import com.elmocity.elib.swt.FontCache;
 import com.elmocity.elib.swt.GridHelpers;
@@ -48,8 +47,10 @@ import com.elmocity.elib.swt.ImageCache;
 import com.elmocity.elib.swt.ShuttleComposite;
 import com.elmocity.elib.swt.ShuttleComposite.ShuttleListener;
 import com.elmocity.elib.ui.PartUtils;
+import com.elmocity.elib.ui.RenderScheduler;
 import com.elmocity.elib.util.Calc;
 import com.elmocity.elib.util.Format;
+import com.elmocity.elib.util.TimerWheel;
 import com.emriver.geomodel.table.Device;
 import com.emriver.geomodel.table.EthernetTableConnection;
 import com.emriver.geomodel.table.Request;
@@ -106,8 +107,11 @@ public class TablePart
 	private final String defaultPort = "40000";
 
 
-	@Inject
-	UISynchronize sync;
+	// Chart and value text refreshes go through the shared scheduler, at most once a frame
+	private final RenderScheduler render = RenderScheduler.getShared();
+	private final Runnable chartRefresh = () -> refreshChart();
+	private final Runnable actualTextRefresh = () -> showActualValue();
+	private volatile double actualValueShown = Double.NaN;
 
 	@PostConstruct
 	public void postConstruct(Composite parent, MPart part)
@@ -313,7 +317,8 @@ public class TablePart
 			GridLayout graphLayout = new GridLayout(1, false);
 			graphGroup.setLayout(graphLayout);
 
-			chart = PartUtils.makeChartComposite(graphGroup);
+			// Every data change goes through refreshChart(), which marks the series dirty, so the lines can be drawn offscreen
+			chart = PartUtils.makeChartComposite(graphGroup, true);
 			//			chart = new ChartX(graphGroup, SWT.NONE);
 			//			graph.setSize(300, 100);		// set title, labels, scale, size etc
 
@@ -383,6 +388,10 @@ public class TablePart
 		targetSeriesID = device.name() + "_target";
 		actualSeriesID = device.name() + "_actual";
 
+		// The new series start out empty, so must the data behind them
+		targetLive.clear();
+		actualLive.clear();
+
 		String xAxisTitle = "Time (seconds)";
 		String yAxisTitle = "?";
 		switch (device) {
@@ -475,72 +484,68 @@ public class TablePart
 		}
 	}
 
-	void addDataPoint(String seriesID, double xValue, double yValue)
+	// Every point ever plotted (up to the capacity), added from the watcher or the GUI, copied into the chart series on the UI thread
+	private static final int LIVE_POINTS = 1 << 16;		// 18 hours at a point a second, over 4 hours even at 4 Hz
+	private final LiveSeries targetLive = new LiveSeries(LIVE_POINTS);
+	private final LiveSeries actualLive = new LiveSeries(LIVE_POINTS);
+
+	void addDataPoint(LiveSeries live, double xValue, double yValue)
 	{
-		// HACK, literally extending the X and Y data arrays by one at a time, barf, by resizing and copying.
-		double[] x = chart.getSeriesSet().getSeries(seriesID).getXSeries();
-		x = Arrays.copyOf(x, x.length + 1);
-		x[x.length - 1] = xValue;	// x.length;
-		chart.getSeriesSet().getSeries(seriesID).setXSeries(x);
-
-		double[] y = chart.getSeriesSet().getSeries(seriesID).getYSeries();
-		y = Arrays.copyOf(y, y.length + 1);
-		y[y.length - 1] = yValue;	// Calc.rand(20, 90) / 10.00;
-		chart.getSeriesSet().getSeries(seriesID).setYSeries(y);
-
-		sync.asyncExec( () -> {
-
-			// We assume the Y axis is fixed to the known range of the chart, like a table can tilt only from 0 to 10 degrees.
-
-			// The default X axis "adjustRange()" only leaves small gaps on the left and right (like 1 sec).
-			// We want to leave 1 sec on the left, but want to extend in "blocks" of like 30 seconds on the right, so that as single
-			// data points come in, they fill in that blank area, instead of constantly rescaling the X axis to just barely fit the data.
-
-			// Have the chart package recompute the default range for the data we now have in the series (with 1 sec edges)
-			IAxis xAxis = chart.getAxisSet().getXAxes()[0];
-			xAxis.adjustRange();						// NOTE: this does not cause a redraw
-
-			// We want a right edge gap of between 1 sec to 30 sec
-			Range defaultXRange = xAxis.getRange();		// Read back what the package computed
-			defaultXRange.upper = ((int)((defaultXRange.upper + 29.0) / 30)) * 30 + 1;		// + 1 so if we filled the whole block, there is still a gap
-			defaultXRange.lower = -1.0;
-			xAxis.setRange(defaultXRange);
-			//			logger.trace("{} {}", defaultXRange.lower, defaultXRange.upper);
-
-			// We have to force the replot ourselves, which is good that we can do several changes then just one replot.
-			if (!chart.isDisposed()) {
-				chart.redraw();
-			}
-		});
+		live.add(xValue, yValue);
+		render.markDirty(chartRefresh);
+	}
 
+	// UI thread only
+	private void showActualValue()
+	{
+		double value = actualValueShown;
+		if (!Double.isNaN(value) && actualValueText != null && !actualValueText.isDisposed()) {
+			actualValueText.setText("" + value);		// TODO format
+		}
 	}
-	
-	/**
-	 * If the last point on this series has the same Y value we care about, then just update the X value to the new X.
-	 * This basically extends a live plotting line that is maintaining the same value, without adding new marker points.
-	 *
-	 * @return true if there was a match, and the data was updated.  false means the Y value is different and the
-	 *	caller needs to take other action, most likely adding a new point. 
-	 */
-	private boolean testAndReplaceLastPointIfYIsTheSame(String seriesID, double newXValue, double matchingYValue)
+
+	// UI thread only
+	private void refreshChart()
 	{
-		double[] y = chart.getSeriesSet().getSeries(seriesID).getYSeries();
-		if (y.length < 2) {
-			return false;
+		if (chart == null || chart.isDisposed()) {
+			return;
 		}
-		
-		double lastYValue = y[y.length - 1];
-		double secondLastYValue = y[y.length - 2];
-		if (Calc.double_equals(lastYValue, matchingYValue) && Calc.double_equals(secondLastYValue, matchingYValue)) {
-			// Overwrite the last X value with the new timestamp
-			double[] x = chart.getSeriesSet().getSeries(seriesID).getXSeries();
-			x[x.length - 1] = newXValue;	// x.length;
-			chart.getSeriesSet().getSeries(seriesID).setXSeries(x);
-			
-			return true;
+		double lastX = Math.max(lastX(targetLive), lastX(actualLive));
+
+		// We assume the Y axis is fixed to the known range of the chart, like a table can tilt only from 0 to 10 degrees.
+
+		// We want to leave 1 sec on the left, but want to extend in "blocks" of like 30 seconds on the right, so that as single
+		// data points come in, they fill in that blank area, instead of constantly rescaling the X axis to just barely fit the data.
+		Range xRange = new Range(0, 0);
+		xRange.upper = ((int)((Math.max(0, lastX) + 29.0) / 30)) * 30 + 1;		// + 1 so if we filled the whole block, there is still a gap
+		xRange.lower = -1.0;
+
+		// However long the run, the chart only gets a couple of points per pixel (see LiveSeries)
+		int plotWidth = chart.getPlotArea().getSize().x;
+		ISeriesSet seriesSet = chart.getSeriesSet();
+		boolean changed = false;
+		if (seriesSet.getSeries(targetSeriesID) != null) {
+			changed |= targetLive.showIn(seriesSet.getSeries(targetSeriesID), xRange.lower, xRange.upper, plotWidth);
+		}
+		if (seriesSet.getSeries(actualSeriesID) != null) {
+			changed |= actualLive.showIn(seriesSet.getSeries(actualSeriesID), xRange.lower, xRange.upper, plotWidth);
+		}
+		if (!changed) {
+			return;
+		}
+		chart.getAxisSet().getXAxes()[0].setRange(xRange);
+		if (chart instanceof ChartX) {
+			((ChartX) chart).markSeriesDirty();
 		}
 
-		return false;	// did not replace
+		// We have to force the replot ourselves, which is good that we can do several changes then just one replot.
+		chart.redraw();
+	}
+
+	private static double lastX(LiveSeries live)
+	{
+		double x = live.getLastX();
+		return Double.isNaN(x) ? -1.0 : x;
 	}
 	
 	private class ResetYAxisListener extends SelectionAdapter
@@ -559,13 +564,8 @@ public class TablePart
 			if (chart != null) {
 				// NOTE: we don't want to really delete the series object, as we lose the color/lineattribs etc
 				//chart.getSeriesSet().deleteSeries(actualSeriesID);
-				chart.getSeriesSet().getSeries(actualSeriesID).setXSeries(new double[0]);
-				chart.getSeriesSet().getSeries(actualSeriesID).setYSeries(new double[0]);
-
-				IAxis xAxis = chart.getAxisSet().getXAxes()[0];
-				xAxis.adjustRange();						// NOTE: this does not cause a redraw
-
-				chart.redraw();
+				actualLive.clear();
+				refreshChart();
 				//				sendE4Command("com.elmoco.ss.rcp.graph.command.cleardata");		    		
 			}
 		}
@@ -656,19 +656,25 @@ public class TablePart
 		controller.sendRequest(request);
 
 		logger.trace("Send request {}", request.debugString());
-		addDataPoint(targetSeriesID, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), targetValue);
+		addDataPoint(targetLive, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), targetValue);
 	}
 
-	private Thread tableWatcherThread = null;
+	// The watcher runs on the shared TimerWheel instead of its own sleeping thread.
+	private TableWatcher tableWatcher = null;
 	private class GoListener extends SelectionAdapter
 	{
 		@Override
 		public void widgetSelected(SelectionEvent e)
 		{
-			// GO acts like a toggle, starting or stopping the watcher thread
-			if (tableWatcherThread != null) {
-				tableWatcherThread.interrupt();
-				tableWatcherThread = null;
+			// GO acts like a toggle, starting or stopping the watcher
+			if (tableWatcher != null) {
+				tableWatcher.stop();
+				tableWatcher = null;
+
+				// This cleans up the underlying connection too (serial or UDP etc)
+				if (controller != null && controller.isConnected()) {
+					controller.disconnect();
+				}
 
 				deviceRunningStatus.setText("Stopped.");
 				return;
@@ -681,87 +687,90 @@ public class TablePart
 			// Record the starting time... all X values will be in seconds after that time.
 			chartStartTime = LocalTime.now();
 
+			tableWatcher = new TableWatcher();
+			tableWatcher.start();
+		}
+	}
 
-			tableWatcherThread = new Thread(new Runnable()
-			{
-				@Override
-				public void run()
-				{
-					tableWatcherThread.setName("TableWatcher");
+	/**
+	 * Alternates between extending the target line and plotting the actual value, about a second apart, rescheduling itself each time.
+	 */
+	private class TableWatcher implements Runnable
+	{
+		// Offset the two series markers, otherwise they usually plot directly over each other.
+		// TODO could solve this with some alpha on both series lines?
+		private boolean plotTarget = true;
 
-//					//			    	// DEBUG keep track of a fake value that we make wander up and down a little to make a realistic graph
-//					//			    	double fakeValue = 2.00;
-//
-//					EthernetTableConnection connection = new EthernetTableConnection(serverAddress, serverPort);
-//					//			    	SerialTableConnection connection = new SerialTableConnection();
-//					TableController controller = new TableController(connection);	// autoconnects?
-//
-//					double oldTargetValue = -1;
-
-					while (true) {
-
-						try {
-							Thread.sleep(Calc.rand(800, 1200));
-						}
-						catch (InterruptedException e) {
-							logger.debug("feed watcher asked to quit");
-							break;
-						}
-						
-						if (controller == null || !controller.isConnected()) {
-							continue;
-						}
-
-						// Plot the existing target value on the chart to extend the line.
-						// TODO need a way to keep the line going without placing old points...
-						// TODO like look at the last point on the data series, and if the same as us, just replace the X to now.
-
-						if (!testAndReplaceLastPointIfYIsTheSame(targetSeriesID, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), targetValue)) {
-							addDataPoint(targetSeriesID, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), targetValue);
-						}
-
-						// Sleep a little to offset the two series markers, otherwise they usually plot directly over each other.
-						// TODO could solve this with some alpha on both series lines?
-						try {
-							Thread.sleep(Calc.rand(800, 1200));
-						}
-						catch (InterruptedException e) {
-							logger.debug("feed watcher asked to quit");
-							break;
-						}
-
-						// Read the latest value that the controller has... this doesn't block or query the table directly. 
-						Response response = controller.getCurrentValue(device);
-						if (response == null) {
-							continue;	// impossible
-						}
-
-						// Sanity tests in case the controller is sending corrupt data
-						double clippedValue = response.value;
-						if (clippedValue < targetMin) {
-							clippedValue = targetMin;
-							logger.debug("BAD VALUE from table device {} value {}", response.device, response.value);
-						}
-						if (clippedValue > targetMax) {
-							clippedValue = targetMax;
-							logger.debug("BAD VALUE from table device {} value {}", response.device, response.value);
-						}
-						
-						logger.debug("adding new data point for dev {} value {}", response.device, response.value);
-						addDataPoint(actualSeriesID, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), clippedValue);
-						
-						final double fake = clippedValue;
-						sync.asyncExec(() -> { actualValueText.setText("" + fake); } );// TODO format
-					}
+		// Guarded by this, so stop() can't race the rescheduling at the end of run()
+		private TimerWheel.Timeout next = null;
+		private boolean stopped = false;
 
-					// This cleans up the underlying connection too (serial or UDP etc)
-					if (controller != null && controller.isConnected()) {
-						controller.disconnect();
-					}
+		public synchronized void start()
+		{
+			next = TimerWheel.getShared().schedule(this, Calc.rand(800, 1200));
+		}
+
+		public synchronized void stop()
+		{
+			stopped = true;
+			if (next != null) {
+				next.cancel();
+				next = null;
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			if (controller != null && controller.isConnected()) {
+				if (plotTarget) {
+					plotTargetValue();
+				}
+				else {
+					plotActualValue();
 				}
-			});
-			tableWatcherThread.start();
+				plotTarget = !plotTarget;
+			}
+
+			synchronized (this) {
+				if (!stopped) {
+					next = TimerWheel.getShared().schedule(this, Calc.rand(800, 1200));
+				}
+			}
+		}
+
+		private void plotTargetValue()
+		{
+			// Plot the existing target value on the chart to extend the line.
+			// If the last two points already have this value, the last one just moves out to now instead of adding another.
+			targetLive.addOrExtend(ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), targetValue);
+			render.markDirty(chartRefresh);
+		}
 
+		private void plotActualValue()
+		{
+			// Read the latest value that the controller has... this doesn't block or query the table directly. 
+			Response response = controller.getCurrentValue(device);
+			if (response == null) {
+				return;	// impossible
+			}
+
+			// Sanity tests in case the controller is sending corrupt data
+			double clippedValue = response.value;
+			if (clippedValue < targetMin) {
+				clippedValue = targetMin;
+				logger.debug("BAD VALUE from table device {} value {}", response.device, response.value);
+			}
+			if (clippedValue > targetMax) {
+				clippedValue = targetMax;
+				logger.debug("BAD VALUE from table device {} value {}", response.device, response.value);
+			}
+			
+			logger.debug("adding new data point for dev {} value {}", response.device, response.value);
+			addDataPoint(actualLive, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), clippedValue);
+			
+			actualValueShown = clippedValue;
+			render.markDirty(actualTextRefresh);
 		}
 	}
 }
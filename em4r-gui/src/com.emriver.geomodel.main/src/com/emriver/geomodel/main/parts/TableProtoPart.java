@@ -2,8 +2,10 @@
 package com.emriver.geomodel.main.parts;
 
 import java.awt.Font;
-import java.time.LocalTime;
-import java.time.temporal.ChronoUnit;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -36,11 +38,12 @@ import com.elmocity.elib.swt.ColorCache;
 import com.elmocity.elib.swt.FontCache;
 import com.elmocity.elib.swt.GridHelpers;
 import com.elmocity.elib.swt.ImageCache;
-import com.elmocity.elib.util.Calc;
-import com.emriver.geomodel.table.Device;
 import com.emriver.geomodel.table.EthernetTableConnection;
+import com.emriver.geomodel.table.IScriptListener;
 import com.emriver.geomodel.table.Request;
+import com.emriver.geomodel.table.ScriptRunner;
 import com.emriver.geomodel.table.TableController;
+import com.emriver.geomodel.table.TableScript;
 import com.emriver.geomodel.table.parts.TableDevicePart;
 
 /**
@@ -220,10 +223,9 @@ public class TableProtoPart
 		controller = new TableController(connection);	// autoconnects?
 	}
 
-	private static String formatTimer(LocalTime startTime, LocalTime now)
+	private static String formatTimer(long es)
 	{
-		// elapsed seconds
-		long es = ChronoUnit.SECONDS.between(startTime, now);
+		// es = elapsed seconds
 		return String.format("%d:%02d:%02d", es / 3600, (es % 3600) / 60, (es % 60));
 	}
 	
@@ -245,15 +247,12 @@ public class TableProtoPart
 			
 			switch (message) {
 			case "reset":
-				// TODO reset
-				resetScriptThread();
+				resetScript();
 				break;
 			case "pause":
-				// TODO pause
-				pauseScriptThread();
+				pauseScript();
 				break;
 			case "run":
-				// TODO run
 				// Even if we don't have any script to run etc, we still have to reset all the charts on all the device parts
 				for (MPart p : deviceParts) {
 					TableDevicePart d = (TableDevicePart) p.getObject();
@@ -262,127 +261,130 @@ public class TableProtoPart
 				
 				// Read data from file (or use preloaded buffer from selection of filename)
 				
-				startScriptThread();
+				startScript();
 				break;
 			}
 		}
 	}
 	
-	// FAKE SCRIPT stub DEBUG
-	// The command thread can send commands, so needs to read one value from the script.
-	// Example, TILT device at 17 sec from the start.
-	private double getScriptValue(Device device, long timeSinceStart)
-	{
-		// Fake up some truly random value inside the legal range for this device.   Should really just be a +/- small amount from last known value.
-		double range = device.getMax() - device.getMin();
-		double newValue = device.getMin() + (range * Calc.rand(0, 100) / 100.0);
-		return newValue;
-	}
-	
 	// ------------------------------------------------------
-	// Management of script thread
-	
-	private ScriptThread scriptThread = null;
-	
-	void startScriptThread()
+	// Management of the script
+
+	private ScriptRunner scriptRunner = null;
+
+	// Script time shown in the timer, refreshed on the UI thread while a script is loaded
+	private static final int TIMER_TICK_MS = 500;
+
+	void startScript()
 	{
-		if (scriptThread == null) {
-			scriptThread = new ScriptThread();
-			scriptThread.start();
+		if (scriptRunner != null) {
+			if (scriptRunner.getState() == ScriptRunner.State.PAUSED) {
+				scriptRunner.resume();
+			}
+			return;
 		}
-		else {
-			if (scriptThread.isPaused()) {
-				scriptThread.togglePause();
+		if (scriptFilename.isEmpty()) {
+			logger.warn("no script file selected");
+			return;
+		}
+
+		Path scriptPath = Paths.get(scriptFilename);
+		TableScript script;
+		try {
+			script = TableScript.parse(scriptPath);
+		}
+		catch (IOException e) {
+			logger.warn("unable to load script {}", scriptFilename, e);
+			return;
+		}
+
+		scriptRunner = new ScriptRunner(script, controller);
+		scriptRunner.setSaveFile(ScriptRunner.defaultSaveFile(scriptPath));
+		scriptRunner.addScriptListener(new ScriptListener());
+
+		// NOTE a save file left over from an interrupted run picks it up where it stopped, like "em4r resume".  Reset removes it.
+		boolean resumed = false;
+		if (Files.exists(scriptRunner.getSaveFile())) {
+			try {
+				scriptRunner.resumeFromSave(scriptRunner.getSaveFile());
+				resumed = true;
+			}
+			catch (IOException e) {
+				logger.warn("ignoring bad save file {}", scriptRunner.getSaveFile(), e);
 			}
 		}
+		if (!resumed) {
+			scriptRunner.start();
+		}
+		timerText.getDisplay().timerExec(TIMER_TICK_MS, timerTicker);
 	}
-	
-	void resetScriptThread()
+
+	void resetScript()
 	{
-		if (scriptThread != null) {
-			scriptThread.interrupt();
-			scriptThread = null;
+		if (scriptRunner != null) {
+			scriptRunner.stop();
+			try {
+				Files.deleteIfExists(scriptRunner.getSaveFile());
+			}
+			catch (IOException e) {
+				logger.warn("unable to remove save file {}", scriptRunner.getSaveFile(), e);
+			}
+			scriptRunner = null;
+		}
+		if (timerText != null && !timerText.isDisposed()) {
+			timerText.setText(timerZeroTime);
 		}
 	}
 
-	void pauseScriptThread()
+	void pauseScript()
 	{
-		if (scriptThread != null) {
-			scriptThread.togglePause();
+		if (scriptRunner == null) {
+			return;
+		}
+		if (scriptRunner.getState() == ScriptRunner.State.PAUSED) {
+			scriptRunner.resume();
+		}
+		else {
+			scriptRunner.pause();
 		}
 	}
-	
-	// ------------------------------------------------------
 
-	private class ScriptThread extends Thread
+	private final Runnable timerTicker = new Runnable()
 	{
-		private boolean paused = false;
-		public void togglePause()
-		{
-			paused = !paused;
-		}
-		public boolean isPaused()
+		@Override
+		public void run()
 		{
-			return paused;
+			ScriptRunner runner = scriptRunner;
+			if (runner == null || timerText == null || timerText.isDisposed()) {
+				return;
+			}
+			timerText.setText(formatTimer(runner.getPositionMillis() / 1000));
+			timerText.getDisplay().timerExec(TIMER_TICK_MS, this);
 		}
-		
+	};
+
+	// The script's moves become the target values on the device parts
+	private class ScriptListener implements IScriptListener
+	{
 		@Override
-		public void run()
+		public void movesSent(ScriptRunner runner, Request[] moves)
 		{
-			super.run();
-			
-			// TODO Make a copy of the script file or data.
-			
-			// Keep track of when we started, since the script file is relative to that value
-			LocalTime startTime = LocalTime.now();
-			
-			while (true) {
-				try {
-					Thread.sleep(10000);
-				}
-				catch (InterruptedException e) {
-					// Asked to exit, almost certainly from someone clicking the RESET button.
-					return;
-				}
-				
-				if (paused) {
-					// Don't process any commands in the paused state
-					continue;
-				}
-				
-				// Update the timer in the controls, so user can see we are still running/alive down here.
-				sync.asyncExec(() ->
-				{
-					if (timerText != null && !timerText.isDisposed()) {
-						timerText.setText(formatTimer(startTime, LocalTime.now()));
+			sync.asyncExec(() ->
+			{
+				for (Request move : moves) {
+					for (MPart p : deviceParts) {
+						TableDevicePart part = (TableDevicePart) p.getObject();
+						part.updateTargetValue(move.device, move.value);
 					}
-					
-				});
-				
-				// Actually send commands
-				long es = ChronoUnit.SECONDS.between(startTime, LocalTime.now());
-				// Iterate the devices
-				Device device;
-				Request request;
-				
-//				device = Device.DEV_PITCH;
-//				request = new Request(device, TableController.CMD_SET, getScriptValue(device, es), 0);		// Always tell it to move immediately (time = 0)
-//				controller.sendRequest(request);
-				
-				device = Device.DEV_PUMP;
-				// Fake up a new value as if from a script
-				double newTargetValue = getScriptValue(device, es);
-				// Updating a specific part target value, we need to tell the matching device part so the target GUI updates.
-				for (MPart p : deviceParts)
-				{
-					TableDevicePart part = (TableDevicePart) p.getObject();
-					part.updateTargetValue(device, newTargetValue);
 				}
-				request = new Request(device, TableController.CMD_SET, newTargetValue, 10);		// Always tell it to move immediately (time = 0)
-				controller.sendRequest(request);
-			}
+			});
 		}
 
+		@Override
+		public void stateChanged(ScriptRunner runner, ScriptRunner.State state)
+		{
+			logger.info("script {} is {}", runner.getScript().getName(), state);
+		}
 	}
 }
 
@@ -0,0 +1,597 @@
+package com.emriver.geomodel.table;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.net.IUDPListener;
+import com.elmocity.elib.util.TimerWheel;
+import com.elmocity.elib.util.WireMessage;
+
+
+/**
+ * The binary capsule protocol spoken by the table (see CapsuleCodec), independent of the wire it travels over.
+ * <p>
+ * Subclasses only open/close the link and move whole messages: EthernetTableConnection over UDP datagrams, SerialBinTableConnection
+ * over a SLIP framed serial port.  Sequencing, retransmission, clock estimation and decoding are all in here, so every link type gets
+ * the same behavior and the same (allocation free) parsing cost.
+ * <p>
+ * Subclasses have to deliver each received message to receiveMessage(), always from the same thread.
+ */
+public abstract class BinTableConnection implements ITableConnection
+{
+	// List of objects that want to know when we receive payloads containing current Device values/status.
+	private ArrayList<ITableConnectionListener> listeners = new ArrayList<ITableConnectionListener>();
+
+	
+	// Protocol specific data:
+	
+	// All use of the term "timestamp" in this file refers to a counter-style value generated by the
+	// embedded table computer (in ms).  It is probably zero-based on their boot time or connection setup.
+	// Since we have no idea what that value is during our connection setup and handshaking, use zero for "dunno".
+	// NOTE: there are no relative times (like "5 sec from now")...all timestamps are full absolute values.
+	
+	// Unique request ID (segment_number), each message down this table connection takes the next one.  Lock free, any thread can send.
+	// WARNING this is an unsigned byte for transport to and from the table, so it wraps constantly.  Only the low 8 bits are ever used.
+	private final AtomicInteger nextSequence = new AtomicInteger(100);
+
+	// Messages sent but not echoed back yet, see InFlightWindow.  4 sends total = 3 retries for a lost move/stop.
+	private static final int MAX_SEND_ATTEMPTS = 4;
+	private final InFlightWindow window = new InFlightWindow(MAX_SEND_ATTEMPTS);
+	
+	
+	// Last known timestamp from the table (unknown epoch)
+	// WARNING this is an unsigned int for transport to and from the table.
+	private volatile long lastKnownTableTimestamp = 0;
+
+	// Running estimate of the table clock against ours, so deadlines are based on the table's time NOW, not when the last packet arrived.
+	private final TableClock tableClock = new TableClock(256);
+
+	// When we last sent anything, the keep alive only has to speak up when the link has been quiet
+	private volatile long lastTransmitNanos = 0;
+	
+	// Last known sequence number that the table sent us in a message.  We are supposed to echo this back in the next request we send.
+	// WARNING this is an unsigned byte for transport to and from the table, so it wraps constantly.
+	private volatile long lastKnownTableSequenceNumber = 0;
+	
+	// Reusable transmit side.  Only touched while holding txLock, since the timer wheel (keep alive, retransmit) and the GUI both send.
+	// writeToLink() is synchronous, so the buffer is free again as soon as it returns.
+	private final Object txLock = new Object();
+	private final ByteBuffer txBuffer = ByteBuffer.allocate(STORE_SIZE);
+	private final WireMessage txMessage = new WireMessage();
+
+	// Reusable receive side, only touched from the link receive thread.
+	// responseViews[n] is an array of exactly n of the slots, so listeners still get a perfectly sized Response[] without any allocation.
+	private static final int MAX_STATUS_CAPSULES = 16;
+	private final CapsuleCodec.SystemStatus rxSystem = new CapsuleCodec.SystemStatus();
+	private final Response[] responseSlots = new Response[MAX_STATUS_CAPSULES];
+	private final Response[][] responseViews = new Response[MAX_STATUS_CAPSULES + 1][];
+	private final EncoderStatus[] encoderSlots = new EncoderStatus[MAX_STATUS_CAPSULES];
+	private final EncoderStatus[][] encoderViews = new EncoderStatus[MAX_STATUS_CAPSULES + 1][];
+	private final ArrayList<Runnable> delivered = new ArrayList<Runnable>();
+	
+	// Optional raw datagram record, see setJournal()
+	private volatile RunJournal journal = null;
+
+	// Optional tap on every status datagram that decoded, see setStatusTap()
+	private volatile IUDPListener statusTap = null;
+
+	private static final Logger logger = LoggerFactory.getLogger(BinTableConnection.class);
+
+
+	
+	protected BinTableConnection()
+	{
+		for (int i = 0; i < MAX_STATUS_CAPSULES; i++) {
+			responseSlots[i] = new Response();
+			encoderSlots[i] = new EncoderStatus();
+		}
+		for (int n = 0; n <= MAX_STATUS_CAPSULES; n++) {
+			responseViews[n] = new Response[n];
+			System.arraycopy(responseSlots, 0, responseViews[n], 0, n);
+			encoderViews[n] = new EncoderStatus[n];
+			System.arraycopy(encoderSlots, 0, encoderViews[n], 0, n);
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// The link, provided by the subclass
+
+	/**
+	 * Open the wire connection, with received messages going to receiveMessage().
+	 * @return false if it could not be opened
+	 */
+	protected abstract boolean openLink();
+
+	protected abstract void closeLink();
+
+	protected abstract boolean isLinkOpen();
+
+	/**
+	 * Send one whole message.  Must be done with the message when it returns, since the buffer gets reused.
+	 */
+	protected abstract void writeToLink(WireMessage message);
+
+	/**
+	 * Short name for logs, like "Eth".
+	 */
+	protected abstract String getLinkName();
+
+	// ---------------------------------------------------------------------------------------
+
+	@Override
+	public void connect()
+	{
+		if (!openLink()) {
+			return;
+		}
+		
+		startRetransmit();
+		startKeepAlive();
+	}
+
+	@Override
+	public void disconnect()
+	{
+		stopKeepAlive();
+		stopRetransmit();
+		closeLink();
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return isLinkOpen();
+	}
+
+	@Override
+	public void sendRequest(Request request)
+	{
+		if (!isLinkOpen()) {
+			return;
+		}
+
+		transmit(new Request[] {request}, estimatedTableTimestamp(), 1, null);
+	}
+
+	@Override
+	public void sendRequests(Request... requests)
+	{
+		sendRequestsTracked(null, requests);
+	}
+
+	/**
+	 * sendRequests() for relays (like TableHub) that need to know when the table has the requests.  onDelivered runs (on the receive
+	 * thread) once the table has echoed the message they went out in, or a retransmit of it, for every chunk if it took several.  It
+	 * never runs if they can't be delivered or are superseded by newer commands to the same devices before they get there.
+	 *
+	 * @param onDelivered may be null
+	 * @return false if nothing was sent (link closed, no requests)
+	 */
+	public boolean sendRequestsTracked(Runnable onDelivered, Request... requests)
+	{
+		if (!isLinkOpen() || requests == null || requests.length == 0) {
+			return false;
+		}
+
+		// Normally the whole batch fits in one datagram.  If not, chunk it, each chunk still being atomic on the table side.
+		long baseTimestamp = estimatedTableTimestamp();
+		if (requests.length <= MAX_OPERATOR_CAPSULES) {
+			return transmit(requests, baseTimestamp, 1, onDelivered) >= 0;
+		}
+		int chunks = (requests.length + MAX_OPERATOR_CAPSULES - 1) / MAX_OPERATOR_CAPSULES;
+		Runnable onChunk = null;
+		if (onDelivered != null) {
+			AtomicInteger remaining = new AtomicInteger(chunks);
+			onChunk = () -> {
+				if (remaining.decrementAndGet() == 0) {
+					onDelivered.run();
+				}
+			};
+		}
+		boolean sent = false;
+		for (int first = 0; first < requests.length; first += MAX_OPERATOR_CAPSULES) {
+			int count = Math.min(MAX_OPERATOR_CAPSULES, requests.length - first);
+			sent |= transmit(Arrays.copyOfRange(requests, first, first + count), baseTimestamp, 1, onChunk) >= 0;
+		}
+		return sent;
+	}
+
+	/**
+	 * Encode and send one message, and track it in the in flight window until the table echoes it.
+	 * 
+	 * @param requests at most MAX_OPERATOR_CAPSULES
+	 * @param baseTimestamp table clock the operator deadlines are relative to
+	 * @param attempts 1 for a first send, more for a retransmit
+	 * @param onDelivered see sendRequestsTracked(), or null
+	 * @return the sequence it went out with, or -1 if the link is closed
+	 */
+	private int transmit(Request[] requests, long baseTimestamp, int attempts, Runnable onDelivered)
+	{
+		if (!isLinkOpen()) {
+			return -1;
+		}
+
+		synchronized (txLock) {
+			int sequence = nextSequence();
+			txBuffer.clear();
+			encodeBinHeader(sequence, txBuffer);
+			for (Request request : requests) {
+				encodeBinOperator(request, baseTimestamp, txBuffer);
+			}
+			txBuffer.flip();
+			txMessage.setView(txBuffer);
+			txMessage.debugHexDump();
+
+			// Into the window BEFORE it goes out, so even an instant echo finds it
+			window.sent(sequence, needsDelivery(requests) ? requests : null, baseTimestamp, attempts, onDelivered, System.nanoTime());
+			writeToLink(txMessage);
+			lastTransmitNanos = System.nanoTime();
+
+			RunJournal j = journal;
+			if (j != null) {
+				j.recordDatagram(false, txMessage);
+			}
+			return sequence;
+		}
+	}
+
+	// Moves and stops have to get there, header-only keep alive messages are just for the RTT sample.
+	private static boolean needsDelivery(Request[] requests)
+	{
+		for (Request request : requests) {
+			if (request.device != Device.DEV_UNKNOWN
+					&& (TableController.CMD_SET.equals(request.command) || TableController.CMD_STOP.equals(request.command))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Best guess at the table clock right now, which command deadlines are relative to.
+	 * Falls back to the last timestamp we heard until the first status packet arrives (which is 0, "dunno").
+	 */
+	private long estimatedTableTimestamp()
+	{
+		if (tableClock.isSynchronized()) {
+			return tableClock.tableNow();
+		}
+		return lastKnownTableTimestamp;
+	}
+
+	/**
+	 * Offset/drift estimate of the table clock, including its error metric.
+	 */
+	public TableClock getTableClock()
+	{
+		return tableClock;
+	}
+
+	private int nextSequence()
+	{
+		return nextSequence.getAndIncrement() & 0xFF;
+	}
+
+	/**
+	 * Start (or with null, stop) recording every datagram sent and received into a journal, including keep alives and retransmits.
+	 * The caller owns the journal and closes it.
+	 */
+	public void setJournal(RunJournal journal)
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Get every status message from the table that decoded, as it arrived (on the receive thread, after the listeners), or null to stop.
+	 * For relaying the table's own packets untouched, like TableHub.  The message is only valid during the call.
+	 */
+	public void setStatusTap(IUDPListener tap)
+	{
+		this.statusTap = tap;
+	}
+
+	/**
+	 * Round trip, retransmit and failure stats for this link.
+	 */
+	public InFlightWindow getInFlightWindow()
+	{
+		return window;
+	}
+
+	@Override
+	public void addTableListener(ITableConnectionListener listener)
+	{
+		listeners.add(listener);
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	// Callback from the underlying wire object, each time a message is received.
+	public void receiveMessage(WireMessage message)
+	{
+		// Take the arrival time first, before any decoding, since it is a clock sample
+		long nowNanos = System.nanoTime();
+
+		RunJournal j = journal;
+		if (j != null) {
+			j.recordDatagram(true, message);
+		}
+
+		int count = decodeReceived(message);
+		if (count < 0) {
+			return;
+		}
+		Response[] responses = responseViews[count];
+
+		tableClock.addSample(rxSystem.timestamp, nowNanos);
+
+		// The table echoes the last segment_number it saw, which retires that message from the window (see InFlightWindow for the older ones)
+		delivered.clear();
+		window.acked(rxSystem.echoSequence, nowNanos, delivered);
+		for (Runnable r : delivered) {
+			r.run();
+		}
+
+		// Check to find any listeners and give them the payload.  The slots get overwritten by the next packet.
+		for (ITableConnectionListener l : listeners) {
+			l.receiveResponses(responses);
+		}
+
+		// Encoder readings are a separate stream, only sent when the packet actually carried some.
+		int encoderCount = rxSystem.encoderCount;
+		if (encoderCount > 0) {
+			EncoderStatus[] encoders = encoderViews[encoderCount];
+			for (ITableConnectionListener l : listeners) {
+				l.receiveEncoderStatus(encoders);
+			}
+		}
+
+		IUDPListener tap = statusTap;
+		if (tap != null) {
+			tap.receiveMessage(message);
+		}
+		return;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	
+	// Both loops run on the shared TimerWheel, so each table connection costs no threads beyond its link's own receive thread.
+	private static final long KEEP_ALIVE_MILLIS = 10000;		// TODO ping the table every 10 seconds
+	private static final long RETRANSMIT_CHECK_MILLIS = 20;		// well under the minimum retransmit timeout
+
+	private TimerWheel.Timeout keepAliveTimeout = null;
+	private TimerWheel.Timeout retransmitTimeout = null;
+
+	// Only touched by the retransmit check, which the wheel never runs twice at once
+	private final ArrayList<InFlightWindow.Retry> retries = new ArrayList<InFlightWindow.Retry>();
+	private final ArrayList<InFlightWindow.Retry> failures = new ArrayList<InFlightWindow.Retry>();
+
+	private synchronized void startKeepAlive()
+	{
+		if (keepAliveTimeout != null) {
+			logger.warn("multiple calls to startKeepAlive() not allowed.");
+			return;
+		}
+		keepAliveTimeout = TimerWheel.getShared().scheduleAtFixedRate(() -> keepAlive(), 0, KEEP_ALIVE_MILLIS);
+	}
+
+	private synchronized void stopKeepAlive()
+	{
+		if (keepAliveTimeout != null) {
+			keepAliveTimeout.cancel();
+			keepAliveTimeout = null;
+		}
+	}
+
+	private void keepAlive()
+	{
+		// Skip it if something else went out recently, so the table never goes more than 1.5 cycles without hearing from us
+		boolean quiet = System.nanoTime() - lastTransmitNanos >= KEEP_ALIVE_MILLIS * 1_000_000L / 2;
+		if (isLinkOpen() && quiet) {
+			// Make up a simple control message to let the table know we are here, which will start sending us periodic updates.
+			Request request = new Request(Device.DEV_UNKNOWN, TableController.CMD_SET, 0, 0);
+			sendRequest(request);
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	private synchronized void startRetransmit()
+	{
+		if (retransmitTimeout != null) {
+			logger.warn("multiple calls to startRetransmit() not allowed.");
+			return;
+		}
+		retransmitTimeout = TimerWheel.getShared().scheduleAtFixedRate(() -> retransmit(), RETRANSMIT_CHECK_MILLIS, RETRANSMIT_CHECK_MILLIS);
+	}
+
+	private synchronized void stopRetransmit()
+	{
+		if (retransmitTimeout != null) {
+			retransmitTimeout.cancel();
+			retransmitTimeout = null;
+		}
+	}
+
+	private void retransmit()
+	{
+		retries.clear();
+		failures.clear();
+		window.expire(System.nanoTime(), retries, failures);
+
+		for (InFlightWindow.Retry retry : retries) {
+			logger.debug("retransmit attempt {} of {} requests", retry.attempts + 1, retry.requests.length);
+			transmit(retry.requests, retry.baseTimestamp, retry.attempts + 1, retry.onDelivered);
+		}
+		for (InFlightWindow.Retry failure : failures) {
+			logger.warn("gave up on {} requests after {} attempts", failure.requests.length, failure.attempts);
+			for (ITableConnectionListener l : listeners) {
+				l.receiveDeliveryFailure(failure.requests, failure.attempts);
+			}
+		}
+	}
+	
+	// ---------------------------------------------------------------------------------------
+
+	// Max size of the backing store buffer to build the message into.
+	// TODO probably could be up to MTU size?
+	protected static final int STORE_SIZE = 1024;
+
+	// Most Operator Control capsules that fit behind the System Control capsule in one message.
+	private static final int MAX_OPERATOR_CAPSULES = (STORE_SIZE - CapsuleCodec.SYSTEM_CAPSULE_BYTES) / CapsuleCodec.OPERATOR_CONTROL_CAPSULE_BYTES;
+
+	
+	/**
+	 * Given a request to send (from the application layer above), create a wire level message that matches the
+	 * binary capsule protocol the table speaks
+	 * <p>
+	 * This allocates a new buffer per call, the send path encodes into a reused buffer instead.  Like the encode helpers below, the
+	 * caller picks the sequence number, nothing is taken from (or tracked by) this connection.
+	 * 
+	 * @param sequence segment_number to put in the System Control capsule, only the low 8 bits are used
+	 * @param request
+	 * @return
+	 */
+	public WireMessage makeBinRequestMessage(int sequence, Request request)
+	{
+		ByteBuffer store = ByteBuffer.allocate(STORE_SIZE);
+		encodeBinRequest(sequence, request, store);
+		store.flip();
+		return new WireMessage(store);
+	}
+
+	/**
+	 * Same as makeBinRequestMessage(int, Request) but for a batch of requests in one message, see encodeBinRequests().
+	 */
+	public WireMessage makeBinRequestMessage(int sequence, Request... requests)
+	{
+		ByteBuffer store = ByteBuffer.allocate(STORE_SIZE);
+		encodeBinRequests(sequence, requests, 0, Math.min(requests.length, MAX_OPERATOR_CAPSULES), store);
+		store.flip();
+		return new WireMessage(store);
+	}
+
+	/**
+	 * Encode a request (System Control plus one Operator Control capsule) at the current position of the caller's buffer.
+	 * <p>
+	 * WARNING this does not take a sequence number from the connection, since only messages sent through transmit() go into the in
+	 * flight window.  Don't send the result down this connection's link, the table's echo of it would not match anything we track.
+	 */
+	public void encodeBinRequest(int sequence, Request request, ByteBuffer out)
+	{
+		long timestamp = estimatedTableTimestamp();
+		encodeBinHeader(sequence & 0xFF, out);
+		encodeBinOperator(request, timestamp, out);
+	}
+
+	/**
+	 * Encode several requests into one message: a single System Control capsule, then one Operator Control capsule per request.
+	 * <p>
+	 * The whole batch uses one sequence number and one base timestamp, so requests with the same seconds get exactly the same deadline
+	 * and the table starts them together.  Same WARNING as encodeBinRequest() about the sequence number.
+	 * 
+	 * @param count number of requests to encode starting at first, at most MAX_OPERATOR_CAPSULES
+	 */
+	public void encodeBinRequests(int sequence, Request[] requests, int first, int count, ByteBuffer out)
+	{
+		long timestamp = estimatedTableTimestamp();
+		encodeBinHeader(sequence & 0xFF, out);
+		for (int i = first; i < first + count; i++) {
+			encodeBinOperator(requests[i], timestamp, out);
+		}
+	}
+
+	// Capsule 1 - System Control
+	private void encodeBinHeader(int sequence, ByteBuffer out)
+	{
+		CapsuleCodec.putSystemControl(out, sequence, (int) lastKnownTableSequenceNumber, lastKnownTableTimestamp);
+	}
+
+	// Capsule 2..N - Operator Control
+	private void encodeBinOperator(Request request, long timestamp, ByteBuffer out)
+	{
+		// Special flag to tell us just to send the header capsule to kickstart the table to send us packets on startup. 
+		if (request.device == Device.DEV_UNKNOWN) {
+			return;
+		}
+
+		// Ask for the new requested value to be reached within X seconds, or by an absolute deadline if the request has one
+		long atFutureTimestamp;
+		if (request.deadlineNanos != 0 && tableClock.isSynchronized()) {
+			atFutureTimestamp = tableClock.tableTime(request.deadlineNanos);
+		}
+		else {
+			atFutureTimestamp = timestamp + (request.seconds * 1000);	// 1000 ms per sec
+		}
+
+		// NOTE This local Java enum is hard coded to match the numeric values of the remote "Operators" on the table.
+		CapsuleCodec.putOperatorControl(out, request, atFutureTimestamp);
+	}
+	
+	/**
+	 * Parse the packet from the wire into newly allocated Responses.
+	 * <p>
+	 * For callers that want to keep the results.  Leaves the connection's own protocol state alone, so any thread can use it.
+	 * 
+	 * @return null if the packet is malformed or truncated
+	 */
+	public Response[] parseBinResponseMessage(WireMessage message)
+	{
+		Response[] slots = new Response[MAX_STATUS_CAPSULES];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = new Response();
+		}
+		int count = parseBinResponseMessage(message, new CapsuleCodec.SystemStatus(), slots);
+		if (count < 0) {
+			return null;
+		}
+		Response[] result = new Response[count];
+		System.arraycopy(slots, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Parse the packet from the wire into the caller's System Status and preallocated Response slots, without allocating.  Encoder
+	 * capsules are skipped.  Like the one above, this never touches the connection's protocol state.
+	 * 
+	 * @return number of slots filled, or negative if the packet is malformed or truncated
+	 */
+	public int parseBinResponseMessage(WireMessage message, CapsuleCodec.SystemStatus system, Response[] slots)
+	{
+		// Read straight out of the wire buffer, absolute gets only so the view is not disturbed.
+		return CapsuleCodec.decodeStatus(message.getView(), system, slots, null);
+	}
+
+	/**
+	 * The receive path: decode into the rx slots (encoder count left in rxSystem.encoderCount) and remember the table's timestamp and
+	 * sequence for the next message we send.  Receive thread only.
+	 */
+	private int decodeReceived(WireMessage message)
+	{
+		int count = CapsuleCodec.decodeStatus(message.getView(), rxSystem, responseSlots, encoderSlots);
+		if (count < 0) {
+			return count;
+		}
+
+		// Squirrel away the protocol state information we need to create future messages
+		lastKnownTableTimestamp = rxSystem.timestamp;
+		lastKnownTableSequenceNumber = rxSystem.sequence;
+
+		if (logger.isTraceEnabled()) {
+			for (int i = 0; i < count; i++) {
+				// Hack to cutdown the trace output
+				if (responseSlots[i].device == Device.DEV_PITCH) {
+					logger.trace("got {} response {}", getLinkName(), responseSlots[i].debugString());
+				}
+			}
+		}
+
+		return count;
+	}
+}
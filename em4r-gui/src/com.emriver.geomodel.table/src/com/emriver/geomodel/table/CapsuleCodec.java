@@ -0,0 +1,315 @@
+package com.emriver.geomodel.table;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary encoder/decoder for the EM4R table "capsule" protocol, shared by every connection type that speaks it.
+ * <p>
+ * A packet is one System capsule (Control going to the table, Status coming back) followed by zero or more Operator capsules.
+ * Every capsule starts with the same 4 byte header: bytes_after (u8), protocol or device id (u8), magic (u16).
+ * All values are big endian (network byte order), which is also the ByteBuffer default.
+ * <p>
+ * Nothing in here allocates.  Encoders write at the current position of a caller-owned buffer, and decoders read with absolute
+ * get(index) calls (never moving position/limit) into caller-owned, preallocated slots.  Bad or truncated input is reported
+ * through return codes, not exceptions, so the telemetry path produces no garbage per packet.
+ */
+public class CapsuleCodec
+{
+	// Transported as unsigned short
+	public static final int SYSTEM_CONTROL_MAGIC		= 0x4543;	// 'SC'
+	public static final int SYSTEM_STATUS_MAGIC			= 0x4553;	// 'SS'
+	public static final int OPERATOR_CONTROL_MAGIC		= 0x5043;	// 'OC'
+	public static final int OPERATOR_STATUS_MAGIC		= 0x5053;	// 'OS'
+	public static final int ENCODER_STATUS_MAGIC		= 0x4553;	// 'SS' again, told apart from the System capsule by its length
+
+	// Transported as unsigned byte
+	public static final int SYSTEM_PROTOCOL = 0x01;
+	public static final int SYSTEM_ID = 0x01;
+
+	// COMMANDS
+	public static final int OPERATOR_CONTROL_CMD_MOVE = 0x01;
+	public static final int OPERATOR_CONTROL_CMD_STOP = 0x02;
+
+	// Capsule sizes in bytes, including the 4 byte header.
+	public static final int CAPSULE_HEADER_BYTES = 4;
+	public static final int SYSTEM_CAPSULE_BYTES = 12;
+	public static final int OPERATOR_CONTROL_CAPSULE_BYTES = 12;
+	public static final int OPERATOR_STATUS_CAPSULE_BYTES = 16;
+	public static final int ENCODER_STATUS_CAPSULE_BYTES = 8;
+
+	// Encoder instances the table has, same limit the table firmware checks (encoder < 4).  Capsules with other ids are skipped.
+	public static final int MAX_ENCODERS = 4;
+
+	// Decoder return code for a packet that does not even hold a complete System Status capsule.
+	public static final int DECODE_TRUNCATED = -1;
+
+	private static final Logger logger = LoggerFactory.getLogger(CapsuleCodec.class);
+
+
+	/**
+	 * Caller-owned holder for the fields of a decoded System Status capsule.  Reuse one per connection.
+	 */
+	public static class SystemStatus
+	{
+		public int protocol;
+		public int magic;
+		public int sequence;		// table tx sequence, we echo this back as rx_seq
+		public int echoSequence;	// our segment_number the table last saw
+		public int systemID;
+		public long timestamp;		// table clock in ms, unsigned 32 bit
+
+		public int encoderCount;	// number of encoder slots filled by the last decodeStatus()
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Value conversion
+
+	/**
+	 * Convert an application value into the signed 16 bit wire value.  Pitch and roll travel in 10ths of degrees.
+	 */
+	public static int toWireValue(Device device, double value)
+	{
+		if (device == Device.DEV_ROLL || device == Device.DEV_PITCH) {
+			return (int) Math.round(value * 10.0);
+		}
+		return (int) Math.round(value);
+	}
+
+	public static double fromWireValue(Device device, int wireValue)
+	{
+		if (device == Device.DEV_ROLL || device == Device.DEV_PITCH) {
+			// Convert from 10ths of degrees into floating point
+			return wireValue / 10.0;
+		}
+		return wireValue;
+	}
+
+	public static int toWireCommand(String command)
+	{
+		if (TableController.CMD_STOP.equals(command)) {
+			return OPERATOR_CONTROL_CMD_STOP;
+		}
+		return OPERATOR_CONTROL_CMD_MOVE;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Encoding
+
+	/**
+	 * Write a System Control capsule at the current position of the buffer.
+	 *
+	 * @param sequence our segment_number, wrapped to 8 bits here
+	 * @param echoSequence the last table sequence number we saw, wrapped to 8 bits here
+	 * @param timestamp the last known table clock (ms), wrapped to 32 bits here
+	 */
+	public static void putSystemControl(ByteBuffer out, int sequence, int echoSequence, long timestamp)
+	{
+		out.put((byte) 8);									// bytes_after
+		out.put((byte) SYSTEM_PROTOCOL);					// protocol_version
+		out.putShort((short) SYSTEM_CONTROL_MAGIC);			// magic
+
+		out.put((byte) sequence);							// segment_number
+		out.put((byte) echoSequence);						// rx_seq
+		out.putShort((short) 0);							// padding
+		out.putInt((int) (timestamp & 0xFFFFFFFFL));		// abs timestamp
+	}
+
+	/**
+	 * Write an Operator Control capsule at the current position of the buffer.
+	 *
+	 * @param deadline absolute table clock (ms) by which the operator should reach the value, wrapped to 32 bits here
+	 */
+	public static void putOperatorControl(ByteBuffer out, int deviceID, int command, int requestedWireValue, long deadline)
+	{
+		out.put((byte) 8);									// bytes_after
+		out.put((byte) deviceID);							// device_id
+		out.putShort((short) OPERATOR_CONTROL_MAGIC);		// magic
+
+		out.putShort((short) requestedWireValue);			// requested_value
+		out.put((byte) command);							// command
+		out.put((byte) 0);									// padding
+		out.putInt((int) (deadline & 0xFFFFFFFFL));			// abs timestamp
+	}
+
+	/**
+	 * Convenience to write an Operator Control capsule straight from an application Request.
+	 */
+	public static void putOperatorControl(ByteBuffer out, Request request, long deadline)
+	{
+		putOperatorControl(out, request.device.getNumValue(), toWireCommand(request.command), toWireValue(request.device, request.value), deadline);
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Encoding, table side (used by the simulator)
+
+	// Operator Status flags
+	public static final int OPERATOR_FLAG_MOVING = 0x40;
+
+	/**
+	 * Write a System Status capsule at the current position of the buffer.
+	 *
+	 * @param sequence table tx sequence, wrapped to 8 bits here
+	 * @param echoSequence last segment_number seen from the controller, wrapped to 8 bits here
+	 * @param timestamp table clock (ms), wrapped to 32 bits here
+	 */
+	public static void putSystemStatus(ByteBuffer out, int sequence, int echoSequence, long timestamp)
+	{
+		out.put((byte) 8);									// bytes_after
+		out.put((byte) SYSTEM_PROTOCOL);					// protocol_version
+		out.putShort((short) SYSTEM_STATUS_MAGIC);			// magic
+
+		out.put((byte) sequence);							// tx_seq
+		out.put((byte) echoSequence);						// echo of our rx_seq
+		out.putShort((short) SYSTEM_ID);					// system id
+		out.putInt((int) (timestamp & 0xFFFFFFFFL));		// abs timestamp
+	}
+
+	public static void putOperatorStatus(ByteBuffer out, int deviceID, int currentWireValue, int flags, int requestedWireValue, long requestedTimestamp)
+	{
+		out.put((byte) 12);									// bytes_after
+		out.put((byte) deviceID);							// device_id
+		out.putShort((short) OPERATOR_STATUS_MAGIC);		// magic
+
+		out.putShort((short) currentWireValue);				// current value
+		out.putShort((short) flags);						// flags
+		out.putShort((short) requestedWireValue);			// requested value
+		out.putShort((short) 0);							// padding
+		out.putInt((int) (requestedTimestamp & 0xFFFFFFFFL));	// abs timestamp to achieve the requested value
+	}
+
+	public static void putEncoderStatus(ByteBuffer out, int encoder, int position, int millivolts)
+	{
+		out.put((byte) 4);									// bytes_after
+		out.put((byte) encoder);							// encoder instance
+		out.putShort((short) ENCODER_STATUS_MAGIC);			// magic
+
+		out.putShort((short) position);						// position
+		out.putShort((short) millivolts);					// mV
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Decoding
+
+	/**
+	 * Decode a System Status packet, ignoring any Encoder Status capsules.
+	 */
+	public static int decodeStatus(ByteBuffer in, SystemStatus system, Response[] slots)
+	{
+		return decodeStatus(in, system, slots, null);
+	}
+
+	/**
+	 * Decode a System Status packet: the System capsule into the caller's holder, then any Operator Status capsules into the
+	 * caller's preallocated Response slots, and any Encoder Status capsules into the preallocated encoder slots.
+	 * <p>
+	 * Capsules we don't understand (or operators and encoders with unknown ids) are skipped using their bytes_after length.  A truncated capsule at
+	 * the end of the packet stops decoding but keeps whatever was decoded before it.  If there are more capsules than slots, the extras
+	 * are ignored.
+	 *
+	 * @param in payload from position 0 to limit, read with absolute gets only
+	 * @param system filled in with the System Status fields, plus the encoder count
+	 * @param slots preallocated Response objects that get overwritten
+	 * @param encoderSlots preallocated EncoderStatus objects that get overwritten, or null to skip encoders
+	 * @return number of Response slots filled, or DECODE_TRUNCATED if the packet is too short to hold the System capsule
+	 */
+	public static int decodeStatus(ByteBuffer in, SystemStatus system, Response[] slots, EncoderStatus[] encoderSlots)
+	{
+		system.encoderCount = 0;
+
+		final int limit = in.limit();
+		if (limit < SYSTEM_CAPSULE_BYTES) {
+			return DECODE_TRUNCATED;
+		}
+
+		// The & operator forces the promotion of the read byte/short/int to an int BEFORE the mask is performed.
+		// So first they get sign-extended to int, then we mask off the bits we want and store, so the upper bytes are zeroed.
+		int systemPayloadBytes = in.get(0) & 0xFF;
+		system.protocol = in.get(1) & 0xFF;
+		system.magic = in.getShort(2) & 0xFFFF;
+		system.sequence = in.get(4) & 0xFF;
+		system.echoSequence = in.get(5) & 0xFF;
+		system.systemID = in.getShort(6) & 0xFFFF;
+		system.timestamp = in.getInt(8) & 0xFFFFFFFFL;
+
+		// Same sanity checks the stream parser always did, they only warn.  Boxing here is fine, this is not the steady state.
+		if (systemPayloadBytes != 8) {
+			logger.warn("bad systemPayloadBytes {}", systemPayloadBytes);
+		}
+		if (system.protocol != SYSTEM_PROTOCOL) {
+			logger.warn("bad systemProtocol {}", system.protocol);
+		}
+		if (system.magic != SYSTEM_STATUS_MAGIC) {
+			logger.warn("bad systemMagic {}", system.magic);
+		}
+
+		// Read zero or more Operator Status capsules (usually one per Device) and Encoder Status capsules (one per encoder), in any order.
+		int count = 0;
+		int encoderCount = 0;
+		int offset = SYSTEM_CAPSULE_BYTES;
+		while (offset + CAPSULE_HEADER_BYTES <= limit) {
+			int payloadBytes = in.get(offset) & 0xFF;
+			int next = offset + CAPSULE_HEADER_BYTES + payloadBytes;
+			if (next > limit) {
+				// Not enough data for a complete capsule, so bail out
+				break;
+			}
+
+			int id = in.get(offset + 1) & 0xFF;
+			int magic = in.getShort(offset + 2) & 0xFFFF;
+
+			if (magic == OPERATOR_STATUS_MAGIC && payloadBytes == OPERATOR_STATUS_CAPSULE_BYTES - CAPSULE_HEADER_BYTES && count < slots.length) {
+				if (decodeOperatorStatus(in, offset, id, system.timestamp, slots[count])) {
+					count++;
+				}
+			}
+			else if (magic == ENCODER_STATUS_MAGIC && payloadBytes == ENCODER_STATUS_CAPSULE_BYTES - CAPSULE_HEADER_BYTES
+					&& id < MAX_ENCODERS && encoderSlots != null && encoderCount < encoderSlots.length) {
+				EncoderStatus slot = encoderSlots[encoderCount++];
+				slot.encoder = id;
+				slot.position = in.getShort(offset + 4);				// signed
+				slot.millivolts = in.getShort(offset + 6);				// signed, int16 on the table
+				slot.timestamp = system.timestamp;
+			}
+
+			offset = next;
+		}
+
+		system.encoderCount = encoderCount;
+		return count;
+	}
+
+	/**
+	 * Decode one Operator Status capsule starting at offset into the slot.
+	 *
+	 * @return false if the device id is not one we know
+	 */
+	private static boolean decodeOperatorStatus(ByteBuffer in, int offset, int deviceID, long systemTimestamp, Response slot)
+	{
+		Device device = Device.findByValue(deviceID);
+		if (device == null) {
+			return false;
+		}
+
+		int currentValue = in.getShort(offset + 4);							// signed
+		int flags = in.getShort(offset + 6) & 0xFFFF;
+//		int requestedValue = in.getShort(offset + 8);						// signed
+//		padding at offset + 10
+		long requestedTimestamp = in.getInt(offset + 12) & 0xFFFFFFFFL;
+
+		slot.device = device;
+		// TODO not sure how to propagate error conditions/info
+		slot.status = TableController.RSP_OK;
+		slot.value = fromWireValue(device, currentValue);
+		slot.flags = flags;
+
+		// Timestamps in the future mean the table is still working on a prior move command.
+		slot.seconds = 0;
+		if ((requestedTimestamp > 0) && (requestedTimestamp - systemTimestamp > 0)) {
+			slot.seconds = (int) ((requestedTimestamp - systemTimestamp) / 1000);		// WARNING  should be safe to truncate into int
+		}
+		return true;
+	}
+}
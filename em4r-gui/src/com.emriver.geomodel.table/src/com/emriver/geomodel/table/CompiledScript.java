@@ -0,0 +1,189 @@
+package com.emriver.geomodel.table;
+
+import java.util.Arrays;
+
+/**
+ * A TableScript boiled down to the fewest timed moves that reproduce it on a table: "starting at S, get this device to V by D".
+ * <p>
+ * The table moves each operator in a straight line to land on its deadline, so a script only needs a move where a device's slope changes.
+ * Compared to sending every explicit column on every step (what the C++ runner does):
+ * <ul>
+ * <li>holds need nothing, the device just stays where the previous move left it</li>
+ * <li>back to back ramps with the same slope are merged into one move</li>
+ * </ul>
+ * Slopes are compared in wire units (what the table actually gets), so 0.1 degree rounding doesn't split a ramp.
+ * <p>
+ * The moves are sorted by start time.  Times are ms from the start of the script, ScriptRunner turns them into absolute deadlines.
+ * Immutable.
+ */
+public class CompiledScript
+{
+	private final TableScript script;
+	private final int moveCount;
+	private final int[] columns;
+	private final long[] startMillis;
+	private final long[] deadlineMillis;
+	private final double[] values;
+
+
+	private CompiledScript(TableScript script, int moveCount, int[] columns, long[] startMillis, long[] deadlineMillis, double[] values)
+	{
+		this.script = script;
+		this.moveCount = moveCount;
+		this.columns = columns;
+		this.startMillis = startMillis;
+		this.deadlineMillis = deadlineMillis;
+		this.values = values;
+	}
+
+	public static CompiledScript compile(TableScript script)
+	{
+		int steps = script.getStepCount();
+		int capacity = steps * TableScript.COLUMNS;
+		int[] columns = new int[capacity];
+		long[] starts = new long[capacity];
+		long[] deadlines = new long[capacity];
+		double[] values = new double[capacity];
+		int count = 0;
+
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			Device device = TableScript.getDevice(c);
+			int from = 0;			// first step is always explicit
+			while (true) {
+				int to = script.getNextExplicit(from, c);
+				if (to < 0) {
+					break;
+				}
+				int fromWire = CapsuleCodec.toWireValue(device, script.getValue(from, c));
+				int toWire = CapsuleCodec.toWireValue(device, script.getValue(to, c));
+				if (fromWire == toWire) {
+					// Hold, nothing to send
+					from = to;
+					continue;
+				}
+
+				// Extend the ramp over following explicit points on the same line
+				long dt = script.getSeconds(to) - script.getSeconds(from);
+				long dv = toWire - fromWire;
+				int end = to;
+				while (true) {
+					int next = script.getNextExplicit(end, c);
+					if (next < 0) {
+						break;
+					}
+					long nextDt = script.getSeconds(next) - script.getSeconds(end);
+					long nextDv = CapsuleCodec.toWireValue(device, script.getValue(next, c)) - CapsuleCodec.toWireValue(device, script.getValue(end, c));
+					if (nextDv * dt != dv * nextDt) {
+						break;
+					}
+					end = next;
+				}
+
+				columns[count] = c;
+				starts[count] = script.getSeconds(from) * 1000L;
+				deadlines[count] = script.getSeconds(end) * 1000L;
+				values[count] = script.getValue(end, c);
+				count++;
+				from = end;
+			}
+		}
+
+		// Sort by start time, ties in column order so a step's moves stay in the usual device order
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		final long[] s = starts;
+		final int[] col = columns;
+		Arrays.sort(order, (a, b) -> (s[a] != s[b]) ? Long.compare(s[a], s[b]) : Integer.compare(col[a], col[b]));
+
+		int[] sortedColumns = new int[count];
+		long[] sortedStarts = new long[count];
+		long[] sortedDeadlines = new long[count];
+		double[] sortedValues = new double[count];
+		for (int i = 0; i < count; i++) {
+			int from = order[i];
+			sortedColumns[i] = columns[from];
+			sortedStarts[i] = starts[from];
+			sortedDeadlines[i] = deadlines[from];
+			sortedValues[i] = values[from];
+		}
+		return new CompiledScript(script, count, sortedColumns, sortedStarts, sortedDeadlines, sortedValues);
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	public TableScript getScript()
+	{
+		return script;
+	}
+
+	public int getMoveCount()
+	{
+		return moveCount;
+	}
+
+	public int getColumn(int move)
+	{
+		return columns[move];
+	}
+
+	public Device getDevice(int move)
+	{
+		return TableScript.getDevice(columns[move]);
+	}
+
+	/**
+	 * When the device should start moving, ms from the start of the script.
+	 */
+	public long getStartMillis(int move)
+	{
+		return startMillis[move];
+	}
+
+	/**
+	 * When the device should get to the value, ms from the start of the script.
+	 */
+	public long getDeadlineMillis(int move)
+	{
+		return deadlineMillis[move];
+	}
+
+	public double getValue(int move)
+	{
+		return values[move];
+	}
+
+	/**
+	 * @return the first move starting at or after the given time (ms from the start of the script), getMoveCount() if there is none
+	 */
+	public int findMove(long millis)
+	{
+		int lo = 0;
+		int hi = moveCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (startMillis[mid] < millis) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the move the column is in the middle of at the given time (started before it, deadline after it), -1 if it is holding
+	 */
+	public int findMoveInProgress(int column, long millis)
+	{
+		// A column's moves never overlap, so the latest one that started before the time is the only candidate
+		for (int i = findMove(millis) - 1; i >= 0; i--) {
+			if (columns[i] == column) {
+				return (deadlineMillis[i] > millis) ? i : -1;
+			}
+		}
+		return -1;
+	}
+}
@@ -23,14 +23,37 @@ public enum Device
 		return numValue;
 	}
 
+	// Reverse lookup table indexed by numValue (DEV_UNKNOWN is not in it).  values() clones its array every call, so build this once.
+	private static final Device[] byValue = new Device[5];
+	static {
+		for (Device d : Device.values()) {
+			if (d.numValue >= 0) {
+				byValue[d.numValue] = d;
+			}
+		}
+	}
+
 	public static Device getByValue(int value)
 	{
-		for (Device d : Device.values()) {
-			if (d.numValue == value) {
-				return d;
+		Device d = findByValue(value);
+		if (d == null) {
+			if (value == DEV_UNKNOWN.numValue) {
+				return DEV_UNKNOWN;
 			}
+			throw new IllegalArgumentException("Device not found.");
 		}
-		throw new IllegalArgumentException("Device not found.");
+		return d;
+	}
+
+	/**
+	 * Same as getByValue() but returns null for unknown values instead of throwing, for the wire decoders.
+	 */
+	public static Device findByValue(int value)
+	{
+		if (value < 0 || value >= byValue.length) {
+			return null;
+		}
+		return byValue[value];
 	}
 
 	@Override
@@ -77,6 +100,20 @@ public enum Device
 			throw new IllegalArgumentException();
 		}
 	}
+	// Fastest the table moves it, in the same units per second.  Roughly what the real hardware manages, a whole number of wire units.
+	public double getMaxRate()
+	{
+		switch (this) {
+		case DEV_UNKNOWN:   		return   1.00;
+		case DEV_PITCH:	    		return   0.50;	// degrees/sec
+		case DEV_ROLL:	    		return   0.50;
+		case DEV_UPPIPE:	    	return  10.00;	// mm/sec
+		case DEV_DOWNPIPE:	    	return  10.00;
+		case DEV_PUMP:	    		return 100.00;	// ml/sec per sec
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
 	public double getStep()
 	{
 		switch (this) {
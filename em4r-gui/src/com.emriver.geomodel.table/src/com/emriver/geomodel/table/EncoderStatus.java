@@ -0,0 +1,32 @@
+package com.emriver.geomodel.table;
+
+/**
+ * Raw reading from one of the table's position encoders, straight from an Encoder Status capsule.
+ * <p>
+ * Unlike Response, nothing here is converted into application units.  The point is to watch the encoders themselves (drift, noise,
+ * supply voltage) at the full packet rate.
+ */
+public class EncoderStatus
+{
+	public int encoder;			// encoder instance on the table, 0 based, below CapsuleCodec.MAX_ENCODERS
+	public int position;		// raw signed 16 bit count
+	public int millivolts;		// encoder supply/sense voltage, signed 16 bit
+	public long timestamp;		// table clock (ms) from the System Status capsule of the same packet
+
+	public EncoderStatus()
+	{
+	}
+
+	public EncoderStatus(int encoder, int position, int millivolts, long timestamp)
+	{
+		this.encoder = encoder;
+		this.position = position;
+		this.millivolts = millivolts;
+		this.timestamp = timestamp;
+	}
+
+	public String debugString()
+	{
+		return String.format("enc %d pos %d %d mV @ %d", encoder, position, millivolts, timestamp);
+	}
+}
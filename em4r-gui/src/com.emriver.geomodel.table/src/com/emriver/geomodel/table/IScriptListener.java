@@ -0,0 +1,19 @@
+package com.emriver.geomodel.table;
+
+public interface IScriptListener
+{
+	/**
+	 * Called on the timer wheel thread (see ScriptScheduler) after the runner sent a batch of moves, so target displays can follow the
+	 * script.
+	 * <p>
+	 * WARNING every script on every table (and every keep alive and watchdog) shares that thread, and late steps make for a late table,
+	 * so hand anything slow (like UI work) off with asyncExec or similar.
+	 */
+	public void movesSent(ScriptRunner runner, Request[] moves);
+
+	/**
+	 * Called when the runner starts positioning, starts running, pauses, finishes or is stopped.  Can be on the timer wheel thread or on
+	 * the thread that called start/pause/etc, same warning as above.
+	 */
+	public void stateChanged(ScriptRunner runner, ScriptRunner.State state);
+}
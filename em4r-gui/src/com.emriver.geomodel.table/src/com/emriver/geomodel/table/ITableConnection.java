@@ -16,6 +16,16 @@ public interface ITableConnection
 		 *  Non-blocking.
 		 */
 		public void sendRequest(Request request);
+
+		/**
+		 *  Sends several commands to the table as one unit, if the wire protocol allows it.
+		 *  <p>
+		 *  Binary connections pack every request into one message with one shared timestamp, so a multi-device move starts together.
+		 *  Connections that can't do that just send them one after the other.
+		 *  <p>
+		 *  Non-blocking.
+		 */
+		public void sendRequests(Request... requests);
 		
 		/**
 		 *  Hook for caller to receive the Response (and/or periodic updates) from the table
@@ -1,6 +1,24 @@
 package com.emriver.geomodel.table;
 
-public interface ITableConnectionListener
+/**
+ * Listener for everything a table connection decodes.  Operator status arrives through receiveResponses(), and raw encoder readings
+ * (when the connection type carries them) arrive as a separate stream through receiveEncoderStatus().  Requests the connection
+ * could not deliver are reported back through receiveDeliveryFailure().
+ */
+public interface ITableConnectionListener extends ITableEncoderListener
 {
+	/**
+	 * Called on the connection's receive thread for every status packet from the table.
+	 * <p>
+	 * WARNING the array and the Response objects in it are reused for the next packet, so copy anything you want to keep
+	 * before returning.
+	 */
 	public void receiveResponses(Response[] responses);
+
+	/**
+	 * Called when the connection gave up on delivering move/stop requests, after its retries (if it has any) ran out.
+	 * <p>
+	 * Connections without delivery tracking never call this.
+	 */
+	public void receiveDeliveryFailure(Request[] requests, int attempts);
 }
@@ -0,0 +1,12 @@
+package com.emriver.geomodel.table;
+
+public interface ITableEncoderListener
+{
+	/**
+	 * Called on the connection's receive thread for every status packet that carried Encoder Status capsules.
+	 * <p>
+	 * WARNING this is the full packet rate, so keep the work short.  The array and the EncoderStatus objects in it are reused
+	 * for the next packet, so copy anything you want to keep before returning.
+	 */
+	public void receiveEncoderStatus(EncoderStatus[] encoders);
+}
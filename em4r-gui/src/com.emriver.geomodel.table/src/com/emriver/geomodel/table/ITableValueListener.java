@@ -0,0 +1,14 @@
+package com.emriver.geomodel.table;
+
+public interface ITableValueListener
+{
+	/**
+	 * Called on the controller's dispatcher thread when a subscribed device's value (or status/seconds/flags) changed, and once right
+	 * after subscribing with the current value.  Changes inside the subscription's coalescing interval are folded into one call with
+	 * the newest value.
+	 * <p>
+	 * The Response is the controller's cached copy and is never modified, so it can be kept.  All subscriptions share the one
+	 * dispatcher thread, so hand anything slow (like UI work) off with asyncExec or similar.
+	 */
+	public void valueChanged(Response response);
+}
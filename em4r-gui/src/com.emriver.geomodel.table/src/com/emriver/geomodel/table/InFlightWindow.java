@@ -0,0 +1,330 @@
+package com.emriver.geomodel.table;
+
+import java.util.ArrayList;
+
+/**
+ * Tracks the messages we sent to the table that have not been echoed back yet.
+ * <p>
+ * Every System Control capsule carries our 8 bit segment_number, and every System Status capsule echoes the last one the table saw.
+ * So the window has one entry per possible sequence number.  An echo only proves the table got that one message (which also gives us a
+ * round trip time).  It says nothing about the messages we sent before it, the table only reports the newest it saw, so over UDP any of
+ * those may have been lost.  An older entry whose commands have all been superseded since is dropped, anything else older than the echo
+ * is treated as lost and goes out again on the next sweep, without waiting for its timeout.
+ * <p>
+ * Entries that carry move/stop commands and time out get handed back for retransmission, up to a bounded number of attempts, and then
+ * reported as failed.  Moves and stops are absolute (value plus absolute deadline), so sending one twice is harmless.  A command that has
+ * since been superseded by a newer command to the same device is never retransmitted, otherwise a late retry could undo the newer move.
+ * <p>
+ * The window is touched by the sending threads, the receive thread and the retransmit thread, so it is guarded by this.  Every critical
+ * section is a handful of field writes.
+ */
+public class InFlightWindow
+{
+	public static final int WINDOW_SIZE = 256;				// one per 8 bit sequence number
+
+	// Retransmit timeout (RTO) bounds, same shape as TCP (RFC 6298) but scaled for a LAN and a table that streams status.
+	private static final long INITIAL_RTO_NANOS = 500_000_000L;
+	private static final long MIN_RTO_NANOS = 100_000_000L;
+	private static final long MAX_RTO_NANOS = 2_000_000_000L;
+
+	/**
+	 * Something the caller has to (re)send or report, copied out of the window so it can be acted on without holding the lock.
+	 */
+	public static class Retry
+	{
+		public final Request[] requests;
+		public final long baseTimestamp;		// table clock the original deadlines were relative to, reuse it so retries keep the same deadline
+		public final int attempts;				// sends so far
+		public final Runnable onDelivered;		// pass it on to sent() with the retransmit
+
+		Retry(Request[] requests, long baseTimestamp, int attempts, Runnable onDelivered)
+		{
+			this.requests = requests;
+			this.baseTimestamp = baseTimestamp;
+			this.attempts = attempts;
+			this.onDelivered = onDelivered;
+		}
+	}
+
+	private static class Entry
+	{
+		boolean active;
+		long sentNanos;
+		long order;						// global send order, to spot superseded commands
+		int attempts;
+		long baseTimestamp;
+		Request[] requests;				// null for messages that only need an RTT sample (keep alive)
+		Runnable onDelivered;			// optional, run once the table echoes this message (or a retransmit of it)
+		boolean lost;					// a newer message got echoed first, resend without waiting for the timeout
+	}
+
+	private final int maxAttempts;
+	private final Entry[] entries = new Entry[WINDOW_SIZE];
+
+	// Send order of the newest command for each device (indexed by numValue)
+	private final long[] latestOrderByDevice = new long[Device.values().length];
+	private long nextOrder = 1;
+
+	// Sequences [oldestSequence, newestSequence] (mod 256) may still be outstanding, empty when inFlight is 0
+	private int oldestSequence = 0;
+	private int newestSequence = 0;
+	private int inFlight = 0;
+
+	// Round trip stats
+	private long srttNanos = 0;
+	private long rttvarNanos = 0;
+	private long lastRttNanos = 0;
+	private long rtoNanos = INITIAL_RTO_NANOS;
+	private long ackCount = 0;
+	private long retransmitCount = 0;
+	private long failureCount = 0;
+
+
+	/**
+	 * @param maxAttempts total sends allowed for a reliable message (so maxAttempts - 1 retries)
+	 */
+	public InFlightWindow(int maxAttempts)
+	{
+		this.maxAttempts = maxAttempts;
+		for (int i = 0; i < WINDOW_SIZE; i++) {
+			entries[i] = new Entry();
+		}
+	}
+
+	/**
+	 * Record a message that just went out.
+	 *
+	 * @param requests the move/stop commands it carried that should be retransmitted if lost, or null if it only carried a header
+	 * @param attempts 1 for a first send, or Retry.attempts + 1 for a retransmit
+	 */
+	public void sent(int sequence, Request[] requests, long baseTimestamp, int attempts, long nowNanos)
+	{
+		sent(sequence, requests, baseTimestamp, attempts, null, nowNanos);
+	}
+
+	/**
+	 * Same as sent() for a message somebody wants to hear about once it is delivered.
+	 *
+	 * @param onDelivered handed back by acked() when the table echoes this message or a retransmit of it, null for nobody.  Never handed
+	 * back for commands that fail or get superseded before they arrive.
+	 */
+	public synchronized void sent(int sequence, Request[] requests, long baseTimestamp, int attempts, Runnable onDelivered, long nowNanos)
+	{
+		sequence &= 0xFF;
+		Entry e = entries[sequence];
+		// NOTE if the whole window wrapped while an entry was still waiting, it gets quietly replaced.  Would take 256 sends inside one RTO.
+		if (!e.active) {
+			inFlight++;
+			if (inFlight == 1) {
+				oldestSequence = sequence;
+			}
+		}
+		else if (sequence == oldestSequence) {
+			oldestSequence = (sequence + 1) & 0xFF;
+		}
+		newestSequence = sequence;
+
+		e.active = true;
+		e.sentNanos = nowNanos;
+		e.order = nextOrder++;
+		e.attempts = attempts;
+		e.baseTimestamp = baseTimestamp;
+		e.requests = requests;
+		e.onDelivered = onDelivered;
+		e.lost = false;
+
+		if (requests != null) {
+			for (Request r : requests) {
+				if (r.device != Device.DEV_UNKNOWN) {
+					latestOrderByDevice[r.device.getNumValue()] = e.order;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The table echoed this sequence number, which means it got that message.
+	 *
+	 * @return the round trip time in nanos of the echoed message, or -1 if it was not in flight (already acked, or a repeat echo)
+	 */
+	public long acked(int echoSequence, long nowNanos)
+	{
+		return acked(echoSequence, nowNanos, null);
+	}
+
+	/**
+	 * Same as acked(), also collecting the onDelivered of the echoed message so the caller can run it without holding the lock.
+	 *
+	 * @param delivered gets the echoed message's onDelivered, if it has one.  May be null.
+	 */
+	public synchronized long acked(int echoSequence, long nowNanos, ArrayList<Runnable> delivered)
+	{
+		echoSequence &= 0xFF;
+		if (inFlight == 0) {
+			return -1;
+		}
+		// Outside [oldest, newest] is a repeat of an older echo (or one from before we started)
+		int span = (newestSequence - oldestSequence) & 0xFF;
+		int upTo = (echoSequence - oldestSequence) & 0xFF;
+		if (upTo > span) {
+			return -1;
+		}
+		Entry e = entries[echoSequence];
+		if (!e.active) {
+			return -1;
+		}
+
+		// The table got a newer message before any echo of these, so they were lost (or are arriving out of order, sending twice is
+		// harmless).  Only the ones a newer command to the same device replaced can go, that one is in the window and gets resent itself.
+		for (int i = 0; i < upTo; i++) {
+			Entry older = entries[(oldestSequence + i) & 0xFF];
+			if (!older.active) {
+				continue;
+			}
+			if (stillCurrent(older) == null) {
+				retire(older);
+			}
+			else {
+				older.lost = true;
+			}
+		}
+
+		long rtt = nowNanos - e.sentNanos;
+		lastRttNanos = rtt;
+		// Karn's rule: a retransmitted entry can't tell which send the echo belongs to, so it doesn't feed the estimator
+		if (e.attempts == 1) {
+			if (srttNanos == 0) {
+				srttNanos = rtt;
+				rttvarNanos = rtt / 2;
+			}
+			else {
+				long err = rtt - srttNanos;
+				srttNanos += err / 8;
+				rttvarNanos += (Math.abs(err) - rttvarNanos) / 4;
+			}
+			rtoNanos = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, srttNanos + 4 * rttvarNanos));
+		}
+		if (delivered != null && e.onDelivered != null) {
+			delivered.add(e.onDelivered);
+		}
+		retire(e);
+		ackCount++;
+
+		skipRetired();
+		return rtt;
+	}
+
+	private void retire(Entry e)
+	{
+		e.active = false;
+		e.requests = null;
+		e.onDelivered = null;
+		inFlight--;
+	}
+
+	// Move oldestSequence past entries that are no longer active (acked or expired), so the window only spans what is outstanding
+	private void skipRetired()
+	{
+		while (inFlight > 0 && !entries[oldestSequence].active) {
+			oldestSequence = (oldestSequence + 1) & 0xFF;
+		}
+	}
+
+	/**
+	 * Sweep the window for entries older than the retransmit timeout, or known lost since a newer message got echoed.
+	 *
+	 * @param retries filled with the commands that should be sent again (only the ones not superseded since)
+	 * @param failures filled with the commands that ran out of attempts
+	 */
+	public synchronized void expire(long nowNanos, ArrayList<Retry> retries, ArrayList<Retry> failures)
+	{
+		for (Entry e : entries) {
+			if (!e.active || (!e.lost && nowNanos - e.sentNanos < rtoNanos)) {
+				continue;
+			}
+			Request[] current = stillCurrent(e);
+			Runnable onDelivered = e.onDelivered;
+			retire(e);
+			if (current == null) {
+				// Header only, or everything in it has been replaced by newer commands
+				continue;
+			}
+
+			if (e.attempts >= maxAttempts) {
+				failureCount++;
+				failures.add(new Retry(current, e.baseTimestamp, e.attempts, onDelivered));
+			}
+			else {
+				retransmitCount++;
+				retries.add(new Retry(current, e.baseTimestamp, e.attempts, onDelivered));
+			}
+		}
+		skipRetired();
+	}
+
+	// Commands in the entry that are still the newest for their device, or null if none are.
+	private Request[] stillCurrent(Entry e)
+	{
+		if (e.requests == null) {
+			return null;
+		}
+		int n = 0;
+		for (Request r : e.requests) {
+			if (r.device != Device.DEV_UNKNOWN && latestOrderByDevice[r.device.getNumValue()] == e.order) {
+				n++;
+			}
+		}
+		if (n == 0) {
+			return null;
+		}
+		if (n == e.requests.length) {
+			return e.requests;
+		}
+		Request[] current = new Request[n];
+		n = 0;
+		for (Request r : e.requests) {
+			if (r.device != Device.DEV_UNKNOWN && latestOrderByDevice[r.device.getNumValue()] == e.order) {
+				current[n++] = r;
+			}
+		}
+		return current;
+	}
+
+	public synchronized int getInFlightCount()
+	{
+		return inFlight;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Stats
+
+	public synchronized long getSmoothedRttNanos()
+	{
+		return srttNanos;
+	}
+
+	public synchronized long getLastRttNanos()
+	{
+		return lastRttNanos;
+	}
+
+	public synchronized long getRetransmitTimeoutNanos()
+	{
+		return rtoNanos;
+	}
+
+	public synchronized long getAckCount()
+	{
+		return ackCount;
+	}
+
+	public synchronized long getRetransmitCount()
+	{
+		return retransmitCount;
+	}
+
+	public synchronized long getFailureCount()
+	{
+		return failureCount;
+	}
+}
@@ -0,0 +1,395 @@
+package com.emriver.geomodel.table;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.util.WireMessage;
+
+/**
+ * Table connection that plays back a RunJournal instead of talking to a table, so charts, analytics and alarms can be rerun against
+ * a real run, and the whole GUI pipeline can be fed reproducible input without a table on the bench.
+ * <p>
+ * Plays at real time (speed 1), any multiple of it, or as fast as the listeners can take it (SPEED_MAX).  Can be paused and can seek to
+ * any time in the run.  Two sources:
+ * <ul>
+ * <li>RECORDS - the decoded status and encoder records.  Consecutive records of the same kind and the same recorded time (one
+ * packet's worth, TableController records a packet at one time) are handed over as one batch at that time, like a live connection
+ * does.</li>
+ * <li>DATAGRAMS - the raw received datagrams, run through the same decoder as a live connection.  Needs a journal that recorded
+ * datagrams, and exercises the decoder as well.</li>
+ * </ul>
+ * Requests sent to it are dropped, a recording can't be steered.  Like the live connections, the Response and EncoderStatus arrays
+ * handed to listeners are reused for the next batch.
+ */
+public class ReplayTableConnection implements ITableConnection
+{
+	public enum Source
+	{
+		RECORDS,
+		DATAGRAMS
+	}
+
+	// Speed that means "don't wait at all"
+	public static final double SPEED_MAX = 0;
+
+	private final Path path;
+	private final Source source;
+	private final CopyOnWriteArrayList<ITableConnectionListener> listeners = new CopyOnWriteArrayList<ITableConnectionListener>();
+
+	private Thread replayThread = null;
+	private volatile boolean keepRunning = false;
+
+	// Playback control, set by any thread and picked up by the replay thread
+	private volatile double speed = 1.0;
+	private volatile boolean paused = false;
+	private volatile long pendingSeekNanos = Long.MIN_VALUE;
+	private volatile boolean reanchor = true;
+
+	// Playback state, for display
+	private volatile long startNanos = 0;
+	private volatile long positionNanos = 0;
+	private volatile boolean finished = false;
+	private volatile long entryCount = 0;
+
+	// Batches, only touched by the replay thread.  views[n] is an array of exactly n slots, like BinTableConnection.
+	private static final int MAX_BATCH = 16;
+	private final Response[] responseSlots = new Response[MAX_BATCH];
+	private final Response[][] responseViews = new Response[MAX_BATCH + 1][];
+	private final EncoderStatus[] encoderSlots = new EncoderStatus[MAX_BATCH];
+	private final EncoderStatus[][] encoderViews = new EncoderStatus[MAX_BATCH + 1][];
+	private final CapsuleCodec.SystemStatus rxSystem = new CapsuleCodec.SystemStatus();
+	private final WireMessage datagram = new WireMessage();
+
+	private static final Logger logger = LoggerFactory.getLogger(ReplayTableConnection.class);
+
+
+	public ReplayTableConnection(Path path, Source source)
+	{
+		this.path = path;
+		this.source = source;
+
+		for (int i = 0; i < MAX_BATCH; i++) {
+			responseSlots[i] = new Response();
+			encoderSlots[i] = new EncoderStatus();
+		}
+		for (int n = 0; n <= MAX_BATCH; n++) {
+			responseViews[n] = new Response[n];
+			System.arraycopy(responseSlots, 0, responseViews[n], 0, n);
+			encoderViews[n] = new EncoderStatus[n];
+			System.arraycopy(encoderSlots, 0, encoderViews[n], 0, n);
+		}
+	}
+
+	public ReplayTableConnection(Path path)
+	{
+		this(path, Source.RECORDS);
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// ITableConnection
+
+	@Override
+	public synchronized void connect()
+	{
+		if (replayThread != null) {
+			return;
+		}
+
+		final RunJournalReader reader;
+		try {
+			reader = new RunJournalReader(path);
+		}
+		catch (IOException e) {
+			logger.warn("unable to open journal {} for replay", path, e);
+			return;
+		}
+		startNanos = reader.getStartNanos();
+		positionNanos = startNanos;
+		finished = false;
+		reanchor = true;
+		keepRunning = true;
+
+		replayThread = new Thread(() -> replayLoop(reader));
+		replayThread.setName("Replay");
+		replayThread.setDaemon(true);
+		replayThread.start();
+		logger.info("replaying {} from {}", path, source);
+	}
+
+	@Override
+	public synchronized void disconnect()
+	{
+		if (replayThread == null) {
+			return;
+		}
+		keepRunning = false;
+		LockSupport.unpark(replayThread);
+		try {
+			replayThread.join(1000);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		replayThread = null;
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return keepRunning;
+	}
+
+	@Override
+	public void sendRequest(Request request)
+	{
+		logger.debug("replay ignoring request {}", request.debugString());
+	}
+
+	@Override
+	public void sendRequests(Request... requests)
+	{
+		logger.debug("replay ignoring {} requests", requests.length);
+	}
+
+	@Override
+	public void addTableListener(ITableConnectionListener listener)
+	{
+		listeners.addIfAbsent(listener);
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Playback control
+
+	/**
+	 * @param speed 1 for real time, 10 for ten times faster, 0.5 for half speed, SPEED_MAX for no waiting at all
+	 */
+	public void setSpeed(double speed)
+	{
+		this.speed = Math.max(0, speed);
+		reanchor = true;
+		wake();
+	}
+
+	public double getSpeed()
+	{
+		return speed;
+	}
+
+	public void pause()
+	{
+		paused = true;
+	}
+
+	public void resume()
+	{
+		paused = false;
+		reanchor = true;
+		wake();
+	}
+
+	public boolean isPaused()
+	{
+		return paused;
+	}
+
+	/**
+	 * Continue playback from the first entry at or after the given time (ns since the epoch, like getPositionNanos()).  Also restarts a
+	 * replay that had reached the end.
+	 */
+	public void seek(long nanos)
+	{
+		pendingSeekNanos = nanos;
+		wake();
+	}
+
+	/**
+	 * Same as seek() but relative to the start of the journal.
+	 */
+	public void seekFromStart(long offsetNanos)
+	{
+		seek(startNanos + offsetNanos);
+	}
+
+	/**
+	 * When the journal was started (ns since the epoch).
+	 */
+	public long getStartNanos()
+	{
+		return startNanos;
+	}
+
+	/**
+	 * Recorded time of the last entry played (ns since the epoch).
+	 */
+	public long getPositionNanos()
+	{
+		return positionNanos;
+	}
+
+	/**
+	 * True once everything has been played.  The replay stays connected, so it can seek back.
+	 */
+	public boolean isFinished()
+	{
+		return finished;
+	}
+
+	public long getEntryCount()
+	{
+		return entryCount;
+	}
+
+	private void wake()
+	{
+		Thread t = replayThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	private void replayLoop(RunJournalReader reader)
+	{
+		// Playback clock: recorded time anchorRecorded plays at local time anchorLocal, and everything after it is scaled by speed
+		long anchorRecorded = 0;
+		long anchorLocal = 0;
+
+		try {
+			boolean haveEntry = false;
+			while (keepRunning) {
+				long seekTo = pendingSeekNanos;
+				if (seekTo != Long.MIN_VALUE) {
+					pendingSeekNanos = Long.MIN_VALUE;
+					reader.seek(seekTo);
+					haveEntry = false;
+					finished = false;
+					reanchor = true;
+				}
+
+				if (paused) {
+					LockSupport.park(this);
+					continue;
+				}
+
+				if (!haveEntry) {
+					haveEntry = reader.next();
+					if (!haveEntry) {
+						if (!finished) {
+							finished = true;
+							logger.info("replay of {} finished after {} entries", path, entryCount);
+						}
+						// Wait for a seek (or a journal that is still being written to grow)
+						LockSupport.parkNanos(this, 100_000_000L);
+						continue;
+					}
+				}
+
+				long recorded = reader.getTimeNanos();
+				if (reanchor) {
+					reanchor = false;
+					anchorRecorded = recorded;
+					anchorLocal = System.nanoTime();
+				}
+
+				double s = speed;
+				if (s != SPEED_MAX) {
+					long due = anchorLocal + (long) ((recorded - anchorRecorded) / s);
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						// Woken early by a speed/pause/seek change, go round again so it takes effect
+						LockSupport.parkNanos(this, wait);
+						continue;
+					}
+				}
+
+				haveEntry = playBatch(reader);
+			}
+		}
+		catch (IOException e) {
+			logger.warn("replay of {} stopped", path, e);
+		}
+		finally {
+			reader.close();
+			keepRunning = false;
+		}
+	}
+
+	/**
+	 * Hand the current entry, plus any following ones of the same kind recorded at the same time, to the listeners.  A record with a new
+	 * time starts the next batch, so each packet plays at its own time.
+	 *
+	 * @return true if the reader is left on an entry that was not played yet
+	 */
+	private boolean playBatch(RunJournalReader reader) throws IOException
+	{
+		byte type = reader.getType();
+		long time = reader.getTimeNanos();
+		positionNanos = time;
+
+		if (source == Source.RECORDS && type == RunJournal.TYPE_STATUS) {
+			int n = 0;
+			boolean more;
+			do {
+				if (reader.getDevice() != null) {
+					reader.getStatus(responseSlots[n++]);
+				}
+				entryCount++;
+				more = reader.next();
+			} while (more && n < MAX_BATCH && reader.getType() == RunJournal.TYPE_STATUS && reader.getTimeNanos() == time);
+			deliverResponses(n);
+			return more;
+		}
+
+		if (source == Source.RECORDS && type == RunJournal.TYPE_ENCODER) {
+			int n = 0;
+			boolean more;
+			do {
+				reader.getEncoder(encoderSlots[n++]);
+				entryCount++;
+				more = reader.next();
+			} while (more && n < MAX_BATCH && reader.getType() == RunJournal.TYPE_ENCODER && reader.getTimeNanos() == time);
+			deliverEncoders(n);
+			return more;
+		}
+
+		if (source == Source.DATAGRAMS && type == RunJournal.TYPE_RX_DATAGRAM) {
+			entryCount++;
+			datagram.setView(reader.getDatagram());
+			int count = CapsuleCodec.decodeStatus(datagram.getView(), rxSystem, responseSlots, encoderSlots);
+			if (count >= 0) {
+				deliverResponses(count);
+				if (rxSystem.encoderCount > 0) {
+					deliverEncoders(rxSystem.encoderCount);
+				}
+			}
+		}
+
+		// Everything else (commands, the other source's entries) is just skipped
+		return false;
+	}
+
+	private void deliverResponses(int n)
+	{
+		if (n == 0) {
+			return;
+		}
+		Response[] responses = responseViews[n];
+		for (ITableConnectionListener l : listeners) {
+			l.receiveResponses(responses);
+		}
+	}
+
+	private void deliverEncoders(int n)
+	{
+		EncoderStatus[] encoders = encoderViews[n];
+		for (ITableConnectionListener l : listeners) {
+			l.receiveEncoderStatus(encoders);
+		}
+	}
+}
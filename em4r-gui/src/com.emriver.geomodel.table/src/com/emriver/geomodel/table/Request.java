@@ -6,6 +6,9 @@ public class Request
 	public String command;
 	public double value;
 	public int seconds;
+	// Absolute System.nanoTime() by which to reach the value, 0 = none (use seconds).  Binary connections turn it into a table clock
+	// deadline, so the move ends on time however late the request goes out.
+	public long deadlineNanos = 0;
 	
 	public Request(Device device, String command, double value, int seconds)
 	{
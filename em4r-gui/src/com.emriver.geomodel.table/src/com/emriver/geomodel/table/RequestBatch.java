@@ -0,0 +1,69 @@
+package com.emriver.geomodel.table;
+
+import java.util.ArrayList;
+
+/**
+ * Builder for a group of requests that should reach the table together, typically one step of a script moving several devices at once.
+ * <p>
+ * Example: controller.newBatch().move(Device.DEV_PITCH, 1.5, 10).move(Device.DEV_PUMP, 40, 10).send();
+ */
+public class RequestBatch
+{
+	private final TableController controller;
+	private final ArrayList<Request> requests = new ArrayList<Request>(Device.values().length);
+
+	RequestBatch(TableController controller)
+	{
+		this.controller = controller;
+	}
+
+	public RequestBatch add(Request request)
+	{
+		requests.add(request);
+		return this;
+	}
+
+	/**
+	 * Move the device to the value, reaching it in the given number of seconds (0 = as fast as possible).
+	 */
+	public RequestBatch move(Device device, double value, int seconds)
+	{
+		return add(new Request(device, TableController.CMD_SET, value, seconds));
+	}
+
+	public RequestBatch stop(Device device)
+	{
+		return add(new Request(device, TableController.CMD_STOP, 0, 0));
+	}
+
+	public int size()
+	{
+		return requests.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return requests.isEmpty();
+	}
+
+	public Request[] toArray()
+	{
+		return requests.toArray(new Request[requests.size()]);
+	}
+
+	/**
+	 * Send the whole batch.  The builder can be reused after clear().
+	 */
+	public void send()
+	{
+		if (requests.isEmpty()) {
+			return;
+		}
+		controller.sendRequests(toArray());
+	}
+
+	public void clear()
+	{
+		requests.clear();
+	}
+}
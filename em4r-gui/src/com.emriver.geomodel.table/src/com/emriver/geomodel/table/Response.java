@@ -6,6 +6,7 @@ public class Response
 	public String status;
 	public double value;
 	public int seconds;
+	public int flags;		// Operator Status flags from the table (CapsuleCodec.OPERATOR_FLAG_*), 0 if the connection doesn't report them
 
 	public Response()
 	{
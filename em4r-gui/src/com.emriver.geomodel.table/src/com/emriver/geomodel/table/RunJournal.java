@@ -0,0 +1,385 @@
+package com.emriver.geomodel.table;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.util.WireMessage;
+
+/**
+ * Append-only binary record of everything a table did during a run: every operator status, encoder reading, command sent, and
+ * (optionally) every raw datagram in both directions.
+ * <p>
+ * The file is a 64 byte header followed by fixed 32 byte records, written through memory-mapped segments, so an append is a few
+ * absolute puts into the page cache, no system call.  Each record's type byte is written last, and the file is pre-extended with
+ * zeros, so a reader (see RunJournalReader) stops cleanly at the first zero type byte.  If the process dies, everything appended so far
+ * is already in the OS page cache and lands on disk anyway.  For power loss or an OS crash, a flush thread forces the dirty pages out
+ * every flushMillis, which bounds how much can be lost.
+ * <p>
+ * Record layout (big-endian):
+ * <pre>
+ *  0  long   time, ns since the epoch (our clock)
+ *  8  byte   type (TYPE_*), 0 = end of journal
+ *  9  byte   datagram fragment index, else 0
+ * 10  short  datagram total length, else 0
+ * 12  int    device / encoder number, or datagram number
+ * 16  16 bytes of payload, per type:
+ *     STATUS    double value, int seconds, int flags
+ *     ENCODER   int position, int millivolts, long table timestamp
+ *     COMMAND   double value, int seconds, int wire command
+ *     DATAGRAM  up to 16 bytes of the datagram, long datagrams take several records
+ * </pre>
+ * At 100 status packets per second that is about 30 KB/s without datagrams, and a bit under twice that with them.
+ * <p>
+ * Thread safe, appends are synchronized (the receive thread and the senders are the only writers and rarely collide).
+ */
+public class RunJournal implements Closeable
+{
+	public static final long MAGIC = 0x454D524A524E4C31L;		// "EMRJRNL1"
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 64;
+	public static final int RECORD_BYTES = 32;
+	public static final int RECORD_PAYLOAD_BYTES = 16;
+
+	public static final byte TYPE_END = 0;
+	public static final byte TYPE_STATUS = 1;
+	public static final byte TYPE_ENCODER = 2;
+	public static final byte TYPE_COMMAND = 3;
+	public static final byte TYPE_RX_DATAGRAM = 4;
+	public static final byte TYPE_TX_DATAGRAM = 5;
+
+	// Header layout
+	static final int HEADER_MAGIC = 0;
+	static final int HEADER_VERSION = 8;
+	static final int HEADER_RECORD_BYTES = 12;
+	static final int HEADER_START_NANOS = 16;
+
+	// File grows (and is mapped) this much at a time.  A multiple of RECORD_BYTES, so records never straddle two segments.
+	static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+	public static final long DEFAULT_FLUSH_MILLIS = 1000;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final boolean recordDatagrams;
+
+	// Guarded by this
+	private MappedByteBuffer segment;
+	private long segmentStart;
+	private long position;			// file offset of the next record
+	private long recordCount = 0;
+	private long lastTimeNanos = 0;
+	private int datagramNumber = 0;
+	private boolean dirty = false;
+	private boolean closed = false;
+
+	// Our ns clock: epoch based like currentTimeMillis, but as fine and monotonic as nanoTime
+	private final long epochNanosAtOpen;
+	private final long nanoTimeAtOpen;
+
+	private final Thread flushThread;
+	private final long flushMillis;
+
+	private static final Logger logger = LoggerFactory.getLogger(RunJournal.class);
+
+
+	/**
+	 * Open a journal for appending, creating it if needed.  An existing journal is continued after its last complete record.
+	 *
+	 * @param recordDatagrams also keep every raw datagram (roughly doubles the size)
+	 * @param flushMillis longest time an appended record can sit only in the page cache
+	 */
+	public RunJournal(Path path, boolean recordDatagrams, long flushMillis) throws IOException
+	{
+		this.path = path;
+		this.recordDatagrams = recordDatagrams;
+		this.flushMillis = flushMillis;
+		this.nanoTimeAtOpen = System.nanoTime();
+		this.epochNanosAtOpen = System.currentTimeMillis() * 1_000_000L;
+
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			mapSegment(0);
+			if (segment.getLong(HEADER_MAGIC) == MAGIC) {
+				if (segment.getInt(HEADER_RECORD_BYTES) != RECORD_BYTES) {
+					throw new IOException("journal " + path + " has unsupported record size " + segment.getInt(HEADER_RECORD_BYTES));
+				}
+				position = findEnd();
+				logger.info("continuing journal {} after {} records", path, (position - HEADER_BYTES) / RECORD_BYTES);
+			}
+			else {
+				segment.putLong(HEADER_MAGIC, MAGIC);
+				segment.putInt(HEADER_VERSION, VERSION);
+				segment.putInt(HEADER_RECORD_BYTES, RECORD_BYTES);
+				segment.putLong(HEADER_START_NANOS, epochNanosAtOpen);
+				position = HEADER_BYTES;
+				dirty = true;
+			}
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		flushThread = new Thread(() -> flushLoop());
+		flushThread.setName("JournalFlush");
+		flushThread.setDaemon(true);
+		flushThread.start();
+	}
+
+	public RunJournal(Path path) throws IOException
+	{
+		this(path, true, DEFAULT_FLUSH_MILLIS);
+	}
+
+	public Path getPath()
+	{
+		return path;
+	}
+
+	public synchronized long getRecordCount()
+	{
+		return recordCount;
+	}
+
+	public synchronized long getBytesWritten()
+	{
+		return position;
+	}
+
+	/**
+	 * Current time on the journal clock (ns since the epoch).
+	 */
+	public long now()
+	{
+		return epochNanosAtOpen + (System.nanoTime() - nanoTimeAtOpen);
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Appending
+
+	public void recordStatus(Response response)
+	{
+		recordStatus(response, now());
+	}
+
+	/**
+	 * Same, at a given time on the journal clock, so every status of one packet can share the packet's time (see now()).  Replay
+	 * plays records with the same time as one packet.
+	 */
+	public synchronized void recordStatus(Response response, long timeNanos)
+	{
+		ByteBuffer b = claim();
+		if (b == null) {
+			return;
+		}
+		int at = (int) (position - segmentStart);
+		b.putShort(at + 10, (short) 0);
+		b.putInt(at + 12, response.device.getNumValue());
+		b.putDouble(at + 16, response.value);
+		b.putInt(at + 24, response.seconds);
+		b.putInt(at + 28, response.flags);
+		commit(b, at, TYPE_STATUS, (byte) 0, timeNanos);
+	}
+
+	public void recordEncoder(EncoderStatus encoder)
+	{
+		recordEncoder(encoder, now());
+	}
+
+	/**
+	 * Same, at a given time on the journal clock, like recordStatus(Response, long).
+	 */
+	public synchronized void recordEncoder(EncoderStatus encoder, long timeNanos)
+	{
+		ByteBuffer b = claim();
+		if (b == null) {
+			return;
+		}
+		int at = (int) (position - segmentStart);
+		b.putShort(at + 10, (short) 0);
+		b.putInt(at + 12, encoder.encoder);
+		b.putInt(at + 16, encoder.position);
+		b.putInt(at + 20, encoder.millivolts);
+		b.putLong(at + 24, encoder.timestamp);
+		commit(b, at, TYPE_ENCODER, (byte) 0, timeNanos);
+	}
+
+	public synchronized void recordCommand(Request request)
+	{
+		ByteBuffer b = claim();
+		if (b == null) {
+			return;
+		}
+		int at = (int) (position - segmentStart);
+		b.putShort(at + 10, (short) 0);
+		b.putInt(at + 12, request.device.getNumValue());
+		b.putDouble(at + 16, request.value);
+		b.putInt(at + 24, request.seconds);
+		b.putInt(at + 28, CapsuleCodec.toWireCommand(request.command));
+		commit(b, at, TYPE_COMMAND, (byte) 0, now());
+	}
+
+	/**
+	 * Keep a raw datagram (if this journal records them), split over as many records as it takes.
+	 *
+	 * @param received true for table to us, false for us to table
+	 */
+	public synchronized void recordDatagram(boolean received, WireMessage message)
+	{
+		if (!recordDatagrams) {
+			return;
+		}
+		ByteBuffer in = message.getView();
+		int length = Math.min(message.getLength(), 0xFFFF);
+		int fragments = Math.max(1, (length + RECORD_PAYLOAD_BYTES - 1) / RECORD_PAYLOAD_BYTES);
+		if (fragments > 255) {
+			return;
+		}
+		byte type = received ? TYPE_RX_DATAGRAM : TYPE_TX_DATAGRAM;
+		int number = datagramNumber++;
+		long timeNanos = now();
+
+		for (int f = 0; f < fragments; f++) {
+			ByteBuffer b = claim();
+			if (b == null) {
+				return;
+			}
+			int at = (int) (position - segmentStart);
+			b.putShort(at + 10, (short) length);
+			b.putInt(at + 12, number);
+			int from = f * RECORD_PAYLOAD_BYTES;
+			for (int i = 0; i < RECORD_PAYLOAD_BYTES; i++) {
+				b.put(at + 16 + i, (from + i < length) ? in.get(from + i) : 0);
+			}
+			commit(b, at, type, (byte) f, timeNanos);
+		}
+	}
+
+	// Make sure the next record fits in the mapped segment, caller holds the lock.  Null if closed or the disk is in trouble.
+	private ByteBuffer claim()
+	{
+		if (closed) {
+			return null;
+		}
+		if (position + RECORD_BYTES > segmentStart + SEGMENT_BYTES) {
+			try {
+				// The old segment is flushed by the OS eventually, but force it now so the flush thread only has one to look after
+				segment.force();
+				mapSegment(position);
+			}
+			catch (IOException e) {
+				logger.error("journal {} could not grow, no more records will be written", path, e);
+				closed = true;
+				return null;
+			}
+		}
+		return segment;
+	}
+
+	// Time first, type byte last, so a reader never sees a half written record as valid.  A time given by a caller may be a little older
+	// than a record another thread got in first with, it is clamped so the times stay non-decreasing for seek().
+	private void commit(ByteBuffer b, int at, byte type, byte fragment, long timeNanos)
+	{
+		lastTimeNanos = Math.max(lastTimeNanos, timeNanos);
+		b.putLong(at, lastTimeNanos);
+		b.put(at + 9, fragment);
+		b.put(at + 8, type);
+		position += RECORD_BYTES;
+		recordCount++;
+		dirty = true;
+	}
+
+	// Map the segment holding the given file offset, which extends the file with zeros if needed
+	private void mapSegment(long offset) throws IOException
+	{
+		segmentStart = (offset / SEGMENT_BYTES) * SEGMENT_BYTES;
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_BYTES);
+	}
+
+	// Walk an existing journal to the first unwritten record, mapping later segments as needed
+	private long findEnd() throws IOException
+	{
+		long offset = HEADER_BYTES;
+		long size = channel.size();
+		while (offset + RECORD_BYTES <= size) {
+			if (offset + RECORD_BYTES > segmentStart + SEGMENT_BYTES) {
+				mapSegment(offset);
+			}
+			if (segment.get((int) (offset - segmentStart) + 8) == TYPE_END) {
+				break;
+			}
+			offset += RECORD_BYTES;
+		}
+		if (offset < segmentStart || offset + RECORD_BYTES > segmentStart + SEGMENT_BYTES) {
+			mapSegment(offset);
+		}
+		return offset;
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	/**
+	 * Push everything appended so far to the disk.
+	 */
+	public void flush()
+	{
+		MappedByteBuffer toForce;
+		synchronized (this) {
+			if (!dirty || closed) {
+				return;
+			}
+			dirty = false;
+			toForce = segment;
+		}
+		// Outside the lock, force() can take a while and appends don't need to wait for it
+		toForce.force();
+	}
+
+	private void flushLoop()
+	{
+		while (true) {
+			try {
+				Thread.sleep(flushMillis);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			try {
+				flush();
+			}
+			catch (Exception e) {
+				logger.warn("journal {} flush failed", path, e);
+			}
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		flushThread.interrupt();
+		flush();
+		synchronized (this) {
+			closed = true;
+		}
+		if (!channel.isOpen()) {
+			return;
+		}
+		try {
+			// NOTE the file keeps its zero filled tail up to the segment size, the mapping can't be dropped early to truncate it
+			// (and Windows refuses to truncate a mapped file anyway).  Readers stop at the first zero type byte.
+			channel.close();
+		}
+		catch (IOException e) {
+			logger.warn("journal {} close failed", path, e);
+		}
+		logger.info("closed journal {} with {} records", path, recordCount);
+	}
+}
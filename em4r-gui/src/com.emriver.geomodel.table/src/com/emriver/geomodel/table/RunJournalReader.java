@@ -0,0 +1,284 @@
+package com.emriver.geomodel.table;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sequential cursor over a RunJournal file, for analysis and replay.
+ * <p>
+ * Maps the file read-only a segment at a time and decodes records in place, so scanning runs at disk (or page cache) speed and
+ * allocates nothing per record.  Each next() moves to the next entry and the getters describe it.  Datagram fragments are put back
+ * together, so a datagram shows up as one entry once its last fragment is read (incomplete ones, like the tail of a crashed run, are
+ * skipped).
+ * <p>
+ * Works on a journal that is still being written, it simply stops at the last complete record.  Not thread safe.
+ */
+public class RunJournalReader implements Closeable
+{
+	private final Path path;
+	private final FileChannel channel;
+	private final long startNanos;
+
+	private MappedByteBuffer segment = null;
+	private long segmentStart = 0;
+	private long segmentEnd = 0;
+	private long position = RunJournal.HEADER_BYTES;
+
+	// Current entry
+	private byte type = RunJournal.TYPE_END;
+	private long timeNanos;
+	private int id;
+	private long recordOffset;
+
+	// Datagram reassembly, the buffer is reused for every datagram
+	private final byte[] datagram = new byte[0xFFFF];
+	private final ByteBuffer datagramView = ByteBuffer.wrap(datagram);
+	private int datagramLength = 0;
+	private int datagramNumber = -1;
+	private int datagramNextFragment = 0;
+	private byte datagramType = RunJournal.TYPE_END;
+
+	private static final Logger logger = LoggerFactory.getLogger(RunJournalReader.class);
+
+
+	public RunJournalReader(Path path) throws IOException
+	{
+		this.path = path;
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+
+		ByteBuffer header = ByteBuffer.allocate(RunJournal.HEADER_BYTES);
+		channel.read(header, 0);
+		if (header.position() < RunJournal.HEADER_BYTES || header.getLong(RunJournal.HEADER_MAGIC) != RunJournal.MAGIC) {
+			channel.close();
+			throw new IOException("not a run journal: " + path);
+		}
+		if (header.getInt(RunJournal.HEADER_RECORD_BYTES) != RunJournal.RECORD_BYTES) {
+			channel.close();
+			throw new IOException("journal " + path + " has unsupported record size " + header.getInt(RunJournal.HEADER_RECORD_BYTES));
+		}
+		startNanos = header.getLong(RunJournal.HEADER_START_NANOS);
+	}
+
+	public Path getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * When the journal was first created (ns since the epoch).
+	 */
+	public long getStartNanos()
+	{
+		return startNanos;
+	}
+
+	/**
+	 * Go back to the first record.
+	 */
+	public void rewind()
+	{
+		position = RunJournal.HEADER_BYTES;
+		type = RunJournal.TYPE_END;
+		datagramNumber = -1;
+	}
+
+	/**
+	 * Jump to the first entry at or after the given time (ns since the epoch), by binary search over the fixed size records.
+	 * The next call to next() returns that entry.
+	 */
+	public void seek(long nanos) throws IOException
+	{
+		long lo = 0;
+		long hi = (channel.size() - RunJournal.HEADER_BYTES) / RunJournal.RECORD_BYTES;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			long offset = RunJournal.HEADER_BYTES + mid * RunJournal.RECORD_BYTES;
+			ByteBuffer b = map(offset);
+			int at = (int) (offset - segmentStart);
+			// The unwritten zero tail counts as "later than everything"
+			if (b.get(at + 8) != RunJournal.TYPE_END && b.getLong(at) < nanos) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		position = RunJournal.HEADER_BYTES + lo * RunJournal.RECORD_BYTES;
+		type = RunJournal.TYPE_END;
+		datagramNumber = -1;
+	}
+
+	/**
+	 * Move to the next entry.
+	 *
+	 * @return false at the end of the journal (for now, if it's still being written)
+	 */
+	public boolean next() throws IOException
+	{
+		while (true) {
+			if (position + RunJournal.RECORD_BYTES > channel.size()) {
+				type = RunJournal.TYPE_END;
+				return false;
+			}
+			ByteBuffer b = map(position);
+			int at = (int) (position - segmentStart);
+			byte recordType = b.get(at + 8);
+			if (recordType == RunJournal.TYPE_END) {
+				type = RunJournal.TYPE_END;
+				return false;
+			}
+
+			recordOffset = position;
+			position += RunJournal.RECORD_BYTES;
+			timeNanos = b.getLong(at);
+			id = b.getInt(at + 12);
+
+			if (recordType != RunJournal.TYPE_RX_DATAGRAM && recordType != RunJournal.TYPE_TX_DATAGRAM) {
+				type = recordType;
+				return true;
+			}
+			if (assembleDatagram(b, at, recordType)) {
+				type = recordType;
+				return true;
+			}
+		}
+	}
+
+	// Add one fragment, true when that completed the datagram
+	private boolean assembleDatagram(ByteBuffer b, int at, byte recordType)
+	{
+		int fragment = b.get(at + 9) & 0xFF;
+		int length = b.getShort(at + 10) & 0xFFFF;
+
+		if (fragment == 0) {
+			datagramNumber = id;
+			datagramType = recordType;
+			datagramLength = length;
+			datagramNextFragment = 0;
+		}
+		else if (id != datagramNumber || recordType != datagramType || fragment != datagramNextFragment) {
+			// Lost the start of this one (seeked into the middle of it), skip the rest
+			return false;
+		}
+
+		int from = fragment * RunJournal.RECORD_PAYLOAD_BYTES;
+		int n = Math.min(RunJournal.RECORD_PAYLOAD_BYTES, datagramLength - from);
+		for (int i = 0; i < n; i++) {
+			datagram[from + i] = b.get(at + 16 + i);
+		}
+		datagramNextFragment = fragment + 1;
+		return from + n >= datagramLength;
+	}
+
+	private ByteBuffer map(long offset) throws IOException
+	{
+		if (segment == null || offset < segmentStart || offset + RunJournal.RECORD_BYTES > segmentEnd) {
+			segmentStart = (offset / RunJournal.SEGMENT_BYTES) * RunJournal.SEGMENT_BYTES;
+			long length = Math.min(RunJournal.SEGMENT_BYTES, channel.size() - segmentStart);
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, length);
+			segmentEnd = segmentStart + length;
+		}
+		return segment;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Current entry
+
+	/**
+	 * @return RunJournal.TYPE_*, TYPE_END once next() returned false
+	 */
+	public byte getType()
+	{
+		return type;
+	}
+
+	public long getTimeNanos()
+	{
+		return timeNanos;
+	}
+
+	/**
+	 * Device for status and command entries, null otherwise.
+	 */
+	public Device getDevice()
+	{
+		if (type != RunJournal.TYPE_STATUS && type != RunJournal.TYPE_COMMAND) {
+			return null;
+		}
+		return Device.findByValue(id);
+	}
+
+	/**
+	 * Status or command value in application units.
+	 */
+	public double getValue()
+	{
+		return segment.getDouble((int) (recordOffset - segmentStart) + 16);
+	}
+
+	public int getSeconds()
+	{
+		return segment.getInt((int) (recordOffset - segmentStart) + 24);
+	}
+
+	/**
+	 * Operator flags for a status entry, wire command (CapsuleCodec.OPERATOR_CONTROL_CMD_*) for a command entry.
+	 */
+	public int getFlags()
+	{
+		return segment.getInt((int) (recordOffset - segmentStart) + 28);
+	}
+
+	/**
+	 * Fill in a Response from a status entry.
+	 */
+	public void getStatus(Response out)
+	{
+		out.device = getDevice();
+		out.status = TableController.RSP_OK;
+		out.value = getValue();
+		out.seconds = getSeconds();
+		out.flags = getFlags();
+	}
+
+	/**
+	 * Fill in an EncoderStatus from an encoder entry.
+	 */
+	public void getEncoder(EncoderStatus out)
+	{
+		int at = (int) (recordOffset - segmentStart);
+		out.encoder = id;
+		out.position = segment.getInt(at + 16);
+		out.millivolts = segment.getInt(at + 20);
+		out.timestamp = segment.getLong(at + 24);
+	}
+
+	/**
+	 * The datagram of a datagram entry, position 0 to limit.  The buffer is reused by the next datagram entry.
+	 */
+	public ByteBuffer getDatagram()
+	{
+		datagramView.clear();
+		datagramView.limit(datagramLength);
+		return datagramView;
+	}
+
+	@Override
+	public void close()
+	{
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			logger.warn("journal {} close failed", path, e);
+		}
+	}
+}
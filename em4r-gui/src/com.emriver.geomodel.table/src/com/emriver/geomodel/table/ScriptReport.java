@@ -0,0 +1,156 @@
+package com.emriver.geomodel.table;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What ScriptValidator found out about one script: problems, water used, and the predicted target and actual curves.
+ * <p>
+ * Curves are sampled every getSampleMillis() from script time 0, one array per script column (TableScript.COLUMN_*), in application units.
+ */
+public class ScriptReport
+{
+	public enum Kind
+	{
+		PARSE_ERROR,
+		OUT_OF_RANGE,			// a value past Device.getMin/getMax, the table clamps it
+		TOO_FAST				// a move the operator can't finish by its deadline at its rate limit
+	}
+
+	public static class Problem
+	{
+		public final Kind kind;
+		public final Device device;		// null for PARSE_ERROR
+		public final int seconds;		// script time of the step or move start
+		public final String message;
+
+		Problem(Kind kind, Device device, int seconds, String message)
+		{
+			this.kind = kind;
+			this.device = device;
+			this.seconds = seconds;
+			this.message = message;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s at %d s: %s", kind, seconds, message);
+		}
+	}
+
+	private final String name;
+	private final ArrayList<Problem> problems = new ArrayList<Problem>();
+
+	// Filled in by the simulation, left empty if the script didn't parse
+	int durationSeconds = 0;
+	int moveCount = 0;
+	double positioningSeconds = 0;
+	double pumpedLiters = 0;
+	long sampleMillis = 0;
+	double[][] target = new double[TableScript.COLUMNS][0];
+	double[][] actual = new double[TableScript.COLUMNS][0];
+	double[] worstTrackingError = new double[TableScript.COLUMNS];
+
+
+	ScriptReport(String name)
+	{
+		this.name = name;
+	}
+
+	void addProblem(Kind kind, Device device, int seconds, String message)
+	{
+		problems.add(new Problem(kind, device, seconds, message));
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public boolean isOk()
+	{
+		return problems.isEmpty();
+	}
+
+	public List<Problem> getProblems()
+	{
+		return Collections.unmodifiableList(problems);
+	}
+
+	public int getDurationSeconds()
+	{
+		return durationSeconds;
+	}
+
+	/**
+	 * Number of timed moves the script compiles to (see CompiledScript).
+	 */
+	public int getMoveCount()
+	{
+		return moveCount;
+	}
+
+	/**
+	 * How long the table takes to get from its parked position to the start of the script, before the script clock starts.
+	 */
+	public double getPositioningSeconds()
+	{
+		return positioningSeconds;
+	}
+
+	/**
+	 * Water the pump moves over the whole script (not counting positioning).
+	 */
+	public double getPumpedLiters()
+	{
+		return pumpedLiters;
+	}
+
+	public long getSampleMillis()
+	{
+		return sampleMillis;
+	}
+
+	public int getSampleCount()
+	{
+		return target[0].length;
+	}
+
+	/**
+	 * Where the script wants the device, per sample.  The array is the report's own, don't modify it.
+	 */
+	public double[] getTargetCurve(int column)
+	{
+		return target[column];
+	}
+
+	/**
+	 * Where the simulated table actually is, per sample.  The array is the report's own, don't modify it.
+	 */
+	public double[] getActualCurve(int column)
+	{
+		return actual[column];
+	}
+
+	/**
+	 * Largest distance between the target and actual curves, in application units.
+	 */
+	public double getWorstTrackingError(int column)
+	{
+		return worstTrackingError[column];
+	}
+
+	/**
+	 * One line summary for logs and the command line.
+	 */
+	public String summary()
+	{
+		if (durationSeconds == 0 && !problems.isEmpty() && problems.get(0).kind == Kind.PARSE_ERROR) {
+			return String.format("%-32s PARSE ERROR %s", name, problems.get(0).message);
+		}
+		return String.format("%-32s %6d s  %3d moves  %7.1f L  positioning %5.1f s  %s", name, durationSeconds, moveCount, pumpedLiters,
+				positioningSeconds, problems.isEmpty() ? "OK" : problems.size() + " problems");
+	}
+}
@@ -0,0 +1,655 @@
+package com.emriver.geomodel.table;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs one TableScript on one table, to the same plan as the C++ runner (model::run_script):
+ * <ul>
+ * <li>Positioning - every device is sent straight to where the script starts, and we wait for the table to report that nothing is moving
+ * any more.</li>
+ * <li>Running - the script clock starts, and the script's CompiledScript moves go out as their start times come up.  Each carries
+ * an absolute deadline (the script clock converted to the table clock by the connection), so the timing is the table's job: a move
+ * sent a little late still ends on time, and a short stall here doesn't put the script behind.</li>
+ * </ul>
+ * Moves starting within the lookahead window of the one that is due go out with it in one packet, so the table may start those a
+ * little early.  Between moves nothing is sent at all, other than the connection's keep alive.
+ * <p>
+ * After every step the position is written to a save file in the C++ format ("seconds,pitch,roll,pipe,flow" as reported by the table, in
+ * wire units), so an interrupted run can be picked up with resumeFromSave() like MODE_RESUME does.
+ * <p>
+ * Can be paused (the table is told to stop where it is), resumed (ramps continue from there, on the original timing of the rest of the
+ * script), and seeked to any time in the script (repositions first, like a start).
+ * <p>
+ * There's no thread in here, a ScriptScheduler calls poll() when the next move or step is due.  Control methods can be called from any thread.
+ * Moves are sent under sendLock from the moment they are picked, and stop()/pause() change the state and send their stops under it too,
+ * so a batch the scheduler picked just before a stop can never reach the table after the stops.
+ */
+public class ScriptRunner
+{
+	public enum State
+	{
+		IDLE,
+		POSITIONING,
+		RUNNING,
+		PAUSED,
+		FINISHED
+	}
+
+	// Give the table time to report the positioning moves before believing "not moving"
+	private static final long POSITION_SETTLE_NANOS = 1_000_000_000L;
+	private static final long POSITION_POLL_NANOS = 250_000_000L;
+	// Positioning gives up after twice the slowest device's travel at its rate limit plus this, so the pump and pipes are waited on for
+	// seconds but a full pitch change gets its few minutes
+	private static final long POSITION_TIMEOUT_MIN_NANOS = 30 * 1_000_000_000L;
+	private static final double POSITION_TIMEOUT_FACTOR = 2.0;
+
+	public static final long DEFAULT_LOOKAHEAD_MILLIS = 500;
+
+	private final TableScript script;
+	private final CompiledScript compiled;
+	private final TableController controller;
+	private final ScriptScheduler scheduler;
+	private final CopyOnWriteArrayList<IScriptListener> listeners = new CopyOnWriteArrayList<IScriptListener>();
+
+	private volatile Path saveFile = null;
+	private volatile long lookaheadMillis = DEFAULT_LOOKAHEAD_MILLIS;
+
+	// Held (before this) across deciding what to send and sending it, see the class comment
+	private final Object sendLock = new Object();
+
+	// Guarded by this
+	private State state = State.IDLE;
+	private long anchorNanos;				// the script time anchorMillis happens (happened) at this System.nanoTime()
+	private long anchorMillis;
+	private int nextStep;					// next step to save at while running
+	private int nextMove;					// next compiled move to send while running
+	private long pausedMillis = 0;			// script position while not running
+	private boolean needsPositioning = true;
+	private long positionStartNanos;
+	private long positionMillis;			// script time we are positioning for
+	private long positionTimeoutNanos;
+	private long worstLatenessNanos = 0;
+	private long batchCount = 0;
+
+	private static final Logger logger = LoggerFactory.getLogger(ScriptRunner.class);
+
+
+	public ScriptRunner(TableScript script, TableController controller, ScriptScheduler scheduler)
+	{
+		this.script = script;
+		this.compiled = CompiledScript.compile(script);
+		this.controller = controller;
+		this.scheduler = scheduler;
+	}
+
+	public ScriptRunner(TableScript script, TableController controller)
+	{
+		this(script, controller, ScriptScheduler.getShared());
+	}
+
+	public TableScript getScript()
+	{
+		return script;
+	}
+
+	public CompiledScript getCompiledScript()
+	{
+		return compiled;
+	}
+
+	public TableController getController()
+	{
+		return controller;
+	}
+
+	/**
+	 * Where to keep the position after every step, null (the default) for nowhere.
+	 */
+	public void setSaveFile(Path saveFile)
+	{
+		this.saveFile = saveFile;
+	}
+
+	public Path getSaveFile()
+	{
+		return saveFile;
+	}
+
+	/**
+	 * The save file name the C++ runner uses, a hidden ".name.save" next to the script.
+	 */
+	public static Path defaultSaveFile(Path scriptPath)
+	{
+		return scriptPath.resolveSibling("." + scriptPath.getFileName() + ".save");
+	}
+
+	/**
+	 * How far ahead of their start time moves may be sent along with the one that is due (ms), 0 to send every move exactly on time.
+	 */
+	public void setLookahead(long lookaheadMillis)
+	{
+		this.lookaheadMillis = Math.max(0, lookaheadMillis);
+	}
+
+	public long getLookahead()
+	{
+		return lookaheadMillis;
+	}
+
+	public void addScriptListener(IScriptListener listener)
+	{
+		listeners.addIfAbsent(listener);
+	}
+
+	public void removeScriptListener(IScriptListener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Control
+
+	/**
+	 * Run the script from the beginning.
+	 */
+	public void start()
+	{
+		startAt(0);
+	}
+
+	/**
+	 * Run the script from any time in it (ms from its start), positioning the table first.
+	 */
+	public void startAt(long millis)
+	{
+		millis = clampMillis(millis);
+		double[] values = new double[TableScript.COLUMNS];
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			values[c] = script.getValueAt(c, millis);
+		}
+		Request[] moves;
+		synchronized (sendLock) {
+			synchronized (this) {
+				moves = beginPositioning(millis, values);
+			}
+			sendMoves(moves);
+		}
+		fireMovesSent(moves);
+		fireStateChanged(State.POSITIONING);
+		scheduler.add(this);
+	}
+
+	/**
+	 * Pick up an interrupted run from its save file: position the table to the saved values, and carry on from the saved time.
+	 */
+	public void resumeFromSave(Path saveFile) throws IOException
+	{
+		SavePoint save = readSaveFile(saveFile);
+		Request[] moves;
+		synchronized (sendLock) {
+			synchronized (this) {
+				moves = beginPositioning(clampMillis(save.seconds * 1000L), save.values);
+			}
+			sendMoves(moves);
+		}
+		fireMovesSent(moves);
+		fireStateChanged(State.POSITIONING);
+		scheduler.add(this);
+	}
+
+	/**
+	 * Hold the table where it is.  Script time stands still until resume().
+	 */
+	public void pause()
+	{
+		synchronized (sendLock) {
+			synchronized (this) {
+				if (state == State.RUNNING) {
+					pausedMillis = getPositionMillis(System.nanoTime());
+					needsPositioning = false;
+				}
+				else if (state == State.POSITIONING) {
+					pausedMillis = positionMillis;
+					needsPositioning = true;
+				}
+				else {
+					return;
+				}
+				state = State.PAUSED;
+			}
+			sendStops();
+		}
+		logger.info("script {} paused at {} s", script.getName(), pausedMillis / 1000);
+		fireStateChanged(State.PAUSED);
+	}
+
+	public void resume()
+	{
+		Request[] moves;
+		State changedTo;
+		synchronized (sendLock) {
+			synchronized (this) {
+				if (state != State.PAUSED) {
+					return;
+				}
+				if (needsPositioning) {
+					double[] values = new double[TableScript.COLUMNS];
+					for (int c = 0; c < TableScript.COLUMNS; c++) {
+						values[c] = script.getValueAt(c, pausedMillis);
+					}
+					moves = beginPositioning(pausedMillis, values);
+				}
+				else {
+					moves = beginRunning(System.nanoTime(), pausedMillis);
+				}
+				changedTo = state;
+			}
+			sendMoves(moves);
+		}
+		fireMovesSent(moves);
+		fireStateChanged(changedTo);
+		scheduler.changed();
+	}
+
+	/**
+	 * Jump to any time in the script (ms from its start).  While paused this only moves the position, resume() positions the table.
+	 */
+	public void seek(long millis)
+	{
+		synchronized (this) {
+			if (state == State.PAUSED) {
+				pausedMillis = clampMillis(millis);
+				needsPositioning = true;
+				return;
+			}
+		}
+		startAt(millis);
+	}
+
+	/**
+	 * Stop the script and the table.
+	 */
+	public void stop()
+	{
+		synchronized (sendLock) {
+			synchronized (this) {
+				if (state == State.IDLE) {
+					return;
+				}
+				state = State.IDLE;
+			}
+			sendStops();
+		}
+		scheduler.remove(this);
+		fireStateChanged(State.IDLE);
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	public synchronized State getState()
+	{
+		return state;
+	}
+
+	/**
+	 * Script time now, ms from the start of the script.
+	 */
+	public synchronized long getPositionMillis()
+	{
+		return getPositionMillis(System.nanoTime());
+	}
+
+	/**
+	 * Index of the next step to reach, getStepCount() once they have all been reached.
+	 */
+	public synchronized int getNextStep()
+	{
+		return nextStep;
+	}
+
+	/**
+	 * Latest a batch of moves has gone out after its due time so far, a measure of how well the scheduler is keeping up.
+	 */
+	public synchronized long getWorstLatenessNanos()
+	{
+		return worstLatenessNanos;
+	}
+
+	/**
+	 * Batches of moves sent so far (each one is one packet on a binary connection), not counting positioning.
+	 */
+	public synchronized long getBatchCount()
+	{
+		return batchCount;
+	}
+
+	private long getPositionMillis(long now)
+	{
+		switch (state) {
+		case RUNNING:
+			return clampMillis(anchorMillis + (now - anchorNanos) / 1_000_000L);
+		case POSITIONING:
+			return positionMillis;
+		case FINISHED:
+			return script.getDurationSeconds() * 1000L;
+		default:
+			return pausedMillis;
+		}
+	}
+
+	private long clampMillis(long millis)
+	{
+		return Math.max(0, Math.min(millis, script.getDurationSeconds() * 1000L));
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Scheduler side
+
+	/**
+	 * Do whatever is due.
+	 *
+	 * @return ns until this runner next needs a poll, -1 if it doesn't (not running)
+	 */
+	long poll(long now)
+	{
+		Request[] moves = null;
+		State changedTo = null;
+		long savedSeconds = -1;
+		long delay;
+
+		synchronized (sendLock) {
+			synchronized (this) {
+				switch (state) {
+				case POSITIONING:
+					delay = positionStartNanos + POSITION_SETTLE_NANOS - now;
+					if (delay > 0) {
+						break;
+					}
+					boolean timedOut = now - positionStartNanos > positionTimeoutNanos;
+					if (isTableMoving() && !timedOut) {
+						delay = POSITION_POLL_NANOS;
+						break;
+					}
+					if (timedOut) {
+						logger.warn("script {} gave up waiting for the table to reach the start position after {} s", script.getName(),
+								positionTimeoutNanos / 1_000_000_000L);
+					}
+					moves = beginRunning(now, positionMillis);
+					changedTo = state;
+					savedSeconds = positionMillis / 1000;
+					delay = nextDelay(now);
+					break;
+
+				case RUNNING:
+					if (nextMove < compiled.getMoveCount()) {
+						long late = now - dueNanos(compiled.getStartMillis(nextMove));
+						if (late >= 0) {
+							worstLatenessNanos = Math.max(worstLatenessNanos, late);
+							moves = gatherMoves(now, compiled.getStartMillis(nextMove) + lookaheadMillis, null);
+						}
+					}
+					// Steps only matter for the save file now, the moves carry the motion
+					while (nextStep < script.getStepCount() && now - dueNanos(script.getSeconds(nextStep) * 1000L) >= 0) {
+						savedSeconds = script.getSeconds(nextStep);
+						nextStep++;
+					}
+					delay = nextDelay(now);
+					if (delay < 0) {
+						state = State.FINISHED;
+						changedTo = State.FINISHED;
+						logger.info("script {} finished after {} batches, worst lateness {} us", script.getName(), batchCount, worstLatenessNanos / 1000);
+					}
+					break;
+
+				default:
+					delay = -1;
+					break;
+				}
+			}
+			sendMoves(moves);
+		}
+
+		// Outside the locks, listeners and the save file must not hold up pause() etc. on other threads
+		fireMovesSent(moves);
+		if (savedSeconds >= 0) {
+			writeSaveFile(savedSeconds);
+		}
+		if (changedTo == State.FINISHED) {
+			scheduler.remove(this);
+		}
+		if (changedTo != null) {
+			fireStateChanged(changedTo);
+		}
+		return delay;
+	}
+
+	// System.nanoTime() of a script time, caller holds the lock
+	private long dueNanos(long millis)
+	{
+		return anchorNanos + (millis - anchorMillis) * 1_000_000L;
+	}
+
+	// ns until the next move or step, -1 once there are none left.  Caller holds the lock.
+	private long nextDelay(long now)
+	{
+		if (state != State.RUNNING) {
+			return -1;
+		}
+		long delay = Long.MAX_VALUE;
+		if (nextMove < compiled.getMoveCount()) {
+			delay = dueNanos(compiled.getStartMillis(nextMove)) - now;
+		}
+		if (nextStep < script.getStepCount()) {
+			delay = Math.min(delay, dueNanos(script.getSeconds(nextStep) * 1000L) - now);
+		}
+		return (delay == Long.MAX_VALUE) ? -1 : Math.max(0, delay);
+	}
+
+	// Caller holds the lock
+	private Request[] beginPositioning(long millis, double[] values)
+	{
+		state = State.POSITIONING;
+		positionMillis = millis;
+		positionStartNanos = System.nanoTime();
+		positionTimeoutNanos = positioningTimeout(values);
+		worstLatenessNanos = 0;
+		batchCount = 0;
+
+		Request[] moves = new Request[TableScript.COLUMNS];
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			moves[c] = new Request(TableScript.getDevice(c), TableController.CMD_SET, values[c], 0);
+		}
+		logger.info("script {} positioning for {} s", script.getName(), millis / 1000);
+		return moves;
+	}
+
+	/**
+	 * Start the script clock with the table sitting at the given script time.  Devices that should be part way through a move get that
+	 * move again, with its original deadline on the new clock.  Caller holds the lock.
+	 */
+	private Request[] beginRunning(long now, long millis)
+	{
+		state = State.RUNNING;
+		anchorNanos = now;
+		anchorMillis = millis;
+
+		// Everything up to now is already reflected in where the table is
+		nextStep = script.findStep(millis + 1);
+		nextMove = compiled.findMove(millis);
+
+		ArrayList<Request> inProgress = new ArrayList<Request>(TableScript.COLUMNS);
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			int move = compiled.findMoveInProgress(c, millis);
+			if (move >= 0) {
+				inProgress.add(timedMove(move, now));
+			}
+		}
+		logger.info("script {} running from {} s", script.getName(), millis / 1000);
+		return gatherMoves(now, millis + lookaheadMillis, inProgress);
+	}
+
+	/**
+	 * Take every move starting up to the given script time, into one batch so they go out in one packet.  Caller holds the lock.
+	 */
+	private Request[] gatherMoves(long now, long upToMillis, ArrayList<Request> batch)
+	{
+		if (batch == null) {
+			batch = new ArrayList<Request>(TableScript.COLUMNS);
+		}
+		while (nextMove < compiled.getMoveCount() && compiled.getStartMillis(nextMove) <= upToMillis) {
+			batch.add(timedMove(nextMove, now));
+			nextMove++;
+		}
+		if (batch.isEmpty()) {
+			return null;
+		}
+		batchCount++;
+		return batch.toArray(new Request[batch.size()]);
+	}
+
+	private Request timedMove(int move, long now)
+	{
+		long deadlineNanos = dueNanos(compiled.getDeadlineMillis(move));
+		// seconds is only for connections that can't do absolute deadlines
+		long millis = (deadlineNanos - now) / 1_000_000L;
+		Request request = new Request(compiled.getDevice(move), TableController.CMD_SET, compiled.getValue(move), (int) Math.max(0, (millis + 500) / 1000));
+		request.deadlineNanos = deadlineNanos;
+		return request;
+	}
+
+	// Caller holds sendLock
+	private void sendMoves(Request[] moves)
+	{
+		if (moves == null || moves.length == 0) {
+			return;
+		}
+		controller.sendRequests(moves);
+	}
+
+	private void fireMovesSent(Request[] moves)
+	{
+		if (moves == null || moves.length == 0) {
+			return;
+		}
+		for (IScriptListener l : listeners) {
+			l.movesSent(this, moves);
+		}
+	}
+
+	// How long positioning to these values may reasonably take, from how far each device has to go at its rate limit.  A device we have
+	// no reading for yet is assumed to start from the far end of its travel.
+	private long positioningTimeout(double[] values)
+	{
+		double slowestSeconds = 0;
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			Device device = TableScript.getDevice(c);
+			double to = values[c];
+			Response r = controller.getCurrentValue(device);
+			double from;
+			if (r != null) {
+				from = r.value;
+			}
+			else {
+				from = (Math.abs(device.getMax() - to) > Math.abs(to - device.getMin())) ? device.getMax() : device.getMin();
+			}
+			double wireDistance = Math.abs(CapsuleCodec.toWireValue(device, to) - CapsuleCodec.toWireValue(device, from));
+			slowestSeconds = Math.max(slowestSeconds, wireDistance / CapsuleCodec.toWireValue(device, device.getMaxRate()));
+		}
+		return POSITION_TIMEOUT_MIN_NANOS + (long) (slowestSeconds * POSITION_TIMEOUT_FACTOR * 1_000_000_000L);
+	}
+
+	private boolean isTableMoving()
+	{
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			Response r = controller.getCurrentValue(TableScript.getDevice(c));
+			if (r != null && (r.flags & CapsuleCodec.OPERATOR_FLAG_MOVING) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Caller holds sendLock
+	private void sendStops()
+	{
+		RequestBatch batch = controller.newBatch();
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			batch.stop(TableScript.getDevice(c));
+		}
+		batch.send();
+	}
+
+	private void fireStateChanged(State state)
+	{
+		for (IScriptListener l : listeners) {
+			l.stateChanged(this, state);
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Save file
+
+	/**
+	 * Contents of a save file: script time and the table's values then, in application units.
+	 */
+	public static class SavePoint
+	{
+		public final int seconds;
+		public final double[] values;
+
+		public SavePoint(int seconds, double[] values)
+		{
+			this.seconds = seconds;
+			this.values = values;
+		}
+	}
+
+	public static SavePoint readSaveFile(Path path) throws IOException
+	{
+		String text = new String(Files.readAllBytes(path), StandardCharsets.ISO_8859_1).trim();
+		String[] tokens = text.split(",");
+		if (tokens.length != TableScript.COLUMNS + 1) {
+			throw new IOException("error in save file " + path);
+		}
+		try {
+			int seconds = Integer.parseInt(tokens[0].trim());
+			double[] values = new double[TableScript.COLUMNS];
+			for (int c = 0; c < TableScript.COLUMNS; c++) {
+				values[c] = CapsuleCodec.fromWireValue(TableScript.getDevice(c), Integer.parseInt(tokens[c + 1].trim()));
+			}
+			return new SavePoint(seconds, values);
+		}
+		catch (NumberFormatException e) {
+			throw new IOException("error in save file " + path);
+		}
+	}
+
+	private void writeSaveFile(long seconds)
+	{
+		Path path = saveFile;
+		if (path == null) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder(32);
+		sb.append(seconds);
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			Device device = TableScript.getDevice(c);
+			Response r = controller.getCurrentValue(device);
+			sb.append(',').append(r == null ? 0 : CapsuleCodec.toWireValue(device, r.value));
+		}
+		try {
+			Files.write(path, sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+		}
+		catch (IOException e) {
+			logger.warn("failed to write save file {}", path, e);
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.emriver.geomodel.table;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.util.TimerWheel;
+
+/**
+ * Runs the steps of every ScriptRunner as a single task on a TimerWheel, so several tables can run long scripts without a thread (or a
+ * busy loop) each.
+ * <p>
+ * Each runner knows the System.nanoTime() of its next step.  Each pass lets every runner that is due do its work, then books the next
+ * pass on the wheel for the earliest next one.  The runners work out their deadlines from a fixed anchor (start time + script seconds),
+ * never from "now + interval", so being a little late on one step doesn't push the later ones back.  The shared wheel has 1 ms ticks,
+ * and the moves carry absolute table deadlines anyway, so a pass a millisecond late changes nothing on the table.
+ * <p>
+ * Nothing is on the wheel when no runner is waiting on anything.
+ */
+public class ScriptScheduler
+{
+	private static ScriptScheduler shared = null;
+
+	private final String name;
+	private final TimerWheel wheel;
+	private final CopyOnWriteArrayList<ScriptRunner> runners = new CopyOnWriteArrayList<ScriptRunner>();
+
+	// Set when a runner's deadline moved, so a pass that is running right now goes round again instead of booking its stale wait
+	private final AtomicBoolean signalled = new AtomicBoolean(false);
+
+	// Guarded by this
+	private TimerWheel.Timeout nextPass = null;
+	private long nextPassNanos = Long.MAX_VALUE;
+	private boolean keepRunning = true;
+
+	private static final Logger logger = LoggerFactory.getLogger(ScriptScheduler.class);
+
+
+	public ScriptScheduler(String name, TimerWheel wheel)
+	{
+		this.name = name;
+		this.wheel = wheel;
+	}
+
+	/**
+	 * The scheduler all runners use unless given their own, on the shared TimerWheel.
+	 */
+	public static synchronized ScriptScheduler getShared()
+	{
+		if (shared == null) {
+			shared = new ScriptScheduler("ScriptScheduler", TimerWheel.getShared());
+		}
+		return shared;
+	}
+
+	void add(ScriptRunner runner)
+	{
+		runners.addIfAbsent(runner);
+		changed();
+	}
+
+	void remove(ScriptRunner runner)
+	{
+		runners.remove(runner);
+	}
+
+	public int getRunnerCount()
+	{
+		return runners.size();
+	}
+
+	/**
+	 * A runner's deadline moved (start, pause, seek...), go round again.
+	 */
+	void changed()
+	{
+		signalled.set(true);
+		book(0);
+	}
+
+	/**
+	 * Stop booking passes.  The wheel itself is left alone, other things run on it.
+	 */
+	public synchronized void shutdown()
+	{
+		keepRunning = false;
+		if (nextPass != null) {
+			nextPass.cancel();
+			nextPass = null;
+		}
+	}
+
+	// Make sure a pass happens within delayNanos, keeping an already booked one if it is sooner
+	private synchronized void book(long delayNanos)
+	{
+		if (!keepRunning) {
+			return;
+		}
+		long at = System.nanoTime() + delayNanos;
+		if (nextPass != null) {
+			if (nextPassNanos <= at) {
+				return;
+			}
+			nextPass.cancel();
+		}
+		nextPass = wheel.schedule(() -> pass(), (delayNanos + 999_999) / 1_000_000);
+		nextPassNanos = at;
+	}
+
+	private void pass()
+	{
+		synchronized (this) {
+			nextPass = null;
+			nextPassNanos = Long.MAX_VALUE;
+		}
+		signalled.set(false);
+
+		long wait = Long.MAX_VALUE;
+		for (ScriptRunner runner : runners) {
+			long delay;
+			try {
+				delay = runner.poll(System.nanoTime());
+			}
+			catch (Exception e) {
+				// One broken script must not stall the others
+				logger.warn("{}: script {} threw, stopping it", name, runner.getScript().getName(), e);
+				runner.stop();
+				continue;
+			}
+			if (delay >= 0 && delay < wait) {
+				wait = delay;
+			}
+		}
+
+		if (signalled.get()) {
+			book(0);
+		}
+		else if (wait != Long.MAX_VALUE) {
+			book(wait);
+		}
+	}
+}
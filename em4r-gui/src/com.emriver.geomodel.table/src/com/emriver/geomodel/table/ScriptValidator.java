@@ -0,0 +1,289 @@
+package com.emriver.geomodel.table;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks a script before a table gets committed to it, by running it through the SimulatedOperator motion model in virtual time.  A
+ * three hour script takes a few milliseconds.
+ * <p>
+ * Finds values outside Device.getMin/getMax, and moves faster than the operators' rate limits (Device.getMaxRate).  Works out
+ * how long the table takes to get to the start position and how much water the pump moves, and keeps the target and predicted actual
+ * curves for plotting.
+ * <p>
+ * validateDirectory() checks a whole script library in parallel on the common fork-join pool.
+ */
+public class ScriptValidator
+{
+	// Virtual time step of the motion model, and how often the curves are sampled
+	public static final long SIM_STEP_MILLIS = 100;
+	public static final long DEFAULT_SAMPLE_MILLIS = 1000;
+
+	// Give up on positioning after this long, something is badly wrong with the rates
+	private static final long MAX_POSITIONING_MILLIS = 60 * 60 * 1000L;
+
+	// Table clock at the start of the simulation, anything but 0 (which means "no deadline" to an operator)
+	private static final long CLOCK_START = 1_000_000L;
+
+	// Below this many scripts a fork-join task just does them itself
+	private static final int SPLIT_THRESHOLD = 2;
+
+	private static final Logger logger = LoggerFactory.getLogger(ScriptValidator.class);
+
+
+	public static ScriptReport validate(TableScript script)
+	{
+		return validate(script, DEFAULT_SAMPLE_MILLIS);
+	}
+
+	public static ScriptReport validate(TableScript script, long sampleMillis)
+	{
+		ScriptReport report = new ScriptReport(script.getName());
+		CompiledScript compiled = CompiledScript.compile(script);
+		report.durationSeconds = script.getDurationSeconds();
+		report.moveCount = compiled.getMoveCount();
+
+		checkRanges(script, report);
+		checkRates(script, compiled, report);
+		simulate(script, compiled, sampleMillis, report);
+		return report;
+	}
+
+	/**
+	 * Parse and validate a script file.  A file that doesn't parse gets a report with just the PARSE_ERROR problem.
+	 */
+	public static ScriptReport validate(Path path)
+	{
+		TableScript script;
+		try {
+			script = TableScript.parse(path);
+		}
+		catch (IOException e) {
+			ScriptReport report = new ScriptReport(path.getFileName().toString());
+			report.addProblem(ScriptReport.Kind.PARSE_ERROR, null, 0, e.getMessage());
+			return report;
+		}
+		return validate(script);
+	}
+
+	/**
+	 * Validate every script in a directory (skipping hidden files, like the C++ runner's save files), in parallel.
+	 *
+	 * @return one report per script, sorted by name
+	 */
+	public static List<ScriptReport> validateDirectory(Path dir) throws IOException
+	{
+		ArrayList<Path> paths = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				if (Files.isRegularFile(path) && !path.getFileName().toString().startsWith(".")) {
+					paths.add(path);
+				}
+			}
+		}
+		Collections.sort(paths);
+		return ForkJoinPool.commonPool().invoke(new ValidateTask(paths, 0, paths.size()));
+	}
+
+	// Splits the list in halves until the pieces are small, so idle workers can steal the other half
+	private static class ValidateTask extends RecursiveTask<List<ScriptReport>>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final List<Path> paths;
+		private final int from;
+		private final int to;
+
+		ValidateTask(List<Path> paths, int from, int to)
+		{
+			this.paths = paths;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected List<ScriptReport> compute()
+		{
+			if (to - from <= SPLIT_THRESHOLD) {
+				ArrayList<ScriptReport> reports = new ArrayList<ScriptReport>(to - from);
+				for (int i = from; i < to; i++) {
+					reports.add(validate(paths.get(i)));
+				}
+				return reports;
+			}
+			int mid = (from + to) >>> 1;
+			ValidateTask left = new ValidateTask(paths, from, mid);
+			left.fork();
+			List<ScriptReport> right = new ValidateTask(paths, mid, to).compute();
+			List<ScriptReport> reports = new ArrayList<ScriptReport>(left.join());
+			reports.addAll(right);
+			return reports;
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	private static void checkRanges(TableScript script, ScriptReport report)
+	{
+		for (int step = 0; step < script.getStepCount(); step++) {
+			for (int c = 0; c < TableScript.COLUMNS; c++) {
+				if (!script.isExplicit(step, c)) {
+					continue;
+				}
+				Device device = TableScript.getDevice(c);
+				double value = script.getValue(step, c);
+				if (value < device.getMin() || value > device.getMax()) {
+					report.addProblem(ScriptReport.Kind.OUT_OF_RANGE, device, script.getSeconds(step),
+							String.format("%s %.1f %s is outside %.1f to %.1f", device, value, device.getUnit(), device.getMin(), device.getMax()));
+				}
+			}
+		}
+	}
+
+	private static void checkRates(TableScript script, CompiledScript compiled, ScriptReport report)
+	{
+		for (int i = 0; i < compiled.getMoveCount(); i++) {
+			Device device = compiled.getDevice(i);
+			long start = compiled.getStartMillis(i);
+			long deadline = compiled.getDeadlineMillis(i);
+			// Where the table should be when the move starts, clamped like the table would
+			double from = clamp(device, script.getValueAt(compiled.getColumn(i), start));
+			double to = clamp(device, compiled.getValue(i));
+			double wireDistance = Math.abs(CapsuleCodec.toWireValue(device, to) - CapsuleCodec.toWireValue(device, from));
+			double wireRate = wireDistance * 1000.0 / (deadline - start);
+			double maxRate = CapsuleCodec.toWireValue(device, device.getMaxRate());
+			if (wireRate > maxRate) {
+				double needed = (wireDistance / maxRate) * 1000.0;
+				report.addProblem(ScriptReport.Kind.TOO_FAST, device, (int) (start / 1000),
+						String.format("%s %.1f to %.1f %s in %d s needs at least %.0f s", device, from, to, device.getUnit(),
+								(deadline - start) / 1000, Math.ceil(needed / 1000.0)));
+			}
+		}
+	}
+
+	private static double clamp(Device device, double value)
+	{
+		return Math.max(device.getMin(), Math.min(device.getMax(), value));
+	}
+
+	/**
+	 * Run the compiled moves through one SimulatedOperator per column in virtual time, the same way TableSimulator does in real time.
+	 */
+	private static void simulate(TableScript script, CompiledScript compiled, long sampleMillis, ScriptReport report)
+	{
+		SimulatedOperator[] operators = new SimulatedOperator[TableScript.COLUMNS];
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			Device device = TableScript.getDevice(c);
+			operators[c] = new SimulatedOperator(device);
+		}
+
+		// Positioning, from the parked position at full speed
+		long clock = CLOCK_START;
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			SimulatedOperator op = operators[c];
+			op.move(CapsuleCodec.toWireValue(op.getDevice(), script.getValue(0, c)), 0);
+		}
+		while (anyMoving(operators) && clock - CLOCK_START < MAX_POSITIONING_MILLIS) {
+			clock += SIM_STEP_MILLIS;
+			for (SimulatedOperator op : operators) {
+				op.step(clock, SIM_STEP_MILLIS);
+			}
+		}
+		report.positioningSeconds = (clock - CLOCK_START) / 1000.0;
+
+		// The script, script time 0 is table time scriptStart
+		long scriptStart = clock;
+		long duration = script.getDurationSeconds() * 1000L;
+		int samples = (int) (duration / sampleMillis) + 1;
+		report.sampleMillis = sampleMillis;
+		for (int c = 0; c < TableScript.COLUMNS; c++) {
+			report.target[c] = new double[samples];
+			report.actual[c] = new double[samples];
+		}
+
+		int nextMove = 0;
+		int nextSample = 0;
+		double pumpedMilliliters = 0;
+		for (long t = 0; t <= duration; t += SIM_STEP_MILLIS) {
+			while (nextMove < compiled.getMoveCount() && compiled.getStartMillis(nextMove) <= t) {
+				SimulatedOperator op = operators[compiled.getColumn(nextMove)];
+				op.move(CapsuleCodec.toWireValue(op.getDevice(), compiled.getValue(nextMove)), scriptStart + compiled.getDeadlineMillis(nextMove));
+				nextMove++;
+			}
+
+			while (nextSample < samples && nextSample * sampleMillis <= t) {
+				for (int c = 0; c < TableScript.COLUMNS; c++) {
+					double target = script.getValueAt(c, nextSample * sampleMillis);
+					double actual = CapsuleCodec.fromWireValue(operators[c].getDevice(), operators[c].getWireValue());
+					report.target[c][nextSample] = target;
+					report.actual[c][nextSample] = actual;
+					report.worstTrackingError[c] = Math.max(report.worstTrackingError[c], Math.abs(target - actual));
+				}
+				nextSample++;
+			}
+
+			if (t < duration) {
+				// Pump value is mL/s
+				pumpedMilliliters += operators[TableScript.COLUMN_FLOW].getWireValue() * SIM_STEP_MILLIS / 1000.0;
+				for (SimulatedOperator op : operators) {
+					op.step(scriptStart + t + SIM_STEP_MILLIS, SIM_STEP_MILLIS);
+				}
+			}
+		}
+		report.pumpedLiters = pumpedMilliliters / 1000.0;
+	}
+
+	private static boolean anyMoving(SimulatedOperator[] operators)
+	{
+		for (SimulatedOperator op : operators) {
+			if (op.isMoving()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	/**
+	 * Check a script library from the command line: ScriptValidator [directory or script file]...
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length == 0) {
+			System.out.println("usage: ScriptValidator <script directory or file>...");
+			return;
+		}
+		for (String arg : args) {
+			Path path = Paths.get(arg);
+			List<ScriptReport> reports;
+			long started = System.nanoTime();
+			if (Files.isDirectory(path)) {
+				reports = validateDirectory(path);
+			}
+			else {
+				reports = Collections.singletonList(validate(path));
+			}
+			long elapsed = System.nanoTime() - started;
+
+			for (ScriptReport report : reports) {
+				System.out.println(report.summary());
+				for (ScriptReport.Problem problem : report.getProblems()) {
+					System.out.println("    " + problem);
+				}
+			}
+			logger.info("validated {} scripts in {} ms", reports.size(), elapsed / 1_000_000);
+		}
+	}
+}
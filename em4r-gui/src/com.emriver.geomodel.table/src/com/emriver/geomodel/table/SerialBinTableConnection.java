@@ -0,0 +1,93 @@
+package com.emriver.geomodel.table;
+
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.serial.ISerialIOListener;
+import com.elmocity.elib.serial.SerialFramer;
+import com.elmocity.elib.serial.SerialIO;
+import com.elmocity.elib.util.WireMessage;
+
+
+/**
+ * The same binary capsule protocol as EthernetTableConnection, carried over a serial port with SLIP framing (one frame = one datagram).
+ * <p>
+ * Unlike SerialTableConnection (the old text protocol), this gets retransmission, clock estimation and the allocation free decoder.
+ */
+public class SerialBinTableConnection extends BinTableConnection implements ISerialIOListener
+{
+	public static final int DEFAULT_BAUD_RATE = 115200;
+
+	private final String portName;
+	private final int baudRate;
+	private volatile SerialIO serial;
+
+	private static final Logger logger = LoggerFactory.getLogger(SerialBinTableConnection.class);
+
+
+	public SerialBinTableConnection(String portName)
+	{
+		this(portName, DEFAULT_BAUD_RATE);
+	}
+
+	public SerialBinTableConnection(String portName, int baudRate)
+	{
+		this.portName = portName;
+		this.baudRate = baudRate;
+	}
+
+	@Override
+	protected boolean openLink()
+	{
+		// DEBUG: show the status of the CommPorts before we try to connect in the debug log.
+		SerialIO.logCommPorts();
+
+		SerialIO port = new SerialIO();
+		boolean worked = port.startup(portName, baudRate, SerialFramer.Framing.SLIP, this);
+		if (!worked) {
+			logger.warn("unable to startup comm port {}", portName);
+			return false;
+		}
+		serial = port;
+		return true;
+	}
+
+	@Override
+	protected void closeLink()
+	{
+		SerialIO port = serial;
+		if (port != null) {
+			serial = null;
+			port.shutdown();
+		}
+	}
+
+	@Override
+	protected boolean isLinkOpen()
+	{
+		return serial != null;
+	}
+
+	@Override
+	protected void writeToLink(WireMessage message)
+	{
+		SerialIO port = serial;
+		if (port != null) {
+			port.write(message);
+		}
+	}
+
+	@Override
+	protected String getLinkName()
+	{
+		return "Serial";
+	}
+
+	// Callback from the serial object, once per complete frame.
+	@Override
+	public void receiveMessage(WireMessage message)
+	{
+		super.receiveMessage(message);
+	}
+}
@@ -1,5 +1,6 @@
 package com.emriver.geomodel.table;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 import org.slf4j.Logger;
@@ -11,7 +12,7 @@ import com.elmocity.elib.util.WireMessage;
 
 public class SerialTableConnection implements ITableConnection, ISerialIOListener
 {
-    private final String portName = "COM4";		// TODO param
+    private final String portName;
 
     private SerialIO serial;
     
@@ -27,6 +28,17 @@ public class SerialTableConnection implements ITableConnection, ISerialIOListene
 	
 	private static final Logger logger = LoggerFactory.getLogger(SerialTableConnection.class);
 
+
+	public SerialTableConnection()
+	{
+		this("COM4");
+	}
+
+	public SerialTableConnection(String portName)
+	{
+		this.portName = portName;
+	}
+
 	
 	@Override
 	public void connect()
@@ -69,6 +81,20 @@ public class SerialTableConnection implements ITableConnection, ISerialIOListene
 		serial.write(message);
 	}
 
+	@Override
+	public void sendRequests(Request... requests)
+	{
+		if (serial == null) {
+			return;
+		}
+
+		// The text protocol has no way to group commands, so just send them back to back.
+		for (Request request : requests) {
+			WireMessage message = makeRequestMessage(request);
+			serial.write(message);
+		}
+	}
+
 	@Override
 	public void addTableListener(ITableConnectionListener listener)
 	{
@@ -121,8 +147,7 @@ public class SerialTableConnection implements ITableConnection, ISerialIOListene
 	// Parse the string from the serial line, the EOL has already been removed. 
 	private Response parseResponseMessage(WireMessage message)
 	{
-		byte[] buf = message.getData();
-		String payload = new String(buf);
+		String payload = message.toString(StandardCharsets.US_ASCII);
 		
 		// Remove any leading and trailing whitespace, then break the string up into fields using any whitespace delimiter
 		
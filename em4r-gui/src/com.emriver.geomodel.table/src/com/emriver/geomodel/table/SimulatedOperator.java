@@ -0,0 +1,123 @@
+package com.emriver.geomodel.table;
+
+/**
+ * Motion model for one operator (motor, pump) of a simulated table, all in wire units (10ths of degrees, mm, mL/s).
+ * <p>
+ * A move asks for a value by an absolute table-clock deadline.  The operator moves at whatever speed reaches the target exactly at the
+ * deadline, but never faster than its rate limit, so a "move now" (deadline already passed) runs at full speed.  Targets are clamped
+ * to the device travel limits.
+ * <p>
+ * Owned by TableSimulator, which guards it.
+ */
+public class SimulatedOperator
+{
+	private final Device device;
+	private final int minValue;
+	private final int maxValue;
+	private double maxRate;				// wire units per second
+
+	private double position;
+	private int target;
+	private long deadline;				// table ms, 0 = none
+	private boolean moving = false;
+
+
+	/**
+	 * An operator that moves as fast as the real one, Device.getMaxRate().
+	 */
+	public SimulatedOperator(Device device)
+	{
+		this(device, CapsuleCodec.toWireValue(device, device.getMaxRate()));
+	}
+
+	/**
+	 * @param maxRate wire units per second
+	 */
+	public SimulatedOperator(Device device, double maxRate)
+	{
+		this.device = device;
+		this.minValue = CapsuleCodec.toWireValue(device, device.getMin());
+		this.maxValue = CapsuleCodec.toWireValue(device, device.getMax());
+		this.maxRate = maxRate;
+
+		// Park in the middle of travel, except the pump which starts off
+		this.position = (device == Device.DEV_PUMP) ? minValue : (minValue + maxValue) / 2;
+		this.target = (int) Math.round(position);
+	}
+
+	public Device getDevice()
+	{
+		return device;
+	}
+
+	public void setMaxRate(double maxRate)
+	{
+		this.maxRate = maxRate;
+	}
+
+	public void move(int requestedValue, long deadline)
+	{
+		target = Math.max(minValue, Math.min(maxValue, requestedValue));
+		this.deadline = deadline;
+		moving = (target != (int) Math.round(position));
+	}
+
+	public void stop()
+	{
+		target = (int) Math.round(position);
+		position = target;
+		deadline = 0;
+		moving = false;
+	}
+
+	/**
+	 * Advance the model.
+	 *
+	 * @param now table clock (ms) at the end of the step
+	 * @param dtMillis length of the step
+	 */
+	public void step(long now, double dtMillis)
+	{
+		if (!moving) {
+			return;
+		}
+
+		double remaining = target - position;
+		double maxStep = maxRate * dtMillis / 1000.0;
+
+		// Just fast enough to land on the deadline, capped by the rate limit
+		double step = maxStep;
+		long timeLeft = deadline - now;
+		if (deadline != 0 && timeLeft > 0) {
+			step = Math.min(maxStep, Math.abs(remaining) * dtMillis / (timeLeft + dtMillis));
+		}
+
+		if (Math.abs(remaining) <= step) {
+			position = target;
+			moving = false;
+		}
+		else {
+			position += Math.signum(remaining) * step;
+		}
+	}
+
+	public int getWireValue()
+	{
+		return (int) Math.round(position);
+	}
+
+	public int getTarget()
+	{
+		return target;
+	}
+
+	public long getDeadline()
+	{
+		return deadline;
+	}
+
+	public boolean isMoving()
+	{
+		return moving;
+	}
+}
@@ -0,0 +1,227 @@
+package com.emriver.geomodel.table;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates the table's millisecond clock from our own System.nanoTime(), so commands can carry an accurate absolute deadline instead of
+ * "last timestamp we happened to hear + N seconds".
+ * <p>
+ * Every System Status packet gives one sample (table ms, local nanos when it arrived).  A least squares line through the last N samples
+ * gives the offset and the drift (rate) between the two clocks, and the RMS residual of the samples around that line is the estimation
+ * error, which is mostly network/scheduling jitter.
+ * <p>
+ * A slope from a short or jittery window can be wildly off, and it gets multiplied by how far out a deadline is.  So the drift is only
+ * fitted once the window spans MIN_SLOPE_SPAN_MS, and is clamped to MAX_DRIFT_PPM (two ordinary crystals can't disagree by more).
+ * Until then the fit is offset only, assuming both clocks run at the same rate.
+ * <p>
+ * The table clock is an unsigned 32 bit counter, so it gets unwrapped into a long here.  A big jump backwards means the table rebooted,
+ * and the estimator starts over.
+ * <p>
+ * Called from the receive thread (samples) and any sending thread (estimates), so guarded by this.  No allocation after construction.
+ */
+public class TableClock
+{
+	// Samples that arrive out of order by less than this are just dropped, anything further back is a table reboot.
+	private static final long MAX_REORDER_MS = 1000;
+	private static final long WRAP = 1L << 32;
+
+	// Local time the window has to span before the drift is fitted, and the most drift believed.  Crystals are good to ~100 ppm each.
+	private static final double MIN_SLOPE_SPAN_MS = 2000.0;
+	private static final double MAX_DRIFT_PPM = 200.0;
+
+	private final int windowSize;
+
+	// Ring of samples, x = local time in ms relative to originNanos, y = unwrapped table ms relative to originTable
+	private final double[] xs;
+	private final double[] ys;
+	private int count = 0;
+	private int next = 0;
+
+	private long originNanos;
+	private long originTable;
+
+	// Unwrapping state
+	private long lastRaw = -1;
+	private long unwrapped = 0;
+
+	// Current fit: table = originTable + intercept + slope * x
+	private double slope = 1.0;
+	private double intercept = 0.0;
+	private double rmsErrorMs = 0.0;
+	private long sampleCount = 0;
+	private long resetCount = 0;
+
+	private static final Logger logger = LoggerFactory.getLogger(TableClock.class);
+
+
+	/**
+	 * @param windowSize number of recent samples in the fit, at 10-100 status packets a second a few hundred covers several seconds
+	 */
+	public TableClock(int windowSize)
+	{
+		this.windowSize = windowSize;
+		this.xs = new double[windowSize];
+		this.ys = new double[windowSize];
+	}
+
+	/**
+	 * Add one observation of the table clock.
+	 *
+	 * @param tableTimestamp raw unsigned 32 bit table ms from a System Status capsule
+	 * @param localNanos System.nanoTime() when the packet arrived
+	 */
+	public synchronized void addSample(long tableTimestamp, long localNanos)
+	{
+		long raw = tableTimestamp & 0xFFFFFFFFL;
+
+		if (lastRaw < 0) {
+			restart(raw, localNanos);
+		}
+		else {
+			long delta = (raw - lastRaw) & 0xFFFFFFFFL;
+			if (delta < WRAP / 2) {
+				// Forward (possibly across the 32 bit wrap)
+				unwrapped += delta;
+			}
+			else if (WRAP - delta <= MAX_REORDER_MS) {
+				// Slightly older than one we already have, the network reordered it.  Nothing to learn.
+				return;
+			}
+			else {
+				logger.info("table clock jumped back {} ms, assuming the table restarted", WRAP - delta);
+				resetCount++;
+				restart(raw, localNanos);
+			}
+		}
+		lastRaw = raw;
+
+		xs[next] = (localNanos - originNanos) / 1_000_000.0;
+		ys[next] = unwrapped - originTable;
+		next = (next + 1) % windowSize;
+		if (count < windowSize) {
+			count++;
+		}
+		sampleCount++;
+
+		fit();
+	}
+
+	private void restart(long raw, long localNanos)
+	{
+		count = 0;
+		next = 0;
+		unwrapped = raw;
+		originNanos = localNanos;
+		originTable = raw;
+		slope = 1.0;
+		intercept = 0.0;
+		rmsErrorMs = 0.0;
+	}
+
+	// Least squares over the window, done in two passes around the means so the doubles keep their precision.
+	private void fit()
+	{
+		if (count < 2) {
+			// One sample: assume the clocks run at the same rate
+			slope = 1.0;
+			intercept = ys[0] - xs[0];
+			rmsErrorMs = 0.0;
+			return;
+		}
+
+		double meanX = 0;
+		double meanY = 0;
+		for (int i = 0; i < count; i++) {
+			meanX += xs[i];
+			meanY += ys[i];
+		}
+		meanX /= count;
+		meanY /= count;
+
+		// Oldest sample is the one next will overwrite once the ring is full
+		double oldestX = (count < windowSize) ? xs[0] : xs[next];
+		double newestX = xs[(next + windowSize - 1) % windowSize];
+		if (newestX - oldestX < MIN_SLOPE_SPAN_MS) {
+			// Too short to tell drift from jitter, offset only
+			slope = 1.0;
+		}
+		else {
+			double sxx = 0;
+			double sxy = 0;
+			for (int i = 0; i < count; i++) {
+				double dx = xs[i] - meanX;
+				sxx += dx * dx;
+				sxy += dx * (ys[i] - meanY);
+			}
+			double maxDrift = MAX_DRIFT_PPM / 1_000_000.0;
+			slope = Math.max(1.0 - maxDrift, Math.min(1.0 + maxDrift, sxy / sxx));
+		}
+		intercept = meanY - slope * meanX;
+
+		double sse = 0;
+		for (int i = 0; i < count; i++) {
+			double r = ys[i] - (intercept + slope * xs[i]);
+			sse += r * r;
+		}
+		rmsErrorMs = Math.sqrt(sse / count);
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	/**
+	 * @return true once there is at least one sample to estimate from
+	 */
+	public synchronized boolean isSynchronized()
+	{
+		return count > 0;
+	}
+
+	/**
+	 * Estimate the (unwrapped) table clock at a local instant.  Mask with 0xFFFFFFFF for the wire, the encoders already do.
+	 *
+	 * @return the estimate in table ms, or 0 (unknown) if there are no samples yet
+	 */
+	public synchronized long tableTime(long localNanos)
+	{
+		if (count == 0) {
+			return 0;
+		}
+		double x = (localNanos - originNanos) / 1_000_000.0;
+		return originTable + Math.round(intercept + slope * x);
+	}
+
+	/**
+	 * Estimate the table clock right now.
+	 */
+	public long tableNow()
+	{
+		return tableTime(System.nanoTime());
+	}
+
+	/**
+	 * RMS distance (ms) of the samples in the window from the fitted line, so roughly how far off a deadline may be.
+	 */
+	public synchronized double getErrorMs()
+	{
+		return rmsErrorMs;
+	}
+
+	/**
+	 * How much faster (positive) or slower the table clock runs than ours, in parts per million.
+	 */
+	public synchronized double getDriftPpm()
+	{
+		return (slope - 1.0) * 1_000_000.0;
+	}
+
+	public synchronized long getSampleCount()
+	{
+		return sampleCount;
+	}
+
+	public synchronized long getResetCount()
+	{
+		return resetCount;
+	}
+}
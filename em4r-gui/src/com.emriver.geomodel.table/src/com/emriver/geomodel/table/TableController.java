@@ -1,11 +1,15 @@
 package com.emriver.geomodel.table;
 
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.elmocity.elib.util.SampleRing;
+import com.elmocity.elib.util.TimerWheel;
+
 /**
  * Controller object class for a single Little River R & D EMRiver Table.
  * <br>
@@ -30,10 +34,25 @@ public class TableController implements ITableConnectionListener
 	// Internal connection to the table, handling wire connection and protocol
 	private ITableConnection connection;
 
-	// Cache of the last known data about each device on the table.
+	// Last known data and recent history of each device on this table.
 	// Users never directly query the table/device, they always just get these latest values we know about.
-	private static ConcurrentHashMap<Device, Response> currentValues;
+	private final TelemetryStore telemetry;
+
+	// Pushes value changes to subscribers, so application code doesn't have to poll
+	private final TelemetryDispatcher dispatcher;
+
+	// Optional record of the run, see setJournal()
+	private volatile RunJournal journal = null;
+
+	// Samples of history kept per device, about 80 seconds at the usual 100 packets per second
+	public static final int DEFAULT_HISTORY_SIZE = 8192;
 	
+	// Application level code that wants every raw encoder reading as it arrives.  Unlike device values, these are pushed, not polled.
+	private final CopyOnWriteArrayList<ITableEncoderListener> encoderListeners = new CopyOnWriteArrayList<ITableEncoderListener>();
+
+	// Requests the connection gave up on (after retries)
+	private final AtomicLong deliveryFailureCount = new AtomicLong(0);
+	private volatile Request lastFailedRequest = null;
 
 	private static final Logger logger = LoggerFactory.getLogger(TableController.class);
 
@@ -45,8 +64,27 @@ public class TableController implements ITableConnectionListener
 	 * @param connection
 	 */
 	public TableController(ITableConnection connection)
+	{
+		this(connection, DEFAULT_HISTORY_SIZE);
+	}
+
+	/**
+	 * @param historySize status samples to keep per device (rounded up to a power of 2)
+	 */
+	public TableController(ITableConnection connection, int historySize)
+	{
+		this(connection, historySize, null);
+	}
+
+	/**
+	 * @param historySize status samples to keep per device (rounded up to a power of 2)
+	 * @param dispatchWheel deliver subscriptions as passes on this wheel instead of a dispatcher thread of our own, null for our own
+	 */
+	public TableController(ITableConnection connection, int historySize, TimerWheel dispatchWheel)
 	{
 		this.connection = connection;
+		this.telemetry = new TelemetryStore(historySize);
+		this.dispatcher = new TelemetryDispatcher(telemetry, "TableDispatcher", dispatchWheel);
 		//assert(connection != null);
 		// TODO auto connect?
 		connect();
@@ -54,15 +92,9 @@ public class TableController implements ITableConnectionListener
 
 	public void connect()
 	{
-		// Zero out the current values in the cache
-		currentValues = new ConcurrentHashMap<Device, Response>(16);
-
-		// Load up the cache with initial values
-		currentValues.put(Device.DEV_PITCH, new Response(Device.DEV_PITCH, "uninitialized", 0.00, 0));
-		currentValues.put(Device.DEV_ROLL, new Response(Device.DEV_ROLL, "uninitialized", 0.00, 0));
-		currentValues.put(Device.DEV_UPPIPE, new Response(Device.DEV_UPPIPE, "uninitialized", 0.00, 0));
-		currentValues.put(Device.DEV_DOWNPIPE, new Response(Device.DEV_DOWNPIPE, "uninitialized", 0.00, 0));
-		currentValues.put(Device.DEV_PUMP, new Response(Device.DEV_PUMP, "uninitialized", 0.00, 0));
+		// Back to the "uninitialized" initial values, history is kept across reconnects
+		telemetry.reset();
+		dispatcher.changed();
 
 
 		// Add ourselves as the incoming data listener, then connect
@@ -74,6 +106,15 @@ public class TableController implements ITableConnectionListener
 	{
 		connection.disconnect();
 	}
+
+	/**
+	 * Disconnect for good, also stopping subscription delivery.  The controller can't be used after this.
+	 */
+	public void dispose()
+	{
+		disconnect();
+		dispatcher.shutdown();
+	}
 	
 	public boolean isConnected()
 	{
@@ -91,47 +132,194 @@ public class TableController implements ITableConnectionListener
 			return;
 		}
 
+		RunJournal j = journal;
+		if (j != null) {
+			j.recordCommand(request);
+		}
 		connection.sendRequest(request);
 	}
 
+	/**
+	 *  Non-blocking, sends all the commands to the table as one unit (one message on binary connections), so multi-device moves start together.
+	 */
+	public void sendRequests(Request... requests)
+	{
+		if (!connection.isConnected()) {
+			return;
+		}
+
+		RunJournal j = journal;
+		if (j != null) {
+			for (Request request : requests) {
+				j.recordCommand(request);
+			}
+		}
+		connection.sendRequests(requests);
+	}
+
+	/**
+	 *  Start building a batch of commands, to be sent with RequestBatch.send().
+	 */
+	public RequestBatch newBatch()
+	{
+		return new RequestBatch(this);
+	}
+
 	/**
 	 *  Fetch the last value we know for a given device.
 	 *  <p>
 	 *  This might get updated from direct replies or possibly automated async bulk updates from the table.
 	 * @param device
-	 * @return  Never returns null... as the cache gets initialized with some default values and status.
+	 * @return  Never returns null for a real device... as the cache gets initialized with some default values and status.
 	 */
 	// Non-blocking since it doesn't talk to the table.
 	public Response getCurrentValue(Device device)
 	{
-		// We cached fake initial values in the map for all devices, so this should never return null
-		Response response = currentValues.get(device);
-		return response;
+		return telemetry.getLatest(device);
+	}
+
+	/**
+	 * Status history of a device, for charts and analytics.  Readers copy ranges out of it without blocking the receive thread.
+	 *
+	 * @return null for DEV_UNKNOWN
+	 */
+	public SampleRing getHistory(Device device)
+	{
+		return telemetry.getHistory(device);
+	}
+
+	public TelemetryStore getTelemetry()
+	{
+		return telemetry;
+	}
+
+	/**
+	 * Start (or with null, stop) recording every status, encoder reading and command of this table into a journal.  The caller owns
+	 * the journal and closes it.  For the raw datagrams too, hand the same journal to the connection (BinTableConnection.setJournal).
+	 */
+	public void setJournal(RunJournal journal)
+	{
+		this.journal = journal;
+	}
+
+	public RunJournal getJournal()
+	{
+		return journal;
 	}
 
 
 	/**
 	 * Receive data from the underlying connection.
 	 * <p>
-	 * Overwrites the cache of existing data for that device.<br>
-	 * Does not notify application level code.. they have to poll the current values. 
+	 * Appends every sample to the device history, and overwrites the cache of existing data for that device.<br>
+	 * Subscribers are notified of changes from the dispatcher thread, never from here, so a slow subscriber can't stall the receive thread.
+	 * <p>
+	 * The connection reuses the Response objects for the next packet, so the cache stores its own copy, and only when something changed.
+	 * Cached Responses are never modified after they go in, so pollers can hold on to what they get.
 	 */
 	@Override
 	public void receiveResponses(Response[] responses)
 	{
+		long now = System.currentTimeMillis();
+		RunJournal j = journal;
+		// One time for the whole packet, so a replay hands it over as one packet again
+		long journalNanos = (j != null) ? j.now() : 0;
+		boolean changed = false;
 		for (Response response : responses) {
 			// TODO it is unspecified if/how the underlying connection could notify us of faults/errors/brokenConnections
 			// HACK TODO since this might be a null modem cable, we just get an echo back... fake it that "all is well"
-			response.status = RSP_OK;
-			
-			double oldValue = getCurrentValue(response.device).value;
-	
-//			logger.debug("updating dev {} from old {} to new {}", response.device, oldValue, response.value);
-			
-			// Copy the response into the cache (overwrites old value)
-			currentValues.put(response.device, response);
+			changed |= telemetry.record(response, now);
+			if (j != null) {
+				j.recordStatus(response, journalNanos);
+			}
+		}
+		if (changed) {
+			dispatcher.changed();
+		}
+	}
+
+	// ------------------------------------------------------------------------------
+
+	/**
+	 * Get pushed the value of a device whenever it changes, instead of polling getCurrentValue().
+	 * <p>
+	 * Delivery is on the controller's one dispatcher thread: right away for the first change, then at most once per coalesceMillis with
+	 * the newest value (0 = every change).  The listener also gets the current value right after subscribing.
+	 *
+	 * @return handle to cancel() when done
+	 */
+	public TableSubscription subscribe(Device device, long coalesceMillis, ITableValueListener listener)
+	{
+		return dispatcher.subscribe(device, coalesceMillis, listener);
+	}
+
+	// ------------------------------------------------------------------------------
+
+	/**
+	 * Subscribe to the raw encoder stream, at the full packet rate of the connection.  Only connections that carry encoder capsules
+	 * (currently Ethernet) will ever call back.
+	 */
+	public void addEncoderListener(ITableEncoderListener listener)
+	{
+		encoderListeners.addIfAbsent(listener);
+	}
+
+	public void removeEncoderListener(ITableEncoderListener listener)
+	{
+		encoderListeners.remove(listener);
+	}
+
+	/**
+	 * Receive raw encoder readings from the underlying connection and pass them straight through, on the connection's receive thread.
+	 */
+	@Override
+	public void receiveEncoderStatus(EncoderStatus[] encoders)
+	{
+		RunJournal j = journal;
+		if (j != null) {
+			long journalNanos = j.now();
+			for (EncoderStatus encoder : encoders) {
+				j.recordEncoder(encoder, journalNanos);
+			}
+		}
+		for (ITableEncoderListener l : encoderListeners) {
+			l.receiveEncoderStatus(encoders);
 		}
 	}
-}
 
+	// ------------------------------------------------------------------------------
 
+	/**
+	 * The connection could not get these requests to the table.  Nothing retries above this point, so just record it loudly.
+	 * <p>
+	 * WARNING a lost STOP means the device may still be moving.
+	 */
+	@Override
+	public void receiveDeliveryFailure(Request[] requests, int attempts)
+	{
+		for (Request request : requests) {
+			deliveryFailureCount.incrementAndGet();
+			lastFailedRequest = request;
+
+			if (CMD_STOP.equals(request.command)) {
+				logger.error("STOP for {} was never acknowledged by the table after {} attempts", request.device, attempts);
+			}
+			else {
+				logger.warn("request {} was never acknowledged by the table after {} attempts", request.debugString(), attempts);
+			}
+		}
+	}
+
+	public long getDeliveryFailureCount()
+	{
+		return deliveryFailureCount.get();
+	}
+
+	/**
+	 * @return the most recent request that could not be delivered, or null if none
+	 */
+	public Request getLastFailedRequest()
+	{
+		return lastFailedRequest;
+	}
+}
@@ -0,0 +1,327 @@
+package com.emriver.geomodel.table;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.net.UDPMultiplexer;
+import com.elmocity.elib.util.TimerWheel;
+
+/**
+ * A lab full of tables run from one place, each with its own TableController, sharing everything that costs a thread:
+ * <ul>
+ * <li>one UDPMultiplexer selector thread receives for every Ethernet table</li>
+ * <li>keep alives and retransmits are on the shared TimerWheel already (see BinTableConnection)</li>
+ * <li>subscription delivery for every table runs on one fleet dispatch wheel, not a dispatcher thread per controller</li>
+ * <li>scripts on any table run on one ScriptScheduler (getScriptScheduler)</li>
+ * </ul>
+ * So another table costs its TelemetryStore and a few small objects.  The fleet keeps short device histories by default (64 samples, a few
+ * KB per table), enough for the overview.  A table that needs long charts can get its own controller outside the fleet.
+ * <p>
+ * getStates() gives a snapshot of every table for an overview display, broadcast() and allStop() send to every table at once.
+ */
+public class TableFleet
+{
+	public static final int DEFAULT_HISTORY_SIZE = 64;
+
+	// A table that hasn't sent a status for this long is reported as stale
+	public static final long STALE_MILLIS = 2000;
+
+	/**
+	 * Snapshot of one table, never changes after it is made.
+	 */
+	public static class TableState
+	{
+		public final String name;
+		public final boolean connected;
+		public final boolean stale;				// connected but nothing heard for STALE_MILLIS
+		public final boolean moving;			// any operator reports OPERATOR_FLAG_MOVING
+		public final long lastStatusMillis;		// 0 if nothing heard yet
+		public final long deliveryFailures;
+		private final Response[] latest;		// indexed by Device numValue
+
+		TableState(String name, TableController controller, long now)
+		{
+			this.name = name;
+			this.connected = controller.isConnected();
+			this.lastStatusMillis = controller.getTelemetry().getLastRecordMillis();
+			this.stale = connected && (lastStatusMillis == 0 || now - lastStatusMillis > STALE_MILLIS);
+			this.deliveryFailures = controller.getDeliveryFailureCount();
+
+			boolean anyMoving = false;
+			latest = new Response[DEVICES.length];
+			for (int i = 0; i < DEVICES.length; i++) {
+				Response r = controller.getCurrentValue(DEVICES[i]);
+				latest[i] = r;
+				anyMoving |= (r.flags & CapsuleCodec.OPERATOR_FLAG_MOVING) != 0;
+			}
+			this.moving = anyMoving;
+		}
+
+		/**
+		 * @return the latest value of the device when the snapshot was taken, never null for a real device
+		 */
+		public Response getValue(Device device)
+		{
+			return latest[device.getNumValue()];
+		}
+	}
+
+	// Every real device, in numValue order
+	private static final Device[] DEVICES = { Device.DEV_PITCH, Device.DEV_ROLL, Device.DEV_UPPIPE, Device.DEV_DOWNPIPE, Device.DEV_PUMP };
+
+	private static class Member
+	{
+		final String name;
+		final TableController controller;
+
+		Member(String name, TableController controller)
+		{
+			this.name = name;
+			this.controller = controller;
+		}
+	}
+
+	private final String name;
+	private final int historySize;
+	private final UDPMultiplexer multiplexer;		// null if it wouldn't start, the Ethernet tables then get a UDPClient each
+	private final TimerWheel dispatchWheel;
+	private final ScriptScheduler scriptScheduler;
+
+	// Read constantly (overview refresh, broadcasts), changed rarely
+	private final CopyOnWriteArrayList<Member> members = new CopyOnWriteArrayList<Member>();
+
+	private static final Logger logger = LoggerFactory.getLogger(TableFleet.class);
+
+
+	public TableFleet(String name)
+	{
+		this(name, DEFAULT_HISTORY_SIZE);
+	}
+
+	/**
+	 * @param historySize status samples kept per device per table
+	 */
+	public TableFleet(String name, int historySize)
+	{
+		this.name = name;
+		this.historySize = historySize;
+
+		UDPMultiplexer mux = new UDPMultiplexer();
+		if (!mux.startup()) {
+			logger.warn("{} could not start its UDP multiplexer, each Ethernet table will use its own socket thread", name);
+			mux = null;
+		}
+		this.multiplexer = mux;
+
+		// Subscribers are UI code, keep them off the shared wheel so a slow one can't delay keep alives or script moves
+		this.dispatchWheel = new TimerWheel(name + "Dispatch", TimerWheel.DEFAULT_TICK_MILLIS, 256);
+		this.scriptScheduler = new ScriptScheduler(name + "Scripts", TimerWheel.getShared());
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Add and connect an Ethernet table on the fleet's shared transport.
+	 *
+	 * @throws IllegalArgumentException if the fleet already has a table by that name
+	 */
+	public TableController addEthernetTable(String tableName, String address, int port)
+	{
+		return addTable(tableName, new EthernetTableConnection(address, port, multiplexer));
+	}
+
+	/**
+	 * Add and connect a table on any connection (serial, replay...).
+	 *
+	 * @throws IllegalArgumentException if the fleet already has a table by that name
+	 */
+	public synchronized TableController addTable(String tableName, ITableConnection connection)
+	{
+		if (findMember(tableName) != null) {
+			throw new IllegalArgumentException("table " + tableName + " is already in fleet " + name);
+		}
+		TableController controller = new TableController(connection, historySize, dispatchWheel);
+		members.add(new Member(tableName, controller));
+		logger.info("{} added table {}, {} tables", name, tableName, members.size());
+		return controller;
+	}
+
+	/**
+	 * Disconnect the table and drop it from the fleet.
+	 *
+	 * @return false if there is no such table
+	 */
+	public synchronized boolean removeTable(String tableName)
+	{
+		Member member = findMember(tableName);
+		if (member == null) {
+			return false;
+		}
+		members.remove(member);
+		member.controller.dispose();
+		return true;
+	}
+
+	/**
+	 * @return the table's controller, null if there is no such table
+	 */
+	public TableController getTable(String tableName)
+	{
+		Member member = findMember(tableName);
+		return (member == null) ? null : member.controller;
+	}
+
+	public List<String> getTableNames()
+	{
+		ArrayList<String> names = new ArrayList<String>(members.size());
+		for (Member member : members) {
+			names.add(member.name);
+		}
+		return names;
+	}
+
+	public int getTableCount()
+	{
+		return members.size();
+	}
+
+	/**
+	 * Scheduler for ScriptRunners on the fleet's tables.
+	 */
+	public ScriptScheduler getScriptScheduler()
+	{
+		return scriptScheduler;
+	}
+
+	private Member findMember(String tableName)
+	{
+		for (Member member : members) {
+			if (member.name.equals(tableName)) {
+				return member;
+			}
+		}
+		return null;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Aggregated state
+
+	/**
+	 * @return null if there is no such table
+	 */
+	public TableState getState(String tableName)
+	{
+		Member member = findMember(tableName);
+		return (member == null) ? null : new TableState(member.name, member.controller, System.currentTimeMillis());
+	}
+
+	/**
+	 * Snapshot of every table, in the order they were added.  Only reads the controllers' caches, never waits on a table.
+	 */
+	public List<TableState> getStates()
+	{
+		long now = System.currentTimeMillis();
+		ArrayList<TableState> states = new ArrayList<TableState>(members.size());
+		for (Member member : members) {
+			states.add(new TableState(member.name, member.controller, now));
+		}
+		return Collections.unmodifiableList(states);
+	}
+
+	public int getConnectedCount()
+	{
+		int count = 0;
+		for (Member member : members) {
+			if (member.controller.isConnected()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if any device on any table reports it is moving
+	 */
+	public boolean isAnyMoving()
+	{
+		for (Member member : members) {
+			for (Device device : DEVICES) {
+				if ((member.controller.getCurrentValue(device).flags & CapsuleCodec.OPERATOR_FLAG_MOVING) != 0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Broadcast
+
+	/**
+	 * Send the same requests (as one batch) to every connected table, all tables in parallel on the common fork-join pool, so one slow
+	 * link (a serial table, a full socket buffer) doesn't hold up the rest.  Returns once every table has had them handed to its
+	 * connection.  The connections only read the requests, so one set serves every table.
+	 *
+	 * @return number of tables they went to
+	 */
+	public int broadcast(Request... requests)
+	{
+		ArrayList<TableController> targets = new ArrayList<TableController>(members.size());
+		for (Member member : members) {
+			if (member.controller.isConnected()) {
+				targets.add(member.controller);
+			}
+		}
+		targets.parallelStream().forEach(controller -> {
+			try {
+				controller.sendRequests(requests);
+			}
+			catch (Exception e) {
+				// The others must still get it, especially for a stop
+				logger.warn("{} broadcast to a table threw", name, e);
+			}
+		});
+		return targets.size();
+	}
+
+	/**
+	 * Stop every device on every table.  Anything driving the tables (ScriptRunners) should be stopped first or it will just send
+	 * more moves.
+	 *
+	 * @return number of tables the stop went to
+	 */
+	public int allStop()
+	{
+		Request[] stops = new Request[DEVICES.length];
+		for (int i = 0; i < DEVICES.length; i++) {
+			stops[i] = new Request(DEVICES[i], TableController.CMD_STOP, 0, 0);
+		}
+		int count = broadcast(stops);
+		logger.info("{} all stop sent to {} tables", name, count);
+		return count;
+	}
+
+	/**
+	 * Disconnect every table and stop the fleet's threads.
+	 */
+	public synchronized void shutdown()
+	{
+		scriptScheduler.shutdown();
+		for (Member member : members) {
+			member.controller.dispose();
+		}
+		members.clear();
+		dispatchWheel.shutdown();
+		if (multiplexer != null) {
+			multiplexer.shutdown();
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package com.emriver.geomodel.table;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.net.IUDPServerGuts;
+import com.elmocity.elib.net.UDPServer;
+import com.elmocity.elib.util.TimerWheel;
+import com.elmocity.elib.util.WireMessage;
+
+/**
+ * Lets any number of GUIs watch one table: the hub holds the only link to the table, and looks like a table to everybody else.
+ * <p>
+ * Viewers point a normal EthernetTableConnection at the hub's port instead of at the table.  Every status message the table sends the
+ * hub is relayed, byte for byte, to every viewer heard from in the last SUBSCRIBER_TIMEOUT_MILLIS (their keep alives keep them on the
+ * list), with the echo byte patched to that viewer's own last sequence so its retransmit window works as usual.  The table's own clock
+ * and values go out untouched, so viewers' clocks and charts are the same as if they were talking to the table.  Optionally the stream
+ * also goes to a multicast group for receive only displays (EthernetTableConnection.multicastViewer).
+ * <p>
+ * Only the controller address (setController) may move the table.  Its moves and stops are decoded and resent on the hub's link, with
+ * the hub's own sequence numbers and retransmits.  The controller's message is only echoed once the hub's window has seen the table echo
+ * the forwarded one (or a retransmit of it), so if the hub's link can't get it there, the controller's own window times out and reports
+ * the delivery failure to its GUI like it would for a direct link.  Anybody else's moves are dropped without an echo, so their connection reports a delivery failure.
+ * The table only ever sees the hub, no matter how many viewers there are.
+ * <p>
+ * The relay runs on the link's receive thread, one send per viewer, nothing allocated.
+ */
+public class TableHub implements IUDPServerGuts
+{
+	// A viewer that stops sending keep alives (every 10 s) is dropped after missing a few
+	public static final long SUBSCRIBER_TIMEOUT_MILLIS = 30000;
+	private static final long EXPIRE_CHECK_MILLIS = 5000;
+	// Longer than the hub's link takes to give up on a forward (4 sends, at most 2 s apart), after which it will never be delivered
+	private static final long PENDING_TIMEOUT_MILLIS = 10000;
+	public static final int MAX_SUBSCRIBERS = 64;
+
+	// Where the System Status capsule keeps the echo of the receiver's last sequence
+	private static final int ECHO_OFFSET = 5;
+
+	private static class Subscriber
+	{
+		final InetAddress address;
+		final int port;
+		volatile long lastHeardNanos;
+		volatile int echoSequence = 0;
+
+		// Newest forwarded control message still on its way to the table, the viewer's sequence to echo once the hub's link has it
+		// delivered.  Guarded by the subscriber, -1 when nothing is waiting.
+		int pendingSequence = -1;
+		long pendingSinceNanos;
+		volatile boolean pending = false;
+
+		Subscriber(InetAddress address, int port)
+		{
+			this.address = address;
+			this.port = port;
+		}
+	}
+
+	private final BinTableConnection upstream;
+	private final int port;
+	private final UDPServer server = new UDPServer();
+
+	private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private volatile InetAddress controllerAddress = null;
+	private volatile InetAddress multicastGroup = null;
+	private volatile int multicastPort = 0;
+
+	private boolean running = false;
+	private boolean connectedUpstream = false;
+	private TimerWheel.Timeout expiry = null;
+
+	// Relay copy of the table's message, only touched on the link's receive thread
+	private final ByteBuffer relayBuffer = ByteBuffer.allocate(BinTableConnection.STORE_SIZE);
+	private final WireMessage relayMessage = new WireMessage();
+
+	// Stats
+	private final AtomicLong relayedCount = new AtomicLong(0);
+	private final AtomicLong forwardedCount = new AtomicLong(0);
+	private final AtomicLong refusedCount = new AtomicLong(0);
+
+	private static final Logger logger = LoggerFactory.getLogger(TableHub.class);
+
+
+	/**
+	 * @param upstream link to the table, connected by start() if it isn't already
+	 * @param port UDP port viewers connect to
+	 */
+	public TableHub(BinTableConnection upstream, int port)
+	{
+		this.upstream = upstream;
+		this.port = port;
+	}
+
+	public synchronized void start()
+	{
+		if (running) {
+			return;
+		}
+		running = true;
+
+		upstream.setStatusTap(message -> relay(message));
+		server.start(port, this);
+		if (!upstream.isConnected()) {
+			upstream.connect();
+			connectedUpstream = true;
+		}
+		expiry = TimerWheel.getShared().scheduleAtFixedRate(() -> expireSubscribers(), EXPIRE_CHECK_MILLIS, EXPIRE_CHECK_MILLIS);
+		logger.info("table hub on port {}", port);
+	}
+
+	/**
+	 * Stop relaying.  The link to the table is closed too if start() opened it.
+	 */
+	public synchronized void stop()
+	{
+		if (!running) {
+			return;
+		}
+		running = false;
+
+		upstream.setStatusTap(null);
+		expiry.cancel();
+		expiry = null;
+		server.stop();
+		subscribers.clear();
+		if (connectedUpstream) {
+			upstream.disconnect();
+			connectedUpstream = false;
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Configuration
+
+	/**
+	 * The one machine allowed to move the table through the hub, null for view only.  Any port from that address counts.
+	 */
+	public void setController(InetAddress address)
+	{
+		this.controllerAddress = address;
+	}
+
+	public InetAddress getController()
+	{
+		return controllerAddress;
+	}
+
+	/**
+	 * Also publish every status message to a multicast group (null to stop).  The default TTL keeps it on the local subnet.
+	 *
+	 * @throws IllegalArgumentException if the address is not a multicast one
+	 */
+	public void setMulticast(InetAddress group, int groupPort)
+	{
+		if (group != null && !group.isMulticastAddress()) {
+			throw new IllegalArgumentException(group + " is not a multicast address");
+		}
+		this.multicastPort = groupPort;
+		this.multicastGroup = group;
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public int getSubscriberCount()
+	{
+		return subscribers.size();
+	}
+
+	/**
+	 * Status messages relayed, counting each viewer (and the multicast group) separately.
+	 */
+	public long getRelayedCount()
+	{
+		return relayedCount.get();
+	}
+
+	/**
+	 * Control messages from the controller passed on to the table.
+	 */
+	public long getForwardedCount()
+	{
+		return forwardedCount.get();
+	}
+
+	/**
+	 * Control messages dropped because they didn't come from the controller.
+	 */
+	public long getRefusedCount()
+	{
+		return refusedCount.get();
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Table to viewers, on the link's receive thread
+
+	private void relay(WireMessage message)
+	{
+		InetAddress group = multicastGroup;
+		if (subscribers.isEmpty() && group == null) {
+			return;
+		}
+
+		ByteBuffer in = message.getView();
+		int length = in.limit();
+		if (length > relayBuffer.capacity()) {
+			return;
+		}
+		relayBuffer.clear();
+		for (int i = 0; i < length; i++) {
+			relayBuffer.put(i, in.get(i));
+		}
+		relayBuffer.limit(length);
+		relayMessage.setView(relayBuffer);
+
+		// The socket copies the datagram on send, so the echo byte can be patched for the next one right away
+		for (Subscriber subscriber : subscribers) {
+			relayBuffer.put(ECHO_OFFSET, (byte) subscriber.echoSequence);
+			if (server.sendTo(relayMessage, subscriber.address, subscriber.port)) {
+				relayedCount.incrementAndGet();
+			}
+		}
+		if (group != null) {
+			relayBuffer.put(ECHO_OFFSET, (byte) 0);
+			if (server.sendTo(relayMessage, group, multicastPort)) {
+				relayedCount.incrementAndGet();
+			}
+		}
+	}
+
+	// The hub's window saw the table echo the forwarded message, so the viewer's message it came from can have its echo.  Runs on the
+	// link's receive thread just before that same status message is relayed.
+	private void releaseEcho(Subscriber subscriber, int sequence)
+	{
+		synchronized (subscriber) {
+			subscriber.echoSequence = sequence;
+			if (subscriber.pendingSequence == sequence) {
+				subscriber.pendingSequence = -1;
+				subscriber.pending = false;
+			}
+		}
+	}
+
+	private void expireSubscribers()
+	{
+		long now = System.nanoTime();
+		for (Subscriber subscriber : subscribers) {
+			if (now - subscriber.lastHeardNanos > SUBSCRIBER_TIMEOUT_MILLIS * 1_000_000L) {
+				subscribers.remove(subscriber);
+				logger.info("hub {} dropped silent viewer {}:{}, {} left", port, subscriber.address.getHostAddress(), subscriber.port,
+						subscribers.size());
+			}
+			else if (subscriber.pending) {
+				// A forward that failed (or was superseded) upstream never gets its echo, stop holding back the viewer's keep alives for it
+				synchronized (subscriber) {
+					if (subscriber.pending && now - subscriber.pendingSinceNanos > PENDING_TIMEOUT_MILLIS * 1_000_000L) {
+						subscriber.pendingSequence = -1;
+						subscriber.pending = false;
+					}
+				}
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Viewers to table, on the UDP server thread
+
+	@Override
+	public WireMessage responseToPacket(WireMessage request)
+	{
+		// Only the addressed version is used
+		return null;
+	}
+
+	@Override
+	public WireMessage responseToPacket(WireMessage request, InetAddress clientAddress, int clientPort)
+	{
+		ByteBuffer in = request.getView();
+		int limit = in.limit();
+		if (limit < CapsuleCodec.SYSTEM_CAPSULE_BYTES || (in.getShort(2) & 0xFFFF) != CapsuleCodec.SYSTEM_CONTROL_MAGIC) {
+			logger.debug("hub {} ignoring malformed packet of {} bytes from {}", port, limit, clientAddress);
+			return null;
+		}
+
+		Subscriber subscriber = findSubscriber(clientAddress, clientPort);
+		if (subscriber == null) {
+			return null;
+		}
+		subscriber.lastHeardNanos = System.nanoTime();
+		int sequence = in.get(4) & 0xFF;
+
+		// More than the System Control capsule means moves or stops
+		if (limit > CapsuleCodec.SYSTEM_CAPSULE_BYTES) {
+			if (!clientAddress.equals(controllerAddress)) {
+				refusedCount.incrementAndGet();
+				logger.debug("hub {} refused control from {}, not the controller", port, clientAddress);
+				return null;
+			}
+			Request[] requests = decodeRequests(in, limit);
+			if (requests.length > 0) {
+				// Not acked until the table has it, see releaseEcho().  Pending before the send, so even an instant delivery finds it.
+				synchronized (subscriber) {
+					subscriber.pendingSequence = sequence;
+					subscriber.pendingSinceNanos = subscriber.lastHeardNanos;
+					subscriber.pending = true;
+				}
+				if (upstream.sendRequestsTracked(() -> releaseEcho(subscriber, sequence), requests)) {
+					forwardedCount.incrementAndGet();
+				}
+				else {
+					// Link down, never acked, so the controller's connection reports the failure.  Nothing on its way to wait for though.
+					synchronized (subscriber) {
+						if (subscriber.pendingSequence == sequence) {
+							subscriber.pendingSequence = -1;
+							subscriber.pending = false;
+						}
+					}
+				}
+				return null;
+			}
+		}
+
+		// Nothing to deliver, acked with the next relayed status.  Unless a forwarded move is still on its way, echoing something newer
+		// would have the viewer's window count the move as lost and send it again while the hub is still delivering it.
+		synchronized (subscriber) {
+			if (!subscriber.pending) {
+				subscriber.echoSequence = sequence;
+			}
+		}
+		return null;
+	}
+
+	private Subscriber findSubscriber(InetAddress address, int clientPort)
+	{
+		for (Subscriber subscriber : subscribers) {
+			if (subscriber.port == clientPort && subscriber.address.equals(address)) {
+				return subscriber;
+			}
+		}
+		if (subscribers.size() >= MAX_SUBSCRIBERS) {
+			logger.warn("hub {} is full ({} viewers), ignoring {}:{}", port, MAX_SUBSCRIBERS, address.getHostAddress(), clientPort);
+			return null;
+		}
+		// Only the server thread adds, so no race between the lookup and the add
+		Subscriber subscriber = new Subscriber(address, clientPort);
+		subscribers.add(subscriber);
+		logger.info("hub {} new viewer {}:{}, {} total", port, address.getHostAddress(), clientPort, subscribers.size());
+		return subscriber;
+	}
+
+	/**
+	 * Turn the Operator Control capsules of a viewer's message back into Requests.  Deadlines are on the table clock (the viewer synced
+	 * to it through the relayed status), so they become the equivalent local deadline on the hub's own clock estimate.
+	 */
+	private Request[] decodeRequests(ByteBuffer in, int limit)
+	{
+		TableClock clock = upstream.getTableClock();
+		Request[] requests = new Request[(limit - CapsuleCodec.SYSTEM_CAPSULE_BYTES) / CapsuleCodec.OPERATOR_CONTROL_CAPSULE_BYTES];
+		int count = 0;
+
+		int offset = CapsuleCodec.SYSTEM_CAPSULE_BYTES;
+		while (offset + CapsuleCodec.CAPSULE_HEADER_BYTES <= limit && count < requests.length) {
+			int payloadBytes = in.get(offset) & 0xFF;
+			int next = offset + CapsuleCodec.CAPSULE_HEADER_BYTES + payloadBytes;
+			if (next > limit) {
+				break;
+			}
+			int id = in.get(offset + 1) & 0xFF;
+			int magic = in.getShort(offset + 2) & 0xFFFF;
+			Device device = Device.findByValue(id);
+			if (magic == CapsuleCodec.OPERATOR_CONTROL_MAGIC && payloadBytes == 8 && device != null) {
+				int wireValue = in.getShort(offset + 4);
+				int command = in.get(offset + 6) & 0xFF;
+				long deadline = in.getInt(offset + 8) & 0xFFFFFFFFL;
+
+				if (command == CapsuleCodec.OPERATOR_CONTROL_CMD_STOP) {
+					requests[count++] = new Request(device, TableController.CMD_STOP, 0, 0);
+				}
+				else if (command == CapsuleCodec.OPERATOR_CONTROL_CMD_MOVE) {
+					Request request = new Request(device, TableController.CMD_SET, CapsuleCodec.fromWireValue(device, wireValue), 0);
+					if (deadline != 0 && clock.isSynchronized()) {
+						// 32 bit difference, so it survives the table clock wrapping
+						int aheadMillis = (int) (deadline - clock.tableNow());
+						request.deadlineNanos = System.nanoTime() + aheadMillis * 1_000_000L;
+						request.seconds = Math.max(0, aheadMillis / 1000);
+					}
+					requests[count++] = request;
+				}
+			}
+			offset = next;
+		}
+
+		if (count == requests.length) {
+			return requests;
+		}
+		Request[] trimmed = new Request[count];
+		System.arraycopy(requests, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	/**
+	 * Run a hub from the command line: TableHub tableAddress tablePort hubPort [controllerAddress] [multicastGroup multicastPort]
+	 */
+	public static void main(String[] args) throws InterruptedException, UnknownHostException
+	{
+		if (args.length < 3) {
+			System.out.println("usage: TableHub <table address> <table port> <hub port> [controller address] [multicast group] [multicast port]");
+			return;
+		}
+		EthernetTableConnection link = new EthernetTableConnection(args[0], Integer.parseInt(args[1]));
+		TableHub hub = new TableHub(link, Integer.parseInt(args[2]));
+		if (args.length > 3) {
+			hub.setController(InetAddress.getByName(args[3]));
+		}
+		if (args.length > 5) {
+			hub.setMulticast(InetAddress.getByName(args[4]), Integer.parseInt(args[5]));
+		}
+		hub.start();
+
+		while (true) {
+			Thread.sleep(10000);
+			logger.info("hub {}: {} viewers, {} relayed, {} forwarded, {} refused", hub.getPort(), hub.getSubscriberCount(), hub.getRelayedCount(),
+					hub.getForwardedCount(), hub.getRefusedCount());
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package com.emriver.geomodel.table;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A table script (the em4r_scripts format) compiled into flat arrays, ready for ScriptRunner.
+ * <p>
+ * The format is one step per line, '#' lines are comments:
+ * <pre>
+ * #Time	Pitch	Roll	Pipe	Flow
+ * 0,	0,	0,	20,	0
+ * 10,	1.5,	0,	70,	800
+ * 20,	,	0,	,	500
+ * </pre>
+ * Time is whole seconds from the start of the script and must go up on every line.  An empty column means "continue": that device keeps
+ * ramping towards its next explicit value, so every device moves in straight lines between the values actually written down.  The first
+ * and last lines must give every column.
+ * <p>
+ * Same rules as the C++ runner (script_t::read), except values are not range checked here, several scripts in the library go past
+ * Device.getMin/getMax and the table clamps them anyway.
+ * <p>
+ * Immutable once parsed, so one script can be shared by runners on several tables.
+ */
+public class TableScript
+{
+	// Script columns after the time, in file order
+	public static final int COLUMN_PITCH = 0;
+	public static final int COLUMN_ROLL = 1;
+	public static final int COLUMN_PIPE = 2;
+	public static final int COLUMN_FLOW = 3;
+	public static final int COLUMNS = 4;
+
+	// NOTE the C++ runner drives operators 0-3 (pitch, roll, pipe, flow).  Pipe is the upper standpipe and flow is the pump here.
+	private static final Device[] COLUMN_DEVICES = { Device.DEV_PITCH, Device.DEV_ROLL, Device.DEV_UPPIPE, Device.DEV_PUMP };
+
+	private final String name;
+	private final int stepCount;
+	private final int[] seconds;
+
+	// Indexed [step * COLUMNS + column]
+	private final double[] values;			// NaN where the column was omitted
+	private final int[] nextExplicit;		// next step after this one giving the column, -1 for none
+	private final int[] lastExplicit;		// this step or the latest one before it giving the column
+
+
+	private TableScript(String name, int stepCount, int[] seconds, double[] values)
+	{
+		this.name = name;
+		this.stepCount = stepCount;
+		this.seconds = seconds;
+		this.values = values;
+
+		nextExplicit = new int[stepCount * COLUMNS];
+		lastExplicit = new int[stepCount * COLUMNS];
+		for (int c = 0; c < COLUMNS; c++) {
+			int next = -1;
+			for (int step = stepCount - 1; step >= 0; step--) {
+				nextExplicit[step * COLUMNS + c] = next;
+				if (isExplicit(step, c)) {
+					next = step;
+				}
+			}
+			int last = 0;
+			for (int step = 0; step < stepCount; step++) {
+				if (isExplicit(step, c)) {
+					last = step;
+				}
+				lastExplicit[step * COLUMNS + c] = last;
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Parsing
+
+	public static TableScript parse(Path path) throws IOException
+	{
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.ISO_8859_1)) {
+			return parse(path.getFileName().toString(), reader);
+		}
+	}
+
+	public static TableScript parse(String name, String text) throws IOException
+	{
+		return parse(name, new StringReader(text));
+	}
+
+	/**
+	 * @throws IOException on a read error or a script that breaks the format, with the line number in the message
+	 */
+	public static TableScript parse(String name, Reader in) throws IOException
+	{
+		BufferedReader reader = (in instanceof BufferedReader) ? (BufferedReader) in : new BufferedReader(in);
+
+		int[] seconds = new int[64];
+		double[] values = new double[64 * COLUMNS];
+		int count = 0;
+
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			if (line.startsWith("#") || line.trim().isEmpty()) {
+				continue;
+			}
+
+			String[] tokens = line.split(",", -1);
+			if (tokens.length != COLUMNS + 1 || tokens[0].trim().isEmpty()) {
+				throw new IOException(name + " line " + lineNumber + ": syntax error in script");
+			}
+
+			if (count == seconds.length) {
+				seconds = Arrays.copyOf(seconds, count * 2);
+				values = Arrays.copyOf(values, count * 2 * COLUMNS);
+			}
+
+			try {
+				seconds[count] = Integer.parseInt(tokens[0].trim());
+				for (int c = 0; c < COLUMNS; c++) {
+					String token = tokens[c + 1].trim();
+					values[count * COLUMNS + c] = token.isEmpty() ? Double.NaN : Double.parseDouble(token);
+				}
+			}
+			catch (NumberFormatException e) {
+				throw new IOException(name + " line " + lineNumber + ": bad number in script");
+			}
+
+			if (seconds[count] < 0 || (count > 0 && seconds[count] <= seconds[count - 1])) {
+				throw new IOException(name + " line " + lineNumber + ": time is not after that of the previous line");
+			}
+			if (count == 0) {
+				for (int c = 0; c < COLUMNS; c++) {
+					if (Double.isNaN(values[c])) {
+						throw new IOException(name + " line " + lineNumber + ": " + getDevice(c) + " cannot be omitted on the first line");
+					}
+				}
+			}
+			count++;
+		}
+
+		if (count == 0) {
+			throw new IOException(name + ": script has no steps");
+		}
+		for (int c = 0; c < COLUMNS; c++) {
+			if (Double.isNaN(values[(count - 1) * COLUMNS + c])) {
+				throw new IOException(name + ": last line must completely specify all values");
+			}
+		}
+
+		return new TableScript(name, count, Arrays.copyOf(seconds, count), Arrays.copyOf(values, count * COLUMNS));
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	public static Device getDevice(int column)
+	{
+		return COLUMN_DEVICES[column];
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int getStepCount()
+	{
+		return stepCount;
+	}
+
+	/**
+	 * Time of the step, seconds from the start of the script.
+	 */
+	public int getSeconds(int step)
+	{
+		return seconds[step];
+	}
+
+	/**
+	 * Time of the last step, which is when the script is done.
+	 */
+	public int getDurationSeconds()
+	{
+		return seconds[stepCount - 1];
+	}
+
+	public boolean isExplicit(int step, int column)
+	{
+		return !Double.isNaN(values[step * COLUMNS + column]);
+	}
+
+	/**
+	 * @return the value written in the script, NaN if the column was omitted on that step
+	 */
+	public double getValue(int step, int column)
+	{
+		return values[step * COLUMNS + column];
+	}
+
+	/**
+	 * @return the next step after this one that gives a value for the column, -1 if there is none
+	 */
+	public int getNextExplicit(int step, int column)
+	{
+		return nextExplicit[step * COLUMNS + column];
+	}
+
+	/**
+	 * @return the first step at or after the given time (ms from the start of the script), getStepCount() if there is none
+	 */
+	public int findStep(long millis)
+	{
+		int lo = 0;
+		int hi = stepCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (seconds[mid] * 1000L < millis) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Where the script wants a device at any moment (ms from the start of the script), on the straight line between the explicit values
+	 * either side.  Before the first step that is the first value, after the last step the last one.
+	 */
+	public double getValueAt(int column, long millis)
+	{
+		// Latest step at or before the time
+		int step = findStep(millis + 1) - 1;
+		if (step < 0) {
+			return values[column];
+		}
+
+		int from = lastExplicit[step * COLUMNS + column];
+		int to = nextExplicit[from * COLUMNS + column];
+		double fromValue = values[from * COLUMNS + column];
+		if (to < 0) {
+			return fromValue;
+		}
+		long fromMillis = seconds[from] * 1000L;
+		long toMillis = seconds[to] * 1000L;
+		double toValue = values[to * COLUMNS + column];
+		return fromValue + (toValue - fromValue) * (millis - fromMillis) / (toMillis - fromMillis);
+	}
+}
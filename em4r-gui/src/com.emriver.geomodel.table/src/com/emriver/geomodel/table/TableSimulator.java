@@ -0,0 +1,333 @@
+package com.emriver.geomodel.table;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.net.IUDPServerGuts;
+import com.elmocity.elib.net.UDPServer;
+import com.elmocity.elib.util.WireMessage;
+
+/**
+ * Pure Java stand in for the EM4R table firmware, speaking the binary capsule protocol on a UDP port.
+ * <p>
+ * Handles System Control (sequence echo) and Operator Control move/stop, runs a motion model per operator (see SimulatedOperator), and
+ * answers with System Status + Operator Status + Encoder Status packets: once right away for every control packet, and then pushed at a
+ * configurable rate to whoever talked to it last, like the real table does after the first keep alive.
+ * <p>
+ * Each instance owns one UDPServer port and one status thread, so any number of tables can run in one JVM on different ports.  Point an
+ * EthernetTableConnection at "localhost" and the port.
+ * <p>
+ * Optional impairments (incoming packet loss, table clock offset/drift) are there to exercise the retransmit and clock sync code.
+ */
+public class TableSimulator implements IUDPServerGuts
+{
+	// Firmware has 4 encoders, on the first 4 operators
+	private static final int ENCODER_COUNT = 4;
+	private static final int ENCODER_MILLIVOLTS = 3300;
+
+	private static final int STATUS_PACKET_BYTES = CapsuleCodec.SYSTEM_CAPSULE_BYTES
+			+ 5 * CapsuleCodec.OPERATOR_STATUS_CAPSULE_BYTES + ENCODER_COUNT * CapsuleCodec.ENCODER_STATUS_CAPSULE_BYTES;
+
+	private final int port;
+	private volatile int statusHz;
+
+	private final UDPServer server = new UDPServer();
+	private Thread statusThread = null;
+	private volatile boolean keepRunning = false;
+
+	// Table state, guarded by this
+	private final SimulatedOperator[] operators;
+	private int txSequence = 0;
+	private int lastControlSequence = 0;
+	private long lastStepTable = 0;
+
+	// Table clock = (nanoTime - startNanos) * (1 + drift) + clockStart
+	private long startNanos;
+	private long clockStart = 0;
+	private double clockDriftPpm = 0;
+
+	// Impairments
+	private volatile double dropRate = 0;
+	private final Random random = new Random();
+
+	// Separate buffers for the server thread (replies) and the status thread (pushes)
+	private final ByteBuffer replyBuffer = ByteBuffer.allocate(STATUS_PACKET_BYTES);
+	private final WireMessage replyMessage = new WireMessage();
+	private final ByteBuffer pushBuffer = ByteBuffer.allocate(STATUS_PACKET_BYTES);
+	private final WireMessage pushMessage = new WireMessage();
+
+	// Stats
+	private final AtomicLong controlPacketCount = new AtomicLong(0);
+	private final AtomicLong droppedPacketCount = new AtomicLong(0);
+	private final AtomicLong statusPacketCount = new AtomicLong(0);
+
+	private static final Logger logger = LoggerFactory.getLogger(TableSimulator.class);
+
+
+	/**
+	 * @param port UDP port to listen on
+	 * @param statusHz status packets pushed per second once a controller has connected
+	 */
+	public TableSimulator(int port, int statusHz)
+	{
+		this.port = port;
+		this.statusHz = statusHz;
+
+		operators = new SimulatedOperator[5];
+		for (Device device : Device.values()) {
+			if (device != Device.DEV_UNKNOWN) {
+				operators[device.getNumValue()] = new SimulatedOperator(device);
+			}
+		}
+	}
+
+	public int getPort()
+	{
+		return port;
+	}
+
+	public synchronized void start()
+	{
+		if (keepRunning) {
+			return;
+		}
+		startNanos = System.nanoTime();
+		lastStepTable = tableTime(startNanos);
+		keepRunning = true;
+
+		server.start(port, this);
+
+		statusThread = new Thread(() -> statusLoop());
+		statusThread.setName("TableSim" + port);
+		statusThread.setDaemon(true);
+		statusThread.start();
+		logger.info("table simulator on port {} pushing status at {} Hz", port, statusHz);
+	}
+
+	public synchronized void stop()
+	{
+		if (!keepRunning) {
+			return;
+		}
+		keepRunning = false;
+		statusThread.interrupt();
+		statusThread = null;
+		server.stop();
+	}
+
+	// ---------------------------------------------------------------------------------------
+	// Configuration
+
+	public void setStatusHz(int statusHz)
+	{
+		this.statusHz = statusHz;
+	}
+
+	/**
+	 * Fraction (0..1) of incoming control packets to silently drop.
+	 */
+	public void setDropRate(double dropRate)
+	{
+		this.dropRate = dropRate;
+	}
+
+	/**
+	 * Make the table clock start somewhere other than 0 and run fast/slow, as a real table clock would against ours.
+	 */
+	public synchronized void setClock(long clockStart, double driftPpm)
+	{
+		this.clockStart = clockStart;
+		this.clockDriftPpm = driftPpm;
+	}
+
+	public synchronized void setMaxRate(Device device, double wireUnitsPerSecond)
+	{
+		operators[device.getNumValue()].setMaxRate(wireUnitsPerSecond);
+	}
+
+	public long getControlPacketCount()
+	{
+		return controlPacketCount.get();
+	}
+
+	public long getDroppedPacketCount()
+	{
+		return droppedPacketCount.get();
+	}
+
+	public long getStatusPacketCount()
+	{
+		return statusPacketCount.get();
+	}
+
+	/**
+	 * Current simulated value of an operator, in application units.
+	 */
+	public synchronized double getValue(Device device)
+	{
+		return CapsuleCodec.fromWireValue(device, operators[device.getNumValue()].getWireValue());
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	private long tableTime(long nanos)
+	{
+		double ms = (nanos - startNanos) / 1_000_000.0;
+		return clockStart + (long) (ms * (1.0 + clockDriftPpm / 1_000_000.0));
+	}
+
+	// Bring every operator up to the current table time.  Caller holds the lock.
+	private long advance()
+	{
+		long now = tableTime(System.nanoTime());
+		double dt = now - lastStepTable;
+		if (dt > 0) {
+			for (SimulatedOperator op : operators) {
+				op.step(now, dt);
+			}
+			lastStepTable = now;
+		}
+		return now;
+	}
+
+	// Callback from the UDP server thread, one control packet from the controller.
+	@Override
+	public WireMessage responseToPacket(WireMessage request)
+	{
+		if (dropRate > 0 && random.nextDouble() < dropRate) {
+			droppedPacketCount.incrementAndGet();
+			return null;
+		}
+		controlPacketCount.incrementAndGet();
+
+		ByteBuffer in = request.getView();
+		int limit = in.limit();
+		if (limit < CapsuleCodec.SYSTEM_CAPSULE_BYTES || (in.getShort(2) & 0xFFFF) != CapsuleCodec.SYSTEM_CONTROL_MAGIC) {
+			logger.debug("simulator {} ignoring malformed packet of {} bytes", port, limit);
+			return null;
+		}
+
+		synchronized (this) {
+			long now = advance();
+			lastControlSequence = in.get(4) & 0xFF;
+
+			// Walk the Operator Control capsules after the System Control one
+			int offset = CapsuleCodec.SYSTEM_CAPSULE_BYTES;
+			while (offset + CapsuleCodec.CAPSULE_HEADER_BYTES <= limit) {
+				int payloadBytes = in.get(offset) & 0xFF;
+				int next = offset + CapsuleCodec.CAPSULE_HEADER_BYTES + payloadBytes;
+				if (next > limit) {
+					break;
+				}
+				int id = in.get(offset + 1) & 0xFF;
+				int magic = in.getShort(offset + 2) & 0xFFFF;
+				if (magic == CapsuleCodec.OPERATOR_CONTROL_MAGIC && payloadBytes == 8 && id < operators.length) {
+					int value = in.getShort(offset + 4);
+					int command = in.get(offset + 6) & 0xFF;
+					long deadline = in.getInt(offset + 8) & 0xFFFFFFFFL;
+					if (command == CapsuleCodec.OPERATOR_CONTROL_CMD_MOVE) {
+						operators[id].move(value, deadline);
+					}
+					else if (command == CapsuleCodec.OPERATOR_CONTROL_CMD_STOP) {
+						operators[id].stop();
+					}
+				}
+				offset = next;
+			}
+
+			// Answer right away, so the controller gets its sequence echo without waiting for the next push
+			replyBuffer.clear();
+			encodeStatus(replyBuffer, now);
+			replyBuffer.flip();
+			replyMessage.setView(replyBuffer);
+		}
+		statusPacketCount.incrementAndGet();
+		return replyMessage;
+	}
+
+	// Caller holds the lock.
+	private void encodeStatus(ByteBuffer out, long now)
+	{
+		CapsuleCodec.putSystemStatus(out, txSequence++, lastControlSequence, now);
+		for (SimulatedOperator op : operators) {
+			int flags = op.isMoving() ? CapsuleCodec.OPERATOR_FLAG_MOVING : 0;
+			CapsuleCodec.putOperatorStatus(out, op.getDevice().getNumValue(), op.getWireValue(), flags, op.getTarget(), op.getDeadline());
+		}
+		for (int i = 0; i < ENCODER_COUNT; i++) {
+			CapsuleCodec.putEncoderStatus(out, i, operators[i].getWireValue(), ENCODER_MILLIVOLTS);
+		}
+	}
+
+	private void statusLoop()
+	{
+		long next = System.nanoTime();
+		while (keepRunning) {
+			// Fixed schedule (not sleep-after-work), so the push rate doesn't sag under load
+			next += 1_000_000_000L / Math.max(1, statusHz);
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			else if (wait < -1_000_000_000L) {
+				// Fell way behind (debugger, GC), don't try to catch up with a burst
+				next = System.nanoTime();
+			}
+			if (Thread.interrupted()) {
+				break;
+			}
+
+			synchronized (this) {
+				long now = advance();
+				if (!server.hasClient()) {
+					continue;
+				}
+				pushBuffer.clear();
+				encodeStatus(pushBuffer, now);
+				pushBuffer.flip();
+				pushMessage.setView(pushBuffer);
+			}
+			if (server.sendToClient(pushMessage)) {
+				statusPacketCount.incrementAndGet();
+			}
+		}
+		logger.debug("table simulator on port {} status thread exiting", port);
+	}
+
+	// ---------------------------------------------------------------------------------------
+
+	/**
+	 * Run a bank of simulated tables from the command line, for load tests.
+	 * <p>
+	 * Usage: TableSimulator [count] [firstPort] [statusHz]
+	 */
+	public static void main(String[] args) throws InterruptedException
+	{
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		int firstPort = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+		int statusHz = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+		ArrayList<TableSimulator> tables = new ArrayList<TableSimulator>(count);
+		for (int i = 0; i < count; i++) {
+			TableSimulator sim = new TableSimulator(firstPort + i, statusHz);
+			sim.start();
+			tables.add(sim);
+		}
+
+		while (true) {
+			Thread.sleep(10000);
+			long control = 0;
+			long status = 0;
+			for (TableSimulator sim : tables) {
+				control += sim.getControlPacketCount();
+				status += sim.getStatusPacketCount();
+			}
+			logger.info("{} simulated tables, {} control packets in, {} status packets out", count, control, status);
+		}
+	}
+}
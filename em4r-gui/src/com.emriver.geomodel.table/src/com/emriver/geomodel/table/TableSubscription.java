@@ -0,0 +1,47 @@
+package com.emriver.geomodel.table;
+
+/**
+ * Handle for one TableController.subscribe() call.  Cancel it when the subscriber goes away (a UI part being disposed, etc).
+ */
+public class TableSubscription
+{
+	final Device device;
+	final long coalesceNanos;
+	final ITableValueListener listener;
+
+	// Dispatcher thread only
+	Response lastDelivered = null;
+	long nextAllowedNanos;
+
+	private final TelemetryDispatcher dispatcher;
+	private volatile boolean cancelled = false;
+
+
+	TableSubscription(TelemetryDispatcher dispatcher, Device device, long coalesceMillis, ITableValueListener listener)
+	{
+		this.dispatcher = dispatcher;
+		this.device = device;
+		this.coalesceNanos = Math.max(0, coalesceMillis) * 1_000_000L;
+		this.listener = listener;
+		this.nextAllowedNanos = System.nanoTime();
+	}
+
+	public Device getDevice()
+	{
+		return device;
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Stop deliveries.  A delivery already running on the dispatcher thread finishes, but no new one starts.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+		dispatcher.remove(this);
+	}
+}
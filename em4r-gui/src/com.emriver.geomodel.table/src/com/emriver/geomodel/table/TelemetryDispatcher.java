@@ -0,0 +1,220 @@
+package com.emriver.geomodel.table;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.elmocity.elib.util.TimerWheel;
+
+/**
+ * Pushes device value changes from a TelemetryStore to subscribers, on one dispatcher thread per controller, or as passes on a TimerWheel
+ * that several controllers share (see TableFleet).
+ * <p>
+ * The receive thread only flips a flag and unparks us, so it never runs subscriber code.  On each wake we compare every subscription's
+ * last delivered Response with the store's latest one (the store swaps in a new object only on a change, so identity is enough), and
+ * deliver the newest value if the subscription's coalescing interval allows it.  Otherwise we sleep until the earliest interval runs
+ * out.  The first change after a quiet spell goes out right away, later ones inside the interval are folded into one trailing delivery.
+ * <p>
+ * The thread starts with the first subscription and parks when there is nothing to do.  On a wheel, a pass is only booked when a value
+ * changed or an interval runs out.
+ */
+public class TelemetryDispatcher
+{
+	private final TelemetryStore store;
+	private final String name;
+	private final CopyOnWriteArrayList<TableSubscription> subscriptions = new CopyOnWriteArrayList<TableSubscription>();
+
+	private final AtomicBoolean signalled = new AtomicBoolean(false);
+	private volatile Thread thread = null;
+	private volatile boolean keepRunning = true;
+
+	// Wheel mode, null when we have our own thread.  nextPass is guarded by this.
+	private final TimerWheel wheel;
+	private TimerWheel.Timeout nextPass = null;
+	private long nextPassNanos = Long.MAX_VALUE;
+
+	private static final Logger logger = LoggerFactory.getLogger(TelemetryDispatcher.class);
+
+
+	public TelemetryDispatcher(TelemetryStore store, String name)
+	{
+		this(store, name, null);
+	}
+
+	/**
+	 * @param wheel run the passes on this wheel instead of a thread of our own, null for our own thread
+	 */
+	public TelemetryDispatcher(TelemetryStore store, String name, TimerWheel wheel)
+	{
+		this.store = store;
+		this.name = name;
+		this.wheel = wheel;
+	}
+
+	public TableSubscription subscribe(Device device, long coalesceMillis, ITableValueListener listener)
+	{
+		TableSubscription subscription = new TableSubscription(this, device, coalesceMillis, listener);
+		subscriptions.add(subscription);
+		startIfNeeded();
+
+		// Nothing delivered yet, so the next pass hands it the current value
+		changed();
+		if (wheel != null) {
+			// changed() skips booking while there are no subscriptions, so the flag may already be up without a pass
+			book(0);
+		}
+		return subscription;
+	}
+
+	void remove(TableSubscription subscription)
+	{
+		subscriptions.remove(subscription);
+	}
+
+	public int getSubscriptionCount()
+	{
+		return subscriptions.size();
+	}
+
+	/**
+	 * Some value in the store changed.  Called on the receive thread, so this only wakes the dispatcher.
+	 */
+	public void changed()
+	{
+		if (signalled.compareAndSet(false, true)) {
+			if (wheel != null) {
+				if (!subscriptions.isEmpty()) {
+					book(0);
+				}
+				return;
+			}
+			Thread t = thread;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+	}
+
+	public synchronized void shutdown()
+	{
+		keepRunning = false;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+			thread = null;
+		}
+		if (nextPass != null) {
+			nextPass.cancel();
+			nextPass = null;
+		}
+	}
+
+	private synchronized void startIfNeeded()
+	{
+		if (thread != null || !keepRunning || wheel != null) {
+			return;
+		}
+		Thread t = new Thread(() -> dispatchLoop());
+		t.setName(name);
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+	private void dispatchLoop()
+	{
+		while (keepRunning) {
+			signalled.set(false);
+			long wait = pass();
+
+			if (signalled.get()) {
+				continue;
+			}
+			if (wait == Long.MAX_VALUE) {
+				LockSupport.park(this);
+			}
+			else if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+			}
+		}
+		logger.debug("{} exiting", name);
+	}
+
+	// Make sure a wheel pass happens within delayNanos, keeping an already booked one if it is sooner
+	private synchronized void book(long delayNanos)
+	{
+		if (!keepRunning) {
+			return;
+		}
+		long at = System.nanoTime() + delayNanos;
+		if (nextPass != null) {
+			if (nextPassNanos <= at) {
+				return;
+			}
+			nextPass.cancel();
+		}
+		nextPass = wheel.schedule(() -> wheelPass(), (delayNanos + 999_999) / 1_000_000);
+		nextPassNanos = at;
+	}
+
+	private void wheelPass()
+	{
+		synchronized (this) {
+			nextPass = null;
+			nextPassNanos = Long.MAX_VALUE;
+		}
+		signalled.set(false);
+		long wait = pass();
+
+		if (signalled.get()) {
+			book(0);
+		}
+		else if (wait != Long.MAX_VALUE) {
+			book(Math.max(0, wait));
+		}
+	}
+
+	/**
+	 * Deliver everything that is due.
+	 *
+	 * @return ns until the earliest coalescing interval runs out, Long.MAX_VALUE if nothing is waiting
+	 */
+	private long pass()
+	{
+		long now = System.nanoTime();
+		long wakeAt = 0;
+		boolean haveWake = false;
+
+		for (TableSubscription subscription : subscriptions) {
+			if (subscription.isCancelled()) {
+				continue;
+			}
+			Response latest = store.getLatest(subscription.device);
+			if (latest == null || latest == subscription.lastDelivered) {
+				continue;
+			}
+			if (now - subscription.nextAllowedNanos < 0) {
+				// Inside the coalescing interval, come back for it when the interval runs out
+				if (!haveWake || subscription.nextAllowedNanos - wakeAt < 0) {
+					wakeAt = subscription.nextAllowedNanos;
+					haveWake = true;
+				}
+				continue;
+			}
+
+			subscription.lastDelivered = latest;
+			subscription.nextAllowedNanos = now + subscription.coalesceNanos;
+			try {
+				subscription.listener.valueChanged(latest);
+			}
+			catch (Exception e) {
+				// One broken subscriber must not take down everybody else's updates
+				logger.warn("subscriber for {} threw", subscription.device, e);
+			}
+		}
+
+		return haveWake ? wakeAt - System.nanoTime() : Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,111 @@
+package com.emriver.geomodel.table;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.elmocity.elib.util.SampleRing;
+
+/**
+ * Everything one TableController knows about its table's devices: the latest Response per device, and a history ring per device with
+ * every status sample received (time, value, operator flags).
+ * <p>
+ * Written only by the connection's receive thread (through TableController.receiveResponses), read by anyone.  Latest values are
+ * immutable Responses behind a volatile slot, so getLatest() never waits.  History readers copy out of the SampleRing without ever
+ * blocking the receive thread.
+ * <p>
+ * Sample times are local System.currentTimeMillis() at receive, not the table clock, so history from different tables lines up.
+ */
+public class TelemetryStore
+{
+	// Indexed by Device numValue, DEV_UNKNOWN has no slot
+	private static final int DEVICE_SLOTS = 5;
+
+	private final AtomicReferenceArray<Response> latest = new AtomicReferenceArray<Response>(DEVICE_SLOTS);
+	private final SampleRing[] history = new SampleRing[DEVICE_SLOTS];
+
+	// When the last status sample of any device came in, 0 = never
+	private volatile long lastRecordMillis = 0;
+
+
+	/**
+	 * @param historySize samples kept per device (rounded up to a power of 2)
+	 */
+	public TelemetryStore(int historySize)
+	{
+		for (int i = 0; i < DEVICE_SLOTS; i++) {
+			history[i] = new SampleRing(historySize);
+		}
+		reset();
+	}
+
+	/**
+	 * Forget the latest values (back to "uninitialized"), keeping the history.
+	 */
+	public void reset()
+	{
+		for (Device device : Device.values()) {
+			if (device != Device.DEV_UNKNOWN) {
+				latest.set(device.getNumValue(), new Response(device, "uninitialized", 0.00, 0));
+			}
+		}
+	}
+
+	/**
+	 * @return never null for a real device, null for DEV_UNKNOWN
+	 */
+	public Response getLatest(Device device)
+	{
+		int slot = device.getNumValue();
+		if (slot < 0 || slot >= DEVICE_SLOTS) {
+			return null;
+		}
+		return latest.get(slot);
+	}
+
+	/**
+	 * @return System.currentTimeMillis() of the last status sample received, 0 if none yet
+	 */
+	public long getLastRecordMillis()
+	{
+		return lastRecordMillis;
+	}
+
+	/**
+	 * @return the history ring for the device, or null for DEV_UNKNOWN
+	 */
+	public SampleRing getHistory(Device device)
+	{
+		int slot = device.getNumValue();
+		if (slot < 0 || slot >= DEVICE_SLOTS) {
+			return null;
+		}
+		return history[slot];
+	}
+
+	/**
+	 * Record one status sample.  Receive thread only.
+	 *
+	 * @return true if the latest value changed (and a new Response was stored)
+	 */
+	boolean record(Response response, long time)
+	{
+		int slot = response.device.getNumValue();
+		if (slot < 0 || slot >= DEVICE_SLOTS) {
+			return false;
+		}
+		history[slot].add(time, response.value, response.flags);
+		lastRecordMillis = time;
+
+		Response old = latest.get(slot);
+		if (old != null && TableController.RSP_OK.equals(old.status) && old.value == response.value && old.seconds == response.seconds
+				&& old.flags == response.flags) {
+			// Nothing new, which is the steady state at 100+ packets per second, so don't churn the cache
+			return false;
+		}
+
+		// The connection reuses its Response objects, so keep our own (never modified after it goes in)
+		Response copy = new Response(response.device, TableController.RSP_OK, response.value, response.seconds);
+		copy.flags = response.flags;
+		latest.set(slot, copy);
+		return true;
+	}
+}
@@ -3,15 +3,13 @@ package com.emriver.geomodel.table.parts;
 import java.awt.Font;
 import java.time.LocalTime;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
 import java.util.List;
 
 import javax.annotation.PostConstruct;
-import javax.inject.Inject;
+import javax.annotation.PreDestroy;
 
 import org.eclipse.e4.core.contexts.IEclipseContext;
 import org.eclipse.e4.ui.di.Focus;
-import org.eclipse.e4.ui.di.UISynchronize;
 import org.eclipse.e4.ui.model.application.MApplication;
 import org.eclipse.e4.ui.model.application.ui.basic.MPart;
 import org.eclipse.swt.SWT;
@@ -38,6 +36,8 @@ import org.swtchart.Range;
 import org.swtchart.ILineSeries.PlotSymbolType;
 import org.swtchart.ISeries.SeriesType;
 
+import com.elmocity.elib.chart.ChartX;
+import com.elmocity.elib.chart.LiveSeries;
 import com.elmocity.elib.swt.ColorCache;
 import com.elmocity.elib.swt.FontCache;
 import com.elmocity.elib.swt.GridHelpers;
@@ -45,11 +45,12 @@ import com.elmocity.elib.swt.ShuttleComposite;
 import com.elmocity.elib.swt.VerticalLabelComposite;
 import com.elmocity.elib.swt.ShuttleComposite.ShuttleListener;
 import com.elmocity.elib.ui.PartUtils;
-import com.elmocity.elib.util.Calc;
+import com.elmocity.elib.ui.RenderScheduler;
 import com.emriver.geomodel.table.Device;
 import com.emriver.geomodel.table.Request;
 import com.emriver.geomodel.table.Response;
 import com.emriver.geomodel.table.TableController;
+import com.emriver.geomodel.table.TableSubscription;
 
 public class TableDevicePart
 {
@@ -93,8 +94,12 @@ public class TableDevicePart
 	private double targetStep = device.getStep();
 
 
-	@Inject
-	UISynchronize sync;
+	// Every refresh of the chart and value texts goes through the shared scheduler, so all the parts together cost one UI event a frame
+	private final RenderScheduler render = RenderScheduler.getShared();
+	private final Runnable chartRefresh = () -> refreshChart();
+	private final Runnable targetTextRefresh = () -> showTargetValue();
+	private final Runnable actualTextRefresh = () -> showActualValue();
+	private volatile String actualValueFormatted = null;
 
 	@PostConstruct
 	public void postConstruct(Composite parent, MApplication app, MPart part)
@@ -277,7 +282,8 @@ public class TableDevicePart
 			GridLayout graphLayout = new GridLayout(1, false);
 			graphGroup.setLayout(graphLayout);
 
-			chart = PartUtils.makeChartComposite(graphGroup);
+			// Every data change goes through refreshChart(), which marks the series dirty, so the lines can be drawn offscreen
+			chart = PartUtils.makeChartComposite(graphGroup, true);
 
 //			Button clearButton = new Button(graphGroup, SWT.PUSH);
 //			clearButton.setText("Clear Data");
@@ -292,7 +298,7 @@ public class TableDevicePart
 			deviceChanged();
 		}
 
-		initWatcherThread();
+		initValueSubscription();
 		isChartRunning = true;
 
 		//		// Publish any objects we want into the eclipse context (unique for each new part).
@@ -348,9 +354,24 @@ public class TableDevicePart
 		targetValue = newTargetValue;
 		shuttle.setShuttleValue(targetValue);
 		
-		sync.asyncExec(() -> {
+		render.markDirty(targetTextRefresh);
+	}
+
+	// UI thread only
+	private void showTargetValue()
+	{
+		if (targetValueText != null && !targetValueText.isDisposed()) {
 			targetValueText.setText(formatValue(device, targetValue));
-		});
+		}
+	}
+
+	// UI thread only
+	private void showActualValue()
+	{
+		String formatted = actualValueFormatted;
+		if (formatted != null && actualValueText != null && !actualValueText.isDisposed()) {
+			actualValueText.setText(formatted);
+		}
 	}
 
 	/**
@@ -365,7 +386,7 @@ public class TableDevicePart
 
 		logger.trace("Send request {}", request.debugString());
 		if (isChartRunning) {
-			addDataPoint(targetSeriesID, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), targetValue);
+			addDataPoint(targetLive, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), targetValue);
 		}
 	}
 	
@@ -387,6 +408,10 @@ public class TableDevicePart
 		
 		chart.getLegend().setVisible(false);
 
+		// The new series start out empty, so must the data behind them
+		targetLive.clear();
+		actualLive.clear();
+
 		String xAxisTitle = "Time (seconds)";
 		String yAxisTitle = "?";
 		switch (device) {
@@ -482,89 +507,62 @@ public class TableDevicePart
 		}
 	}
 
-	private final int maxPointsToKeep = 5 * 60;		// TODO CEA   these are in 1 second points.
+	// Every point ever plotted (up to the capacity), added from any thread, copied into the chart series on the UI thread by refreshChart()
+	private static final int LIVE_POINTS = 1 << 16;		// 18 hours at the 1 second chart tick, over 4 hours even at 4 Hz
+	private final LiveSeries targetLive = new LiveSeries(LIVE_POINTS);
+	private final LiveSeries actualLive = new LiveSeries(LIVE_POINTS);
 
-	void addDataPoint(String seriesID, double xValue, double yValue)
+	void addDataPoint(LiveSeries live, double xValue, double yValue)
 	{
-		// HACK, literally extending the X and Y data arrays by one at a time, barf, by resizing and copying.
-		double[] x = chart.getSeriesSet().getSeries(seriesID).getXSeries();
-		if (x.length == maxPointsToKeep) {
-			x = Arrays.copyOfRange(x, 1, x.length + 1);		// Copy starting at element 1 (instead of 0) and "walk off the end" by 1 element
-		}
-		else {
-			x = Arrays.copyOf(x, x.length + 1);
-		}
-		x[x.length - 1] = xValue;	// x.length;
-		chart.getSeriesSet().getSeries(seriesID).setXSeries(x);
+		live.add(xValue, yValue);
+		render.markDirty(chartRefresh);
+	}
 
-		double[] y = chart.getSeriesSet().getSeries(seriesID).getYSeries();
-		if (y.length == maxPointsToKeep) {
-			y = Arrays.copyOfRange(y, 1, y.length + 1);		// Copy starting at element 1 (instead of 0) and "walk off the end" by 1 element
+	// UI thread only
+	private void refreshChart()
+	{
+		if (chart == null || chart.isDisposed()) {
+			return;
 		}
-		else {
-			y = Arrays.copyOf(y, y.length + 1);
+		double lastX = Math.max(lastX(targetLive), lastX(actualLive));
+		if (lastX < 0) {
+			return;
 		}
-		y[y.length - 1] = yValue;	// Calc.rand(20, 90) / 10.00;
-		chart.getSeriesSet().getSeries(seriesID).setYSeries(y);
 
-		sync.asyncExec( () -> {
-			if (chart.isDisposed()) {
-				return;
-			}
-			
-		
-			// We assume the Y axis is fixed to the known range of the chart, like a table can tilt only from 0 to 10 degrees.
-
-			// The default X axis "adjustRange()" only leaves small gaps on the left and right (like 1 sec).
-			// We want to leave 1 sec on the left, but want to extend in "blocks" of like 30 seconds on the right, so that as single
-			// data points come in, they fill in that blank area, instead of constantly rescaling the X axis to just barely fit the data.
-
-			// Have the chart package recompute the default range for the data we now have in the series (with 1 sec edges)
-			IAxis xAxis = chart.getAxisSet().getXAxes()[0];
-			xAxis.adjustRange();						// NOTE: this does not cause a redraw
-
-			// We want a right edge gap of between 1 sec to 30 sec
-			Range defaultXRange = xAxis.getRange();		// Read back what the package computed
-			defaultXRange.upper = ((int)((defaultXRange.upper + 29.0) / 30)) * 30 + 1;		// + 1 so if we filled the whole block, there is still a gap
-			defaultXRange.lower = Math.max(-1.0, defaultXRange.upper - maxPointsToKeep);
-//			defaultXRange.lower = -1.0;
-			xAxis.setRange(defaultXRange);
-			//			logger.trace("{} {}", defaultXRange.lower, defaultXRange.upper);
-
-			// We have to force the replot ourselves, which is good that we can do several changes then just one replot.
-			if (!chart.isDisposed()) {
-				chart.redraw();
-			}
-		});
+		// We assume the Y axis is fixed to the known range of the chart, like a table can tilt only from 0 to 10 degrees.
 
-	}
-	
-	/**
-	 * If the last point on this series has the same Y value we care about, then just update the X value to the new X.
-	 * This basically extends a live plotting line that is maintaining the same value, without adding new marker points.
-	 *
-	 * @return true if there was a match, and the data was updated.  false means the Y value is different and the
-	 *	caller needs to take other action, most likely adding a new point. 
-	 */
-	private boolean testAndReplaceLastPointIfYIsTheSame(String seriesID, double newXValue, double matchingYValue)
-	{
-		double[] y = chart.getSeriesSet().getSeries(seriesID).getYSeries();
-		if (y.length < 2) {
-			return false;
+		// We want to leave 1 sec on the left, but want to extend in "blocks" of like 30 seconds on the right, so that as single
+		// data points come in, they fill in that blank area, instead of constantly rescaling the X axis to just barely fit the data.
+		Range xRange = new Range(0, 0);
+		xRange.upper = ((int)((lastX + 29.0) / 30)) * 30 + 1;		// + 1 so if we filled the whole block, there is still a gap
+		xRange.lower = -1.0;				// the whole run, not just the last few minutes
+
+		// However long the run, the chart only gets a couple of points per pixel (see LiveSeries)
+		int plotWidth = chart.getPlotArea().getSize().x;
+		ISeriesSet seriesSet = chart.getSeriesSet();
+		boolean changed = false;
+		if (seriesSet.getSeries(targetSeriesID) != null) {
+			changed |= targetLive.showIn(seriesSet.getSeries(targetSeriesID), xRange.lower, xRange.upper, plotWidth);
 		}
-		
-		double lastYValue = y[y.length - 1];
-		double secondLastYValue = y[y.length - 2];
-		if (Calc.double_equals(lastYValue, matchingYValue) && Calc.double_equals(secondLastYValue, matchingYValue)) {
-			// Overwrite the last X value with the new timestamp
-			double[] x = chart.getSeriesSet().getSeries(seriesID).getXSeries();
-			x[x.length - 1] = newXValue;	// x.length;
-			chart.getSeriesSet().getSeries(seriesID).setXSeries(x);
-			
-			return true;
+		if (seriesSet.getSeries(actualSeriesID) != null) {
+			changed |= actualLive.showIn(seriesSet.getSeries(actualSeriesID), xRange.lower, xRange.upper, plotWidth);
+		}
+		if (!changed) {
+			return;
 		}
+		chart.getAxisSet().getXAxes()[0].setRange(xRange);
+		if (chart instanceof ChartX) {
+			((ChartX) chart).markSeriesDirty();
+		}
+
+		// We have to force the replot ourselves, which is good that we can do several changes then just one replot.
+		chart.redraw();
+	}
 
-		return false;	// did not replace
+	private static double lastX(LiveSeries live)
+	{
+		double x = live.getLastX();
+		return Double.isNaN(x) ? -1.0 : x;
 	}
 	
 //	private class ResetYAxisListener extends SelectionAdapter
@@ -675,106 +673,87 @@ public class TableDevicePart
 		return device;
 	}
 	
-	private Thread tableWatcherThread = null;
-	private void initWatcherThread()
+	// Pushed value changes from the controller, instead of a "Watcher" thread per part polling every 250 ms
+	private TableSubscription valueSubscription = null;
+
+	// While the device is moving, update the text at most this often (the first change after a quiet spell always shows right away)
+	private static final long VALUE_COALESCE_MS = 50;
+
+	// The chart wants a point per second even when nothing changes, to keep the lines going
+	private static final int CHART_TICK_MS = 1000;
+
+	private void initValueSubscription()
 	{
-		if (tableWatcherThread != null) {
-			logger.warn("multiple calls to initWatcherThread() not allowed.");
+		if (valueSubscription != null) {
+			logger.warn("multiple calls to initValueSubscription() not allowed.");
 			return;
 		}
-		
-		
-//		initChart();
-//		
+
 		// Record the starting time... all X values will be in seconds after that time.
 		chartStartTime = LocalTime.now();
 
-		tableWatcherThread = new Thread(new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				tableWatcherThread.setName("Watcher" + device.name());
-
-				final int msAverageSleepCycle = 250;
-				final int chartMultiplier = 4;
-				
-				long counter = 0;
-				while (true) {
-
-					counter++;
-					
-					try {
-						Thread.sleep(msAverageSleepCycle);
-					}
-					catch (InterruptedException e) {
-						logger.debug("feed watcher asked to quit");
-						break;
-					}
-					
-					// At startup or shutdown, we might get in a situation where our controller is broken.
-					// Don't bail out, since the main app might get it connected() again.
-					if (controller == null || !controller.isConnected()) {
-						continue;
-					}
-
-					// Plot the existing target value on the chart to extend the line.
-					// TODO need a way to keep the line going without placing old points...
-					// TODO like look at the last point on the data series, and if the same as us, just replace the X to now.
-
-					if (isChartRunning && (counter % chartMultiplier == 0)) {
-//						if (!testAndReplaceLastPointIfYIsTheSame(targetSeriesID, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), targetValue)) {
-							addDataPoint(targetSeriesID, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), targetValue);
-//						}
-					}
+		// Called on the controller's dispatcher thread, only when the value actually changed
+		valueSubscription = controller.subscribe(device, VALUE_COALESCE_MS, response -> {
+			actualValueFormatted = formatValue(device, clipValue(response));
+			render.markDirty(actualTextRefresh);
+		});
 
-//					// Sleep a little to offset the two series markers, otherwise they usually plot directly over each other.
-//					// TODO could solve this with some alpha on both series lines?
-//					try {
-//						Thread.sleep(Calc.rand(400, 600));
-//					}
-//					catch (InterruptedException e) {
-//						logger.debug("feed watcher asked to quit");
-//						break;
-//					}
-
-					// Read the latest value that the controller has... this doesn't block or query the table directly. 
-					Response response = controller.getCurrentValue(device);
-					if (response == null) {
-						continue;	// impossible
-					}
+		// Chart points come from a UI timer, so no thread of our own at all
+		Display.getCurrent().timerExec(CHART_TICK_MS, chartTicker);
+	}
 
-					// Sanity tests in case the controller is sending corrupt data
-					double clippedValue = response.value;
-					if (clippedValue < targetMin) {
-						clippedValue = targetMin;
-						logger.debug("BAD VALUE from table device {} value {}", response.device, response.value);
-					}
-					if (clippedValue > targetMax) {
-						clippedValue = targetMax;
-						logger.debug("BAD VALUE from table device {} value {}", response.device, response.value);
-					}
-					
-//					logger.debug("adding new data point for dev {} value {}", response.device, response.value);
-					if (isChartRunning && (counter % chartMultiplier == 0)) {
-						addDataPoint(actualSeriesID, ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now()), clippedValue);
-					}
-					
-					final String formatted = formatValue(device, clippedValue);
-					sync.asyncExec(() -> {
-						if (actualValueText != null && !actualValueText.isDisposed()) {
-							actualValueText.setText(formatted);
-						}
-					});
-				}
+	private final Runnable chartTicker = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			if (chart == null || chart.isDisposed()) {
+				// Part is gone, stop ticking
+				return;
+			}
 
-				// This cleans up the underlying connection too (serial or UDP etc)
-				if (controller != null && controller.isConnected()) {
-					controller.disconnect();
+			// At startup or shutdown, we might get in a situation where our controller is broken.
+			// Don't bail out, since the main app might get it connected() again.
+			if (isChartRunning && controller != null && controller.isConnected()) {
+				// Plot the existing target value on the chart to extend the line.
+				// TODO need a way to keep the line going without placing old points...
+				double x = ChronoUnit.SECONDS.between(chartStartTime, LocalTime.now());
+				addDataPoint(targetLive, x, targetValue);
+
+				// Read the latest value that the controller has... this doesn't block or query the table directly.
+				Response response = controller.getCurrentValue(device);
+				if (response != null) {
+					addDataPoint(actualLive, x, clipValue(response));
 				}
 			}
-		});
-		tableWatcherThread.start();
+			chart.getDisplay().timerExec(CHART_TICK_MS, this);
+		}
+	};
+
+	/**
+	 * Sanity tests in case the controller is sending corrupt data
+	 */
+	private double clipValue(Response response)
+	{
+		double clippedValue = response.value;
+		if (clippedValue < targetMin) {
+			clippedValue = targetMin;
+			logger.debug("BAD VALUE from table device {} value {}", response.device, response.value);
+		}
+		if (clippedValue > targetMax) {
+			clippedValue = targetMax;
+			logger.debug("BAD VALUE from table device {} value {}", response.device, response.value);
+		}
+		return clippedValue;
+	}
+
+	@PreDestroy
+	public void preDestroy()
+	{
+		if (valueSubscription != null) {
+			valueSubscription.cancel();
+			valueSubscription = null;
+		}
 	}
 	
 	/**